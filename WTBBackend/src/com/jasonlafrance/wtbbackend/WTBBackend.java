@@ -19,22 +19,48 @@ This file is part of WTBBackend.
 
 package com.jasonlafrance.wtbbackend;
 
-import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.timeToMinutes;
-
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.jasonlafrance.wtbbackend.boards.DepartureBoards;
 import com.jasonlafrance.wtbbackend.config.Config;
 import com.jasonlafrance.wtbbackend.gps_portal.GPSPortal;
+import com.jasonlafrance.wtbbackend.gps_portal.HTTPInput;
+import com.jasonlafrance.wtbbackend.gps_portal.HTTPTransport;
+import com.jasonlafrance.wtbbackend.gps_portal.KeepAliveTransport;
+import com.jasonlafrance.wtbbackend.gps_portal.LoopbackTransport;
+import com.jasonlafrance.wtbbackend.gps_portal.PacketJournal;
+import com.jasonlafrance.wtbbackend.gps_portal.PacketTransport;
+import com.jasonlafrance.wtbbackend.gps_portal.TimedTransport;
+import com.jasonlafrance.wtbbackend.gtfs.ColumnStore;
+import com.jasonlafrance.wtbbackend.gtfs.FeedManager;
+import com.jasonlafrance.wtbbackend.gtfs.FeedScheduler;
 import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.history.HistoryQueries;
+import com.jasonlafrance.wtbbackend.history.PositionStore;
+import com.jasonlafrance.wtbbackend.kml_util.KMLQueries;
+import com.jasonlafrance.wtbbackend.query.PushHub;
+import com.jasonlafrance.wtbbackend.query.QueryPortal;
+import com.jasonlafrance.wtbbackend.query.VehicleQueries;
+import com.jasonlafrance.wtbbackend.realtime.RealtimeFeed;
+import com.jasonlafrance.wtbbackend.routing.PlanQueries;
+import com.jasonlafrance.wtbbackend.telemetry.Probe;
+import com.jasonlafrance.wtbbackend.telemetry.Telemetry;
+import com.jasonlafrance.wtbbackend.tiles.VectorTiles;
 import com.jasonlafrance.wtbbackend.vehicle.Drone;
+import com.jasonlafrance.wtbbackend.vehicle.DroneEngine;
 import com.jasonlafrance.wtbbackend.vehicle.DroneQueue;
 import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.vehicle.VehicleCheckpoint;
+import com.jasonlafrance.wtbbackend.vehicle.VehiclePipeline;
 
 /**
  * 
@@ -57,6 +83,168 @@ public class WTBBackend {
 		}
 	}
 
+	/**
+	 * Register the subsystem probes and publish Telemetry over JMX
+	 */
+	private static void initTelemetry() {
+		Telemetry telemetry = Telemetry.getInstance();
+
+		telemetry.registerProbe("vehicles_bytes", new Probe() {
+			@Override
+			public long sample() {
+				return Vehicle.estimateBytes();
+			}
+		});
+		telemetry.registerProbe("stop_window_bytes", new Probe() {
+			@Override
+			public long sample() {
+				return GTFS.getStopIndex().estimateBytes();
+			}
+		});
+		telemetry.registerProbe("gtfs_column_bytes", new Probe() {
+			@Override
+			public long sample() {
+				return ColumnStore.getInstance().getBytes();
+			}
+		});
+
+		telemetry.register();
+		FeedScheduler.getInstance().register();
+		telemetry.sample();
+	}
+
+	/**
+	 * Load tracked vehicles saved by a previous run, if there are any. A
+	 * checkpoint older than the vehicle timeout is skipped, as every vehicle
+	 * in it would have timed out by now.
+	 * 
+	 * @param inFile
+	 *            The checkpoint file
+	 * @param inFeeds
+	 *            Currently loaded feeds to bind the vehicles to
+	 * @param inTimeout
+	 *            The vehicle timeout in seconds
+	 */
+	private static void restoreCheckpoint(String inFile,
+			Collection<GTFS> inFeeds, int inTimeout) {
+		if (!new File(inFile).isFile()) {
+			return;
+		}
+		try {
+			long age = System.currentTimeMillis()
+					- VehicleCheckpoint.getSavedMillis(inFile);
+			if (age > inTimeout * 1000L) {
+				System.out.println("Skipping " + inFile + ", saved "
+						+ age / 1000 + " seconds ago");
+				return;
+			}
+			int count = VehicleCheckpoint.restore(inFile, inFeeds);
+			System.out.println("Restored " + count + " vehicles from "
+					+ inFile + ", saved " + age / 1000 + " seconds ago");
+		} catch (IOException e) {
+			System.out.println("Can't restore vehicles: " + e.toString());
+		}
+	}
+
+	/**
+	 * Save every tracked vehicle
+	 * 
+	 * @param inFile
+	 *            The checkpoint file
+	 */
+	private static void saveCheckpoint(String inFile) {
+		try {
+			VehicleCheckpoint.save(inFile);
+		} catch (IOException e) {
+			System.out.println("Can't save vehicles: " + e.toString());
+		}
+	}
+
+	/**
+	 * Start a thread that runs a task periodically for the life of the
+	 * server. A failed run is logged and the task carries on, since an
+	 * exception would otherwise cancel it for good.
+	 * 
+	 * @param inName
+	 *            Name of the thread
+	 * @param inPeriodMillis
+	 *            Delay between the end of one run and the start of the next
+	 * @param inTask
+	 *            The task to run
+	 * @return The executor running the task
+	 */
+	private static ScheduledExecutorService schedule(final String inName,
+			long inPeriodMillis, final Runnable inTask) {
+		ScheduledExecutorService ret = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, inName);
+					}
+				});
+		ret.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					inTask.run();
+				} catch (RuntimeException e) {
+					Logger.getLogger(WTBBackend.class.getName()).log(
+							Level.SEVERE, inName, e);
+				}
+			}
+		}, inPeriodMillis, inPeriodMillis, TimeUnit.MILLISECONDS);
+		return ret;
+	}
+
+	/**
+	 * Stop a scheduled task, waiting for a run in progress to finish
+	 * 
+	 * @param in
+	 *            The executor running the task
+	 */
+	private static void stopScheduled(ScheduledExecutorService in) {
+		in.shutdown();
+		try {
+			in.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Create the transport Drones send their packets on
+	 * 
+	 * @param inMode
+	 *            "loopback" to skip the network, "keepalive" for pooled
+	 *            HTTP connections, anything else for a connection per packet
+	 * @param inServer
+	 *            The GPS portal's URL
+	 * @param inPassword
+	 *            The GPS portal's password
+	 * @return The transport
+	 */
+	private static PacketTransport createDroneTransport(String inMode,
+			String inServer, String inPassword) {
+		String mode = inMode == null ? "http" : inMode.trim().toLowerCase();
+		switch (mode) {
+		case "loopback":
+			System.out.println("Drone transport: loopback");
+			return new LoopbackTransport(inPassword);
+		case "keepalive":
+			try {
+				System.out.println("Drone transport: keep-alive HTTP");
+				return new KeepAliveTransport(inServer);
+			} catch (MalformedURLException e) {
+				System.out.println("Bad drone server URL: " + inServer);
+			}
+			break;
+		default:
+			break;
+		}
+		System.out.println("Drone transport: HTTP");
+		return new HTTPTransport(inServer);
+	}
+
 	/**
 	 * @param args
 	 *            the command line arguments
@@ -65,16 +253,23 @@ public class WTBBackend {
 		boolean ok = false;
 
 		long startTime, endTime;
-		LinkedList<Drone> mDroneArm = new LinkedList<>();
-		DroneQueue droneQueue = new DroneQueue(mDroneArm);
-
 		// load the config options
 		Config config = Config.getInstance();
 		config.load("config.xml");
 
+		double timeScale = config.getDoubleOption(Config.DRONE_TIME_SCALE);
+		if (Double.isNaN(timeScale)) {
+			timeScale = 1.0;
+		}
+		DroneEngine droneEngine = new DroneEngine(
+				config.getIntOption(Config.DRONE_THREADS), timeScale);
+		DroneQueue droneQueue = new DroneQueue(droneEngine);
+
 		// erase old kmls
 		clearKMLs();
 
+		initTelemetry();
+
 		String dirs[] = config.getOption(Config.GTFS_DIRS).split(",");
 		int timeGap = config.getIntOption(Config.GTFS_TIME_GAP);
 
@@ -87,8 +282,85 @@ public class WTBBackend {
 				Config.SERVER_PASSWORD);
 		final int port = Config.getInstance().getIntOption(Config.SERVER_PORT);
 
+		String journalDir = config.getOption(Config.JOURNAL_DIR);
+		if (journalDir != null && !journalDir.isEmpty()) {
+			int segmentMB = config.getIntOption(Config.JOURNAL_SEGMENT_MB);
+			try {
+				HTTPInput.setJournal(new PacketJournal(journalDir,
+						segmentMB > 0 ? segmentMB << 20
+								: PacketJournal.DEFAULT_SEGMENT_BYTES));
+				System.out.println("Recording GPS packets to " + journalDir);
+			} catch (IOException e) {
+				System.out.println("Journal: " + e.toString());
+			}
+		}
+
+		PositionStore history = null;
+		String historyDir = config.getOption(Config.HISTORY_DIR);
+		if (historyDir != null && !historyDir.isEmpty()) {
+			try {
+				final PositionStore store = new PositionStore(historyDir,
+						PositionStore.DEFAULT_SEGMENT_BYTES,
+						Math.max(0, config.getIntOption(Config.HISTORY_DAYS)));
+				history = store;
+				Vehicle.addListener(store);
+				Telemetry.getInstance().registerProbe("history_bytes",
+						new Probe() {
+							@Override
+							public long sample() {
+								return store.estimateBytes();
+							}
+						});
+				System.out.println("Recording vehicle history to "
+						+ historyDir);
+			} catch (IOException e) {
+				System.out.println("History: " + e.toString());
+			}
+		}
+
+		int shards = config.getIntOption(Config.VEHICLE_SHARDS);
+		if (shards > 0) {
+			int queueSize = config.getIntOption(Config.VEHICLE_QUEUE_SIZE);
+			HTTPInput.setPipeline(new VehiclePipeline(shards,
+					queueSize > 0 ? queueSize
+							: VehiclePipeline.DEFAULT_QUEUE_SIZE));
+			System.out.println("Processing vehicles on " + shards
+					+ " shards");
+		}
+
 		GPSPortal g = new GPSPortal(port, password);
 
+		final VehicleQueries vehicleQueries = new VehicleQueries();
+		final RealtimeFeed realtimeFeed = new RealtimeFeed();
+		Telemetry.getInstance().registerProbe("realtime_feed_bytes",
+				new Probe() {
+					@Override
+					public long sample() {
+						return realtimeFeed.estimateBytes();
+					}
+				});
+		DepartureBoards boards = new DepartureBoards();
+		PlanQueries planQueries = new PlanQueries();
+		final KMLQueries kmlQueries = new KMLQueries();
+		VectorTiles vectorTiles = new VectorTiles();
+		final int queryPort = config.getIntOption(Config.QUERY_PORT);
+		if (queryPort > 0) {
+			QueryPortal q = new QueryPortal(queryPort);
+			q.addHandler("/vehicles", vehicleQueries);
+			q.addHandler("/routes/", vehicleQueries);
+			q.addHandler("/gtfs-rt/", realtimeFeed);
+			q.addBlockingHandler("/stops/", boards);
+			q.addBlockingHandler("/plan/", planQueries);
+			q.addBlockingHandler("/export/", kmlQueries);
+			q.addBlockingHandler("/tiles/", vectorTiles);
+			if (history != null) {
+				q.addBlockingHandler("/history/",
+						new HistoryQueries(history));
+			}
+			q.addStream("/stream/vehicles", new PushHub());
+			q.start();
+		}
+
 		int id = 1;
 		final double busSpeed = Config.getInstance().getDoubleOption(
 				Config.DRONE_SPEED);
@@ -97,11 +369,24 @@ public class WTBBackend {
 
 		boolean dronesActive = config.getBooleanOption(Config.DRONES_ACTIVE);
 
+		PacketTransport droneTransport = null;
 		if (dronesActive) {
 			System.out.println("Drones Active!");
+			droneTransport = createDroneTransport(
+					config.getOption(Config.DRONE_TRANSPORT),
+					"http://127.0.0.1:" + port, password);
+			if (timeScale != 1.0
+					&& !(droneTransport instanceof TimedTransport)) {
+				System.out.println("Drone time scale " + timeScale
+						+ " needs the loopback transport; positions will be"
+						+ " stamped with the wall clock");
+			}
 		}
 
-		ArrayList<GTFS> gtfs = new ArrayList<>();
+		FeedManager feeds = new FeedManager(timeGap);
+		feeds.addListener(boards);
+		feeds.addListener(planQueries);
+		feeds.addListener(vectorTiles);
 
 		for (String dir : dirs) {
 			dir = dir.trim();
@@ -110,8 +395,10 @@ public class WTBBackend {
 			try {
 				startTime = System.currentTimeMillis();
 
-				GTFS current = new GTFS(dir, timeGap);
-				gtfs.add(current);
+				GTFS current = feeds.load(dir);
+				boards.addFeed(current);
+				planQueries.addFeed(current);
+				vectorTiles.addFeed(current);
 
 				endTime = System.currentTimeMillis();
 				System.out.println(dir + " loaded and parsed in "
@@ -126,9 +413,8 @@ public class WTBBackend {
 				}
 				if (dronesActive) {
 					for (int i = 0; i < current.getPaths().size(); i++) {
-						// generate timecode for right now
-						int now = timeToMinutes(new SimpleDateFormat("HH:mm:ss")
-								.format(new Date()));
+						// the engine's clock, which may run ahead of the wall
+						int now = droneEngine.getTimecode();
 						if (current.isValidService(current.getPaths().get(i)
 								.getServiceID())
 								&& current.getPaths().get(i).getEndTimecode() > now) {
@@ -136,8 +422,8 @@ public class WTBBackend {
 									+ current.getPaths().get(i));
 							droneQueue.addDrone(new Drone(id, current
 									.getPaths().get(i), busSpeed,
-									busUpdateTime, "http://127.0.0.1:8080",
-									password, false));
+									busUpdateTime, droneTransport, password,
+									false, now));
 							id++;
 						}
 					}
@@ -154,25 +440,87 @@ public class WTBBackend {
 		if (config.getBooleanOption(Config.DEBUG_DISPLAY)) {
 			gp.setVisible(true);
 		}
+		if (config.getBooleanOption(Config.FEED_WATCH)) {
+			try {
+				feeds.watch();
+			} catch (IOException e) {
+				System.out.println("Can't watch feeds: " + e.toString());
+			}
+		}
+		final String checkpointFile = config.getOption(Config.CHECKPOINT_FILE);
+		if (checkpointFile != null && !checkpointFile.isEmpty()) {
+			restoreCheckpoint(checkpointFile, feeds.getFeeds(),
+					config.getIntOption(Config.VEHICLE_LIST_TIMEOUT));
+			long checkpointMillis = Math.max(1,
+					config.getIntOption(Config.CHECKPOINT_INTERVAL)) * 1000L;
+			final ScheduledExecutorService checkpointer = schedule(
+					"Checkpoint", checkpointMillis, new Runnable() {
+						@Override
+						public void run() {
+							saveCheckpoint(checkpointFile);
+						}
+					});
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					// both saves write the same temp file, so let a periodic
+					// one finish first
+					stopScheduled(checkpointer);
+					saveCheckpoint(checkpointFile);
+				}
+			});
+		}
+
+		final PositionStore finalHistory = history;
+		if (history != null) {
+			final long idleMillis = config
+					.getIntOption(Config.VEHICLE_LIST_TIMEOUT) * 1000L;
+			final ScheduledExecutorService historyFlusher = schedule(
+					"HistoryFlush", 1000, new Runnable() {
+						@Override
+						public void run() {
+							finalHistory.flushIdle(idleMillis);
+						}
+					});
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					stopScheduled(historyFlusher);
+					finalHistory.flush();
+				}
+			});
+		}
+
 		boolean running = true;
-		int vListTimeout = Config.getInstance().getIntOption(
+		final int vListTimeout = Config.getInstance().getIntOption(
 				Config.VEHICLE_LIST_TIMEOUT);
 
+		// snapshot and vehicle upkeep runs for as long as the server does,
+		// not just while there are drones to drive
+		schedule("Upkeep", 1000, new Runnable() {
+			@Override
+			public void run() {
+				Vehicle.cleanUp(vListTimeout);
+				Telemetry.getInstance().sample();
+				vehicleQueries.tick();
+				realtimeFeed.tick();
+				kmlQueries.tick();
+			}
+		});
+
 		System.out.println("Running...");
 
 		while (running) {
-			int now = timeToMinutes(new SimpleDateFormat("HH:mm:ss")
-					.format(new Date()));
-			Vehicle.cleanUp(vListTimeout);
-			droneQueue.check(now);
+			droneQueue.check(droneEngine.getTimecode());
 			try {
 				Thread.sleep(1000);
 			} catch (InterruptedException ex) {
 				Logger.getLogger(WTBBackend.class.getName()).log(Level.SEVERE,
 						null, ex);
 			}
-			System.gc();
-			running = !droneQueue.isEmpty();
+			running = !droneQueue.isFinished();
 		}
+		System.out.println("All " + droneQueue.getFinishedCount()
+				+ " drones finished.");
 	}
 }
@@ -0,0 +1,185 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One benchmark for BenchmarkRunner. Throughput cases have run() called over
+ * and over for a fixed time; single shot cases have it called once per
+ * iteration, for operations that take seconds. Whatever run() returns is
+ * folded into a sink so the work can't be optimized away.
+ * 
+ * @author Jason LaFrance
+ */
+public abstract class BenchmarkCase {
+
+	/**
+	 * How a case is measured
+	 */
+	public enum Mode {
+		THROUGHPUT("thrpt", "ops/s"), SINGLE_SHOT("ss", "ms/op");
+
+		private final String mName;
+		private final String mUnit;
+
+		private Mode(String inName, String inUnit) {
+			mName = inName;
+			mUnit = inUnit;
+		}
+
+		/**
+		 * Get the mode's short name
+		 * 
+		 * @return The name used in results
+		 */
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * Get the unit scores are reported in
+		 * 
+		 * @return The unit
+		 */
+		public String getUnit() {
+			return mUnit;
+		}
+	}
+
+	private final String mName;
+	private final Mode mMode;
+	private final LinkedHashMap<String, String> mParams = new LinkedHashMap<>();
+	private final LinkedHashMap<String, ArrayList<Double>> mSecondary = new LinkedHashMap<>();
+
+	/**
+	 * Create a BenchmarkCase
+	 * 
+	 * @param inName
+	 *            Benchmark name, dotted like a method name
+	 * @param inMode
+	 *            How to measure it
+	 */
+	protected BenchmarkCase(String inName, Mode inMode) {
+		mName = inName;
+		mMode = inMode;
+	}
+
+	/**
+	 * Add a parameter to report with the results
+	 * 
+	 * @param inKey
+	 *            Parameter name
+	 * @param inValue
+	 *            Parameter value
+	 * @return This case
+	 */
+	public BenchmarkCase param(String inKey, String inValue) {
+		mParams.put(inKey, inValue);
+		return this;
+	}
+
+	/**
+	 * Get the benchmark name
+	 * 
+	 * @return The name
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Get how the case is measured
+	 * 
+	 * @return The mode
+	 */
+	public Mode getMode() {
+		return mMode;
+	}
+
+	/**
+	 * Get the parameters to report with the results
+	 * 
+	 * @return Parameters by name
+	 */
+	public Map<String, String> getParams() {
+		return mParams;
+	}
+
+	/**
+	 * Prepare to run, before any iterations
+	 * 
+	 * @throws Exception
+	 *             If the case can't be run
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Run one operation
+	 * 
+	 * @return Anything derived from the work done
+	 * @throws Exception
+	 *             If the operation fails, which ends the case
+	 */
+	public abstract long run() throws Exception;
+
+	/**
+	 * Clean up after the last iteration
+	 */
+	public void tearDown() {
+	}
+
+	/**
+	 * Record a secondary measurement, such as how long one phase of the
+	 * operation took. Each value recorded while measuring becomes a sample.
+	 * 
+	 * @param inName
+	 *            Measurement name
+	 * @param inMillis
+	 *            Value in milliseconds
+	 */
+	protected void recordSecondary(String inName, double inMillis) {
+		ArrayList<Double> values = mSecondary.get(inName);
+		if (values == null) {
+			values = new ArrayList<>();
+			mSecondary.put(inName, values);
+		}
+		values.add(inMillis);
+	}
+
+	/**
+	 * Get the secondary measurements recorded so far
+	 * 
+	 * @return Samples by measurement name
+	 */
+	Map<String, ArrayList<Double>> getSecondary() {
+		return mSecondary;
+	}
+
+	/**
+	 * Forget the secondary measurements recorded during warm up
+	 */
+	void clearSecondary() {
+		mSecondary.clear();
+	}
+}
@@ -0,0 +1,317 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.jasonlafrance.wtbbackend.wtb_util.JSONUtil;
+
+/**
+ * Minimal benchmark runner. Each case gets warm up iterations that are
+ * thrown away, then measured iterations, and is scored by the mean of those
+ * with a 99.9% confidence interval. Results are kept so they can be written
+ * out as JSON in the same layout JMH uses, so the usual JMH result tooling
+ * can read them.
+ * 
+ * @author Jason LaFrance
+ */
+public class BenchmarkRunner {
+
+	// Student's t at 99.95% for 1 to 10 degrees of freedom
+	private static final double[] T_999 = { 636.62, 31.60, 12.92, 8.61, 6.87,
+			5.96, 5.41, 5.04, 4.78, 4.59 };
+
+	/**
+	 * Scores for one case
+	 */
+	private static final class Result {
+		private final BenchmarkCase mCase;
+		private final int mWarmups;
+		private final double[] mScores;
+
+		private Result(BenchmarkCase inCase, int inWarmups, double[] inScores) {
+			mCase = inCase;
+			mWarmups = inWarmups;
+			mScores = inScores;
+		}
+	}
+
+	private final int mWarmups;
+	private final int mIterations;
+	private final int mShotWarmups;
+	private final int mShots;
+	private final long mIterationNanos;
+	private final ArrayList<Result> mResults = new ArrayList<>();
+	private long mSink = 0;
+
+	/**
+	 * Create a BenchmarkRunner
+	 * 
+	 * @param inWarmups
+	 *            Warm up iterations for throughput cases
+	 * @param inIterations
+	 *            Measured iterations for throughput cases
+	 * @param inIterationMillis
+	 *            Length of each throughput iteration
+	 * @param inShotWarmups
+	 *            Warm up iterations for single shot cases
+	 * @param inShots
+	 *            Measured iterations for single shot cases
+	 */
+	public BenchmarkRunner(int inWarmups, int inIterations,
+			long inIterationMillis, int inShotWarmups, int inShots) {
+		mWarmups = inWarmups;
+		mIterations = Math.max(1, inIterations);
+		mIterationNanos = inIterationMillis * 1000000L;
+		mShotWarmups = inShotWarmups;
+		mShots = Math.max(1, inShots);
+	}
+
+	/**
+	 * Run a case and keep its result
+	 * 
+	 * @param inCase
+	 *            The case
+	 * @return True if it ran to completion
+	 */
+	public boolean run(BenchmarkCase inCase) {
+		boolean single = inCase.getMode() == BenchmarkCase.Mode.SINGLE_SHOT;
+		int warmups = single ? mShotWarmups : mWarmups;
+		double[] scores = new double[single ? mShots : mIterations];
+
+		try {
+			inCase.setUp();
+			for (int i = 0; i < warmups; i++) {
+				iterate(inCase, single);
+			}
+			inCase.clearSecondary();
+			for (int i = 0; i < scores.length; i++) {
+				scores[i] = iterate(inCase, single);
+			}
+		} catch (Exception e) {
+			System.out.println(inCase.getName() + " failed: " + e.toString());
+			inCase.tearDown();
+			return false;
+		}
+		inCase.tearDown();
+
+		Result r = new Result(inCase, warmups, scores);
+		mResults.add(r);
+		System.out.printf("%s %s: %.3f +- %.3f %s%n", inCase.getName(),
+				inCase.getParams(), mean(scores), error(scores), inCase
+						.getMode().getUnit());
+		return true;
+	}
+
+	/**
+	 * Run one iteration
+	 * 
+	 * @param inCase
+	 *            The case
+	 * @param inSingle
+	 *            True for a single operation, timed
+	 * @return Operations per second, or milliseconds for a single shot
+	 * @throws Exception
+	 *             If the case fails
+	 */
+	private double iterate(BenchmarkCase inCase, boolean inSingle)
+			throws Exception {
+		long start = System.nanoTime();
+		if (inSingle) {
+			mSink ^= inCase.run();
+			return (System.nanoTime() - start) / 1e6;
+		}
+		long ops = 0;
+		long elapsed;
+		do {
+			mSink ^= inCase.run();
+			ops++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < mIterationNanos);
+		return ops * 1e9 / elapsed;
+	}
+
+	/**
+	 * Get the mean of some scores
+	 * 
+	 * @param in
+	 *            The scores
+	 * @return Their mean
+	 */
+	private static double mean(double[] in) {
+		double sum = 0;
+		for (double d : in) {
+			sum += d;
+		}
+		return sum / in.length;
+	}
+
+	/**
+	 * Get the half width of the 99.9% confidence interval of the mean of
+	 * some scores
+	 * 
+	 * @param in
+	 *            The scores
+	 * @return The error, or NaN with fewer than two scores
+	 */
+	private static double error(double[] in) {
+		int n = in.length;
+		if (n < 2) {
+			return Double.NaN;
+		}
+		double mean = mean(in);
+		double sq = 0;
+		for (double d : in) {
+			sq += (d - mean) * (d - mean);
+		}
+		int df = n - 1;
+		// past the table t falls off roughly as 1/df towards 3.29
+		double t = df <= T_999.length ? T_999[df - 1] : 3.29 + 11.2 / df;
+		return t * Math.sqrt(sq / df) / Math.sqrt(n);
+	}
+
+	/**
+	 * Append a score block in JMH's layout
+	 * 
+	 * @param sb
+	 *            The StringBuilder to append to
+	 * @param inScores
+	 *            The scores
+	 * @param inUnit
+	 *            Their unit
+	 */
+	private static void appendMetric(StringBuilder sb, List<Double> inScores,
+			String inUnit) {
+		double[] scores = new double[inScores.size()];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = inScores.get(i);
+		}
+		double mean = mean(scores);
+		double error = error(scores);
+		sb.append("{\"score\":");
+		JSONUtil.appendNumber(sb, mean);
+		sb.append(",\"scoreError\":");
+		JSONUtil.appendNumber(sb, error);
+		sb.append(",\"scoreConfidence\":[");
+		JSONUtil.appendNumber(sb, mean - error);
+		sb.append(',');
+		JSONUtil.appendNumber(sb, mean + error);
+		sb.append("],\"scoreUnit\":");
+		JSONUtil.appendString(sb, inUnit);
+		sb.append(",\"rawData\":[[");
+		for (int i = 0; i < scores.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			JSONUtil.appendNumber(sb, scores[i]);
+		}
+		sb.append("]]}");
+	}
+
+	/**
+	 * Get every result so far as a JMH style JSON array
+	 * 
+	 * @return The JSON
+	 */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder("[\n");
+		for (int r = 0; r < mResults.size(); r++) {
+			Result result = mResults.get(r);
+			BenchmarkCase c = result.mCase;
+			boolean single = c.getMode() == BenchmarkCase.Mode.SINGLE_SHOT;
+
+			sb.append(r > 0 ? ",\n" : "").append("{\"benchmark\":");
+			JSONUtil.appendString(sb, c.getName());
+			sb.append(",\"mode\":");
+			JSONUtil.appendString(sb, c.getMode().getName());
+			sb.append(",\"threads\":1,\"forks\":1,\"jvm\":");
+			JSONUtil.appendString(sb, System.getProperty("java.home"));
+			sb.append(",\"vmVersion\":");
+			JSONUtil.appendString(sb, System.getProperty("java.vm.version"));
+			sb.append(",\"warmupIterations\":").append(result.mWarmups);
+			sb.append(",\"warmupTime\":");
+			JSONUtil.appendString(sb, single ? "single-shot" : mIterationNanos
+					/ 1000000 + " ms");
+			sb.append(",\"measurementIterations\":").append(
+					result.mScores.length);
+			sb.append(",\"measurementTime\":");
+			JSONUtil.appendString(sb, single ? "single-shot" : mIterationNanos
+					/ 1000000 + " ms");
+
+			sb.append(",\"params\":{");
+			boolean first = true;
+			for (Map.Entry<String, String> e : c.getParams().entrySet()) {
+				sb.append(first ? "" : ",");
+				JSONUtil.appendString(sb, e.getKey()).append(':');
+				JSONUtil.appendString(sb, e.getValue());
+				first = false;
+			}
+			sb.append("},\"primaryMetric\":");
+			ArrayList<Double> scores = new ArrayList<>();
+			for (double d : result.mScores) {
+				scores.add(d);
+			}
+			appendMetric(sb, scores, c.getMode().getUnit());
+
+			sb.append(",\"secondaryMetrics\":{");
+			first = true;
+			for (Map.Entry<String, ArrayList<Double>> e : c.getSecondary()
+					.entrySet()) {
+				sb.append(first ? "" : ",");
+				JSONUtil.appendString(sb, e.getKey()).append(':');
+				appendMetric(sb, e.getValue(), "ms");
+				first = false;
+			}
+			sb.append("}}");
+		}
+		return sb.append("\n]\n").toString();
+	}
+
+	/**
+	 * Write every result so far to a JSON file
+	 * 
+	 * @param inFile
+	 *            The file name
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public void write(String inFile) throws IOException {
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(inFile),
+				StandardCharsets.UTF_8)) {
+			w.write(toJSON());
+		}
+	}
+
+	/**
+	 * Get the sink every result was folded into
+	 * 
+	 * @return The sink
+	 */
+	public long getSink() {
+		return mSink;
+	}
+}
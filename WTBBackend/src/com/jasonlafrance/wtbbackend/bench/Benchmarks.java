@@ -0,0 +1,284 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+import com.jasonlafrance.wtbbackend.config.Config;
+import com.jasonlafrance.wtbbackend.gps_portal.GPSPacket;
+import com.jasonlafrance.wtbbackend.gps_portal.GPSPortal;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.gtfs.GTFSBenchmarks;
+import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+import com.jasonlafrance.wtbbackend.gtfs.Vertex;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
+
+/**
+ * Runs the benchmark suites over each feed plus a scaled up copy of the
+ * first, and writes the results as JSON for tracking regressions.
+ * 
+ * <pre>
+ * java ...bench.Benchmarks [-wi 3] [-i 5] [-t 1000] [-swi 1] [-si 3]
+ *     [-scale 100] [-f filter] [-o benchmarks.json] [feed dir...]
+ * </pre>
+ * 
+ * -wi and -i are the warm up and measured iterations of -t milliseconds for
+ * throughput cases, -swi and -si the iterations for single shot cases such
+ * as feed loading. -scale 0 skips the scaled feed, and -f only runs cases
+ * whose name contains the filter. Feeds default to gtfs_dirs in config.xml.
+ * 
+ * @author Jason LaFrance
+ */
+public class Benchmarks {
+
+	private static final int VEHICLES = 1000;
+
+	/**
+	 * Time encrypting and hex encoding a GPS packet, as a tracker does
+	 * 
+	 * @param inPassword
+	 *            The portal password
+	 * @return The case
+	 */
+	private static BenchmarkCase packetEncode(final String inPassword) {
+		return new BenchmarkCase("packet.encode", BenchmarkCase.Mode.THROUGHPUT) {
+			private Cipher mCipher;
+			private int mCount = 0;
+
+			@Override
+			public void setUp() {
+				mCipher = GPSPortal.createCipher(inPassword,
+						Cipher.ENCRYPT_MODE);
+			}
+
+			@Override
+			public long run() throws Exception {
+				mCount++;
+				GPSPacket p = new GPSPacket((short) mCount, 43.6f + mCount
+						% 100 * 1e-4f, -70.2f);
+				return HexUtil.getHex(mCipher.doFinal(p.getBytes())).length();
+			}
+		};
+	}
+
+	/**
+	 * Time hex decoding and decrypting a GPS packet, as the portal does
+	 * 
+	 * @param inPassword
+	 *            The portal password
+	 * @return The case
+	 */
+	private static BenchmarkCase packetDecode(final String inPassword) {
+		return new BenchmarkCase("packet.decode", BenchmarkCase.Mode.THROUGHPUT) {
+			private final String[] mHex = new String[256];
+			private Cipher mCipher;
+			private int mCount = 0;
+
+			@Override
+			public void setUp() throws Exception {
+				Cipher encrypt = GPSPortal.createCipher(inPassword,
+						Cipher.ENCRYPT_MODE);
+				for (int i = 0; i < mHex.length; i++) {
+					mHex[i] = HexUtil.getHex(encrypt.doFinal(new GPSPacket(
+							(short) i, 43.6f + i * 1e-4f, -70.2f).getBytes()));
+				}
+				mCipher = GPSPortal.createCipher(inPassword,
+						Cipher.DECRYPT_MODE);
+			}
+
+			@Override
+			public long run() throws Exception {
+				String hex = mHex[mCount++ & (mHex.length - 1)];
+				return new GPSPacket(mCipher.doFinal(HexUtil.getBytes(hex)))
+						.getID();
+			}
+		};
+	}
+
+	/**
+	 * Time updating vehicles that are following a feed's trips
+	 * 
+	 * @param inFeed
+	 *            A loaded feed
+	 * @return The case
+	 */
+	private static BenchmarkCase vehicleUpdate(final GTFS inFeed) {
+		return new BenchmarkCase("vehicle.updatePosition",
+				BenchmarkCase.Mode.THROUGHPUT) {
+			private final ArrayList<ArrayList<Vertex>> mShapes = new ArrayList<>();
+			private int[] mProgress;
+			private int mCount = 0;
+
+			@Override
+			public void setUp() throws Exception {
+				for (RoutePath rp : inFeed.getPaths()) {
+					for (Trip t : rp.getPath()) {
+						if (!t.getVertices().isEmpty()) {
+							mShapes.add(t.getVertices());
+						}
+					}
+				}
+				if (mShapes.isEmpty()) {
+					throw new Exception("No trips running today");
+				}
+				mProgress = new int[VEHICLES];
+			}
+
+			@Override
+			public long run() {
+				int v = mCount++ % VEHICLES;
+				ArrayList<Vertex> shape = mShapes.get(v % mShapes.size());
+				Vertex p = shape.get(mProgress[v]++ % shape.size());
+				Vehicle.updateVehicle((short) (v + 1),
+						(float) p.get_shape_pt_lat(),
+						(float) p.get_shape_pt_lon());
+				return v;
+			}
+
+			@Override
+			public void tearDown() {
+				for (int v = 1; v <= VEHICLES; v++) {
+					Vehicle.removeVehicle((short) v);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Run a case if it passes the filter
+	 * 
+	 * @param inRunner
+	 *            The runner
+	 * @param inFilter
+	 *            Name filter, or null for everything
+	 * @param inCase
+	 *            The case
+	 */
+	private static void run(BenchmarkRunner inRunner, String inFilter,
+			BenchmarkCase inCase) {
+		if (inFilter == null || inCase.getName().contains(inFilter)) {
+			inRunner.run(inCase);
+		}
+	}
+
+	/**
+	 * Run the benchmarks
+	 * 
+	 * @param args
+	 *            Options, then feed directories
+	 */
+	public static void main(String[] args) {
+		LinkedHashMap<String, String> options = new LinkedHashMap<>();
+		options.put("-wi", "3");
+		options.put("-i", "5");
+		options.put("-t", "1000");
+		options.put("-swi", "1");
+		options.put("-si", "3");
+		options.put("-scale", "100");
+		options.put("-f", null);
+		options.put("-o", "benchmarks.json");
+
+		ArrayList<String> dirs = new ArrayList<>();
+		for (int a = 0; a < args.length; a++) {
+			if (options.containsKey(args[a]) && a + 1 < args.length) {
+				options.put(args[a], args[++a]);
+			} else {
+				dirs.add(args[a]);
+			}
+		}
+
+		Config config = Config.getInstance();
+		config.load("config.xml");
+		if (dirs.isEmpty()) {
+			for (String dir : config.getOption(Config.GTFS_DIRS).split(",")) {
+				dirs.add(dir.trim());
+			}
+		}
+		int timeGap = config.getIntOption(Config.GTFS_TIME_GAP);
+		String password = config.getOption(Config.SERVER_PASSWORD);
+		String filter = options.get("-f");
+
+		// feed name to directory
+		LinkedHashMap<String, String> feeds = new LinkedHashMap<>();
+		for (String dir : dirs) {
+			feeds.put(new File(dir).getName(), dir);
+		}
+		int scale = Integer.parseInt(options.get("-scale"));
+		if (scale > 1) {
+			String name = new File(dirs.get(0)).getName() + "_x" + scale;
+			File scaled = new File(System.getProperty("java.io.tmpdir"),
+					"wtb-bench-" + name);
+			System.out.println("Scaling " + dirs.get(0) + " to " + scaled);
+			try {
+				FeedScaler.scale(dirs.get(0), scaled.getPath(), scale);
+			} catch (IOException e) {
+				System.out.println(e.toString());
+				System.exit(-1);
+			}
+			feeds.put(name, scaled.getPath() + File.separator);
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner(Integer.parseInt(options
+				.get("-wi")), Integer.parseInt(options.get("-i")),
+				Long.parseLong(options.get("-t")), Integer.parseInt(options
+						.get("-swi")), Integer.parseInt(options.get("-si")));
+
+		run(runner, filter, packetEncode(password));
+		run(runner, filter, packetDecode(password));
+
+		for (Map.Entry<String, String> e : feeds.entrySet()) {
+			String name = e.getKey();
+			String dir = e.getValue();
+			run(runner, filter,
+					GTFSBenchmarks.load(dir, timeGap).param("feed", name));
+
+			GTFS feed;
+			try {
+				feed = new GTFS(dir, timeGap);
+			} catch (Exception ex) {
+				System.out.println(dir + ": " + ex.toString());
+				continue;
+			}
+			run(runner, filter,
+					GTFSBenchmarks.stopsInTimeframe(feed, "07:00:00",
+							"08:00:00").param("feed", name));
+			run(runner, filter,
+					GTFSBenchmarks.stopListRebuild(feed).param("feed", name));
+			run(runner, filter, vehicleUpdate(feed).param("feed", name));
+			feed.release();
+		}
+
+		try {
+			runner.write(options.get("-o"));
+			System.out.println("Results written to " + options.get("-o"));
+		} catch (IOException e) {
+			System.out.println(e.toString());
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,506 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes a synthetic GTFS feed of any size. Each route is a random walk of
+ * stops with an outbound and inbound shape running through them, and its
+ * trips alternate direction across the service day so the outbound and
+ * inbound legs chain into route paths. Everything comes from one seed, so
+ * the same settings always give the same feed.
+ * <p>
+ * Rows are written route by route as they're generated, so only one route
+ * is ever held in memory and feeds can be as large as the disk allows.
+ * 
+ * <pre>
+ * java ...bench.FeedGenerator [output dir] [-seed 1] [-routes 10]
+ *     [-trips 50] [-stops 40] [-shape 10] [-calendars 3] [-exceptions 5]
+ * </pre>
+ * 
+ * @author Jason LaFrance
+ */
+public class FeedGenerator {
+
+	// where the network is laid out, around Portland, ME
+	private static final double CENTER_LAT = 43.65;
+	private static final double CENTER_LON = -70.26;
+	private static final double SPREAD = 0.25;
+	// about 400m between stops
+	private static final double STOP_STEP = 0.004;
+	private static final int STOP_SECONDS = 90;
+	private static final int DAY_START = 5 * 3600;
+	private static final int DAY_END = 24 * 3600 - 60;
+	private static final int EXCEPTION_BASE_YEAR = 2024;
+	private static final String CRLF = "\r\n";
+
+	private long mSeed = 1;
+	private int mRoutes = 10;
+	private int mTripsPerRoute = 50;
+	private int mStopsPerRoute = 40;
+	private int mShapePointsPerSegment = 10;
+	private int mCalendars = 3;
+	private int mExceptionsPerCalendar = 5;
+
+	private long mRows = 0;
+
+	/**
+	 * @param in
+	 *            Random seed
+	 * @return This generator
+	 */
+	public FeedGenerator setSeed(long in) {
+		mSeed = in;
+		return this;
+	}
+
+	/**
+	 * @param in
+	 *            Number of routes
+	 * @return This generator
+	 */
+	public FeedGenerator setRoutes(int in) {
+		mRoutes = Math.max(1, in);
+		return this;
+	}
+
+	/**
+	 * @param in
+	 *            Trips on each route, alternating outbound and inbound
+	 * @return This generator
+	 */
+	public FeedGenerator setTripsPerRoute(int in) {
+		mTripsPerRoute = Math.max(1, in);
+		return this;
+	}
+
+	/**
+	 * @param in
+	 *            Stops on each route
+	 * @return This generator
+	 */
+	public FeedGenerator setStopsPerRoute(int in) {
+		mStopsPerRoute = Math.max(2, in);
+		return this;
+	}
+
+	/**
+	 * @param in
+	 *            Shape points between each pair of stops
+	 * @return This generator
+	 */
+	public FeedGenerator setShapePointsPerSegment(int in) {
+		mShapePointsPerSegment = Math.max(1, in);
+		return this;
+	}
+
+	/**
+	 * @param in
+	 *            Number of calendars. The first runs every day, the rest on
+	 *            random days of the week.
+	 * @return This generator
+	 */
+	public FeedGenerator setCalendars(int in) {
+		mCalendars = Math.max(1, in);
+		return this;
+	}
+
+	/**
+	 * @param in
+	 *            Calendar date exceptions written for each calendar
+	 * @return This generator
+	 */
+	public FeedGenerator setExceptionsPerCalendar(int in) {
+		mExceptionsPerCalendar = Math.max(0, in);
+		return this;
+	}
+
+	/**
+	 * @return Data rows written by the last call to generate
+	 */
+	public long getRowCount() {
+		return mRows;
+	}
+
+	/**
+	 * Write the feed
+	 * 
+	 * @param inOutDir
+	 *            Directory to write the feed to, created if needed
+	 * @throws IOException
+	 *             If the feed can't be written
+	 */
+	public void generate(String inOutDir) throws IOException {
+		File out = new File(inOutDir);
+		if (!out.isDirectory() && !out.mkdirs()) {
+			throw new IOException("Can't create " + inOutDir);
+		}
+		mRows = 0;
+		Random rand = new Random(mSeed);
+
+		try (Writer w = open(out, "agency.txt",
+				"agency_id,agency_name,agency_url,agency_timezone")) {
+			row(w, "1,Synthetic Transit,http://example.com/,America/New_York");
+		}
+		writeCalendars(out, rand);
+
+		try (Writer routes = open(out, "routes.txt",
+				"route_id,route_short_name,route_long_name,route_desc,route_type");
+				Writer stops = open(out, "stops.txt",
+						"stop_id,stop_name,stop_desc,stop_lat,stop_lon");
+				Writer shapes = open(out, "shapes.txt",
+						"shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence,shape_dist_traveled");
+				Writer trips = open(out, "trips.txt",
+						"route_id,service_id,trip_id,trip_headsign,direction_id,block_id,shape_id");
+				Writer stopTimes = open(out, "stop_times.txt",
+						"trip_id,arrival_time,departure_time,stop_id,stop_sequence,pickup_type,drop_off_type")) {
+
+			StringBuilder sb = new StringBuilder(256);
+			double[] lat = new double[mStopsPerRoute];
+			double[] lon = new double[mStopsPerRoute];
+			int duration = (mStopsPerRoute - 1) * STOP_SECONDS;
+			int span = Math.max(0, DAY_END - DAY_START - duration);
+			int tripID = 1;
+
+			for (int r = 1; r <= mRoutes; r++) {
+				row(routes, r + ",\"" + r + "\",\"Synthetic Route " + r
+						+ "\",\"\",3");
+
+				// random walk of stops with a gently turning heading
+				lat[0] = CENTER_LAT + (rand.nextDouble() - 0.5) * SPREAD;
+				lon[0] = CENTER_LON + (rand.nextDouble() - 0.5) * SPREAD;
+				double heading = rand.nextDouble() * 2 * Math.PI;
+				for (int s = 1; s < mStopsPerRoute; s++) {
+					heading += (rand.nextDouble() - 0.5) * 0.8;
+					double step = STOP_STEP * (0.5 + rand.nextDouble());
+					lat[s] = lat[s - 1] + Math.sin(heading) * step;
+					lon[s] = lon[s - 1] + Math.cos(heading) * step;
+				}
+				int firstStop = (r - 1) * mStopsPerRoute + 1;
+				for (int s = 0; s < mStopsPerRoute; s++) {
+					sb.setLength(0);
+					sb.append(firstStop + s).append(",\"Route ").append(r)
+							.append(" Stop ").append(s + 1).append("\",\"\",");
+					coord(sb, lat[s]).append(',');
+					coord(sb, lon[s]);
+					row(stops, sb);
+				}
+
+				// shape 2r-1 runs outbound, 2r inbound
+				writeShape(shapes, sb, 2 * r - 1, lat, lon, false);
+				writeShape(shapes, sb, 2 * r, lat, lon, true);
+
+				for (int t = 0; t < mTripsPerRoute; t++, tripID++) {
+					boolean inbound = (t & 1) == 1;
+					int service = t % mCalendars + 1;
+					sb.setLength(0);
+					sb.append(r).append(',').append(service).append(',')
+							.append(tripID)
+							.append(inbound ? ",\"Inbound\"," : ",\"Outbound\",")
+							.append(inbound ? 1 : 0).append(",,")
+							.append(inbound ? 2 * r : 2 * r - 1);
+					row(trips, sb);
+
+					int start = DAY_START
+							+ (int) ((long) span * t / mTripsPerRoute);
+					for (int s = 0; s < mStopsPerRoute; s++) {
+						int stop = inbound ? firstStop + mStopsPerRoute - 1 - s
+								: firstStop + s;
+						sb.setLength(0);
+						sb.append(tripID).append(',');
+						time(sb, start + s * STOP_SECONDS).append(',');
+						time(sb, start + s * STOP_SECONDS).append(',')
+								.append(stop).append(',').append(s + 1)
+								.append(",0,0");
+						row(stopTimes, sb);
+					}
+				}
+			}
+		}
+
+		// nothing to share between trips or routes
+		open(out, "fare_attributes.txt",
+				"fare_id,price,currency_type,payment_method,transfers").close();
+		open(out, "fare_rules.txt", "fare_id,route_id").close();
+		open(out, "transfers.txt",
+				"from_stop_id,to_stop_id,transfer_type,min_transfer_time")
+				.close();
+	}
+
+	/**
+	 * Write calendar.txt and calendar_dates.txt
+	 * 
+	 * @param inOut
+	 *            Feed directory
+	 * @param inRand
+	 *            Random source
+	 * @throws IOException
+	 *             If the tables can't be written
+	 */
+	private void writeCalendars(File inOut, Random inRand) throws IOException {
+		try (Writer w = open(inOut, "calendar.txt",
+				"service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date")) {
+			StringBuilder sb = new StringBuilder();
+			for (int c = 1; c <= mCalendars; c++) {
+				// the first calendar always runs so there's a valid service
+				// whatever day the feed is loaded
+				int days = c == 1 ? 0x7f : 1 + inRand.nextInt(0x7f);
+				sb.setLength(0);
+				sb.append(c);
+				for (int d = 0; d < 7; d++) {
+					sb.append(',').append((days >> d) & 1);
+				}
+				sb.append(",20110101,20991231");
+				row(w, sb);
+			}
+		}
+		try (Writer w = open(inOut, "calendar_dates.txt",
+				"service_id,date,exception_type")) {
+			java.util.Calendar date = java.util.Calendar.getInstance();
+			StringBuilder sb = new StringBuilder();
+			for (int c = 1; c <= mCalendars; c++) {
+				for (int e = 0; e < mExceptionsPerCalendar; e++) {
+					date.clear();
+					date.set(EXCEPTION_BASE_YEAR + inRand.nextInt(3),
+							java.util.Calendar.JANUARY, 1);
+					date.add(java.util.Calendar.DAY_OF_YEAR,
+							inRand.nextInt(365));
+					sb.setLength(0);
+					sb.append(c).append(',');
+					pad(sb, date.get(java.util.Calendar.YEAR), 4);
+					pad(sb, date.get(java.util.Calendar.MONTH) + 1, 2);
+					pad(sb, date.get(java.util.Calendar.DAY_OF_MONTH), 2);
+					sb.append(',').append(inRand.nextBoolean() ? 1 : 2);
+					row(w, sb);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a shape through a route's stops, with evenly spaced points
+	 * between each pair of stops and a point exactly on every stop
+	 * 
+	 * @param inShapes
+	 *            shapes.txt
+	 * @param inSB
+	 *            Scratch buffer
+	 * @param inShapeID
+	 *            Shape ID
+	 * @param inLat
+	 *            Stop latitudes
+	 * @param inLon
+	 *            Stop longitudes
+	 * @param inReverse
+	 *            Run from the last stop to the first
+	 * @throws IOException
+	 *             If the rows can't be written
+	 */
+	private void writeShape(Writer inShapes, StringBuilder inSB, int inShapeID,
+			double[] inLat, double[] inLon, boolean inReverse)
+			throws IOException {
+		int seq = 0;
+		double dist = 0;
+		double lastLat = 0, lastLon = 0;
+		for (int s = 0; s < mStopsPerRoute; s++) {
+			int from = inReverse ? mStopsPerRoute - 1 - s : s;
+			int to = inReverse ? from - 1 : from + 1;
+			int points = s == mStopsPerRoute - 1 ? 1 : mShapePointsPerSegment;
+			for (int p = 0; p < points; p++) {
+				double f = (double) p / mShapePointsPerSegment;
+				double y = inLat[from];
+				double x = inLon[from];
+				if (p > 0) {
+					y += (inLat[to] - inLat[from]) * f;
+					x += (inLon[to] - inLon[from]) * f;
+				}
+				if (seq > 0) {
+					// km, close enough at this latitude
+					double dy = (y - lastLat) * 111.0;
+					double dx = (x - lastLon) * 80.5;
+					dist += Math.sqrt(dx * dx + dy * dy);
+				}
+				lastLat = y;
+				lastLon = x;
+				inSB.setLength(0);
+				inSB.append(inShapeID).append(',');
+				coord(inSB, y).append(',');
+				coord(inSB, x).append(',').append(seq++).append(',');
+				coord(inSB, dist);
+				row(inShapes, inSB);
+			}
+		}
+	}
+
+	/**
+	 * Open a table and write its header
+	 * 
+	 * @param inDir
+	 *            Feed directory
+	 * @param inName
+	 *            Table file name
+	 * @param inHeader
+	 *            Header line
+	 * @return The writer
+	 * @throws IOException
+	 *             If the file can't be created
+	 */
+	private static Writer open(File inDir, String inName, String inHeader)
+			throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(inDir, inName)),
+				StandardCharsets.UTF_8), 1 << 16);
+		w.write(inHeader);
+		w.write(CRLF);
+		return w;
+	}
+
+	/**
+	 * Write a data row
+	 * 
+	 * @param inW
+	 *            The table
+	 * @param inRow
+	 *            The row
+	 * @throws IOException
+	 *             If the row can't be written
+	 */
+	private void row(Writer inW, CharSequence inRow) throws IOException {
+		inW.append(inRow);
+		inW.write(CRLF);
+		mRows++;
+	}
+
+	/**
+	 * Append a coordinate with six decimal places, like real feeds use.
+	 * String.format is far too slow for billions of these.
+	 * 
+	 * @param inSB
+	 *            The buffer
+	 * @param in
+	 *            The value
+	 * @return The buffer
+	 */
+	private static StringBuilder coord(StringBuilder inSB, double in) {
+		long micro = Math.round(in * 1000000);
+		if (micro < 0) {
+			inSB.append('-');
+			micro = -micro;
+		}
+		inSB.append(micro / 1000000).append('.');
+		return pad(inSB, (int) (micro % 1000000), 6);
+	}
+
+	/**
+	 * Append seconds since midnight as HH:mm:ss
+	 * 
+	 * @param inSB
+	 *            The buffer
+	 * @param inSeconds
+	 *            Seconds since midnight
+	 * @return The buffer
+	 */
+	private static StringBuilder time(StringBuilder inSB, int inSeconds) {
+		pad(inSB, inSeconds / 3600, 2).append(':');
+		pad(inSB, inSeconds / 60 % 60, 2).append(':');
+		return pad(inSB, inSeconds % 60, 2);
+	}
+
+	/**
+	 * Append a number zero padded to a width
+	 * 
+	 * @param inSB
+	 *            The buffer
+	 * @param in
+	 *            The number
+	 * @param inWidth
+	 *            Minimum number of digits
+	 * @return The buffer
+	 */
+	private static StringBuilder pad(StringBuilder inSB, int in, int inWidth) {
+		String digits = Integer.toString(in);
+		for (int i = digits.length(); i < inWidth; i++) {
+			inSB.append('0');
+		}
+		return inSB.append(digits);
+	}
+
+	/**
+	 * Generate a feed
+	 * 
+	 * @param args
+	 *            Output directory, then options
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out
+					.println("FeedGenerator [output dir] [-seed n] [-routes n] [-trips n] [-stops n] [-shape n] [-calendars n] [-exceptions n]");
+			System.exit(-1);
+		}
+		FeedGenerator gen = new FeedGenerator();
+		for (int a = 1; a + 1 < args.length; a += 2) {
+			String value = args[a + 1];
+			switch (args[a]) {
+			case "-seed":
+				gen.setSeed(Long.parseLong(value));
+				break;
+			case "-routes":
+				gen.setRoutes(Integer.parseInt(value));
+				break;
+			case "-trips":
+				gen.setTripsPerRoute(Integer.parseInt(value));
+				break;
+			case "-stops":
+				gen.setStopsPerRoute(Integer.parseInt(value));
+				break;
+			case "-shape":
+				gen.setShapePointsPerSegment(Integer.parseInt(value));
+				break;
+			case "-calendars":
+				gen.setCalendars(Integer.parseInt(value));
+				break;
+			case "-exceptions":
+				gen.setExceptionsPerCalendar(Integer.parseInt(value));
+				break;
+			default:
+				System.out.println("Unknown option " + args[a]);
+				System.exit(-1);
+			}
+		}
+		long start = System.currentTimeMillis();
+		try {
+			gen.generate(args[0]);
+		} catch (IOException e) {
+			System.out.println(e.toString());
+			System.exit(-1);
+		}
+		System.out.println(gen.getRowCount() + " rows written to " + args[0]
+				+ " in " + (System.currentTimeMillis() - start) / 1000.0
+				+ " seconds");
+	}
+}
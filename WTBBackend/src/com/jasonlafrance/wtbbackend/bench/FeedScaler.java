@@ -0,0 +1,326 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.jasonlafrance.wtbbackend.wtb_util.CSVParser;
+
+/**
+ * Scales a real GTFS feed up by writing many copies of it side by side. Every
+ * identifier gets a copy suffix so the copies don't collide, and each copy is
+ * moved onto its own cell of a grid so their stops don't stack on top of
+ * each other. The result has the same shape as the original, just N times as
+ * much of it.
+ * 
+ * <pre>
+ * java ...bench.FeedScaler [feed dir] [output dir] [copies]
+ * </pre>
+ * 
+ * @author Jason LaFrance
+ */
+public class FeedScaler {
+
+	private static final HashSet<String> ID_COLUMNS = new HashSet<>(
+			Arrays.asList("agency_id", "route_id", "trip_id", "stop_id",
+					"shape_id", "service_id", "fare_id", "block_id",
+					"parent_station", "zone_id", "origin_id", "destination_id",
+					"contains_id", "from_stop_id", "to_stop_id"));
+	private static final HashSet<String> LAT_COLUMNS = new HashSet<>(
+			Arrays.asList("stop_lat", "shape_pt_lat"));
+	private static final HashSet<String> LON_COLUMNS = new HashSet<>(
+			Arrays.asList("stop_lon", "shape_pt_lon"));
+
+	// route_path.txt is a cache of trip IDs that would go stale
+	private static final String SKIPPED = "route_path.txt";
+
+	/**
+	 * Write a scaled copy of a feed
+	 * 
+	 * @param inDir
+	 *            The feed directory
+	 * @param inOutDir
+	 *            Directory to write the scaled feed to, created if needed
+	 * @param inCopies
+	 *            How many copies to write, the first being the original
+	 * @throws IOException
+	 *             If the feed can't be read or the copy written
+	 */
+	public static void scale(String inDir, String inOutDir, int inCopies)
+			throws IOException {
+		File in = new File(inDir);
+		File out = new File(inOutDir);
+		if (!out.isDirectory() && !out.mkdirs()) {
+			throw new IOException("Can't create " + inOutDir);
+		}
+
+		// copies are laid out on a square grid of cells the size of the
+		// feed's stop bounds, plus a margin for shapes
+		double[] bounds = stopBounds(new File(in, "stops.txt"));
+		double cellLat = (bounds[1] - bounds[0]) * 1.2 + 0.01;
+		double cellLon = (bounds[3] - bounds[2]) * 1.2 + 0.01;
+		int side = (int) Math.ceil(Math.sqrt(inCopies));
+
+		File[] tables = in.listFiles();
+		if (tables == null) {
+			throw new IOException("Can't read " + inDir);
+		}
+		for (File table : tables) {
+			if (!table.getName().endsWith(".txt")
+					|| table.getName().equals(SKIPPED)) {
+				continue;
+			}
+			scaleTable(table, new File(out, table.getName()), inCopies, side,
+					cellLat, cellLon);
+		}
+	}
+
+	/**
+	 * Find the bounds of a feed's stops
+	 * 
+	 * @param inStops
+	 *            The stops.txt file
+	 * @return Minimum and maximum latitude, then minimum and maximum longitude
+	 * @throws IOException
+	 *             If the file can't be read
+	 */
+	private static double[] stopBounds(File inStops) throws IOException {
+		double[] bounds = { Double.MAX_VALUE, -Double.MAX_VALUE,
+				Double.MAX_VALUE, -Double.MAX_VALUE };
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(
+				new FileInputStream(inStops), StandardCharsets.UTF_8))) {
+			String line = br.readLine();
+			if (line == null) {
+				throw new IOException("Empty stops.txt");
+			}
+			String[] header = columns(line);
+			int lat = Arrays.asList(header).indexOf("stop_lat");
+			int lon = Arrays.asList(header).indexOf("stop_lon");
+			if (lat < 0 || lon < 0) {
+				throw new IOException("No stop_lat or stop_lon in stops.txt");
+			}
+			while ((line = br.readLine()) != null) {
+				String[] f = CSVParser.parseLine(line);
+				if (f.length <= Math.max(lat, lon)) {
+					continue;
+				}
+				try {
+					double y = Double.parseDouble(unquote(f[lat]));
+					double x = Double.parseDouble(unquote(f[lon]));
+					bounds[0] = Math.min(bounds[0], y);
+					bounds[1] = Math.max(bounds[1], y);
+					bounds[2] = Math.min(bounds[2], x);
+					bounds[3] = Math.max(bounds[3], x);
+				} catch (NumberFormatException e) {
+					;
+				}
+			}
+		}
+		if (bounds[0] > bounds[1]) {
+			throw new IOException("No stops in stops.txt");
+		}
+		return bounds;
+	}
+
+	/**
+	 * Write every copy of one table
+	 * 
+	 * @param inTable
+	 *            The original table
+	 * @param inOut
+	 *            The file to write
+	 * @param inCopies
+	 *            Number of copies
+	 * @param inSide
+	 *            Width of the grid of copies
+	 * @param inCellLat
+	 *            Height of a grid cell in degrees
+	 * @param inCellLon
+	 *            Width of a grid cell in degrees
+	 * @throws IOException
+	 *             If the table can't be read or written
+	 */
+	private static void scaleTable(File inTable, File inOut, int inCopies,
+			int inSide, double inCellLat, double inCellLon) throws IOException {
+		try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(inOut), StandardCharsets.UTF_8), 1 << 16)) {
+			String header;
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(
+					new FileInputStream(inTable), StandardCharsets.UTF_8))) {
+				header = br.readLine();
+			}
+			if (header == null) {
+				return;
+			}
+			w.write(header);
+			w.write("\r\n");
+
+			String[] names = columns(header);
+			StringBuilder sb = new StringBuilder();
+			for (int copy = 0; copy < inCopies; copy++) {
+				String suffix = "_" + copy;
+				double dLat = (copy / inSide) * inCellLat;
+				double dLon = (copy % inSide) * inCellLon;
+
+				try (BufferedReader br = new BufferedReader(
+						new InputStreamReader(new FileInputStream(inTable),
+								StandardCharsets.UTF_8), 1 << 16)) {
+					br.readLine();
+					String line;
+					while ((line = br.readLine()) != null) {
+						if (line.trim().isEmpty()) {
+							continue;
+						}
+						if (copy == 0) {
+							w.write(line);
+							w.write("\r\n");
+							continue;
+						}
+						String[] f = CSVParser.parseLine(line);
+						sb.setLength(0);
+						for (int i = 0; i < f.length; i++) {
+							if (i > 0) {
+								sb.append(',');
+							}
+							String name = i < names.length ? names[i] : "";
+							if (f[i].trim().isEmpty()) {
+								sb.append(f[i]);
+							} else if (ID_COLUMNS.contains(name)) {
+								sb.append(suffix(f[i], suffix));
+							} else if (LAT_COLUMNS.contains(name)) {
+								sb.append(offset(f[i], dLat));
+							} else if (LON_COLUMNS.contains(name)) {
+								sb.append(offset(f[i], dLon));
+							} else {
+								sb.append(f[i]);
+							}
+						}
+						w.write(sb.toString());
+						w.write("\r\n");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Split a header line into bare column names
+	 * 
+	 * @param inHeader
+	 *            The header line
+	 * @return Column names, trimmed and unquoted
+	 */
+	private static String[] columns(String inHeader) {
+		// some feeds start with a byte order mark
+		if (inHeader.startsWith("\uFEFF")) {
+			inHeader = inHeader.substring(1);
+		}
+		String[] names = CSVParser.parseLine(inHeader);
+		for (int i = 0; i < names.length; i++) {
+			names[i] = unquote(names[i]);
+		}
+		return names;
+	}
+
+	/**
+	 * Strip whitespace and quotes from a field
+	 * 
+	 * @param in
+	 *            The raw field
+	 * @return The bare value
+	 */
+	private static String unquote(String in) {
+		return in.trim().replace("\"", "");
+	}
+
+	/**
+	 * Add a suffix to an ID, inside its quotes if it has them
+	 * 
+	 * @param in
+	 *            The raw field
+	 * @param inSuffix
+	 *            The suffix
+	 * @return The new field
+	 */
+	private static String suffix(String in, String inSuffix) {
+		String value = in.trim();
+		if (value.length() > 1 && value.endsWith("\"")) {
+			return value.substring(0, value.length() - 1) + inSuffix + "\"";
+		}
+		return value + inSuffix;
+	}
+
+	/**
+	 * Shift a coordinate, keeping its number of decimal places
+	 * 
+	 * @param in
+	 *            The raw field
+	 * @param inDelta
+	 *            Degrees to add
+	 * @return The new field, or the old one if it isn't a number
+	 */
+	private static String offset(String in, double inDelta) {
+		String value = unquote(in);
+		int dot = value.indexOf('.');
+		int places = dot < 0 ? 0 : value.length() - dot - 1;
+		try {
+			return new BigDecimal(value).add(BigDecimal.valueOf(inDelta))
+					.setScale(places, RoundingMode.HALF_EVEN).toPlainString();
+		} catch (NumberFormatException e) {
+			return in;
+		}
+	}
+
+	/**
+	 * Scale a feed
+	 * 
+	 * @param args
+	 *            Feed directory, output directory, number of copies
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("FeedScaler [feed dir] [output dir] [copies]");
+			System.exit(-1);
+		}
+		int copies = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		long start = System.currentTimeMillis();
+		try {
+			scale(args[0], args[1], copies);
+		} catch (IOException e) {
+			System.out.println(e.toString());
+			System.exit(-1);
+		}
+		System.out.println(args[0] + " x" + copies + " written to " + args[1]
+				+ " in " + (System.currentTimeMillis() - start) / 1000.0
+				+ " seconds");
+	}
+}
@@ -0,0 +1,557 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.boards;
+
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.minutesToTime;
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.secondsOfDay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jasonlafrance.wtbbackend.gtfs.FeedHandle;
+import com.jasonlafrance.wtbbackend.gtfs.FeedListener;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.gtfs.IDDictionary;
+import com.jasonlafrance.wtbbackend.gtfs.Route;
+import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
+import com.jasonlafrance.wtbbackend.gtfs.Stop;
+import com.jasonlafrance.wtbbackend.gtfs.StopAdapter;
+import com.jasonlafrance.wtbbackend.gtfs.StopTimeTable;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+import com.jasonlafrance.wtbbackend.query.QueryHandler;
+import com.jasonlafrance.wtbbackend.query.QueryPortal;
+import com.jasonlafrance.wtbbackend.query.Snapshot;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.vehicle.VehicleListener;
+import com.jasonlafrance.wtbbackend.wtb_util.JSONUtil;
+
+/**
+ * Departure board engine. For every stop in a feed it keeps the stop's
+ * scheduled visits sorted by time, in one flat array indexed by stop, and
+ * adjusts upcoming visits with the delay of any live vehicle matched to the
+ * visit's trip. Boards are served from /stops/{stop_id}/departures and
+ * cached per stop until a vehicle on one of the stop's trips moves or the
+ * minute rolls over.
+ * 
+ * The sorted visits are built on a background thread when a feed is added
+ * or replaced, and once a minute if a feed has rolled over, then published
+ * as a new immutable list. Live delays are kept in concurrent maps and a
+ * stale cache entry is spotted by a per-stop version number, so neither
+ * queries nor vehicle updates ever take a lock. Building a board that isn't
+ * cached is still real work, so this should be registered with
+ * QueryPortal.addBlockingHandler().
+ * 
+ * @author Jason LaFrance
+ */
+public class DepartureBoards implements QueryHandler, VehicleListener,
+		FeedListener {
+
+	public static final int BOARD_SIZE = 10;
+	// how late a scheduled visit can be and still show up
+	private static final int LATE_WINDOW = 30 * 60;
+	// ignore live delays older than this
+	private static final int LIVE_TIMEOUT = 5 * 60;
+	private static final long CHECK_MILLIS = 60 * 1000;
+
+	/**
+	 * Live delay for a trip. Replaced rather than changed, so a reader never
+	 * sees half an update.
+	 */
+	private static class Live {
+		private final int mVehicleID;
+		private final int mDelay;
+		private final int mTimecode;
+
+		/**
+		 * @param inVehicleID
+		 *            The vehicle running the trip
+		 * @param inDelay
+		 *            Seconds behind schedule
+		 * @param inTimecode
+		 *            When the delay was measured, in seconds since midnight
+		 */
+		private Live(int inVehicleID, int inDelay, int inTimecode) {
+			mVehicleID = inVehicleID;
+			mDelay = inDelay;
+			mTimecode = inTimecode;
+		}
+	}
+
+	/**
+	 * A built board, and the minute and stop version it was built for
+	 */
+	private static class Cached {
+		private final Snapshot mSnapshot;
+		private final int mMinute;
+		private final int mVersion;
+
+		/**
+		 * @param inSnapshot
+		 *            The board
+		 * @param inMinute
+		 *            Minute of the day it was built in
+		 * @param inVersion
+		 *            The stop's version when it was built
+		 */
+		private Cached(Snapshot inSnapshot, int inMinute, int inVersion) {
+			mSnapshot = inSnapshot;
+			mMinute = inMinute;
+			mVersion = inVersion;
+		}
+	}
+
+	/**
+	 * A visit picked for a board
+	 */
+	private static class Departure {
+		private int mRow;
+		private int mScheduled;
+		private int mEstimated;
+		private Live mLive;
+	}
+
+	/**
+	 * The boards for one feed
+	 */
+	private static class Board {
+		private final GTFS mGTFS;
+		// the path list this board was built from, replaced on resetDate()
+		private final ArrayList<RoutePath> mPaths;
+		private final StopTimeTable mTable;
+		// visits for stop s are mRows[mStart[s]] to mRows[mStart[s + 1]]
+		private final int[] mStart;
+		private final int[] mRows;
+		private final int[] mTimes;
+		private final AtomicReferenceArray<Cached> mCache;
+		// bumped whenever a live delay on one of the stop's trips changes
+		private final AtomicIntegerArray mVersions;
+
+		/**
+		 * Build the sorted visit arrays for a feed
+		 * 
+		 * @param inGTFS
+		 *            The feed
+		 */
+		private Board(GTFS inGTFS) {
+			mGTFS = inGTFS;
+			mPaths = inGTFS.getPaths();
+			int stops = IDDictionary.getDictionary(inGTFS.getID(),
+					IDDictionary.STOP_ID).size();
+
+			int trips = IDDictionary.getDictionary(inGTFS.getID(),
+					IDDictionary.TRIP_ID).size();
+
+			// only trips running today have their stops attached
+			StopTimeTable table = null;
+			int[] count = new int[stops + 1];
+			for (int t = 0; t < trips; t++) {
+				Trip trip = inGTFS.getTrip(t);
+				if (trip == null || trip.getStopTimeTable() == null) {
+					continue;
+				}
+				table = trip.getStopTimeTable();
+				int[] times = trip.getScheduledTimes();
+				for (int i = 0; i < times.length; i++) {
+					if (times[i] >= 0) {
+						count[table.getStopIndex(trip.getStopRow(i)) + 1]++;
+					}
+				}
+			}
+			mTable = table;
+
+			mStart = new int[stops + 1];
+			for (int s = 0; s < stops; s++) {
+				mStart[s + 1] = mStart[s] + count[s + 1];
+			}
+
+			// pack (time, row) so each stop's segment sorts by time
+			long[] keys = new long[mStart[stops]];
+			int[] fill = Arrays.copyOf(mStart, stops);
+			for (int t = 0; t < trips; t++) {
+				Trip trip = inGTFS.getTrip(t);
+				if (trip == null || trip.getStopTimeTable() == null) {
+					continue;
+				}
+				int[] times = trip.getScheduledTimes();
+				for (int i = 0; i < times.length; i++) {
+					if (times[i] >= 0) {
+						int row = trip.getStopRow(i);
+						int s = table.getStopIndex(row);
+						keys[fill[s]++] = ((long) times[i] << 32) | row;
+					}
+				}
+			}
+
+			mRows = new int[keys.length];
+			mTimes = new int[keys.length];
+			for (int s = 0; s < stops; s++) {
+				Arrays.sort(keys, mStart[s], mStart[s + 1]);
+			}
+			for (int i = 0; i < keys.length; i++) {
+				mTimes[i] = (int) (keys[i] >>> 32);
+				mRows[i] = (int) keys[i];
+			}
+
+			mCache = new AtomicReferenceArray<>(stops);
+			mVersions = new AtomicIntegerArray(stops);
+		}
+	}
+
+	/**
+	 * Get the current time of day
+	 * 
+	 * @return Seconds since midnight
+	 */
+	private static int now() {
+		return secondsOfDay(System.currentTimeMillis());
+	}
+
+	private final ArrayList<GTFS> mFeeds = new ArrayList<>();
+	// replaced as a whole, never changed once published
+	private volatile ArrayList<Board> mBoards = new ArrayList<>();
+	private final ConcurrentHashMap<Trip, Live> mLive = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Trip> mVehicleTrips = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService mBuilder;
+	private final Runnable mRebuild = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				rebuild();
+			} catch (RuntimeException e) {
+				// an escaping exception would cancel the periodic check
+				Logger.getLogger(DepartureBoards.class.getName()).log(
+						Level.SEVERE, null, e);
+			}
+		}
+	};
+
+	/**
+	 * Create an empty DepartureBoards engine, start its builder thread and
+	 * start listening for Vehicle updates
+	 */
+	public DepartureBoards() {
+		mBuilder = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread ret = new Thread(r, "DepartureBoards");
+						ret.setDaemon(true);
+						return ret;
+					}
+				});
+		mBuilder.scheduleWithFixedDelay(mRebuild, CHECK_MILLIS, CHECK_MILLIS,
+				TimeUnit.MILLISECONDS);
+		Vehicle.addListener(this);
+	}
+
+	/**
+	 * Add, or rebuild, the boards for a feed. They're built in the
+	 * background.
+	 * 
+	 * @param inGTFS
+	 *            The feed
+	 */
+	public void addFeed(GTFS inGTFS) {
+		removeFeed(inGTFS);
+		synchronized (this) {
+			mFeeds.add(inGTFS);
+		}
+		mBuilder.execute(mRebuild);
+	}
+
+	@Override
+	public void feedReplaced(GTFS inOld, GTFS inNew) {
+		removeFeed(inOld);
+		addFeed(inNew);
+	}
+
+	/**
+	 * Build boards for any feed that doesn't have a current one and publish
+	 * them. Only run on the builder thread.
+	 */
+	private void rebuild() {
+		ArrayList<GTFS> feeds;
+		synchronized (this) {
+			feeds = new ArrayList<>(mFeeds);
+		}
+		ArrayList<Board> current = mBoards;
+		ArrayList<Board> built = new ArrayList<>();
+		for (GTFS g : feeds) {
+			Board b = null;
+			for (Board c : current) {
+				if (c.mGTFS == g && c.mPaths == g.getPaths()) {
+					b = c;
+					break;
+				}
+			}
+			if (b == null) {
+				FeedHandle h = g.getHandle();
+				if (!h.acquire()) {
+					// released; its replacement has a rebuild queued
+					continue;
+				}
+				try {
+					b = new Board(g);
+				} finally {
+					h.release();
+				}
+			}
+			built.add(b);
+		}
+
+		synchronized (this) {
+			// leave out any feed removed while building
+			ArrayList<Board> boards = new ArrayList<>();
+			for (Board b : built) {
+				if (mFeeds.contains(b.mGTFS)) {
+					boards.add(b);
+				}
+			}
+			mBoards = boards;
+		}
+	}
+
+	/**
+	 * Build one stop's board
+	 * 
+	 * @param b
+	 *            The feed's Board
+	 * @param inStop
+	 *            The stop index
+	 * @param inNow
+	 *            Current time in seconds since midnight
+	 * @return The board Snapshot
+	 */
+	private Snapshot buildBoard(Board b, int inStop, int inNow) {
+		int start = b.mStart[inStop];
+		int end = b.mStart[inStop + 1];
+
+		// binary search for the first visit inside the late window
+		int lo = start, hi = end;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (b.mTimes[mid] < inNow - LATE_WINDOW) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		ArrayList<Departure> list = new ArrayList<>();
+		for (int i = lo; i < end; i++) {
+			int scheduled = b.mTimes[i];
+			// once past a full board of on-time visits, nothing later can
+			// come first
+			if (list.size() >= BOARD_SIZE && scheduled > inNow
+					&& scheduled > list.get(BOARD_SIZE - 1).mEstimated) {
+				break;
+			}
+
+			Departure d = new Departure();
+			d.mRow = b.mRows[i];
+			d.mScheduled = scheduled;
+			d.mEstimated = scheduled;
+			Live live = mLive.get(b.mTable.getTrip(d.mRow));
+			if (live != null && inNow - live.mTimecode <= LIVE_TIMEOUT) {
+				d.mLive = live;
+				d.mEstimated = scheduled + live.mDelay;
+			}
+			if (d.mEstimated >= inNow) {
+				// keep the list ordered by estimated time
+				int at = list.size();
+				while (at > 0 && list.get(at - 1).mEstimated > d.mEstimated) {
+					at--;
+				}
+				list.add(at, d);
+			}
+		}
+
+		Stop stop = b.mGTFS.getStop(inStop);
+		StringBuilder sb = new StringBuilder(256 + list.size() * 192);
+		sb.append("{\"stop_id\":");
+		JSONUtil.appendString(sb, stop == null ? null : stop.get_stop_id());
+		sb.append(",\"stop_name\":");
+		JSONUtil.appendString(sb, stop == null ? null : stop.get_stop_name());
+		sb.append(",\"departures\":[");
+		for (int i = 0; i < list.size() && i < BOARD_SIZE; i++) {
+			Departure d = list.get(i);
+			Trip trip = b.mTable.getTrip(d.mRow);
+			Route route = trip == null ? null : trip.getRoute();
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"route_id\":");
+			JSONUtil.appendString(sb, route == null ? null : route.get_route_id());
+			sb.append(",\"route\":");
+			JSONUtil.appendString(sb, route == null ? null : route.getName());
+			sb.append(",\"trip_id\":");
+			JSONUtil.appendString(sb, trip == null ? null : trip.get_trip_id());
+			sb.append(",\"headsign\":");
+			JSONUtil.appendString(sb,
+					trip == null ? null : trip.get_trip_headsign());
+			sb.append(",\"scheduled\":");
+			JSONUtil.appendString(sb, minutesToTime(d.mScheduled / 60));
+			sb.append(",\"estimated\":");
+			JSONUtil.appendString(sb, minutesToTime(d.mEstimated / 60));
+			if (d.mLive != null) {
+				sb.append(",\"delay\":").append(d.mLive.mDelay);
+				sb.append(",\"vehicle\":").append(d.mLive.mVehicleID);
+			} else {
+				sb.append(",\"delay\":null,\"vehicle\":null");
+			}
+			sb.append('}');
+		}
+		sb.append("]}");
+		return Snapshot.json(sb.toString());
+	}
+
+	/**
+	 * Drop the cached boards for every stop a trip visits
+	 * 
+	 * @param inTrip
+	 *            The Trip
+	 */
+	private void invalidate(Trip inTrip) {
+		StopTimeTable table = inTrip.getStopTimeTable();
+		if (table == null) {
+			return;
+		}
+		for (Board b : mBoards) {
+			if (b.mTable != table) {
+				continue;
+			}
+			for (int i = 0; i < inTrip.getStopCount(); i++) {
+				b.mVersions.incrementAndGet(table.getStopIndex(inTrip
+						.getStopRow(i)));
+			}
+		}
+	}
+
+	@Override
+	public Snapshot query(String inPath) {
+		String[] parts = inPath.split("/");
+		if (parts.length != 4 || !parts[1].equals("stops")
+				|| !parts[3].equals("departures")) {
+			return null;
+		}
+		String stopID = QueryPortal.decode(parts[2]);
+
+		int now = now();
+		int minute = now / 60;
+		for (Board b : mBoards) {
+			// a reload may release the feed while the board is being built
+			FeedHandle h = b.mGTFS.getHandle();
+			if (!h.acquire()) {
+				continue;
+			}
+			try {
+				int s = IDDictionary.getDictionary(b.mGTFS.getID(),
+						IDDictionary.STOP_ID).indexOf(stopID);
+				if (s < 0 || s >= b.mCache.length()) {
+					continue;
+				}
+				// read the version first, so an update during the build
+				// leaves the entry stale
+				int version = b.mVersions.get(s);
+				Cached c = b.mCache.get(s);
+				if (c == null || c.mMinute != minute || c.mVersion != version) {
+					c = new Cached(buildBoard(b, s, now), minute, version);
+					b.mCache.set(s, c);
+				}
+				return c.mSnapshot;
+			} finally {
+				h.release();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Drop the boards for a feed
+	 * 
+	 * @param inGTFS
+	 *            The feed
+	 */
+	public void removeFeed(GTFS inGTFS) {
+		synchronized (this) {
+			mFeeds.remove(inGTFS);
+			ArrayList<Board> boards = new ArrayList<>(mBoards);
+			for (int i = boards.size() - 1; i >= 0; i--) {
+				if (boards.get(i).mGTFS == inGTFS) {
+					boards.remove(i);
+				}
+			}
+			mBoards = boards;
+		}
+		Iterator<Map.Entry<Integer, Trip>> trips = mVehicleTrips.entrySet()
+				.iterator();
+		while (trips.hasNext()) {
+			Trip t = trips.next().getValue();
+			if (t.getGTFS_ID() == inGTFS.getID()) {
+				trips.remove();
+				mLive.remove(t);
+			}
+		}
+	}
+
+	@Override
+	public void vehicleUpdated(Vehicle v) {
+		StopAdapter stop = v.getMatchedStop();
+		Trip trip = stop == null ? null : stop.getTable().getTrip(
+				stop.getRow());
+		int scheduled = -1;
+		if (trip != null) {
+			int[] times = trip.getScheduledTimes();
+			for (int i = 0; i < times.length; i++) {
+				if (trip.getStopRow(i) == stop.getRow()) {
+					scheduled = times[i];
+					break;
+				}
+			}
+		}
+
+		// a vehicle only updates on its own thread, so no lock is needed
+		boolean matched = trip != null && scheduled >= 0;
+		Trip old = matched ? mVehicleTrips.put(v.getID(), trip)
+				: mVehicleTrips.remove(v.getID());
+		if (old != null && old != trip) {
+			mLive.remove(old);
+			invalidate(old);
+		}
+		if (!matched) {
+			return;
+		}
+
+		int timecode = v.getLatestTimecode();
+		mLive.put(trip, new Live(v.getID(), timecode - scheduled, timecode));
+		invalidate(trip);
+	}
+}
@@ -48,8 +48,12 @@ public class Config {
 	public static String DRONES_ACTIVE = "drones_active";
 	public static String DRONE_SPEED = "drone_speed";
 	public static String DRONE_UPDATE_SPEED = "drone_update_speed";
+	public static String DRONE_THREADS = "drone_threads";
+	public static String DRONE_TIME_SCALE = "drone_time_scale";
+	public static String DRONE_TRANSPORT = "drone_transport";
 	public static String SERVER_PORT = "server_port";
 	public static String SERVER_PASSWORD = "server_password";
+	public static String QUERY_PORT = "query_port";
 	public static String PACKET_OK = "packet_ok";
 	public static String PACKET_BAD = "packet_bad";
 	public static String COORD_BUFFER_SIZE = "coord_buffer_size";
@@ -57,6 +61,16 @@ public class Config {
 	public static String STOP_WINDOW_MARGIN = "stop_window_margin";
 	public static String VEHICLE_LIST_TIMEOUT = "vehicle_list_timeout";
 	public static String DEBUG_DISPLAY = "debug_display";
+	public static String GTFS_STORAGE = "gtfs_storage";
+	public static String FEED_WATCH = "feed_watch";
+	public static String JOURNAL_DIR = "journal_dir";
+	public static String JOURNAL_SEGMENT_MB = "journal_segment_mb";
+	public static String CHECKPOINT_FILE = "checkpoint_file";
+	public static String CHECKPOINT_INTERVAL = "checkpoint_interval";
+	public static String HISTORY_DIR = "history_dir";
+	public static String HISTORY_DAYS = "history_days";
+	public static String VEHICLE_SHARDS = "vehicle_shards";
+	public static String VEHICLE_QUEUE_SIZE = "vehicle_queue_size";
 
 	private static HashMap<String, String> sOptions;
 	private static Config sInstance = null;
@@ -92,9 +106,10 @@ public class Config {
 		boolean ret = false;
 		if (key == null)
 			return ret;
-		String value = sOptions.get(key).toLowerCase();
+		String value = sOptions.get(key);
 
 		if (value != null) {
+			value = value.toLowerCase();
 			if (value.equals("true") || value.equals("t")) {
 				ret = true;
 			}
@@ -112,7 +127,7 @@ public class Config {
 	 */
 	public synchronized double getDoubleOption(String key) {
 		double ret = Double.NaN;
-		if (key == null)
+		if (key == null || sOptions.get(key) == null)
 			return ret;
 		try {
 			ret = Double.parseDouble(sOptions.get(key));
@@ -0,0 +1,321 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.fares;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.jasonlafrance.wtbbackend.gtfs.FareAttribute;
+import com.jasonlafrance.wtbbackend.gtfs.FareRule;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+
+/**
+ * Prices rides with the fare_attributes.txt and fare_rules.txt of their
+ * feeds.
+ * 
+ * Each row of fare_rules.txt is kept as one rule, and a ride has to match a
+ * single rule as a whole: its route, origin and destination zones together.
+ * Rows that differ only in contains_id make up one rule whose zones must all
+ * be passed. Rules are indexed by route, with rules valid on any route kept
+ * apart, so finding the candidates for a ride is a single lookup. A run of
+ * consecutive rides can share one fare when the fare's transfers and
+ * transfer_duration allow it and one of its rules covers the whole run: every
+ * ride is on the rule's route, the run starts in its origin zone, ends in its
+ * destination zone and passes exactly its contained zones. The cheapest split
+ * of a journey into such runs is found by dynamic programming over the rides.
+ * 
+ * A feed without any fare rules applies its fares to every ride.
+ * 
+ * @author Jason LaFrance
+ */
+public class FareEngine {
+
+	private static final char SEP = '\u0000';
+
+	/**
+	 * One rule of a fare. Null fields are unrestricted.
+	 */
+	private static class Rule {
+		private final FareAttribute mFare;
+		private final String mRoute;
+		private final String mOrigin;
+		private final String mDestination;
+		private final HashSet<String> mContains = new HashSet<>();
+
+		/**
+		 * Create a rule without contained zones
+		 * 
+		 * @param inFare
+		 *            The fare
+		 * @param inRoute
+		 *            Route ID, or null
+		 * @param inOrigin
+		 *            Origin zone, or null
+		 * @param inDestination
+		 *            Destination zone, or null
+		 */
+		private Rule(FareAttribute inFare, String inRoute, String inOrigin,
+				String inDestination) {
+			mFare = inFare;
+			mRoute = inRoute;
+			mOrigin = inOrigin;
+			mDestination = inDestination;
+		}
+
+		/**
+		 * Check if a run of rides can share this fare, leaving zones aside. A
+		 * run that doesn't fit can't be extended into one that does.
+		 * 
+		 * @param inRides
+		 *            All the rides
+		 * @param i
+		 *            First ride of the run
+		 * @param j
+		 *            Last ride of the run
+		 * @return True if the run fits the rule's route and the fare's
+		 *         transfers
+		 */
+		private boolean fits(List<Ride> inRides, int i, int j) {
+			int transfers = mFare.get_transfers();
+			if (transfers >= 0 && j - i > transfers) {
+				return false;
+			}
+			double duration = mFare.get_transfer_duration();
+			if (duration > 0.0
+					&& inRides.get(j).getStartTime()
+							- inRides.get(i).getStartTime() > duration) {
+				return false;
+			}
+			return mRoute == null
+					|| mRoute.equals(inRides.get(j).getRouteID());
+		}
+
+		/**
+		 * Check if a fitting run of rides matches the fare's zones
+		 * 
+		 * @param inRides
+		 *            All the rides
+		 * @param i
+		 *            First ride of the run
+		 * @param j
+		 *            Last ride of the run
+		 * @param inZones
+		 *            Zones passed on the run
+		 * @return True if the rule covers the run
+		 */
+		private boolean matchesZones(List<Ride> inRides, int i, int j,
+				HashSet<String> inZones) {
+			if (mOrigin != null
+					&& !mOrigin.equals(inRides.get(i).getOriginZone())) {
+				return false;
+			}
+			if (mDestination != null
+					&& !mDestination.equals(inRides.get(j)
+							.getDestinationZone())) {
+				return false;
+			}
+			return mContains.isEmpty() || mContains.equals(inZones);
+		}
+	}
+
+	/**
+	 * The rule index for one feed
+	 */
+	private static class FeedFares {
+		private final HashMap<String, ArrayList<Rule>> mByRoute = new HashMap<>();
+		private final ArrayList<Rule> mAnyRoute = new ArrayList<>();
+	}
+
+	/**
+	 * Key the columns that make a fare_rules.txt row part of the same rule
+	 * 
+	 * @param in
+	 *            The FareRule
+	 * @return The key
+	 */
+	private static String key(FareRule in) {
+		return in.get_fare_id() + SEP + orEmpty(in.get_route_id()) + SEP
+				+ orEmpty(in.get_origin_id()) + SEP
+				+ orEmpty(in.get_destination_id()) + SEP
+				+ (zone(in.get_contains_id()) == null ? "" : "contains");
+	}
+
+	/**
+	 * @param in
+	 *            An optional ID
+	 * @return The ID, or an empty String for null
+	 */
+	private static String orEmpty(String in) {
+		return in == null ? "" : in;
+	}
+
+	/**
+	 * Normalize an optional ID column
+	 * 
+	 * @param in
+	 *            The value as parsed
+	 * @return The value, or null if it was missing or empty
+	 */
+	static String zone(String in) {
+		return in == null || in.isEmpty() ? null : in;
+	}
+
+	private final HashMap<Integer, FeedFares> mFeeds = new HashMap<>();
+
+	/**
+	 * Index the fares of the given feeds
+	 * 
+	 * @param inFeeds
+	 *            The loaded feeds
+	 */
+	public FareEngine(List<GTFS> inFeeds) {
+		for (GTFS g : inFeeds) {
+			addFeed(g);
+		}
+	}
+
+	/**
+	 * Index the fares of a feed, replacing any already indexed for it
+	 * 
+	 * @param inGTFS
+	 *            The feed
+	 */
+	public synchronized void addFeed(GTFS inGTFS) {
+		HashMap<String, FareAttribute> byID = new HashMap<>();
+		for (FareAttribute a : inGTFS.getFareAttributes()) {
+			byID.put(a.get_fare_id(), a);
+		}
+
+		LinkedHashMap<String, Rule> rules = new LinkedHashMap<>();
+		for (FareRule r : inGTFS.getFareRules()) {
+			FareAttribute fare = byID.get(r.get_fare_id());
+			if (fare == null) {
+				continue;
+			}
+			String key = key(r);
+			Rule rule = rules.get(key);
+			if (rule == null) {
+				rule = new Rule(fare, zone(r.get_route_id()),
+						zone(r.get_origin_id()), zone(r.get_destination_id()));
+				rules.put(key, rule);
+			}
+			if (zone(r.get_contains_id()) != null) {
+				rule.mContains.add(r.get_contains_id());
+			}
+		}
+		// once a feed has rules, fares without any don't apply
+		if (rules.isEmpty()) {
+			for (FareAttribute a : byID.values()) {
+				rules.put(a.get_fare_id(), new Rule(a, null, null, null));
+			}
+		}
+
+		FeedFares ff = new FeedFares();
+		for (Rule r : rules.values()) {
+			if (r.mRoute == null) {
+				ff.mAnyRoute.add(r);
+				continue;
+			}
+			ArrayList<Rule> list = ff.mByRoute.get(r.mRoute);
+			if (list == null) {
+				list = new ArrayList<>();
+				ff.mByRoute.put(r.mRoute, list);
+			}
+			list.add(r);
+		}
+		mFeeds.put(inGTFS.getID(), ff);
+	}
+
+	/**
+	 * Drop the fares indexed for a feed
+	 * 
+	 * @param inGTFS
+	 *            The feed
+	 */
+	public synchronized void removeFeed(GTFS inGTFS) {
+		mFeeds.remove(inGTFS.getID());
+	}
+
+	/**
+	 * Price a sequence of rides
+	 * 
+	 * @param inRides
+	 *            The rides in travel order
+	 * @return The cheapest FareQuote, or null if some ride has no fare
+	 */
+	public synchronized FareQuote price(List<Ride> inRides) {
+		int n = inRides.size();
+		double[] cost = new double[n + 1];
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		cost[0] = 0.0;
+		Rule[] paid = new Rule[n + 1];
+		int[] from = new int[n + 1];
+
+		for (int i = 0; i < n; i++) {
+			if (cost[i] == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			Ride first = inRides.get(i);
+			FeedFares ff = mFeeds.get(first.getGTFS_ID());
+			if (ff == null) {
+				continue;
+			}
+			ArrayList<Rule> candidates = new ArrayList<>(ff.mAnyRoute);
+			ArrayList<Rule> routed = ff.mByRoute.get(first.getRouteID());
+			if (routed != null) {
+				candidates.addAll(routed);
+			}
+
+			HashSet<String> zones = new HashSet<>();
+			for (int j = i; j < n && !candidates.isEmpty(); j++) {
+				if (inRides.get(j).getGTFS_ID() != first.getGTFS_ID()) {
+					break;
+				}
+				zones.addAll(inRides.get(j).getZones());
+				for (int c = candidates.size() - 1; c >= 0; c--) {
+					Rule f = candidates.get(c);
+					if (!f.fits(inRides, i, j)) {
+						candidates.remove(c);
+					} else if (f.matchesZones(inRides, i, j, zones)) {
+						double total = cost[i] + f.mFare.get_price();
+						if (total < cost[j + 1]) {
+							cost[j + 1] = total;
+							paid[j + 1] = f;
+							from[j + 1] = i;
+						}
+					}
+				}
+			}
+		}
+
+		if (cost[n] == Double.POSITIVE_INFINITY) {
+			return null;
+		}
+		ArrayList<FareQuote.Ticket> tickets = new ArrayList<>();
+		for (int j = n; j > 0; j = from[j]) {
+			tickets.add(0, new FareQuote.Ticket(paid[j].mFare, from[j], j - 1));
+		}
+		return new FareQuote(tickets);
+	}
+}
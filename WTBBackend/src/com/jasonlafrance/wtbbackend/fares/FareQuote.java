@@ -0,0 +1,141 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.fares;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.jasonlafrance.wtbbackend.gtfs.FareAttribute;
+
+/**
+ * The cheapest way found to pay for a sequence of rides
+ * 
+ * @author Jason LaFrance
+ */
+public final class FareQuote {
+
+	/**
+	 * One fare paid, covering a run of consecutive rides
+	 */
+	public static final class Ticket {
+		private final FareAttribute mFare;
+		private final int mFirstRide, mLastRide;
+
+		/**
+		 * Create a Ticket
+		 * 
+		 * @param inFare
+		 *            The fare paid
+		 * @param inFirstRide
+		 *            Index of the first ride covered
+		 * @param inLastRide
+		 *            Index of the last ride covered
+		 */
+		Ticket(FareAttribute inFare, int inFirstRide, int inLastRide) {
+			mFare = inFare;
+			mFirstRide = inFirstRide;
+			mLastRide = inLastRide;
+		}
+
+		/**
+		 * Get the fare paid
+		 * 
+		 * @return The FareAttribute
+		 */
+		public FareAttribute getFare() {
+			return mFare;
+		}
+
+		/**
+		 * Get the first ride covered
+		 * 
+		 * @return Ride index
+		 */
+		public int getFirstRide() {
+			return mFirstRide;
+		}
+
+		/**
+		 * Get the last ride covered
+		 * 
+		 * @return Ride index
+		 */
+		public int getLastRide() {
+			return mLastRide;
+		}
+	}
+
+	private final ArrayList<Ticket> mTickets;
+
+	/**
+	 * Create a FareQuote
+	 * 
+	 * @param inTickets
+	 *            Tickets in ride order
+	 */
+	FareQuote(ArrayList<Ticket> inTickets) {
+		mTickets = inTickets;
+	}
+
+	/**
+	 * Get the currency of the quote
+	 * 
+	 * @return currency_type of the first ticket, or null if there are none
+	 */
+	public String getCurrency() {
+		return mTickets.isEmpty() ? null : mTickets.get(0).getFare()
+				.get_currency_type();
+	}
+
+	/**
+	 * Get the tickets
+	 * 
+	 * @return Unmodifiable list of tickets in ride order
+	 */
+	public List<Ticket> getTickets() {
+		return Collections.unmodifiableList(mTickets);
+	}
+
+	/**
+	 * Get the total price
+	 * 
+	 * @return Sum of every ticket's price
+	 */
+	public double getTotal() {
+		double ret = 0.0;
+		for (Ticket t : mTickets) {
+			ret += t.getFare().get_price();
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(getTotal()).append(' ').append(getCurrency());
+		for (Ticket t : mTickets) {
+			sb.append(" [").append(t.getFare().get_fare_id()).append(' ')
+					.append(t.getFirstRide()).append('-')
+					.append(t.getLastRide()).append(']');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,124 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.fares;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * One ride to be priced: a single boarding of a route within one feed
+ * 
+ * @author Jason LaFrance
+ */
+public final class Ride {
+
+	private final int mGTFS_ID;
+	private final String mRouteID;
+	private final int mStartTime;
+	private final String mOriginZone, mDestinationZone;
+	private final Set<String> mZones;
+
+	/**
+	 * Create a Ride
+	 * 
+	 * @param inGTFS_ID
+	 *            ID of the feed the route belongs to
+	 * @param inRouteID
+	 *            The route_id
+	 * @param inStartTime
+	 *            Boarding time in seconds since midnight
+	 * @param inOriginZone
+	 *            zone_id of the boarding stop, or null
+	 * @param inDestinationZone
+	 *            zone_id of the alighting stop, or null
+	 * @param inZones
+	 *            zone_ids of every stop passed, boarding and alighting
+	 *            included
+	 */
+	public Ride(int inGTFS_ID, String inRouteID, int inStartTime,
+			String inOriginZone, String inDestinationZone, Set<String> inZones) {
+		mGTFS_ID = inGTFS_ID;
+		mRouteID = inRouteID;
+		mStartTime = inStartTime;
+		mOriginZone = FareEngine.zone(inOriginZone);
+		mDestinationZone = FareEngine.zone(inDestinationZone);
+		mZones = new HashSet<>();
+		for (String z : inZones) {
+			if (FareEngine.zone(z) != null) {
+				mZones.add(z);
+			}
+		}
+	}
+
+	/**
+	 * Get the alighting zone
+	 * 
+	 * @return The zone_id, or null
+	 */
+	public String getDestinationZone() {
+		return mDestinationZone;
+	}
+
+	/**
+	 * Get the feed ID
+	 * 
+	 * @return ID of the feed the route belongs to
+	 */
+	public int getGTFS_ID() {
+		return mGTFS_ID;
+	}
+
+	/**
+	 * Get the boarding zone
+	 * 
+	 * @return The zone_id, or null
+	 */
+	public String getOriginZone() {
+		return mOriginZone;
+	}
+
+	/**
+	 * Get the route
+	 * 
+	 * @return The route_id
+	 */
+	public String getRouteID() {
+		return mRouteID;
+	}
+
+	/**
+	 * Get the boarding time
+	 * 
+	 * @return Seconds since midnight
+	 */
+	public int getStartTime() {
+		return mStartTime;
+	}
+
+	/**
+	 * Get the zones passed through
+	 * 
+	 * @return Unmodifiable set of zone_ids
+	 */
+	public Set<String> getZones() {
+		return Collections.unmodifiableSet(mZones);
+	}
+}
@@ -19,6 +19,7 @@ This file is part of WTBBackend.
 
 package com.jasonlafrance.wtbbackend.gps_portal;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -39,9 +40,35 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class GPSPortal extends Thread {
 
+	// kept-alive connections are dropped after this long without a request
+	private static final int IDLE_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Generate a packet cipher from a password. Ciphers aren't thread safe, so
+	 * each user needs its own.
+	 * 
+	 * @param inPassword
+	 *            The shared password.
+	 * @param inMode
+	 *            Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+	 * @return The cipher, or null if it can't be made.
+	 */
+	public static Cipher createCipher(String inPassword, int inMode) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA");
+			digest.update(inPassword.getBytes());
+			SecretKeySpec key = new SecretKeySpec(digest.digest(), 0, 16, "AES");
+			Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+			cipher.init(inMode, key);
+			return cipher;
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException
+				| InvalidKeyException e) {
+			return null;
+		}
+	}
+
 	private final int mPort;
 	private final String mPassword;
-	private Cipher mCipher;
 
 	/**
 	 * Create and start a GPSPortal thread.
@@ -78,14 +105,7 @@ public class GPSPortal extends Thread {
 		System.out.println("OK!");
 
 		// generate the key from the password
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA");
-			digest.update(mPassword.getBytes());
-			SecretKeySpec key = new SecretKeySpec(digest.digest(), 0, 16, "AES");
-			mCipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-			mCipher.init(Cipher.DECRYPT_MODE, key);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException
-				| InvalidKeyException e) {
+		if (createCipher(mPassword, Cipher.DECRYPT_MODE) == null) {
 			System.out
 					.println("GPSPortal: Can't initialize cipher key for some reason!");
 			return;
@@ -95,16 +115,22 @@ public class GPSPortal extends Thread {
 			try {
 				// wait for a connection
 				Socket connectionsocket = serversocket.accept();
+				connectionsocket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
 				// read http request into buffer
 				BufferedReader input = new BufferedReader(
 						new InputStreamReader(connectionsocket.getInputStream()));
 				// set up output stream
+				// buffered so each response goes out as one segment
+				connectionsocket.setTcpNoDelay(true);
 				DataOutputStream output = new DataOutputStream(
-						connectionsocket.getOutputStream());
+						new BufferedOutputStream(
+								connectionsocket.getOutputStream()));
 
 				// spawn new listener thread
+				// connections can now live for many packets, so each gets
+				// its own cipher
 				HTTPInput portListener = HTTPInput.getInstance(input, output,
-						mCipher);
+						createCipher(mPassword, Cipher.DECRYPT_MODE));
 				Thread t = new Thread(portListener);
 				t.setPriority(Thread.MIN_PRIORITY);
 				t.start();
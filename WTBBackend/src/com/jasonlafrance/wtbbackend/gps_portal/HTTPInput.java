@@ -19,6 +19,8 @@ This file is part of WTBBackend.
 
 package com.jasonlafrance.wtbbackend.gps_portal;
 
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.secondsOfDay;
+
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -30,6 +32,7 @@ import javax.crypto.IllegalBlockSizeException;
 
 import com.jasonlafrance.wtbbackend.config.Config;
 import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.vehicle.VehiclePipeline;
 import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
 
 /**
@@ -40,6 +43,29 @@ import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
 public class HTTPInput implements Runnable {
 
 	private static final LinkedList<HTTPInput> sRecycleBin = new LinkedList<>();
+	private static volatile PacketJournal sJournal = null;
+	private static volatile VehiclePipeline sPipeline = null;
+
+	/**
+	 * Record every packet that comes in from now on
+	 * 
+	 * @param in
+	 *            The journal to append to, or null to stop recording
+	 */
+	public static void setJournal(PacketJournal in) {
+		sJournal = in;
+	}
+
+	/**
+	 * Hand decoded packets to a pipeline instead of updating vehicles on the
+	 * input thread
+	 * 
+	 * @param in
+	 *            The pipeline to submit to, or null to update inline
+	 */
+	public static void setPipeline(VehiclePipeline in) {
+		sPipeline = in;
+	}
 
 	// using an object pool pattern to help avoid excessive object creation
 	// finished HTTPInput objects are added to the recycle bin and reclaimed for
@@ -92,6 +118,58 @@ public class HTTPInput implements Runnable {
 		mCipher = inCipher;
 	}
 
+	/**
+	 * Decrypt a raw GPS packet and update its vehicle.
+	 * 
+	 * @param inCipher
+	 *            Decrypting cipher, only used by one thread at a time.
+	 * @param inPacket
+	 *            The encrypted packet.
+	 * @return True if the packet was good.
+	 */
+	public static boolean ingest(Cipher inCipher, byte[] inPacket) {
+		return ingest(inCipher, inPacket, -1);
+	}
+
+	/**
+	 * Decrypt a raw GPS packet and update its vehicle as of a given time.
+	 * 
+	 * @param inCipher
+	 *            Decrypting cipher, only used by one thread at a time.
+	 * @param inPacket
+	 *            The encrypted packet.
+	 * @param inTimeCode
+	 *            Time of the position in seconds since midnight, or -1 for
+	 *            now.
+	 * @return True if the packet was good.
+	 */
+	public static boolean ingest(Cipher inCipher, byte[] inPacket,
+			int inTimeCode) {
+		GPSPacket packet;
+		try {
+			packet = new GPSPacket(inCipher.doFinal(inPacket));
+		} catch (IllegalBlockSizeException | BadPaddingException ex) {
+			return false;
+		}
+		// System.out.println("Packet in: " + packet);
+		PacketJournal journal = sJournal;
+		if (journal != null) {
+			journal.append(System.currentTimeMillis(), packet);
+		}
+		VehiclePipeline pipeline = sPipeline;
+		if (inTimeCode < 0) {
+			inTimeCode = secondsOfDay(System.currentTimeMillis());
+		}
+		if (pipeline != null) {
+			pipeline.submit(packet.getID(), packet.getLat(), packet.getLon(),
+					inTimeCode);
+		} else {
+			Vehicle.updateVehicle(packet.getID(), packet.getLat(),
+					packet.getLon(), inTimeCode);
+		}
+		return true;
+	}
+
 	/**
 	 * Builds an HTTP header.
 	 * 
@@ -100,10 +178,15 @@ public class HTTPInput implements Runnable {
 	 * @param fileType
 	 *            File type to report to the client. Note really used much since
 	 *            we're mainly just transfering raw binary and text.
+	 * @param keepAlive
+	 *            Whether the connection stays open for another request.
+	 * @param length
+	 *            Body length, only sent on kept-alive connections.
 	 * @return Returns a completed HTTP header.
 	 */
-	private String constructHttpHeader(int code, int fileType) {
-		String s = "HTTP/1.0 ";
+	private String constructHttpHeader(int code, int fileType,
+			boolean keepAlive, int length) {
+		String s = keepAlive ? "HTTP/1.1 " : "HTTP/1.0 ";
 
 		switch (code) {
 		case 200:
@@ -127,7 +210,12 @@ public class HTTPInput implements Runnable {
 		}
 
 		s = s + "\r\n";
-		s = s + "Connection: close\r\n";
+		if (keepAlive) {
+			s = s + "Connection: keep-alive\r\n";
+			s = s + "Content-Length: " + length + "\r\n";
+		} else {
+			s = s + "Connection: close\r\n";
+		}
 		s = s + "Server: WTBBackend GPS Input\r\n"; // server name
 
 		switch (fileType) {
@@ -144,52 +232,68 @@ public class HTTPInput implements Runnable {
 
 	/**
 	 * This is is HTTP input stream handler thread. It does the packet
-	 * decrypting, parsing, and vehicle updating.
+	 * decrypting, parsing, and vehicle updating. HTTP/1.1 clients that don't
+	 * ask for the connection to be closed can keep sending packets on it.
 	 */
 	@Override
 	public void run() {
 		try {
-			String temp = mInput.readLine().toUpperCase();
-			boolean everythingOK = true;
+			boolean keepAlive = true;
+			while (keepAlive) {
+				String line = mInput.readLine();
+				if (line == null) {
+					break;
+				}
+				String temp = line.toUpperCase();
+				boolean everythingOK = true;
 
-			if (temp.startsWith("GET")) {
-				// isolate mInput field between slash and space
-				int start = temp.indexOf('/') + 1;
-				int end = temp.indexOf(' ', start);
-				String field = temp.substring(start, end);
-				GPSPacket packet = null;
+				// the rest of the request header decides if we stay open
+				keepAlive = temp.endsWith("HTTP/1.1");
+				String header;
+				while ((header = mInput.readLine()) != null
+						&& header.length() > 0) {
+					header = header.toLowerCase();
+					if (header.startsWith("connection:")) {
+						keepAlive = header.contains("keep-alive");
+					}
+				}
 
-				try {
-					packet = new GPSPacket(mCipher.doFinal(HexUtil
-							.getBytes(field)));
+				if (temp.startsWith("GET")) {
+					// isolate mInput field between slash and space
+					int start = temp.indexOf('/') + 1;
+					int end = temp.indexOf(' ', start);
+					String field = end < 0 ? temp.substring(start) : temp
+							.substring(start, end);
 
-				} catch (IllegalBlockSizeException | BadPaddingException ex) {
+					everythingOK = ingest(mCipher, HexUtil.getBytes(field));
+				} else {
 					everythingOK = false;
 				}
-				if (packet != null) {
-					// System.out.println("Packet in: " + packet);
-					Vehicle.updateVehicle(packet.getID(), packet.getLat(),
-							packet.getLon());
-				}
 
-			} else {
-				everythingOK = false;
-			}
-
-			if (everythingOK) // it's good! acknowledge!
-			{
-				mOutput.writeBytes(constructHttpHeader(200, 5));
-				mOutput.writeBytes(Config.getInstance().getOption(
-						Config.PACKET_OK));
-			} else {
-				mOutput.writeBytes(constructHttpHeader(404, 0));
-				mOutput.writeBytes(Config.getInstance().getOption(
-						Config.PACKET_BAD));
+				String body;
+				if (everythingOK) // it's good! acknowledge!
+				{
+					body = Config.getInstance().getOption(Config.PACKET_OK);
+					mOutput.writeBytes(constructHttpHeader(200, 5, keepAlive,
+							body.length()));
+				} else {
+					body = Config.getInstance().getOption(Config.PACKET_BAD);
+					mOutput.writeBytes(constructHttpHeader(404, 0, keepAlive,
+							body.length()));
+				}
+				mOutput.writeBytes(body);
+				mOutput.flush();
 			}
-			mOutput.close();
 		} catch (IOException ex) {
 			// Logger.getLogger(HTTPInput.class.getName()).log(Level.SEVERE,
 			// null, ex);
+		} finally {
+			try {
+				mOutput.close();
+			} catch (IOException ex) {
+				// Logger.getLogger(HTTPInput.class.getName()).log(Level.SEVERE,
+				// null, ex);
+			}
 		}
 
 		synchronized (sRecycleBin) {
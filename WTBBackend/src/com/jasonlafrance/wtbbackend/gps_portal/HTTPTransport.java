@@ -0,0 +1,56 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gps_portal;
+
+import com.jasonlafrance.wtbbackend.config.Config;
+import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
+
+/**
+ * The original transport: one HTTP GET per packet through java.net.URL, the
+ * way a simple tracker would do it.
+ * 
+ * @author Jason LaFrance
+ */
+public class HTTPTransport implements PacketTransport {
+
+	private final String mServer;
+
+	/**
+	 * Create an HTTPTransport
+	 * 
+	 * @param inServer
+	 *            The GPS portal's URL
+	 */
+	public HTTPTransport(String inServer) {
+		mServer = inServer;
+	}
+
+	@Override
+	public boolean send(byte[] inPacket) {
+		String response = HTTPOutput.HTTPGet(mServer + "/"
+				+ HexUtil.getHex(inPacket));
+		return response.equals(Config.getInstance().getOption(
+				Config.PACKET_OK));
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,236 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gps_portal;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
+
+/**
+ * HTTP transport that keeps its connections open between packets. Idle
+ * connections wait in a lock-free pool, so any number of senders can share
+ * it and the pool grows to however many are sending at once. A pooled
+ * connection the server has since dropped is replaced and the packet resent.
+ * 
+ * @author Jason LaFrance
+ */
+public class KeepAliveTransport implements PacketTransport {
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	private static final int READ_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * One open connection to the server
+	 */
+	private static final class Connection {
+		private final Socket mSocket;
+		private final InputStream mIn;
+		private final OutputStream mOut;
+
+		private Connection(Socket inSocket) throws IOException {
+			mSocket = inSocket;
+			mIn = new BufferedInputStream(inSocket.getInputStream());
+			mOut = inSocket.getOutputStream();
+		}
+
+		private void close() {
+			try {
+				mSocket.close();
+			} catch (IOException ex) {
+				// Logger.getLogger(KeepAliveTransport.class.getName()).log(
+				// Level.SEVERE, null, ex);
+			}
+		}
+	}
+
+	private final String mHost;
+	private final int mPort;
+	private final String mPath;
+	private final ConcurrentLinkedQueue<Connection> mPool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger mOpened = new AtomicInteger();
+	private volatile boolean mClosed = false;
+
+	/**
+	 * Create a KeepAliveTransport
+	 * 
+	 * @param inServer
+	 *            The GPS portal's URL
+	 * @throws MalformedURLException
+	 *             If the URL can't be parsed
+	 */
+	public KeepAliveTransport(String inServer) throws MalformedURLException {
+		URL url = new URL(inServer);
+		mHost = url.getHost();
+		mPort = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		mPath = url.getPath().endsWith("/") ? url.getPath() : url.getPath()
+				+ "/";
+	}
+
+	/**
+	 * Get how many connections have been opened so far
+	 * 
+	 * @return The connection count
+	 */
+	public int getOpenedCount() {
+		return mOpened.get();
+	}
+
+	@Override
+	public boolean send(byte[] inPacket) {
+		byte[] request = ("GET " + mPath + HexUtil.getHex(inPacket)
+				+ " HTTP/1.1\r\nHost: " + mHost + ":" + mPort
+				+ "\r\nConnection: keep-alive\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII);
+
+		// a pooled connection may have been dropped while idle, so it gets
+		// one retry on a fresh connection
+		for (int attempt = 0; attempt < 2; attempt++) {
+			Connection c = mPool.poll();
+			boolean fresh = c == null;
+			try {
+				if (fresh) {
+					c = open();
+				}
+				c.mOut.write(request);
+				c.mOut.flush();
+				int status = readResponse(c);
+				if (status < 0 || mClosed) {
+					c.close();
+				} else {
+					mPool.offer(c);
+				}
+				return Math.abs(status) == 200;
+			} catch (IOException ex) {
+				if (c != null) {
+					c.close();
+				}
+				if (fresh) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+		Connection c;
+		while ((c = mPool.poll()) != null) {
+			c.close();
+		}
+	}
+
+	/**
+	 * Open a new connection to the server
+	 * 
+	 * @return The connection
+	 * @throws IOException
+	 *             If the server can't be reached
+	 */
+	private Connection open() throws IOException {
+		Socket s = new Socket();
+		s.setTcpNoDelay(true);
+		s.setSoTimeout(READ_TIMEOUT_MILLIS);
+		s.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MILLIS);
+		mOpened.incrementAndGet();
+		return new Connection(s);
+	}
+
+	/**
+	 * Read one response, body and all
+	 * 
+	 * @param c
+	 *            The connection to read from
+	 * @return The status code, negated if the server is closing the
+	 *         connection
+	 * @throws IOException
+	 *             If the connection fails
+	 */
+	private static int readResponse(Connection c) throws IOException {
+		String statusLine = readLine(c.mIn);
+		if (statusLine == null) {
+			throw new IOException("Connection closed");
+		}
+		String[] parts = statusLine.split(" ");
+		int status = parts.length > 1 ? Integer.parseInt(parts[1]) : 500;
+		boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+		int length = -1;
+
+		String header;
+		while ((header = readLine(c.mIn)) != null && header.length() > 0) {
+			header = header.toLowerCase();
+			if (header.startsWith("content-length:")) {
+				length = Integer.parseInt(header.substring(15).trim());
+			} else if (header.startsWith("connection:")) {
+				keepAlive = header.contains("keep-alive");
+			}
+		}
+
+		if (length < 0) {
+			// no length, so the body runs to the end of the connection
+			while (c.mIn.read() >= 0) {
+				;
+			}
+			return -status;
+		}
+		for (int i = 0; i < length; i++) {
+			if (c.mIn.read() < 0) {
+				return -status;
+			}
+		}
+		return keepAlive ? status : -status;
+	}
+
+	/**
+	 * Read one CRLF terminated line
+	 * 
+	 * @param in
+	 *            The stream to read
+	 * @return The line, or null at the end of the stream
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0) {
+			if (b == '\n') {
+				int len = sb.length();
+				if (len > 0 && sb.charAt(len - 1) == '\r') {
+					sb.setLength(len - 1);
+				}
+				return sb.toString();
+			}
+			sb.append((char) b);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+}
@@ -0,0 +1,352 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gps_portal;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+
+import com.jasonlafrance.wtbbackend.config.Config;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+import com.jasonlafrance.wtbbackend.gtfs.Vertex;
+import com.jasonlafrance.wtbbackend.telemetry.LatencyHistogram;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.vehicle.VehicleListener;
+import com.jasonlafrance.wtbbackend.vehicle.VehiclePipeline;
+
+/**
+ * Closed-loop load test for the GPS ingest path. Each sender thread cycles
+ * through its share of simulated vehicles, walking each one along a trip
+ * shape, and doesn't send again until its last packet has been applied.
+ * Latency is measured from just before the packet is encrypted to the end of
+ * the Vehicle's position update, so it covers encoding, transport, decryption
+ * and all of the per-vehicle processing.
+ * 
+ * <pre>
+ * java ...gps_portal.LoadGenerator [vehicles] [seconds] [senders] [transport] [feed dir...]
+ * </pre>
+ * 
+ * The transport is http, keepalive or loopback, against a GPS portal started
+ * on 127.0.0.1 at server_port. Feeds default to gtfs_dirs in config.xml.
+ * 
+ * @author Jason LaFrance
+ */
+public class LoadGenerator implements VehicleListener {
+
+	private static final long WARMUP_NANOS = 5000000000L;
+	private static final long TIMEOUT_NANOS = 5000000000L;
+	private static final long REPORT_NANOS = 1000000000L;
+
+	private final int mVehicles;
+	private final int mSenders;
+	private final PacketTransport mTransport;
+	private final Cipher[] mCiphers;
+	private final ArrayList<ArrayList<Vertex>> mShapes;
+
+	// send time of each vehicle's outstanding packet, 0 when none
+	private final AtomicLongArray mPending;
+	private final Thread[] mThreads;
+	private volatile boolean mRunning = true;
+	private volatile boolean mMeasuring = false;
+
+	private final LatencyHistogram mTotal = new LatencyHistogram();
+	// recorded into while the spare is read and cleared
+	private volatile LatencyHistogram mInterval = new LatencyHistogram();
+	private LatencyHistogram mSpare = new LatencyHistogram();
+	private final AtomicLong mSent = new AtomicLong();
+	private final AtomicLong mCompleted = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private final AtomicLong mTimeouts = new AtomicLong();
+
+	/**
+	 * Create a LoadGenerator
+	 * 
+	 * @param inVehicles
+	 *            Number of simulated vehicles, up to 32767
+	 * @param inSenders
+	 *            Number of sender threads, each with one packet in flight
+	 * @param inTransport
+	 *            Transport to send packets on
+	 * @param inPassword
+	 *            The GPS portal's password
+	 * @param inShapes
+	 *            Shapes for the vehicles to follow
+	 */
+	public LoadGenerator(int inVehicles, int inSenders,
+			PacketTransport inTransport, String inPassword,
+			ArrayList<ArrayList<Vertex>> inShapes) {
+		mVehicles = Math.max(1, Math.min(Short.MAX_VALUE, inVehicles));
+		mSenders = Math.max(1, Math.min(mVehicles, inSenders));
+		mTransport = inTransport;
+		mShapes = inShapes;
+		mPending = new AtomicLongArray(mVehicles + 1);
+		mThreads = new Thread[mSenders];
+		mCiphers = new Cipher[mSenders];
+		for (int i = 0; i < mSenders; i++) {
+			mCiphers[i] = GPSPortal
+					.createCipher(inPassword, Cipher.ENCRYPT_MODE);
+		}
+	}
+
+	@Override
+	public void vehicleUpdated(Vehicle v) {
+		int id = v.getID();
+		if (id < 1 || id > mVehicles) {
+			return;
+		}
+		long sent = mPending.getAndSet(id, 0);
+		if (sent == 0) {
+			return;
+		}
+		if (mMeasuring) {
+			long latency = System.nanoTime() - sent;
+			mTotal.record(latency);
+			mInterval.record(latency);
+		}
+		mCompleted.incrementAndGet();
+		LockSupport.unpark(mThreads[(id - 1) % mSenders]);
+	}
+
+	/**
+	 * Run the test
+	 * 
+	 * @param inSeconds
+	 *            How long to measure for, after a five second warm up
+	 */
+	public void run(int inSeconds) {
+		Vehicle.addListener(this);
+		for (int i = 0; i < mSenders; i++) {
+			final int sender = i;
+			mThreads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					send(sender);
+				}
+			}, "LoadSender-" + i);
+			mThreads[i].setDaemon(true);
+			mThreads[i].start();
+		}
+
+		try {
+			Thread.sleep(WARMUP_NANOS / 1000000);
+			mMeasuring = true;
+			long start = System.nanoTime();
+			long completed = mCompleted.get();
+			long last = start;
+			for (int s = 0; s < inSeconds; s++) {
+				Thread.sleep(REPORT_NANOS / 1000000);
+				long now = System.nanoTime();
+				long done = mCompleted.get();
+				LatencyHistogram interval = mInterval;
+				mInterval = mSpare;
+				report(String.format("%4ds", s + 1), interval, done
+						- completed, now - last);
+				interval.reset();
+				mSpare = interval;
+				completed = done;
+				last = now;
+			}
+			mRunning = false;
+			report("total", mTotal, mTotal.getCount(), System.nanoTime()
+					- start);
+			System.out.printf("sent %d, completed %d, errors %d, timeouts %d%n",
+					mSent.get(), mCompleted.get(), mErrors.get(),
+					mTimeouts.get());
+		} catch (InterruptedException ex) {
+			mRunning = false;
+		}
+		Vehicle.removeListener(this);
+	}
+
+	/**
+	 * Print throughput and latency percentiles
+	 * 
+	 * @param inName
+	 *            Line label
+	 * @param inHistogram
+	 *            Latencies in nanoseconds
+	 * @param inCount
+	 *            Packets completed
+	 * @param inNanos
+	 *            Time taken
+	 */
+	private void report(String inName, LatencyHistogram inHistogram,
+			long inCount, long inNanos) {
+		System.out.printf(
+				"%s: %.0f packets/s, mean %.3f ms, p50 %.3f, p99 %.3f, p999 %.3f, max %.3f, errors %d%n",
+				inName, inCount * 1e9 / inNanos, inHistogram.getMean() / 1e6,
+				inHistogram.getValueAtPercentile(50.0) / 1e6,
+				inHistogram.getValueAtPercentile(99.0) / 1e6,
+				inHistogram.getValueAtPercentile(99.9) / 1e6,
+				inHistogram.getMax() / 1e6, mErrors.get() + mTimeouts.get());
+	}
+
+	/**
+	 * Sender loop: step each of this sender's vehicles in turn, waiting for
+	 * each packet to be applied before sending the next
+	 * 
+	 * @param inSender
+	 *            Sender number
+	 */
+	private void send(int inSender) {
+		Cipher cipher = mCiphers[inSender];
+		// vehicles inSender + 1, inSender + 1 + mSenders, ...
+		int count = (mVehicles - inSender + mSenders - 1) / mSenders;
+		int[] progress = new int[count];
+		Random random = new Random(inSender);
+		for (int i = 0; i < count; i++) {
+			progress[i] = random.nextInt(1 << 16);
+		}
+
+		int i = 0;
+		while (mRunning) {
+			int id = inSender + 1 + i * mSenders;
+			ArrayList<Vertex> shape = mShapes.get(id % mShapes.size());
+			Vertex v = shape.get(progress[i]++ % shape.size());
+
+			long start = System.nanoTime();
+			mPending.set(id, start);
+			boolean ok;
+			try {
+				ok = mTransport.send(cipher.doFinal(new GPSPacket((short) id,
+						(float) v.get_shape_pt_lat(), (float) v
+								.get_shape_pt_lon()).getBytes()));
+			} catch (IllegalBlockSizeException | BadPaddingException ex) {
+				ok = false;
+			}
+			mSent.incrementAndGet();
+
+			if (!ok) {
+				if (mPending.getAndSet(id, 0) != 0) {
+					mErrors.incrementAndGet();
+				}
+			} else {
+				while (mPending.get(id) != 0) {
+					if (System.nanoTime() - start > TIMEOUT_NANOS) {
+						if (mPending.getAndSet(id, 0) != 0) {
+							mTimeouts.incrementAndGet();
+						}
+						break;
+					}
+					LockSupport.parkNanos(this, 1000000);
+				}
+			}
+			i = (i + 1) % count;
+		}
+	}
+
+	/**
+	 * Run the load test
+	 * 
+	 * @param args
+	 *            Vehicle count, seconds, sender count, transport, then feed
+	 *            directories
+	 */
+	public static void main(String[] args) {
+		int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		int senders = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		String mode = args.length > 3 ? args[3] : "keepalive";
+
+		Config config = Config.getInstance();
+		config.load("config.xml");
+		String[] dirs = args.length > 4 ? Arrays.copyOfRange(args, 4,
+				args.length) : config.getOption(Config.GTFS_DIRS).split(",");
+
+		ArrayList<ArrayList<Vertex>> shapes = new ArrayList<>();
+		for (String dir : dirs) {
+			try {
+				GTFS feed = new GTFS(dir.trim(),
+						config.getIntOption(Config.GTFS_TIME_GAP));
+				for (RoutePath rp : feed.getPaths()) {
+					for (Trip t : rp.getPath()) {
+						if (!t.getVertices().isEmpty()) {
+							shapes.add(t.getVertices());
+						}
+					}
+				}
+			} catch (Exception e) {
+				System.out.println(dir + ": " + e.toString());
+				System.exit(-1);
+			}
+		}
+		if (shapes.isEmpty()) {
+			System.out.println("No shapes to follow");
+			System.exit(-1);
+		}
+
+		String password = config.getOption(Config.SERVER_PASSWORD);
+		int port = config.getIntOption(Config.SERVER_PORT);
+		String server = "http://127.0.0.1:" + port;
+		VehiclePipeline pipeline = null;
+		int shards = config.getIntOption(Config.VEHICLE_SHARDS);
+		if (shards > 0) {
+			int queueSize = config.getIntOption(Config.VEHICLE_QUEUE_SIZE);
+			pipeline = new VehiclePipeline(shards,
+					queueSize > 0 ? queueSize
+							: VehiclePipeline.DEFAULT_QUEUE_SIZE);
+			HTTPInput.setPipeline(pipeline);
+		}
+		PacketTransport transport;
+		try {
+			switch (mode) {
+			case "loopback":
+				transport = new LoopbackTransport(password);
+				break;
+			case "http":
+				transport = new HTTPTransport(server);
+				break;
+			default:
+				transport = new KeepAliveTransport(server);
+				break;
+			}
+		} catch (MalformedURLException e) {
+			System.out.println(e.toString());
+			System.exit(-1);
+			return;
+		}
+		if (!mode.equals("loopback")) {
+			new GPSPortal(port, password);
+		}
+
+		System.out.printf(
+				"%d vehicles, %d senders, %s transport, %d shapes, %d shards%n",
+				vehicles, senders, mode, shapes.size(), Math.max(0, shards));
+		new LoadGenerator(vehicles, senders, transport, password, shapes)
+				.run(seconds);
+		if (pipeline != null) {
+			System.out.printf("pipeline: %d processed, %d queued, %d stalls%n",
+					pipeline.getProcessedCount(), pipeline.getBacklog(),
+					pipeline.getStallCount());
+		}
+		transport.close();
+		System.exit(0);
+	}
+}
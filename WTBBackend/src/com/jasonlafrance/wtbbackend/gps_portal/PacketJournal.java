@@ -0,0 +1,331 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gps_portal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only journal of decoded GPS packets and when they were received.
+ * Records go straight into a memory-mapped segment file, so appending is a
+ * few stores with no system call, and the OS writes pages back in its own
+ * time. When a segment fills, the next one is mapped. Opening a journal
+ * never touches existing segments; it starts a new one after them.
+ * 
+ * Segments are named 00000000.wtbj, 00000001.wtbj and so on. Each starts
+ * with a 16 byte header (magic, version, record size) followed by 18 byte
+ * records: receive time in epoch milliseconds, vehicle ID, latitude and
+ * longitude. Unused space is left zeroed, and a zero time ends a segment.
+ * 
+ * @author Jason LaFrance
+ */
+public class PacketJournal {
+
+	public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+	public static final String EXTENSION = ".wtbj";
+
+	private static final int MAGIC = 0x57544a31; // WTJ1
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int RECORD_BYTES = 18;
+
+	private final File mDir;
+	private final int mSegmentBytes;
+	private int mSegment;
+	private MappedByteBuffer mBuffer;
+	private long mCount = 0;
+	private int mSegments = 0;
+	private boolean isOpen = true;
+
+	/**
+	 * Open a journal with the default segment size
+	 * 
+	 * @param inDir
+	 *            Journal directory, created if needed
+	 * @throws IOException
+	 *             If the first segment can't be created
+	 */
+	public PacketJournal(String inDir) throws IOException {
+		this(inDir, DEFAULT_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Open a journal
+	 * 
+	 * @param inDir
+	 *            Journal directory, created if needed
+	 * @param inSegmentBytes
+	 *            Size of each segment file
+	 * @throws IOException
+	 *             If the first segment can't be created
+	 */
+	public PacketJournal(String inDir, int inSegmentBytes) throws IOException {
+		mDir = new File(inDir);
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("Can't create " + inDir);
+		}
+		mSegmentBytes = Math.max(HEADER_BYTES + RECORD_BYTES, inSegmentBytes);
+		File[] existing = segments(mDir);
+		mSegment = existing.length == 0 ? 0
+				: segmentNumber(existing[existing.length - 1]) + 1;
+		roll();
+	}
+
+	/**
+	 * Record a packet
+	 * 
+	 * @param inMillis
+	 *            When the packet was received, in epoch milliseconds
+	 * @param inPacket
+	 *            The decoded packet
+	 * @return False if the journal has been closed or the next segment
+	 *         couldn't be created
+	 */
+	public synchronized boolean append(long inMillis, GPSPacket inPacket) {
+		if (!isOpen) {
+			return false;
+		}
+		if (mBuffer.remaining() < RECORD_BYTES) {
+			try {
+				roll();
+			} catch (IOException e) {
+				System.out.println("Journal: " + e.toString());
+				close();
+				return false;
+			}
+		}
+		mBuffer.putLong(inMillis);
+		mBuffer.putShort(inPacket.getID());
+		mBuffer.putFloat(inPacket.getLat());
+		mBuffer.putFloat(inPacket.getLon());
+		mCount++;
+		return true;
+	}
+
+	/**
+	 * Flush everything to disk. Appends
+	 * after this are dropped.
+	 */
+	public synchronized void close() {
+		if (!isOpen) {
+			return;
+		}
+		isOpen = false;
+		mBuffer.force();
+	}
+
+	/**
+	 * @return Number of packets recorded since the journal was opened
+	 */
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return Number of segments written since the journal was opened
+	 */
+	public synchronized int getSegmentCount() {
+		return mSegments;
+	}
+
+	/**
+	 * Map the next segment, leaving the previous one for the OS to write
+	 * back
+	 * 
+	 * @throws IOException
+	 *             If the segment can't be created
+	 */
+	private void roll() throws IOException {
+		File file = new File(mDir, String.format("%08d", mSegment++)
+				+ EXTENSION);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(mSegmentBytes);
+			// the mapping outlives the file handle
+			mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					mSegmentBytes);
+		}
+		mBuffer.putInt(MAGIC);
+		mBuffer.putInt(VERSION);
+		mBuffer.putInt(RECORD_BYTES);
+		mBuffer.putInt(0);
+		mSegments++;
+	}
+
+	/**
+	 * List a journal's segments in order
+	 * 
+	 * @param inDir
+	 *            Journal directory
+	 * @return Segment files, oldest first
+	 */
+	private static File[] segments(File inDir) {
+		File[] files = inDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(EXTENSION);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Get a segment's sequence number from its name
+	 * 
+	 * @param in
+	 *            Segment file
+	 * @return Sequence number, or -1 if the name isn't one of ours
+	 */
+	private static int segmentNumber(File in) {
+		String name = in.getName();
+		try {
+			return Integer.parseInt(name.substring(0, name.length()
+					- EXTENSION.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads a journal back in the order it was written. Segments are mapped
+	 * read only one at a time.
+	 */
+	public static class Reader {
+
+		private final File[] mFiles;
+		private int mFile = 0;
+		private MappedByteBuffer mBuffer = null;
+
+		private long mMillis;
+		private short mID;
+		private float mLat, mLon;
+
+		/**
+		 * Open a journal for reading
+		 * 
+		 * @param inDir
+		 *            Journal directory
+		 * @throws IOException
+		 *             If there are no segments to read
+		 */
+		public Reader(String inDir) throws IOException {
+			mFiles = segments(new File(inDir));
+			if (mFiles.length == 0) {
+				throw new IOException("No journal segments in " + inDir);
+			}
+		}
+
+		/**
+		 * Move to the next record
+		 * 
+		 * @return False at the end of the journal
+		 * @throws IOException
+		 *             If a segment can't be read or isn't a journal segment
+		 */
+		public boolean next() throws IOException {
+			while (true) {
+				if (mBuffer != null && mBuffer.remaining() >= RECORD_BYTES) {
+					long millis = mBuffer.getLong();
+					if (millis != 0) {
+						mMillis = millis;
+						mID = mBuffer.getShort();
+						mLat = mBuffer.getFloat();
+						mLon = mBuffer.getFloat();
+						return true;
+					}
+				}
+				if (mFile >= mFiles.length) {
+					mBuffer = null;
+					return false;
+				}
+				open(mFiles[mFile++]);
+			}
+		}
+
+		/**
+		 * Map a segment and check its header
+		 * 
+		 * @param in
+		 *            The segment
+		 * @throws IOException
+		 *             If it can't be read or isn't a journal segment
+		 */
+		private void open(File in) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(in, "r")) {
+				FileChannel channel = raf.getChannel();
+				mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+			if (mBuffer.remaining() < HEADER_BYTES
+					|| mBuffer.getInt() != MAGIC) {
+				throw new IOException(in + " isn't a journal segment");
+			}
+			int version = mBuffer.getInt();
+			int recordBytes = mBuffer.getInt();
+			mBuffer.getInt();
+			if (version != VERSION || recordBytes != RECORD_BYTES) {
+				throw new IOException(in + " is journal version " + version);
+			}
+		}
+
+		/**
+		 * @return When the current packet was received, in epoch milliseconds
+		 */
+		public long getMillis() {
+			return mMillis;
+		}
+
+		/**
+		 * @return The current packet's vehicle ID
+		 */
+		public short getID() {
+			return mID;
+		}
+
+		/**
+		 * @return The current packet's latitude
+		 */
+		public float getLat() {
+			return mLat;
+		}
+
+		/**
+		 * @return The current packet's longitude
+		 */
+		public float getLon() {
+			return mLon;
+		}
+
+		/**
+		 * @return The current packet
+		 */
+		public GPSPacket getPacket() {
+			return new GPSPacket(mID, mLat, mLon);
+		}
+	}
+}
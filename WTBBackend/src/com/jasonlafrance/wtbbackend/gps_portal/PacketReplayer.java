@@ -0,0 +1,176 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gps_portal;
+
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.secondsOfDay;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.jasonlafrance.wtbbackend.config.Config;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+
+/**
+ * Plays a PacketJournal back into the vehicle pipeline. Each packet updates
+ * its vehicle as of the time it was recorded, so speeds, headings and
+ * history don't depend on how fast it runs. A speed of 1 keeps the recorded
+ * gaps between packets, N plays N times faster, and 0 or less plays as fast
+ * as the pipeline can take them.
+ * 
+ * Stop matching isn't reproducible, though. Vehicles match against the
+ * shared stop window, which FeedScheduler keeps around the wall clock time,
+ * not the recorded time. A replay only sees the same candidate stops when
+ * it's played at the time of day it was recorded, at a speed of 1, against
+ * the same feeds.
+ * 
+ * <pre>
+ * java ...gps_portal.PacketReplayer [journal dir] [speed] [feed dir...]
+ * </pre>
+ * 
+ * @author Jason LaFrance
+ */
+public class PacketReplayer {
+
+	private static final long MIN_SLEEP_NANOS = 1000000;
+
+	private final String mDir;
+	private final double mSpeed;
+
+	private long mCount = 0;
+	private long mFirstMillis = 0, mLastMillis = 0;
+	private long mElapsedNanos = 0;
+
+	/**
+	 * Create a replayer
+	 * 
+	 * @param inDir
+	 *            Journal directory
+	 * @param inSpeed
+	 *            Speed relative to the recording, 0 or less for flat out
+	 */
+	public PacketReplayer(String inDir, double inSpeed) {
+		mDir = inDir;
+		mSpeed = inSpeed;
+	}
+
+	/**
+	 * Play the whole journal, returning when it's done
+	 * 
+	 * @return Number of packets played
+	 * @throws IOException
+	 *             If the journal can't be read
+	 */
+	public long replay() throws IOException {
+		PacketJournal.Reader reader = new PacketJournal.Reader(mDir);
+		long start = System.nanoTime();
+		mCount = 0;
+		while (reader.next()) {
+			long millis = reader.getMillis();
+			if (mCount == 0) {
+				mFirstMillis = millis;
+			}
+			mLastMillis = millis;
+
+			if (mSpeed > 0) {
+				long due = start
+						+ (long) ((millis - mFirstMillis) * 1000000 / mSpeed);
+				long ahead = due - System.nanoTime();
+				if (ahead > MIN_SLEEP_NANOS) {
+					try {
+						Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+
+			Vehicle.updateVehicle(reader.getID(), reader.getLat(),
+					reader.getLon(), secondsOfDay(millis));
+			mCount++;
+		}
+		mElapsedNanos = System.nanoTime() - start;
+		return mCount;
+	}
+
+	/**
+	 * @return Packets played by the last replay
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return Milliseconds between the first and last recorded packet
+	 */
+	public long getRecordedMillis() {
+		return mLastMillis - mFirstMillis;
+	}
+
+	/**
+	 * @return Milliseconds the last replay took
+	 */
+	public long getElapsedMillis() {
+		return mElapsedNanos / 1000000;
+	}
+
+	/**
+	 * Replay a journal against the configured feeds, or the given ones
+	 * 
+	 * @param args
+	 *            Journal directory, speed, then feed directories
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out
+					.println("PacketReplayer [journal dir] [speed] [feed dir...]");
+			System.exit(-1);
+		}
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+
+		Config config = Config.getInstance();
+		config.load("config.xml");
+		String[] dirs = args.length > 2 ? Arrays.copyOfRange(args, 2,
+				args.length) : config.getOption(Config.GTFS_DIRS).split(",");
+		for (String dir : dirs) {
+			try {
+				new GTFS(dir.trim(), config.getIntOption(Config.GTFS_TIME_GAP));
+			} catch (Exception e) {
+				System.out.println(dir + ": " + e.toString());
+				System.exit(-1);
+			}
+		}
+
+		PacketReplayer replayer = new PacketReplayer(args[0], speed);
+		try {
+			replayer.replay();
+		} catch (IOException e) {
+			System.out.println(e.toString());
+			System.exit(-1);
+		}
+		long elapsed = Math.max(1, replayer.getElapsedMillis());
+		System.out.printf(
+				"Replayed %d packets spanning %.1f s in %.1f s (%.0f packets/s), %d vehicles%n",
+				replayer.getCount(), replayer.getRecordedMillis() / 1000.0,
+				elapsed / 1000.0, replayer.getCount() * 1000.0 / elapsed,
+				Vehicle.getVehicleCount());
+		System.exit(0);
+	}
+}
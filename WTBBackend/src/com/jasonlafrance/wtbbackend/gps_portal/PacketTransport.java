@@ -0,0 +1,42 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gps_portal;
+
+/**
+ * Interface for anything that can carry encrypted GPS packets to the backend.
+ * 
+ * @author Jason LaFrance
+ */
+public interface PacketTransport {
+
+	/**
+	 * Send one packet
+	 * 
+	 * @param inPacket
+	 *            The encrypted 12 byte GPS packet
+	 * @return True if the packet was accepted
+	 */
+	public boolean send(byte[] inPacket);
+
+	/**
+	 * Release anything the transport is holding open
+	 */
+	public void close();
+}
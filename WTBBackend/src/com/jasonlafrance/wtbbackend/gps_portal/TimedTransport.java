@@ -0,0 +1,41 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gps_portal;
+
+/**
+ * A PacketTransport that can say when a packet was sent, so the backend
+ * stamps the position with the sender's clock instead of its own. Only
+ * in-process transports can do this, as the wire packet has no time field.
+ * 
+ * @author Jason LaFrance
+ */
+public interface TimedTransport extends PacketTransport {
+
+	/**
+	 * Send one packet as of a given time
+	 * 
+	 * @param inPacket
+	 *            The encrypted 12 byte GPS packet
+	 * @param inTimeCode
+	 *            Time of the position in seconds since midnight
+	 * @return True if the packet was accepted
+	 */
+	public boolean send(byte[] inPacket, int inTimeCode);
+}
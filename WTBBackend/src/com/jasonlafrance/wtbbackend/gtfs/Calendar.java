@@ -43,6 +43,7 @@ public final class Calendar extends GTFSParser {
 
 	private static final String _filename = "//calendar.txt";
 	private String _service_id = null;
+	private int _service_index = -1;
 	private final boolean[] _weekday = new boolean[7]; // monday = 0
 	private String _start_date = null;
 
@@ -107,6 +108,14 @@ public final class Calendar extends GTFSParser {
 		return _service_id;
 	}
 
+	/**
+	 * Get the feed dictionary index of the service ID
+	 * @return Service index, or -1 if not set
+	 */
+	public int getServiceIndex() {
+		return _service_index;
+	}
+
 	/**
 	 * Get start date
 	 * @return Start date
@@ -267,8 +276,9 @@ public final class Calendar extends GTFSParser {
 	 * @param in Service ID
 	 */
 	public void set_service_id(String in) {
-		_service_id = in;
-
+		IDDictionary dict = getDictionary(IDDictionary.SERVICE_ID);
+		_service_index = dict.encode(in);
+		_service_id = dict.decode(_service_index);
 	}
 
 	/**
@@ -35,6 +35,7 @@ public final class CalendarDate extends GTFSParser {
 	private static final String _filename = "//calendar_dates.txt";
 
 	private String _service_id = null;
+	private int _service_index = -1;
 	private String _date = null;
 	private int _exception_type = -1;
 
@@ -96,6 +97,15 @@ public final class CalendarDate extends GTFSParser {
 		return _service_id;
 	}
 
+	/**
+	 * Get the feed dictionary index of the service ID
+	 * 
+	 * @return Service index, or -1 if not set
+	 */
+	public int getServiceIndex() {
+		return _service_index;
+	}
+
 	/**
 	 * Get the GTFS file name associated with this object.
 	 * 
@@ -157,7 +167,9 @@ public final class CalendarDate extends GTFSParser {
 	 *            Service ID
 	 */
 	public void set_service_id(String in) {
-		_service_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.SERVICE_ID);
+		_service_index = dict.encode(in);
+		_service_id = dict.decode(_service_index);
 	}
 
 	@Override
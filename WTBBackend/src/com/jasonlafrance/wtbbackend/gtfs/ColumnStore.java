@@ -0,0 +1,275 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jasonlafrance.wtbbackend.config.Config;
+
+/**
+ * ColumnStore class for placing the read-only GTFS tables outside of the Java
+ * heap. Columns are built up in plain arrays while a feed loads, then handed
+ * to a store that copies them into typed buffers. Depending on the configured
+ * mode the buffers are heap wrappers, direct buffers, or memory-mapped
+ * temporary files.
+ * 
+ * @author Jason LaFrance
+ */
+public final class ColumnStore {
+
+	/**
+	 * Storage modes
+	 */
+	public enum Mode {
+		HEAP, DIRECT, MAPPED
+	}
+
+	private static ColumnStore sInstance = null;
+
+	/**
+	 * Get the store configured by the gtfs_storage option. Defaults to heap
+	 * storage.
+	 * 
+	 * @return The configured ColumnStore
+	 */
+	public static synchronized ColumnStore getInstance() {
+		if (sInstance == null) {
+			sInstance = new ColumnStore(parseMode(Config.getInstance()
+					.getOption(Config.GTFS_STORAGE)));
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Parse a storage mode name
+	 * 
+	 * @param in
+	 *            Mode name: heap, direct or mapped
+	 * @return The storage mode, or HEAP if unknown
+	 */
+	public static Mode parseMode(String in) {
+		if (in != null) {
+			for (Mode m : Mode.values()) {
+				if (m.name().equalsIgnoreCase(in.trim())) {
+					return m;
+				}
+			}
+		}
+		return Mode.HEAP;
+	}
+
+	private final Mode mMode;
+	private long mBytes = 0;
+
+	/**
+	 * Create a ColumnStore
+	 * 
+	 * @param inMode
+	 *            The storage mode to use
+	 */
+	public ColumnStore(Mode inMode) {
+		mMode = inMode;
+	}
+
+	/**
+	 * Allocate raw storage for a column
+	 * 
+	 * @param inBytes
+	 *            Size in bytes
+	 * @return The raw buffer
+	 */
+	private ByteBuffer allocate(int inBytes) {
+		ByteBuffer ret = null;
+		synchronized (this) {
+			mBytes += inBytes;
+		}
+		if (mMode == Mode.MAPPED && inBytes > 0) {
+			try {
+				File f = File.createTempFile("wtb", ".col");
+				try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+					raf.setLength(inBytes);
+					ret = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+							0, inBytes);
+				} finally {
+					// the mapping outlives the file's name, so unlink it now
+					// where the OS allows it rather than leaving one per load
+					if (!f.delete()) {
+						f.deleteOnExit();
+					}
+				}
+			} catch (IOException ex) {
+				Logger.getLogger(ColumnStore.class.getName()).log(
+						Level.WARNING, "Falling back to direct storage", ex);
+			}
+		}
+		if (ret == null) {
+			ret = ByteBuffer.allocateDirect(inBytes);
+		}
+		return ret.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Allocate a writable int column, for data that is linked up after
+	 * loading
+	 * 
+	 * @param inSize
+	 *            Number of entries
+	 * @param inFill
+	 *            Initial value of all entries
+	 * @return The int column
+	 */
+	public IntBuffer allocateInts(int inSize, int inFill) {
+		IntBuffer ret;
+		if (mMode == Mode.HEAP) {
+			ret = IntBuffer.allocate(inSize);
+		} else {
+			// mapped files are for read-only data, so use direct storage
+			synchronized (this) {
+				mBytes += inSize * 4;
+			}
+			ret = ByteBuffer.allocateDirect(inSize * 4)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+		for (int i = 0; i < inSize; i++) {
+			ret.put(i, inFill);
+		}
+		return ret;
+	}
+
+	/**
+	 * Stop counting a column that is no longer used. The memory itself is
+	 * freed once the buffer is garbage collected.
+	 * 
+	 * @param in
+	 *            A buffer from this store, or null
+	 */
+	public void release(Buffer in) {
+		if (in == null || !in.isDirect()) {
+			// heap columns were never counted
+			return;
+		}
+		long bytes = in.capacity();
+		if (in instanceof IntBuffer || in instanceof FloatBuffer) {
+			bytes *= 4;
+		} else if (in instanceof ShortBuffer) {
+			bytes *= 2;
+		}
+		synchronized (this) {
+			mBytes -= bytes;
+		}
+	}
+
+	/**
+	 * Get the number of bytes placed in this store
+	 * 
+	 * @return Number of bytes
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * Get the storage mode
+	 * 
+	 * @return The storage mode
+	 */
+	public Mode getMode() {
+		return mMode;
+	}
+
+	/**
+	 * Store a byte column
+	 * 
+	 * @param in
+	 *            The column data
+	 * @return A read-only buffer of the column
+	 */
+	public ByteBuffer store(byte[] in) {
+		if (mMode == Mode.HEAP) {
+			return ByteBuffer.wrap(in).asReadOnlyBuffer();
+		}
+		ByteBuffer ret = allocate(in.length);
+		ret.put(in);
+		ret.rewind();
+		return ret.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Store a float column
+	 * 
+	 * @param in
+	 *            The column data
+	 * @return A read-only buffer of the column
+	 */
+	public FloatBuffer store(float[] in) {
+		if (mMode == Mode.HEAP) {
+			return FloatBuffer.wrap(in).asReadOnlyBuffer();
+		}
+		FloatBuffer ret = allocate(in.length * 4).asFloatBuffer();
+		ret.put(in);
+		ret.rewind();
+		return ret.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Store an int column
+	 * 
+	 * @param in
+	 *            The column data
+	 * @return A read-only buffer of the column
+	 */
+	public IntBuffer store(int[] in) {
+		if (mMode == Mode.HEAP) {
+			return IntBuffer.wrap(in).asReadOnlyBuffer();
+		}
+		IntBuffer ret = allocate(in.length * 4).asIntBuffer();
+		ret.put(in);
+		ret.rewind();
+		return ret.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Store a short column
+	 * 
+	 * @param in
+	 *            The column data
+	 * @return A read-only buffer of the column
+	 */
+	public ShortBuffer store(short[] in) {
+		if (mMode == Mode.HEAP) {
+			return ShortBuffer.wrap(in).asReadOnlyBuffer();
+		}
+		ShortBuffer ret = allocate(in.length * 2).asShortBuffer();
+		ret.put(in);
+		ret.rewind();
+		return ret.asReadOnlyBuffer();
+	}
+}
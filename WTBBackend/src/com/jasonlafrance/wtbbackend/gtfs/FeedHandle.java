@@ -0,0 +1,125 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted handle on one loaded version of a feed. Every GTFS has
+ * one, starting with a single reference owned by whoever loaded it, which is
+ * the FeedManager while the version is current. Readers that use a feed
+ * outside of a FeedListener callback, such as queries in flight or state
+ * built from it, take their own reference with acquire() and give it back
+ * with release(). When the count reaches zero the version is released from
+ * the static registries, and looking up its identifiers fails from then on.
+ * 
+ * @author Jason LaFrance
+ */
+public final class FeedHandle {
+
+	private final GTFS mGTFS;
+	private final AtomicInteger mRefs = new AtomicInteger(1);
+
+	/**
+	 * Take a reference on each of a list of feeds
+	 * 
+	 * @param in
+	 *            The feeds
+	 * @return True if every feed was acquired, false if one has already been
+	 *         released, in which case none are held
+	 */
+	public static boolean acquireAll(List<GTFS> in) {
+		for (int i = 0; i < in.size(); i++) {
+			if (!in.get(i).getHandle().acquire()) {
+				releaseAll(in.subList(0, i));
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Give back a reference on each of a list of feeds
+	 * 
+	 * @param in
+	 *            The feeds
+	 */
+	public static void releaseAll(List<GTFS> in) {
+		for (GTFS g : in) {
+			g.getHandle().release();
+		}
+	}
+
+	/**
+	 * Create a handle owned by its creator
+	 * 
+	 * @param inGTFS
+	 *            The loaded feed
+	 */
+	FeedHandle(GTFS inGTFS) {
+		mGTFS = inGTFS;
+	}
+
+	/**
+	 * Take a reference
+	 * 
+	 * @return True if the feed is still alive, false if it has already been
+	 *         released
+	 */
+	public boolean acquire() {
+		while (true) {
+			int refs = mRefs.get();
+			if (refs == 0) {
+				return false;
+			}
+			if (mRefs.compareAndSet(refs, refs + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Get the feed
+	 * 
+	 * @return The GTFS object
+	 */
+	public GTFS getGTFS() {
+		return mGTFS;
+	}
+
+	/**
+	 * Get the current reference count
+	 * 
+	 * @return Reference count
+	 */
+	public int getRefCount() {
+		return mRefs.get();
+	}
+
+	/**
+	 * Give back a reference, releasing the feed if it was the last one
+	 */
+	public void release() {
+		if (mRefs.decrementAndGet() == 0) {
+			mGTFS.release();
+		}
+	}
+}
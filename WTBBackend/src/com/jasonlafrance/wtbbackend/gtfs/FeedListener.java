@@ -0,0 +1,43 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+/**
+ * Interface for anything that holds on to loaded feeds and needs to follow
+ * them when the FeedManager swaps in a reloaded version
+ * 
+ * @author Jason LaFrance
+ */
+public interface FeedListener {
+
+	/**
+	 * Called after a feed has been reloaded. Implementations should drop every
+	 * reference to the old version before returning. The old version is
+	 * released as soon as all listeners have returned, unless a reader still
+	 * holds a reference from FeedHandle.acquire(), so work that can still be
+	 * running on it afterwards has to take one.
+	 * 
+	 * @param inOld
+	 *            The version being replaced
+	 * @param inNew
+	 *            The freshly loaded version
+	 */
+	public void feedReplaced(GTFS inOld, GTFS inNew);
+}
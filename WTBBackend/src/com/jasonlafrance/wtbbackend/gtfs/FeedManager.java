@@ -0,0 +1,355 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+
+/**
+ * Owns the loaded feeds and reloads them without a restart. Each configured
+ * directory maps to a FeedHandle on its current version. A reload parses the
+ * directory on a background thread while the old version keeps serving, then
+ * swaps the new version in, takes the old one out of the master stop list,
+ * tells the FeedListeners, rebinds the live Vehicles and then drops its
+ * reference on the old version. The old version is released once no reader
+ * holds it either.
+ * 
+ * When watching, a directory is reloaded after its files have been quiet for
+ * a few seconds, so a copy in progress isn't picked up half way. The parent
+ * directories are watched too, so replacing a feed directory wholesale (by
+ * rename or delete and copy) is noticed.
+ * 
+ * A reloaded feed gets a new GTFS ID.
+ * 
+ * @author Jason LaFrance
+ */
+public class FeedManager {
+
+	private static final long QUIET_MILLIS = 5000;
+	private static final long POLL_MILLIS = 1000;
+
+	private final int mTimeGap;
+	private final LinkedHashMap<String, FeedHandle> mHandles = new LinkedHashMap<>();
+	private final CopyOnWriteArrayList<FeedListener> mListeners = new CopyOnWriteArrayList<>();
+	private final ExecutorService mLoader = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FeedLoader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private WatchService mWatchService = null;
+	private Thread mWatcher = null;
+
+	// watcher thread state
+	private final HashMap<WatchKey, String> mDirKeys = new HashMap<>();
+	private final HashMap<WatchKey, ArrayList<String>> mParentKeys = new HashMap<>();
+	private final HashMap<String, Long> mPending = new HashMap<>();
+
+	/**
+	 * Create an empty FeedManager
+	 * 
+	 * @param inTimeGap
+	 *            Time gap passed on to each GTFS load
+	 */
+	public FeedManager(int inTimeGap) {
+		mTimeGap = inTimeGap;
+	}
+
+	/**
+	 * Take a reference on a directory's current feed. The caller must
+	 * release() it when done.
+	 * 
+	 * @param inDir
+	 *            The feed directory
+	 * @return A handle, or null if the directory isn't loaded
+	 */
+	public FeedHandle acquire(String inDir) {
+		while (true) {
+			FeedHandle h;
+			synchronized (this) {
+				h = mHandles.get(inDir);
+			}
+			if (h == null) {
+				return null;
+			}
+			if (h.acquire()) {
+				return h;
+			}
+			// swapped and released between the lookup and the acquire
+		}
+	}
+
+	/**
+	 * Add a listener for feed swaps
+	 * 
+	 * @param in
+	 *            The listener
+	 */
+	public void addListener(FeedListener in) {
+		mListeners.add(in);
+	}
+
+	/**
+	 * Get the current version of every loaded feed
+	 * 
+	 * @return List of GTFS objects, in load order
+	 */
+	public synchronized ArrayList<GTFS> getFeeds() {
+		ArrayList<GTFS> ret = new ArrayList<>();
+		for (FeedHandle h : mHandles.values()) {
+			ret.add(h.getGTFS());
+		}
+		return ret;
+	}
+
+	/**
+	 * Load a feed directory for the first time, on the calling thread
+	 * 
+	 * @param inDir
+	 *            The feed directory
+	 * @return The loaded feed
+	 * @throws Exception
+	 *             If any critical load errors occur
+	 */
+	public GTFS load(String inDir) throws Exception {
+		GTFS gtfs = new GTFS(inDir, mTimeGap);
+		synchronized (this) {
+			mHandles.put(inDir, gtfs.getHandle());
+		}
+		return gtfs;
+	}
+
+	/**
+	 * Reload a feed directory in the background
+	 * 
+	 * @param inDir
+	 *            The feed directory
+	 * @return The new version once swapped in; fails with the load error if
+	 *         the directory couldn't be parsed, in which case the old version
+	 *         stays current
+	 */
+	public Future<GTFS> reload(final String inDir) {
+		return mLoader.submit(new Callable<GTFS>() {
+			@Override
+			public GTFS call() throws Exception {
+				return swap(inDir);
+			}
+		});
+	}
+
+	/**
+	 * Load a new version of a directory and swap it in
+	 * 
+	 * @param inDir
+	 *            The feed directory
+	 * @return The new version
+	 * @throws Exception
+	 *             If any critical load errors occur
+	 */
+	private GTFS swap(String inDir) throws Exception {
+		long start = System.currentTimeMillis();
+		GTFS fresh;
+		try {
+			fresh = new GTFS(inDir, mTimeGap);
+		} catch (Exception e) {
+			System.out.println(inDir + " reload failed, keeping current: "
+					+ e.toString());
+			throw e;
+		}
+
+		FeedHandle old;
+		synchronized (this) {
+			old = mHandles.put(inDir, fresh.getHandle());
+		}
+		if (old != null) {
+			GTFS stale = old.getGTFS();
+			// once this returns, vehicles can't match the old stops any more
+			stale.retire();
+			for (FeedListener l : mListeners) {
+				l.feedReplaced(stale, fresh);
+			}
+			Vehicle.rebind(stale, fresh);
+			// drop the manager's reference; readers may still hold theirs
+			old.release();
+		}
+
+		System.out.println(inDir + " reloaded in "
+				+ ((System.currentTimeMillis() - start) / 1000.0)
+				+ " seconds, id: " + fresh.getID());
+		return fresh;
+	}
+
+	/**
+	 * Start watching the loaded directories for changes
+	 * 
+	 * @throws IOException
+	 *             If the watch service can't be created
+	 */
+	public synchronized void watch() throws IOException {
+		if (mWatcher != null) {
+			return;
+		}
+		mWatchService = FileSystems.getDefault().newWatchService();
+		HashMap<Path, ArrayList<String>> parents = new HashMap<>();
+		for (String dir : mHandles.keySet()) {
+			registerDir(dir);
+			Path parent = Paths.get(dir).toAbsolutePath().getParent();
+			if (parent != null) {
+				if (!parents.containsKey(parent)) {
+					parents.put(parent, new ArrayList<String>());
+				}
+				parents.get(parent).add(dir);
+			}
+		}
+		for (Map.Entry<Path, ArrayList<String>> e : parents.entrySet()) {
+			mParentKeys.put(e.getKey().register(mWatchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE), e.getValue());
+		}
+
+		mWatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watchLoop();
+			}
+		}, "FeedWatcher");
+		mWatcher.setDaemon(true);
+		mWatcher.start();
+	}
+
+	/**
+	 * Stop watching and stop the loader
+	 */
+	public synchronized void stop() {
+		if (mWatcher != null) {
+			mWatcher.interrupt();
+			try {
+				mWatchService.close();
+			} catch (IOException e) {
+			}
+			mWatcher = null;
+		}
+		mLoader.shutdown();
+	}
+
+	/**
+	 * Watch a feed directory's files
+	 * 
+	 * @param inDir
+	 *            The feed directory
+	 * @return True if the directory is now watched
+	 */
+	private boolean registerDir(String inDir) {
+		try {
+			mDirKeys.put(Paths.get(inDir).register(mWatchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE), inDir);
+			return true;
+		} catch (IOException e) {
+			// missing for now; the parent watch will see it come back
+			return false;
+		}
+	}
+
+	/**
+	 * Collect change events and reload directories once they go quiet
+	 */
+	private void watchLoop() {
+		while (!Thread.currentThread().isInterrupted()) {
+			WatchKey key;
+			try {
+				key = mWatchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+
+			if (key != null) {
+				String dir = mDirKeys.get(key);
+				ArrayList<String> children = mParentKeys.get(key);
+				for (WatchEvent<?> e : key.pollEvents()) {
+					if (dir != null) {
+						mPending.put(dir, now);
+					} else if (children != null) {
+						for (String child : children) {
+							if (Paths.get(child).getFileName()
+									.equals(e.context())) {
+								mPending.put(child, now);
+							}
+						}
+					}
+				}
+				if (!key.reset()) {
+					// the directory went away
+					mDirKeys.remove(key);
+					mParentKeys.remove(key);
+				}
+			}
+
+			Iterator<Map.Entry<String, Long>> i = mPending.entrySet()
+					.iterator();
+			while (i.hasNext()) {
+				Map.Entry<String, Long> e = i.next();
+				if (now - e.getValue() < QUIET_MILLIS) {
+					continue;
+				}
+				i.remove();
+				String dir = e.getKey();
+				if (!mDirKeys.containsValue(dir) && !registerDir(dir)) {
+					continue;
+				}
+				try {
+					reload(dir);
+				} catch (RuntimeException ex) {
+					Logger.getLogger(FeedManager.class.getName()).log(
+							Level.SEVERE, null, ex);
+				}
+			}
+		}
+	}
+}
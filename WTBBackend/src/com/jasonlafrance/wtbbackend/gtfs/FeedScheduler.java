@@ -0,0 +1,340 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Scheduler singleton for the periodic upkeep of every loaded feed, on one
+ * thread. Once a minute each feed is rolled over if the service day has
+ * changed and its stop window is recalculated. Windows that changed are then
+ * merged into the master stop list in a single rebuild, instead of one full
+ * rebuild per feed.
+ * 
+ * All feed state is only touched on the scheduler thread; add() and remove()
+ * just queue work for it. Start lag and run time are kept per task and
+ * published over JMX once register() is called.
+ * 
+ * @author Jason LaFrance
+ */
+public final class FeedScheduler implements FeedSchedulerMXBean {
+
+	public static final String OBJECT_NAME = "com.jasonlafrance.wtbbackend:type=FeedScheduler";
+
+	private static final long FIRST_DELAY_MILLIS = 1000;
+	private static final long PERIOD_MILLIS = 60 * 1000;
+
+	private static FeedScheduler sInstance = null;
+
+	/**
+	 * Get the FeedScheduler singleton, starting it if needed
+	 * 
+	 * @return The FeedScheduler instance
+	 */
+	public static synchronized FeedScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new FeedScheduler();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Run statistics for one task
+	 */
+	private static class TaskStats {
+		private long mRuns = 0;
+		private long mLag = 0, mMaxLag = 0;
+		private long mDuration = 0;
+	}
+
+	private final ScheduledExecutorService mExecutor;
+	private final SimpleDateFormat mDateFormat = new SimpleDateFormat(
+			"yyyyMMdd");
+
+	// scheduler thread state
+	private final ArrayList<GTFS> mFeeds = new ArrayList<>();
+	private final HashMap<Integer, ArrayList<ArrayList<StopAdapter>>> mWindows = new HashMap<>();
+	private long mDue;
+
+	private final LinkedHashMap<String, TaskStats> mStats = new LinkedHashMap<>();
+	private volatile int mFeedCount = 0;
+	private volatile long mTicks = 0, mMerges = 0, mSkippedMerges = 0;
+
+	/**
+	 * Private constructor
+	 */
+	private FeedScheduler() {
+		mExecutor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "FeedScheduler");
+					}
+				});
+		mDue = System.currentTimeMillis() + FIRST_DELAY_MILLIS;
+		mExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, FIRST_DELAY_MILLIS, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start maintaining a feed. Its first window is calculated right away.
+	 * 
+	 * @param in
+	 *            The feed
+	 */
+	void add(final GTFS in) {
+		final long due = System.currentTimeMillis();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				mFeeds.add(in);
+				mFeedCount = mFeeds.size();
+				HashMap<Integer, ArrayList<ArrayList<StopAdapter>>> changed = new HashMap<>();
+				refresh(in, due, changed);
+				merge(changed, Collections.<Integer> emptyList(), due);
+			}
+		});
+	}
+
+	/**
+	 * Stop maintaining a feed and drop its window from the master stop list
+	 * 
+	 * @param in
+	 *            The feed
+	 * @return Completes once the master stop list no longer has the feed
+	 */
+	Future<?> remove(final GTFS in) {
+		final long due = System.currentTimeMillis();
+		return mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				mFeeds.remove(in);
+				mFeedCount = mFeeds.size();
+				mWindows.remove(in.getID());
+				merge(new HashMap<Integer, ArrayList<ArrayList<StopAdapter>>>(),
+						Collections.singletonList(in.getID()), due);
+			}
+		});
+	}
+
+	/**
+	 * Roll over and recalculate every feed, then merge once
+	 */
+	private void tick() {
+		long due = mDue;
+		mDue += PERIOD_MILLIS;
+		mTicks++;
+		try {
+			HashMap<Integer, ArrayList<ArrayList<StopAdapter>>> changed = new HashMap<>();
+			for (GTFS g : mFeeds) {
+				refresh(g, due, changed);
+			}
+			merge(changed, Collections.<Integer> emptyList(), due);
+		} catch (RuntimeException e) {
+			// an escaping exception would cancel every later tick
+			Logger.getLogger(FeedScheduler.class.getName()).log(Level.SEVERE,
+					null, e);
+		}
+	}
+
+	/**
+	 * Roll a feed over if its service day has passed and recalculate its
+	 * stop window
+	 * 
+	 * @param in
+	 *            The feed
+	 * @param inDue
+	 *            When this run was due
+	 * @param outChanged
+	 *            Where to put the window if it changed
+	 */
+	private void refresh(GTFS in, long inDue,
+			Map<Integer, ArrayList<ArrayList<StopAdapter>>> outChanged) {
+		String today = mDateFormat.format(new Date());
+		if (!today.equals(in.getServiceDate())) {
+			long start = System.currentTimeMillis();
+			in.resetDate();
+			record("rollover:" + in.getDir(), start - inDue,
+					System.currentTimeMillis() - start);
+		}
+
+		long start = System.currentTimeMillis();
+		ArrayList<ArrayList<StopAdapter>> window = in.computeStopWindow();
+		record("window:" + in.getDir(), start - inDue,
+				System.currentTimeMillis() - start);
+		if (window != null && !window.equals(mWindows.get(in.getID()))) {
+			mWindows.put(in.getID(), window);
+			outChanged.put(in.getID(), window);
+		}
+	}
+
+	/**
+	 * Merge window changes into the master stop list
+	 * 
+	 * @param inChanged
+	 *            New windows by GTFS ID
+	 * @param inRemoved
+	 *            IDs of feeds to drop
+	 * @param inDue
+	 *            When this run was due
+	 */
+	private void merge(Map<Integer, ArrayList<ArrayList<StopAdapter>>> inChanged,
+			List<Integer> inRemoved, long inDue) {
+		if (inChanged.isEmpty() && inRemoved.isEmpty()) {
+			mSkippedMerges++;
+			return;
+		}
+		long start = System.currentTimeMillis();
+		GTFS.mergeStopWindows(inChanged, inRemoved);
+		record("merge", start - inDue, System.currentTimeMillis() - start);
+		mMerges++;
+	}
+
+	/**
+	 * Record a task run
+	 * 
+	 * @param inTask
+	 *            Task name
+	 * @param inLag
+	 *            Start lag in milliseconds
+	 * @param inDuration
+	 *            Run time in milliseconds
+	 */
+	private synchronized void record(String inTask, long inLag,
+			long inDuration) {
+		TaskStats s = mStats.get(inTask);
+		if (s == null) {
+			s = new TaskStats();
+			mStats.put(inTask, s);
+		}
+		s.mRuns++;
+		s.mLag = Math.max(0, inLag);
+		s.mMaxLag = Math.max(s.mMaxLag, s.mLag);
+		s.mDuration = inDuration;
+	}
+
+	@Override
+	public int getFeedCount() {
+		return mFeedCount;
+	}
+
+	@Override
+	public long getMergeCount() {
+		return mMerges;
+	}
+
+	@Override
+	public long getSkippedMergeCount() {
+		return mSkippedMerges;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getTaskDuration() {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+		for (Map.Entry<String, TaskStats> e : mStats.entrySet()) {
+			ret.put(e.getKey(), e.getValue().mDuration);
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getTaskLag() {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+		for (Map.Entry<String, TaskStats> e : mStats.entrySet()) {
+			ret.put(e.getKey(), e.getValue().mLag);
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getTaskMaxLag() {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+		for (Map.Entry<String, TaskStats> e : mStats.entrySet()) {
+			ret.put(e.getKey(), e.getValue().mMaxLag);
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getTaskRuns() {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+		for (Map.Entry<String, TaskStats> e : mStats.entrySet()) {
+			ret.put(e.getKey(), e.getValue().mRuns);
+		}
+		return ret;
+	}
+
+	@Override
+	public long getTickCount() {
+		return mTicks;
+	}
+
+	/**
+	 * Get the worst last-run start lag across all tasks
+	 * 
+	 * @return Lag in milliseconds
+	 */
+	public synchronized long getWorstLag() {
+		long ret = 0;
+		for (TaskStats s : mStats.values()) {
+			ret = Math.max(ret, s.mLag);
+		}
+		return ret;
+	}
+
+	/**
+	 * Register this object with the platform MBean server
+	 */
+	public void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException ex) {
+			Logger.getLogger(FeedScheduler.class.getName()).log(
+					Level.WARNING, null, ex);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.util.Map;
+
+/**
+ * JMX management interface for the FeedScheduler singleton. Task names are
+ * "window:{dir}" and "rollover:{dir}" for each feed, and "merge" for the
+ * master stop list rebuild.
+ * 
+ * @author Jason LaFrance
+ */
+public interface FeedSchedulerMXBean {
+
+	/**
+	 * Get the number of feeds being maintained
+	 * 
+	 * @return Feed count
+	 */
+	public int getFeedCount();
+
+	/**
+	 * Get the number of master stop list rebuilds
+	 * 
+	 * @return Merge count
+	 */
+	public long getMergeCount();
+
+	/**
+	 * Get the number of ticks where no window changed, so no rebuild was
+	 * needed
+	 * 
+	 * @return Skipped merge count
+	 */
+	public long getSkippedMergeCount();
+
+	/**
+	 * Get how long each task took on its last run
+	 * 
+	 * @return Durations in milliseconds by task name
+	 */
+	public Map<String, Long> getTaskDuration();
+
+	/**
+	 * Get how late each task started on its last run, relative to when its
+	 * tick was due
+	 * 
+	 * @return Lag in milliseconds by task name
+	 */
+	public Map<String, Long> getTaskLag();
+
+	/**
+	 * Get the worst start lag seen for each task
+	 * 
+	 * @return Lag in milliseconds by task name
+	 */
+	public Map<String, Long> getTaskMaxLag();
+
+	/**
+	 * Get how many times each task has run
+	 * 
+	 * @return Run counts by task name
+	 */
+	public Map<String, Long> getTaskRuns();
+
+	/**
+	 * Get the number of scheduled ticks run
+	 * 
+	 * @return Tick count
+	 */
+	public long getTickCount();
+}
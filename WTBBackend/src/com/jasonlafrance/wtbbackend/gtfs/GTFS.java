@@ -30,16 +30,19 @@ import java.lang.reflect.Constructor;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -64,13 +67,13 @@ public final class GTFS {
 	private static final HashMap<Integer, ArrayList<ArrayList<StopAdapter>>> sStopsMap = new HashMap<>();
 	private static final StackedStopList sMasterSSL = StackedStopList
 			.getInstance();
+	private static volatile StopIndex sStopIndex = StopIndex.EMPTY;
 
 	private final static String _gtfsClasses[] = new String[] {
 			Agency.class.getName(), Calendar.class.getName(),
 			CalendarDate.class.getName(), FareAttribute.class.getName(),
 			FareRule.class.getName(), Route.class.getName(),
-			Stop.class.getName(), StopTime.class.getName(),
-			Transfer.class.getName(), Trip.class.getName(),
+			Stop.class.getName(), Transfer.class.getName(), Trip.class.getName(),
 			Vertex.class.getName() };
 
 	/**
@@ -115,6 +118,24 @@ public final class GTFS {
 		return allStops;
 	}
 
+	/**
+	 * Get the number of Stops in the current stop window, without copying
+	 * the window
+	 * 
+	 * @return Number of Stops
+	 */
+	public static int getStopWindowSize() {
+		int ret = 0;
+		synchronized (sStopsMap) {
+			for (ArrayList<ArrayList<StopAdapter>> sList : sStopsMap.values()) {
+				for (ArrayList<StopAdapter> sFragment : sList) {
+					ret += sFragment.size();
+				}
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * Get a GTFS object from a given index
 	 * 
@@ -123,7 +144,33 @@ public final class GTFS {
 	 * @return The GTFS object, or null if doesn't exist
 	 */
 	public static GTFS getGTFS(int id) {
-		return sActiveGTFS.get(id);
+		synchronized (sActiveGTFS) {
+			return sActiveGTFS.get(id);
+		}
+	}
+
+	/**
+	 * Drop everything held in the static registries for a GTFS ID
+	 * 
+	 * @param inID
+	 *            The GTFS ID
+	 */
+	private static void releaseStatics(int inID) {
+		synchronized (sActiveGTFS) {
+			sActiveGTFS.remove(inID);
+		}
+		IDDictionary.release(inID);
+		GTFSParser.releaseHeaders(inID);
+	}
+
+	/**
+	 * Get a lock-free snapshot of the master stop list for nearest stop
+	 * searches
+	 * 
+	 * @return The latest StopIndex
+	 */
+	public static StopIndex getStopIndex() {
+		return sStopIndex;
 	}
 
 	/**
@@ -161,6 +208,7 @@ public final class GTFS {
 		synchronized (sMasterSSL) {
 			sMasterSSL.set(ssl);
 			ssl.recycle();
+			sStopIndex = new StopIndex(sMasterSSL);
 		}
 	}
 
@@ -171,18 +219,22 @@ public final class GTFS {
 	 */
 
 	/**
-	 * Add a list of Stops wrapped in StopAdapters to the current master stop
-	 * list for a GTFS object matching the given ID
+	 * Merge changed stop windows into the master stop list, rebuilding it
+	 * once for all of them
 	 * 
-	 * @param inStops
-	 *            A list of Stops wrapped in StopAdapters
-	 * @param inID
-	 *            The ID of the GTFS object
+	 * @param inChanged
+	 *            New stop windows by GTFS ID
+	 * @param inRemoved
+	 *            IDs of GTFS objects whose windows should be dropped
 	 */
-	private static void updateMasterStopWindow(
-			ArrayList<ArrayList<StopAdapter>> inStops, int inID) {
+	static void mergeStopWindows(
+			Map<Integer, ArrayList<ArrayList<StopAdapter>>> inChanged,
+			Collection<Integer> inRemoved) {
 		synchronized (sStopsMap) {
-			sStopsMap.put(inID, inStops);
+			sStopsMap.putAll(inChanged);
+			for (int id : inRemoved) {
+				sStopsMap.remove(id);
+			}
 		}
 		updateMasterStackedStopList();
 	}
@@ -190,9 +242,10 @@ public final class GTFS {
 	private final int _id;
 	private final String _Dir;
 
-	private final HashMap<String, Trip> _tripMap;
-	private final HashMap<String, Route> _routeMap;
-	private final HashMap<String, Stop> _stopMap;
+	// lookup tables indexed by the feed's identifier dictionaries
+	private final Trip[] _tripTable;
+	private final Route[] _routeTable;
+	private final Stop[] _stopTable;
 	private boolean isSorted = false;
 
 	private ArrayList<Agency> mAgencies = new ArrayList<>();
@@ -202,7 +255,7 @@ public final class GTFS {
 	private ArrayList<FareRule> mFareRules = new ArrayList<>();
 	private ArrayList<Route> mRoutes = new ArrayList<>();
 	private ArrayList<Stop> mStops = new ArrayList<>();
-	private ArrayList<StopTime> mStopTimes = new ArrayList<>();
+	private StopTimeTable mStopTimes;
 	private ArrayList<Transfer> mTransfers = new ArrayList<>();
 	private ArrayList<Trip> mTrips = new ArrayList<>();
 	private ArrayList<Vertex> mVertices = new ArrayList<>();
@@ -215,6 +268,7 @@ public final class GTFS {
 	private Calendar.Weekdays _inDay;
 
 	private final HashSet<String> _validServices = new HashSet<>();
+	private boolean[] _validServiceTable = new boolean[0];
 
 	private final double _threshold = 0.00025; // ?
 	private final double _thresholdMeters = Config.getInstance()
@@ -227,6 +281,13 @@ public final class GTFS {
 	private Double _minLon = null, _maxLon = null;
 	private final int _maxTimeGap;
 
+	private final FeedHandle mHandle = new FeedHandle(this);
+	private volatile boolean mRetired = false;
+	private volatile String mServiceDate = null;
+
+	// how long each table and linking phase took to load, in nanoseconds
+	private final LinkedHashMap<String, Long> mLoadNanos = new LinkedHashMap<>();
+
 	/**
 	 * Create a GTFS object with data tables stored in a given directory
 	 * 
@@ -241,8 +302,10 @@ public final class GTFS {
 
 		_Dir = inDir;
 
-		_id = _nextID;
-		_nextID++;
+		synchronized (sActiveGTFS) {
+			_id = _nextID;
+			_nextID++;
+		}
 
 		_maxTimeGap = inTimeGap;
 		_paths = new ArrayList<>();
@@ -254,15 +317,17 @@ public final class GTFS {
 		_classListMap.put(FareRule.class.getName(), mFareRules);
 		_classListMap.put(Route.class.getName(), mRoutes);
 		_classListMap.put(Stop.class.getName(), mStops);
-		_classListMap.put(StopTime.class.getName(), mStopTimes);
 		_classListMap.put(Transfer.class.getName(), mTransfers);
 		_classListMap.put(Trip.class.getName(), mTrips);
 		_classListMap.put(Vertex.class.getName(), mVertices);
 
+		mStopTimes = new StopTimeTable(_id);
+
 		// generate and initialize all of the aggregate objects
 		// with abstract building via reflection API
 		for (String table : _gtfsClasses) {
 
+			long tableStart = System.nanoTime();
 			String filename = GTFSParser.getFilename(table);
 			FileInputStream fin = null;
 			InputStreamReader isr = null;
@@ -302,6 +367,8 @@ public final class GTFS {
 				}
 				System.out.println(table + ": "
 						+ _classListMap.get(table).size());
+				recordPhase(table.substring(table.lastIndexOf('.') + 1),
+						tableStart);
 
 			} catch (FileNotFoundException e) {
 			} finally {
@@ -318,6 +385,12 @@ public final class GTFS {
 
 		}
 
+		// stop times are stored column-wise, so they get their own loader
+		long tableStart = System.nanoTime();
+		mStopTimes.load(inDir);
+		System.out.println(StopTime.class.getName() + ": " + mStopTimes.size());
+		recordPhase(StopTime.class.getSimpleName(), tableStart);
+
 		// check table requirements!
 		boolean ok = true;
 		String missingError = "\n";
@@ -347,6 +420,7 @@ public final class GTFS {
 		}
 
 		if (!ok) {
+			releaseStatics(_id);
 			throw new Exception(missingError);
 		}
 
@@ -358,12 +432,18 @@ public final class GTFS {
 			}
 		}
 
-		_tripMap = new HashMap<>();
-		_routeMap = new HashMap<>();
-		_stopMap = new HashMap<>();
+		long indexStart = System.nanoTime();
+		_tripTable = new Trip[IDDictionary.getDictionary(_id,
+				IDDictionary.TRIP_ID).size()];
+		_routeTable = new Route[IDDictionary.getDictionary(_id,
+				IDDictionary.ROUTE_ID).size()];
+		_stopTable = new Stop[IDDictionary.getDictionary(_id,
+				IDDictionary.STOP_ID).size()];
 
 		for (Trip e : mTrips) {
-			_tripMap.put(e.get_trip_id(), e);
+			if (e.getTripIndex() > -1) {
+				_tripTable[e.getTripIndex()] = e;
+			}
 		}
 		for (int i = 0; i < mRoutes.size(); i++) {
 			Route e = mRoutes.get(i);
@@ -385,27 +465,27 @@ public final class GTFS {
 
 			e.setAgency(agency);
 
-			_routeMap.put(e.get_route_id(), e);
+			if (e.getRouteIndex() > -1) {
+				_routeTable[e.getRouteIndex()] = e;
+			}
 		}
 		for (Stop e : mStops) {
-			_stopMap.put(e.get_stop_id(), e);
+			if (e.getStopIndex() > -1) {
+				_stopTable[e.getStopIndex()] = e;
+			}
 		}
+		mStopTimes.link(_tripTable, _stopTable);
+		recordPhase("index", indexStart);
 
 		resetDate();
 
 		// add this GTFS to the active map
-		sActiveGTFS.put(_id, this);
-
-		// start the window timer
-		Timer windowTimer = new Timer();
-
-		windowTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				updateStopWindow();
-			}
-		}, 1000, 60 * 1000); // run every minute
+		synchronized (sActiveGTFS) {
+			sActiveGTFS.put(_id, this);
+		}
 
+		// hand window maintenance and rollovers to the shared scheduler
+		FeedScheduler.getInstance().add(this);
 	}
 
 	/**
@@ -413,21 +493,11 @@ public final class GTFS {
 	 */
 	private void addStopsToTrips() {
 		for (int s = 0; s < mStopTimes.size(); s++) {
-			StopTime st = mStopTimes.get(s);
-			if (_validServices.contains(_tripMap.get(st.get_trip_id())
-					.get_service_id())) {
-
-				// clone the stop...
-				StopAdapter stop = new StopAdapter(_stopMap.get(st
-						.get_stop_id()));
-
-				// and add stop time to new stop
-				stop.setStopTime(st);
-				stop.setRoute(_tripMap.get(st.get_trip_id()).getRoute());
-
-				_tripMap.get(st.get_trip_id()).addStop(stop);
-				_tripMap.get(st.get_trip_id()).addStopTime(
-						st.getArrivalTimecode());
+			Trip trip = getTrip(mStopTimes.getTripIndex(s));
+			if (trip != null && isValidService(trip.getServiceIndex())) {
+				// the visit is just the row
+				trip.addStop(mStopTimes, s);
+				trip.addStopTime(mStopTimes.getArrivalTimecode(s));
 			}
 
 			// insert all stops also as vertices into their trip's vertex list
@@ -529,28 +599,20 @@ public final class GTFS {
 					}
 
 					if (leftStop
-							&& (t.getLast().get_service_id() == null ? piece
-									.getFirst().get_service_id() == null : t
-									.getLast().get_service_id()
-									.equals(piece.getFirst().get_service_id()))
-							&& (t.getLast().get_route_id() == null ? piece
-									.getFirst().get_route_id() == null : t
-									.getLast().get_route_id()
-									.equals(piece.getFirst().get_route_id()))) {
+							&& t.getLast().getServiceIndex() == piece
+									.getFirst().getServiceIndex()
+							&& t.getLast().getRouteIndex() == piece
+									.getFirst().getRouteIndex()) {
 						piece.addAll(0, t);
 						addedTo = true;
 						li.remove();
 						foundMatch = true;
 						// or check of t fits after piece
 					} else if (rightStop
-							&& (t.getFirst().get_service_id() == null ? piece
-									.getLast().get_service_id() == null : t
-									.getFirst().get_service_id()
-									.equals(piece.getLast().get_service_id()))
-							&& (t.getFirst().get_route_id() == null ? piece
-									.getLast().get_route_id() == null : t
-									.getFirst().get_route_id()
-									.equals(piece.getLast().get_route_id()))) {
+							&& t.getFirst().getServiceIndex() == piece
+									.getLast().getServiceIndex()
+							&& t.getFirst().getRouteIndex() == piece
+									.getLast().getRouteIndex()) {
 						piece.addAll(t);
 						addedTo = true;
 						li.remove();
@@ -585,7 +647,7 @@ public final class GTFS {
 		LinkedList<LinkedList<Trip>> paths = new LinkedList<>();
 		// initialize the list
 		for (int t = 0; t < mTrips.size(); t++) {
-			if (_validServices.contains(mTrips.get(t).get_service_id())) {
+			if (isValidService(mTrips.get(t).getServiceIndex())) {
 				LinkedList<Trip> nt = new LinkedList<>();
 				nt.add(mTrips.get(t));
 				paths.add(nt);
@@ -610,7 +672,9 @@ public final class GTFS {
 
 		// link exact matches
 		System.out.println("Starting attachTrips...");
+		long start = System.nanoTime();
 		_paths = attachTrips(paths, 0, true);
+		recordPhase("attachTrips", start);
 		System.out.println("Done attachTrips...");
 
 		// link matches within treshold
@@ -714,6 +778,33 @@ public final class GTFS {
 		return _Dir;
 	}
 
+	/**
+	 * Get the list of FareAttributes
+	 * 
+	 * @return List of FareAttributes
+	 */
+	public ArrayList<FareAttribute> getFareAttributes() {
+		return mFareAttributes;
+	}
+
+	/**
+	 * Get the list of FareRules
+	 * 
+	 * @return List of FareRules
+	 */
+	public ArrayList<FareRule> getFareRules() {
+		return mFareRules;
+	}
+
+	/**
+	 * Get the service day the feed was last validated for
+	 * 
+	 * @return The date in yyyyMMdd format
+	 */
+	public String getServiceDate() {
+		return mServiceDate;
+	}
+
 	/**
 	 * Get this GTFS object's ID
 	 * 
@@ -723,6 +814,25 @@ public final class GTFS {
 		return _id;
 	}
 
+	/**
+	 * Get the reference counted handle on this feed
+	 * 
+	 * @return The FeedHandle
+	 */
+	public FeedHandle getHandle() {
+		return mHandle;
+	}
+
+	/**
+	 * Get how long each table and linking phase took the last time this feed
+	 * was loaded or rolled over. Tables are keyed by their class name.
+	 * 
+	 * @return Phase durations in nanoseconds, in the order they ran
+	 */
+	public synchronized Map<String, Long> getLoadTimings() {
+		return new LinkedHashMap<>(mLoadNanos);
+	}
+
 	/**
 	 * Get maximum latitude
 	 * 
@@ -808,11 +918,11 @@ public final class GTFS {
 	 * Get stops in a specific trip
 	 * 
 	 * @param tripID
-	 *            The trip ID to match
+	 *            The trip index to match
 	 * @return A list of Stops wrapped in StopAdapters
 	 */
-	public ArrayList<StopAdapter> getStops(int tripID) {
-		return _tripMap.get(tripID).getStops();
+	public List<StopAdapter> getStops(int tripID) {
+		return getTrip(tripID).getStops();
 	}
 
 	/**
@@ -859,32 +969,23 @@ public final class GTFS {
 
 					while (ti.hasNext() && !done) {
 						Trip checkTrip = (Trip) ti.next();
-						ListIterator si = checkTrip.getStops().listIterator();
-						while (si.hasNext() && !done) {
-							StopAdapter s = (StopAdapter) si.next();
-
-							int sTime = s.getStopTime().getArrivalTimecode();
-							// System.out.println(v.getStop().getStopTime().get_arrival_time()
-							// + " -> " +
-							// v.getStop().getStopTime().getArrivalTimecode());
-							if (!inRange && sTime >= iStart) {
-								// back track
-								si.previous();
-								while (si.hasPrevious()) {
-									StopAdapter sc = (StopAdapter) si
-											.previous();
-									if (sc.getStopTime() != null) {
-										break;
-									}
-								}
+						int count = checkTrip.getStopCount();
+						int si = 0;
+						while (si < count && !done) {
+							int row = checkTrip.getStopRow(si);
+							si++;
 
+							int sTime = mStopTimes.getArrivalTimecode(row);
+							if (!inRange && sTime >= iStart) {
+								// back track to the previous visit
+								si = Math.max(si - 2, 0);
 								inRange = true;
 							} else if (inRange && sTime != 0 && sTime > iEnd) {
 								inRange = false;
 								done = true;
 							}
 							if (inRange || done) {
-								sPath.add(s);
+								sPath.add(new StopAdapter(mStopTimes, row));
 							}
 						}
 					}
@@ -897,16 +998,106 @@ public final class GTFS {
 		return output;
 	}
 
+	/**
+	 * Find this feed's version of a Route from another version of the feed
+	 * 
+	 * @param in
+	 *            A Route from any feed
+	 * @return The Route with the same route_id here, or null if none
+	 */
+	public Route findRoute(Route in) {
+		return findRoute(in.get_route_id());
+	}
+
+	/**
+	 * Find a Route by its route_id
+	 * 
+	 * @param inRouteID
+	 *            The route_id
+	 * @return The Route, or null if this feed doesn't have it
+	 */
+	public Route findRoute(String inRouteID) {
+		int index = IDDictionary.getDictionary(_id, IDDictionary.ROUTE_ID)
+				.indexOf(inRouteID);
+		if (index > -1 && index < _routeTable.length) {
+			return _routeTable[index];
+		}
+		return null;
+	}
+
+	/**
+	 * Find this feed's version of a stop visit from another version of the
+	 * feed, matching on trip_id and stop_sequence
+	 * 
+	 * @param in
+	 *            A stop visit from any feed
+	 * @return The matching visit here, or null if the trip doesn't run today
+	 *         or no longer makes that stop
+	 */
+	public StopAdapter findVisit(StopAdapter in) {
+		return findVisit(in.getTable().getTripID(in.getRow()), in.getTable()
+				.getStopSequence(in.getRow()));
+	}
+
+	/**
+	 * Find a stop visit by its trip_id and stop_sequence
+	 * 
+	 * @param inTripID
+	 *            The trip_id
+	 * @param sequence
+	 *            The stop_sequence
+	 * @return The visit, or null if the trip doesn't run today or doesn't
+	 *         make that stop
+	 */
+	public StopAdapter findVisit(String inTripID, int sequence) {
+		Trip trip = getTrip(IDDictionary.getDictionary(_id,
+				IDDictionary.TRIP_ID).indexOf(inTripID));
+		if (trip == null) {
+			return null;
+		}
+		for (int i = 0; i < trip.getStopCount(); i++) {
+			int row = trip.getStopRow(i);
+			if (mStopTimes.getStopSequence(row) == sequence) {
+				return new StopAdapter(mStopTimes, row);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get a specific Stop by its feed dictionary index
+	 * 
+	 * @param in
+	 *            The feed dictionary index of the Stop
+	 * @return The specified Stop, or null if doesn't exist
+	 */
+	public Stop getStop(int in) {
+		if (in > -1 && in < _stopTable.length) {
+			return _stopTable[in];
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the list of Transfers
+	 * 
+	 * @return List of Transfers
+	 */
+	public ArrayList<Transfer> getTransfers() {
+		return mTransfers;
+	}
+
 	/**
 	 * Get a specific Trip from the master list of Trips
 	 * 
 	 * @param in
-	 *            The ID of the Trip
+	 *            The feed dictionary index of the Trip
 	 * @return The specified Trip, or null if doesn't exist
 	 */
 	public Trip getTrip(int in) {
-		if (in > -1 && in < mTrips.size()) {
-			return _tripMap.get(in);
+		if (in > -1 && in < _tripTable.length) {
+			return _tripTable[in];
 		} else {
 			return null;
 		}
@@ -947,10 +1138,10 @@ public final class GTFS {
 	 * @return A list of vertices
 	 */
 	public ArrayList<Vertex> getTripVertices(String inTripID) {
-		for (int t = 0; t < mTrips.size(); t++) {
-			if (mTrips.get(t).get_trip_id().compareTo(inTripID) == 0) {
-				return mTrips.get(t).getVertices();
-			}
+		Trip trip = getTrip(IDDictionary.getDictionary(_id,
+				IDDictionary.TRIP_ID).indexOf(inTripID));
+		if (trip != null) {
+			return trip.getVertices();
 		}
 
 		return null;
@@ -1053,6 +1244,18 @@ public final class GTFS {
 		return _validServices.contains(inServiceID);
 	}
 
+	/**
+	 * Get if a service is valid right now by its feed dictionary index
+	 * 
+	 * @param inServiceIndex
+	 *            The service index to check
+	 * @return True if the service is currently valid, otherwise false
+	 */
+	private boolean isValidService(int inServiceIndex) {
+		return inServiceIndex > -1 && inServiceIndex < _validServiceTable.length
+				&& _validServiceTable[inServiceIndex];
+	}
+
 	/**
 	 * After all of the raw GTFS data is initialized, this method orchestrates
 	 * the creation of the extra internal referencing and association data
@@ -1060,15 +1263,18 @@ public final class GTFS {
 	 */
 	private void linkStructure() {
 		System.out.println("Starting linkVerticesToTrips...");
+		long start = System.nanoTime();
 		linkVerticesToTrips();
-		Collections.sort(mStopTimes);
+		mStopTimes.resetLinks();
+		recordPhase("linkVerticesToTrips", start);
 		System.out.println("Starting addStopsToTrips...");
+		start = System.nanoTime();
 		addStopsToTrips();
+		recordPhase("addStopsToTrips", start);
 		System.out.println("Done addStopsToTrips.");
 
 		// release the original stops...
 		mStops = null;
-		System.gc();
 
 		/*
 		 * // check for current route_paths.txt file FileInputStream fin = null;
@@ -1095,7 +1301,9 @@ public final class GTFS {
 		// doesn't exist, so generate...
 		// System.out.println("route_path.txt not found.  Generating...");
 		System.out.println("Starting buildRoutePaths...");
+		start = System.nanoTime();
 		buildRoutePaths();
+		recordPhase("buildRoutePaths", start);
 
 		// System.out.println("Starting removeDuplicateRoutePaths...");
 		// removeDuplicateRoutePaths();
@@ -1117,12 +1325,11 @@ public final class GTFS {
 	 * Links all of the vertices to their respective trips.
 	 */
 	private void linkVerticesToTrips() {
-		// sort the vertices by shape_id and sequence!!
+		// sort the vertices by shape and sequence!!
 		if (!isSorted) {
 			Collections.sort(mVertices, new Comparator<Vertex>() {
 				public int compare(Vertex a, Vertex b) {
-					int ret = a.get_shape_id().compareToIgnoreCase(
-							b.get_shape_id());
+					int ret = a.getShapeIndex() - b.getShapeIndex();
 					if (ret == 0) {
 						if (a.get_shape_pt_sequence() < b
 								.get_shape_pt_sequence()) {
@@ -1156,46 +1363,51 @@ public final class GTFS {
 			isSorted = true;
 		}
 
-		ArrayList<Vertex> shape;
-		HashMap<String, ArrayList<Vertex>> shapeMap = new HashMap<>();
+		// find where each shape starts and ends in the sorted vertex list
+		int shapeCount = IDDictionary.getDictionary(_id, IDDictionary.SHAPE_ID)
+				.size();
+		int[] shapeStart = new int[shapeCount];
+		int[] shapeEnd = new int[shapeCount];
+		for (int i = mVertices.size() - 1; i >= 0; i--) {
+			int shape = mVertices.get(i).getShapeIndex();
+			if (shape > -1) {
+				if (shapeEnd[shape] == 0) {
+					shapeEnd[shape] = i + 1;
+				}
+				shapeStart[shape] = i;
+			}
+		}
+
+		ArrayList<ArrayList<Vertex>> shapeTable = new ArrayList<>(
+				Collections.nCopies(shapeCount, (ArrayList<Vertex>) null));
 
 		for (int t = 0; t < mTrips.size(); t++) {
 			Trip thisTrip = mTrips.get(t);
 
 			thisTrip.resetStructure();
 
-			if (_validServices.contains(thisTrip.get_service_id())) {
-				// System.out.println("Linking trip " + thisTrip.get_trip_id());
-				String shapeID = thisTrip.get_shape_id();
+			if (isValidService(thisTrip.getServiceIndex())) {
+				int shape = thisTrip.getShapeIndex();
 
 				// link the trip to it's route
-				thisTrip.setRoute(_routeMap.get(thisTrip.get_route_id()));
+				if (thisTrip.getRouteIndex() > -1) {
+					thisTrip.setRoute(_routeTable[thisTrip.getRouteIndex()]);
+				}
 
-				if (shapeMap.get(shapeID) != null) {
-					thisTrip.setVertexList(shapeMap.get(shapeID));
+				if (shape < 0) {
+					thisTrip.setVertexList(new ArrayList<Vertex>());
+				} else if (shapeTable.get(shape) != null) {
+					thisTrip.setVertexList(shapeTable.get(shape));
 				} else {
-					shape = new ArrayList<>();
-
-					boolean done = false;
-					boolean inShape = false;
 					// add all vertices to their respective trip's vertex list
-					for (int i = 0; i < mVertices.size(); i++) {
-						Vertex v = mVertices.get(i);
-						if (v.get_shape_id().equals(shapeID)) {
-							inShape = true;
-							shape.add(v);
-						} else {
-							if (inShape) {
-								break;
-							}
-						}
-					}
-					thisTrip.setVertexList(shape);
-					shapeMap.put(shapeID, shape);
+					ArrayList<Vertex> vertices = new ArrayList<>(
+							mVertices.subList(shapeStart[shape],
+									shapeEnd[shape]));
+					thisTrip.setVertexList(vertices);
+					shapeTable.set(shape, vertices);
 				}
 			}
 		}
-		shapeMap.clear();
 	}
 
 	/**
@@ -1232,10 +1444,22 @@ public final class GTFS {
 		}
 	}
 
+	/**
+	 * Release this feed's entries in the static registries so it can be
+	 * collected. Only call this once nothing reads the feed any more; it's
+	 * normally called by the feed's FeedHandle.
+	 */
+	public void release() {
+		retire();
+		RoutePath.release(_paths);
+		mStopTimes.release();
+		releaseStatics(_id);
+	}
+
 	/**
 	 * Reset the date to current and revalidate all calendar related data.
 	 */
-	public void resetDate() {
+	public synchronized void resetDate() {
 		java.util.Calendar currentDate = java.util.Calendar.getInstance();
 		java.util.Calendar checkDate = java.util.Calendar.getInstance();
 		Date nowDate = new Date();
@@ -1306,6 +1530,17 @@ public final class GTFS {
 			}
 		}
 		System.out.println(_validServices.size() + " services valid today!");
+		mServiceDate = stringDate;
+
+		IDDictionary services = IDDictionary.getDictionary(_id,
+				IDDictionary.SERVICE_ID);
+		_validServiceTable = new boolean[services.size()];
+		for (String serviceID : _validServices) {
+			int index = services.indexOf(serviceID);
+			if (index > -1) {
+				_validServiceTable[index] = true;
+			}
+		}
 
 		System.out.println("Starting linkStructure...");
 
@@ -1313,6 +1548,18 @@ public final class GTFS {
 
 	}
 
+	/**
+	 * Record how long a load phase took
+	 * 
+	 * @param inPhase
+	 *            Phase name
+	 * @param inStart
+	 *            System.nanoTime() when it started
+	 */
+	private synchronized void recordPhase(String inPhase, long inStart) {
+		mLoadNanos.put(inPhase, System.nanoTime() - inStart);
+	}
+
 	/**
 	 * Show RoutePaths for debugging
 	 */
@@ -1340,9 +1587,37 @@ public final class GTFS {
 	}
 
 	/**
-	 * Update the current stop window to right now.
+	 * Stop maintaining this feed's stop window and remove it from the master
+	 * stop list. Returns once the master stop list no longer has its stops.
+	 * The feed stays readable until release().
 	 */
-	private synchronized void updateStopWindow() {
+	public void retire() {
+		synchronized (this) {
+			if (mRetired) {
+				return;
+			}
+			mRetired = true;
+		}
+		Future<?> removed = FeedScheduler.getInstance().remove(this);
+		try {
+			removed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Logger.getLogger(GTFS.class.getName()).log(Level.SEVERE, null,
+					e.getCause());
+		}
+	}
+
+	/**
+	 * Calculate the stop window around right now.
+	 * 
+	 * @return The Stops in the window, or null once retired
+	 */
+	synchronized ArrayList<ArrayList<StopAdapter>> computeStopWindow() {
+		if (mRetired) {
+			return null;
+		}
 		int now = timeToMinutes(new SimpleDateFormat("HH:mm:ss")
 				.format(new Date()));
 		ArrayList<ArrayList<StopAdapter>> nowStops = getAllStopsInTimeframe(
@@ -1354,7 +1629,6 @@ public final class GTFS {
 		 * minutesToTime(now) + " - " + minutesToTime(now + WINDOW_MARGIN) );
 		 */
 
-		updateMasterStopWindow(nowStops, _id);
-
+		return nowStops;
 	}
 }
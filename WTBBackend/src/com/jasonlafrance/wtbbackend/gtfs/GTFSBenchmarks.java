@@ -0,0 +1,114 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import com.jasonlafrance.wtbbackend.bench.BenchmarkCase;
+
+/**
+ * Benchmark cases for feed loading and the stop window. They live here
+ * because the master stop list rebuild is only reachable from this package.
+ * 
+ * @author Jason LaFrance
+ */
+public class GTFSBenchmarks {
+
+	/**
+	 * Time loading a feed from scratch. Each table and linking phase is
+	 * reported as a secondary metric.
+	 * 
+	 * @param inDir
+	 *            The feed directory
+	 * @param inTimeGap
+	 *            Time gap
+	 * @return The case
+	 */
+	public static BenchmarkCase load(final String inDir, final int inTimeGap) {
+		return new BenchmarkCase("gtfs.load", BenchmarkCase.Mode.SINGLE_SHOT) {
+			@Override
+			public long run() throws Exception {
+				GTFS feed = new GTFS(inDir, inTimeGap);
+				for (Map.Entry<String, Long> e : feed.getLoadTimings()
+						.entrySet()) {
+					recordSecondary(e.getKey(), e.getValue() / 1e6);
+				}
+				long ret = feed.getPaths().size();
+				feed.release();
+				return ret;
+			}
+		};
+	}
+
+	/**
+	 * Time finding every stop visited in a time frame
+	 * 
+	 * @param inFeed
+	 *            A loaded feed
+	 * @param inStart
+	 *            Start of the time frame, HH:mm:ss
+	 * @param inEnd
+	 *            End of the time frame, HH:mm:ss
+	 * @return The case
+	 */
+	public static BenchmarkCase stopsInTimeframe(final GTFS inFeed,
+			final String inStart, final String inEnd) {
+		return new BenchmarkCase("gtfs.getAllStopsInTimeframe",
+				BenchmarkCase.Mode.THROUGHPUT) {
+			@Override
+			public long run() {
+				return inFeed.getAllStopsInTimeframe(inStart, inEnd).size();
+			}
+		};
+	}
+
+	/**
+	 * Time merging a feed's stop window into the master StackedStopList,
+	 * which rebuilds the whole list
+	 * 
+	 * @param inFeed
+	 *            A loaded feed
+	 * @return The case
+	 */
+	public static BenchmarkCase stopListRebuild(final GTFS inFeed) {
+		return new BenchmarkCase("gtfs.stackedStopListRebuild",
+				BenchmarkCase.Mode.THROUGHPUT) {
+			private ArrayList<ArrayList<StopAdapter>> mWindow;
+
+			@Override
+			public void setUp() throws Exception {
+				mWindow = inFeed.computeStopWindow();
+				if (mWindow == null) {
+					throw new Exception("Feed has been retired");
+				}
+			}
+
+			@Override
+			public long run() {
+				GTFS.mergeStopWindows(
+						Collections.singletonMap(inFeed.getID(), mWindow),
+						Collections.<Integer> emptyList());
+				return mWindow.size();
+			}
+		};
+	}
+}
@@ -116,6 +116,18 @@ public abstract class GTFSParser {
 		return _headers.get(inID).get(inFilename);
 	}
 
+	/**
+	 * Drop the stored table headers of a GTFS object
+	 * 
+	 * @param inID
+	 *            The ID of the GTFS object
+	 */
+	public static void releaseHeaders(int inID) {
+		synchronized (_headers) {
+			_headers.remove(inID);
+		}
+	}
+
 	/**
 	 * Store and parse GTFS table header data
 	 * 
@@ -172,6 +184,17 @@ public abstract class GTFSParser {
 		return sGTFS_ID;
 	}
 
+	/**
+	 * Get this class' dictionary for a given identifier column
+	 * 
+	 * @param inColumn
+	 *            The identifier column name, ie. IDDictionary.TRIP_ID
+	 * @return The dictionary for the column
+	 */
+	protected IDDictionary getDictionary(String inColumn) {
+		return IDDictionary.getDictionary(sGTFS_ID, inColumn);
+	}
+
 	/**
 	 * Get a unique ID for this entry
 	 * 
@@ -0,0 +1,160 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Per-feed dictionary for GTFS identifier columns. Every distinct identifier
+ * String is mapped to a dense int index at load time, so that equal IDs share
+ * a single String instance and joins between tables can be done with plain
+ * array lookups instead of String keyed hash maps.
+ * 
+ * @author Jason LaFrance
+ */
+public final class IDDictionary {
+
+	public static final String TRIP_ID = "trip_id";
+	public static final String STOP_ID = "stop_id";
+	public static final String ROUTE_ID = "route_id";
+	public static final String SERVICE_ID = "service_id";
+	public static final String SHAPE_ID = "shape_id";
+
+	private static final HashMap<Integer, HashMap<String, IDDictionary>> sDictionaries = new HashMap<>();
+	// GTFS IDs are never reused, so this only grows by one per reload
+	private static final HashSet<Integer> sReleased = new HashSet<>();
+
+	/**
+	 * Get the dictionary for an identifier column of a GTFS object, creating
+	 * it if it doesn't exist yet.
+	 * 
+	 * @param inID
+	 *            The ID of the GTFS object
+	 * @param inColumn
+	 *            The identifier column name, ie. IDDictionary.TRIP_ID
+	 * @return The dictionary for the column
+	 * @throws IllegalStateException
+	 *             If the GTFS object has been released
+	 */
+	public static IDDictionary getDictionary(int inID, String inColumn) {
+		synchronized (sDictionaries) {
+			if (sReleased.contains(inID)) {
+				throw new IllegalStateException("GTFS " + inID
+						+ " has been released");
+			}
+			HashMap<String, IDDictionary> map = sDictionaries.get(inID);
+			if (map == null) {
+				map = new HashMap<>();
+				sDictionaries.put(inID, map);
+			}
+			IDDictionary dict = map.get(inColumn);
+			if (dict == null) {
+				dict = new IDDictionary();
+				map.put(inColumn, dict);
+			}
+			return dict;
+		}
+	}
+
+	/**
+	 * Drop all of the dictionaries of a GTFS object. Tables that already hold
+	 * a dictionary keep working; new lookups for the ID throw.
+	 * 
+	 * @param inID
+	 *            The ID of the GTFS object
+	 */
+	public static void release(int inID) {
+		synchronized (sDictionaries) {
+			sDictionaries.remove(inID);
+			sReleased.add(inID);
+		}
+	}
+
+	private final HashMap<String, Integer> mIndexes = new HashMap<>();
+	private final ArrayList<String> mValues = new ArrayList<>();
+
+	/**
+	 * Create an empty dictionary
+	 */
+	private IDDictionary() {
+	}
+
+	/**
+	 * Get the canonical String for a given index
+	 * 
+	 * @param in
+	 *            The index to decode
+	 * @return The identifier String, or null if the index is out of range
+	 */
+	public synchronized String decode(int in) {
+		if (in > -1 && in < mValues.size()) {
+			return mValues.get(in);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the index of an identifier, adding it to the dictionary if it isn't
+	 * already there.
+	 * 
+	 * @param in
+	 *            The identifier String
+	 * @return The dense index of the identifier, or -1 if null
+	 */
+	public synchronized int encode(String in) {
+		if (in == null) {
+			return -1;
+		}
+		Integer index = mIndexes.get(in);
+		if (index == null) {
+			index = mValues.size();
+			mValues.add(in);
+			mIndexes.put(in, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Get the index of an identifier without adding it
+	 * 
+	 * @param in
+	 *            The identifier String
+	 * @return The dense index of the identifier, or -1 if not in the
+	 *         dictionary
+	 */
+	public synchronized int indexOf(String in) {
+		if (in == null) {
+			return -1;
+		}
+		Integer index = mIndexes.get(in);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Get the number of distinct identifiers in the dictionary
+	 * 
+	 * @return The dictionary size
+	 */
+	public synchronized int size() {
+		return mValues.size();
+	}
+}
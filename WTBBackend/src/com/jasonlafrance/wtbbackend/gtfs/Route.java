@@ -96,6 +96,7 @@ public final class Route extends GTFSParser {
 	}
 
 	private String _route_id = null;
+	private int _route_index = -1;
 	private String _agency_id = null;
 	private String _route_short_name = null;
 	private String _route_long_name = null;
@@ -285,6 +286,15 @@ public final class Route extends GTFSParser {
 		return mAgency;
 	}
 
+	/**
+	 * Get the feed dictionary index of the route ID
+	 * 
+	 * @return Route index, or -1 if not set
+	 */
+	public int getRouteIndex() {
+		return _route_index;
+	}
+
 	/**
 	 * Get the GTFS file name associated with this object.
 	 * 
@@ -417,7 +427,9 @@ public final class Route extends GTFSParser {
 	 *            Route ID
 	 */
 	public void set_route_id(String in) {
-		_route_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.ROUTE_ID);
+		_route_index = dict.encode(in);
+		_route_id = dict.decode(_route_index);
 	}
 
 	/**
@@ -19,8 +19,11 @@ This file is part of WTBBackend.
 
 package com.jasonlafrance.wtbbackend.gtfs;
 
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.minutesToTime;
+
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.ListIterator;
 
 import com.jasonlafrance.wtbbackend.config.Config;
@@ -44,14 +47,32 @@ public class RoutePath {
 	 * @return The requested RoutePath, or null if doesn't exist
 	 */
 	public static RoutePath getRoutePath(int id) {
-		return sRoutePathMap.get(id);
+		synchronized (sRoutePathMap) {
+			return sRoutePathMap.get(id);
+		}
+	}
+
+	/**
+	 * Remove RoutePaths from the multition so they can be collected
+	 * 
+	 * @param in
+	 *            The RoutePaths to release
+	 */
+	public static void release(List<RoutePath> in) {
+		synchronized (sRoutePathMap) {
+			for (RoutePath rp : in) {
+				sRoutePathMap.remove(rp.mID);
+			}
+		}
 	}
 
 	private final int mID;
 	private final ArrayList<Trip> mPath;
 	private final Route mRoute;
-	private final ArrayList<StopAdapter> mStops = new ArrayList<>();
-	private final ArrayList<StopAdapter> mStopsWithTimes = new ArrayList<>();
+	// stop visits as StopTimeTable rows
+	private StopTimeTable mTable;
+	private int[] mVisits;
+	private StopVisitList mStopList;
 
 	private String mStartTime, mEndTime;
 	private int mStartTimecode, mEndTimecode;
@@ -68,9 +89,11 @@ public class RoutePath {
 	 *            Route to associate path to
 	 */
 	public RoutePath(ArrayList<Trip> inPath, Route inRoute) {
-		mID = sNextID;
-		sNextID++;
-		sRoutePathMap.put(mID, this);
+		synchronized (sRoutePathMap) {
+			mID = sNextID;
+			sNextID++;
+			sRoutePathMap.put(mID, this);
+		}
 
 		mPath = inPath;
 		mRoute = inRoute;
@@ -90,9 +113,11 @@ public class RoutePath {
 	 *            The TripMap HashSet
 	 */
 	public RoutePath(String inLine, HashMap<String, Trip> tripMap) {
-		mID = sNextID;
-		sNextID++;
-		sRoutePathMap.put(mID, this);
+		synchronized (sRoutePathMap) {
+			mID = sNextID;
+			sNextID++;
+			sRoutePathMap.put(mID, this);
+		}
 
 		mPath = new ArrayList<>();
 
@@ -120,35 +145,41 @@ public class RoutePath {
 	 * Build a list of stops from the stored data
 	 */
 	private void buildStopList() {
+		int count = 0;
 		for (Trip t : mPath) {
-			mStops.addAll(t.getStops());
+			count += t.getStopCount();
+			if (mTable == null) {
+				mTable = t.getStopTimeTable();
+			}
 		}
 
-		StopAdapter prevStop = null;
-		for (int i = 0; i < mStops.size(); i++) {
-			StopAdapter s = mStops.get(i);
-
-			if (s.getStopTime() instanceof StopTime) {
-				if (mStartTimecode <= 0
-						&& s.getStopTime().getArrivalTimecode() > 0) {
-					mStartTime = s.getStopTime().get_arrival_time();
-					mStartTimecode = s.getStopTime().getArrivalTimecode();
-				}
-				if (s.getStopTime().getDepartureTimecode() > 0
-						&& s.getStopTime().getDepartureTimecode() > mEndTimecode) {
-					mEndTime = s.getStopTime().get_departure_time();
-					mEndTimecode = s.getStopTime().getDepartureTimecode();
-				}
-
+		mVisits = new int[count];
+		int v = 0;
+		for (Trip t : mPath) {
+			for (int i = 0; i < t.getStopCount(); i++) {
+				mVisits[v++] = t.getStopRow(i);
 			}
+		}
+		mStopList = new StopVisitList(mTable, mVisits);
+
+		int prevRow = -1;
+		for (int row : mVisits) {
+			int arrival = mTable.getArrivalTimecode(row);
+			int departure = mTable.getDepartureTimecode(row);
 
-			if (s.getStopTime() != null) {
-				mStopsWithTimes.add(s);
+			if (mStartTimecode <= 0 && arrival > 0) {
+				mStartTime = minutesToTime(arrival);
+				mStartTimecode = arrival;
 			}
-			if (prevStop != null) {
-				prevStop.setNextStop(s);
+			if (departure > 0 && departure > mEndTimecode) {
+				mEndTime = minutesToTime(departure);
+				mEndTimecode = departure;
+			}
+
+			if (prevRow > -1) {
+				mTable.setNextRow(prevRow, row);
 			}
-			prevStop = s;
+			prevRow = row;
 		}
 	}
 
@@ -271,19 +302,38 @@ public class RoutePath {
 	/**
 	 * Get the list of Stops in this path
 	 * 
-	 * @return A list if Stops wrapped in StopAdapters
+	 * @return A read-only list if Stops wrapped in StopAdapters
 	 */
-	public ArrayList<StopAdapter> getStops() {
-		return mStops;
+	public List<StopAdapter> getStops() {
+		return mStopList;
 	}
 
 	/**
-	 * Get an in-order list of just the stops with scheduled times
+	 * Get an in-order list of just the stops with scheduled times. Every visit
+	 * is a stop_times row, so this is the same as getStops().
 	 * 
 	 * @return A list of Stops wrapped in StopAdapters
 	 */
-	public ArrayList<StopAdapter> getStopsWithTimes() {
-		return mStopsWithTimes;
+	public List<StopAdapter> getStopsWithTimes() {
+		return getStops();
+	}
+
+	/**
+	 * Get the StopTimeTable the stop visits belong to
+	 * 
+	 * @return The StopTimeTable, or null if the path has no stops
+	 */
+	public StopTimeTable getStopTimeTable() {
+		return mTable;
+	}
+
+	/**
+	 * Get the stop visits in this path as StopTimeTable rows
+	 * 
+	 * @return Array of row indexes
+	 */
+	public int[] getVisits() {
+		return mVisits;
 	}
 
 	/**
@@ -297,12 +347,12 @@ public class RoutePath {
 	public boolean sameStops(RoutePath b) {
 		boolean same = true;
 
-		ListIterator aLi = mStops.listIterator();
-		ListIterator bLi = b.getStops().listIterator();
+		ListIterator<StopAdapter> aLi = getStops().listIterator();
+		ListIterator<StopAdapter> bLi = b.getStops().listIterator();
 
 		while (aLi.hasNext() && bLi.hasNext()) {
-			Stop aS = (Stop) aLi.next();
-			Stop bS = (Stop) bLi.next();
+			Stop aS = aLi.next().getStop();
+			Stop bS = bLi.next().getStop();
 			System.out.println(aS.getID() + " -> " + bS.getID()
 					+ "   distance: "
 					+ aS.getVertex().getDistanceInMeters(bS.getVertex()));
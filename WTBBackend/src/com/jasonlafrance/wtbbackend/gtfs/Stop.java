@@ -36,6 +36,7 @@ public final class Stop extends GTFSParser implements Comparator<Stop> {
 	private static final String _filename = "//stops.txt";
 
 	private String _stop_id = null;
+	private int _stop_index = -1;
 	private String _stop_code = null;
 	private String _stop_name = null;
 	private String _stop_desc = null;
@@ -241,6 +242,15 @@ public final class Stop extends GTFSParser implements Comparator<Stop> {
 		return _zone_id;
 	}
 
+	/**
+	 * Get the feed dictionary index of the stop ID
+	 * 
+	 * @return Stop index, or -1 if not set
+	 */
+	public int getStopIndex() {
+		return _stop_index;
+	}
+
 	/**
 	 * Get the GTFS file name associated with this object.
 	 * 
@@ -386,7 +396,9 @@ public final class Stop extends GTFSParser implements Comparator<Stop> {
 	 *            ID
 	 */
 	public void set_stop_id(String in) {
-		_stop_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.STOP_ID);
+		_stop_index = dict.encode(in);
+		_stop_id = dict.decode(_stop_index);
 	}
 
 	/**
@@ -21,30 +21,47 @@ package com.jasonlafrance.wtbbackend.gtfs;
 
 /**
  * StopAdapter class to allow redundant Stop representation without needing to
- * allocate entirely new Stop objects. This is basically just a wrapper class
- * for additional values: a stop time, a route association, and a reference to
- * the next stop in the route.
+ * allocate entirely new Stop objects. A StopAdapter is just a stop visit: a row
+ * index into a feed's StopTimeTable. The Stop, stop time, Route and next stop
+ * in the route path are all resolved from the table, so adapters are cheap to
+ * create and two adapters for the same row are equal.
  * 
  * @author Jason LaFrance
  */
 public class StopAdapter {
 
-	private final Stop mStop;
-	private StopTime mStopTime;
-	private Route mRoute;
-	private StopAdapter mNextStop;
+	private final StopTimeTable mTable;
+	private final int mRow;
 
 	/**
-	 * Create a new StopAdapter object to wrap the given Stop
+	 * Create a new StopAdapter object for a stop visit
 	 * 
-	 * @param inStop
-	 *            The Stop to wrap up
+	 * @param inTable
+	 *            The StopTimeTable the visit belongs to
+	 * @param inRow
+	 *            The visit's row in the table
 	 */
-	public StopAdapter(Stop inStop) {
-		mStop = inStop;
-		mStopTime = null;
-		mRoute = null;
-		mNextStop = null;
+	public StopAdapter(StopTimeTable inTable, int inRow) {
+		mTable = inTable;
+		mRow = inRow;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof StopAdapter)) {
+			return false;
+		}
+		StopAdapter s = (StopAdapter) o;
+		return s.mTable == mTable && s.mRow == mRow;
+	}
+
+	/**
+	 * Get the arrival time code of the visit
+	 * 
+	 * @return Arrival time code
+	 */
+	public int getArrivalTimecode() {
+		return mTable.getArrivalTimecode(mRow);
 	}
 
 	/**
@@ -53,7 +70,8 @@ public class StopAdapter {
 	 * @return The next Stop in the path wrapped in a StopAdapter
 	 */
 	public StopAdapter getNextStop() {
-		return mNextStop;
+		int next = mTable.getNextRow(mRow);
+		return next > -1 ? new StopAdapter(mTable, next) : null;
 	}
 
 	/**
@@ -62,7 +80,16 @@ public class StopAdapter {
 	 * @return The Route object
 	 */
 	public Route getRoute() {
-		return mRoute;
+		return mTable.getRoute(mRow);
+	}
+
+	/**
+	 * Get the visit's row in its StopTimeTable
+	 * 
+	 * @return The row index
+	 */
+	public int getRow() {
+		return mRow;
 	}
 
 	/**
@@ -71,7 +98,7 @@ public class StopAdapter {
 	 * @return The Stop object
 	 */
 	public Stop getStop() {
-		return mStop;
+		return mTable.getStop(mRow);
 	}
 
 	/**
@@ -80,36 +107,20 @@ public class StopAdapter {
 	 * @return The StopTime object
 	 */
 	public StopTime getStopTime() {
-		return mStopTime;
-	}
-
-	/**
-	 * Set the next stop in the path
-	 * 
-	 * @param in
-	 *            Next Stop in path wrapped in a StopAdapter
-	 */
-	public void setNextStop(StopAdapter in) {
-		mNextStop = in;
+		return mTable.get(mRow);
 	}
 
 	/**
-	 * Set the Route
+	 * Get the StopTimeTable the visit belongs to
 	 * 
-	 * @param in
-	 *            Route object
+	 * @return The StopTimeTable
 	 */
-	public void setRoute(Route in) {
-		mRoute = in;
+	public StopTimeTable getTable() {
+		return mTable;
 	}
 
-	/**
-	 * Set the stop time
-	 * 
-	 * @param in
-	 *            The StopTime to set to
-	 */
-	public void setStopTime(StopTime in) {
-		mStopTime = in;
+	@Override
+	public int hashCode() {
+		return 31 * mTable.getGTFS_ID() + mRow;
 	}
 }
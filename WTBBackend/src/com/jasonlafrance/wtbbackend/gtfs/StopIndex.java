@@ -0,0 +1,118 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Read-only snapshot of the master stop list for finding the stops closest
+ * to a position. A new one is published each time the master list is
+ * rebuilt, so vehicles can search it from any thread without locking or
+ * copying anything.
+ * 
+ * @author Jason LaFrance
+ */
+public class StopIndex {
+
+	static final StopIndex EMPTY = new StopIndex();
+
+	private final double[] mLat;
+	private final double[] mLon;
+	private final ArrayList<LinkedList<StopAdapter>> mStops;
+	private final long mBytes;
+
+	/**
+	 * Create an empty index
+	 */
+	private StopIndex() {
+		mLat = new double[0];
+		mLon = new double[0];
+		mStops = new ArrayList<>();
+		mBytes = 0;
+	}
+
+	/**
+	 * Snapshot a stop list
+	 * 
+	 * @param in
+	 *            The stop list, which must not change while this runs
+	 */
+	StopIndex(StackedStopList in) {
+		ArrayList<Vertex> vertices = in.getStopVertices();
+		mLat = new double[vertices.size()];
+		mLon = new double[vertices.size()];
+		mStops = new ArrayList<>(vertices.size());
+		for (int i = 0; i < vertices.size(); i++) {
+			Vertex v = vertices.get(i);
+			mLat[i] = v.get_shape_pt_lat();
+			mLon[i] = v.get_shape_pt_lon();
+			mStops.add(in.getStopsForVertex(v));
+		}
+
+		// coordinate arrays, the list of lists, then a node and an adapter
+		// for every stop visit
+		long bytes = 2 * (16 + 8L * mLat.length) + 40 + 4L * mStops.size();
+		for (LinkedList<StopAdapter> stops : mStops) {
+			bytes += 32 + (stops == null ? 0 : stops.size() * (24L + 24));
+		}
+		mBytes = bytes;
+	}
+
+	/**
+	 * Find the stops closest to a position, by raw unrooted distance. Ties
+	 * go to the stop listed first, as in the master list.
+	 * 
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 * @return Stops sharing the closest coordinates wrapped in StopAdapters,
+	 *         or null if there are no stops
+	 */
+	public LinkedList<StopAdapter> closest(double inLat, double inLon) {
+		int best = -1;
+		double shortest = Double.MAX_VALUE;
+		for (int i = 0; i < mLat.length; i++) {
+			double dLat = mLat[i] - inLat;
+			double dLon = mLon[i] - inLon;
+			double dist = dLat * dLat + dLon * dLon;
+			if (best < 0 || dist < shortest) {
+				best = i;
+				shortest = dist;
+			}
+		}
+		return best < 0 ? null : mStops.get(best);
+	}
+
+	/**
+	 * @return Estimated heap bytes held by the index
+	 */
+	public long estimateBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * @return Number of distinct stop positions
+	 */
+	public int size() {
+		return mLat.length;
+	}
+}
@@ -20,101 +20,38 @@ This file is part of WTBBackend.
 package com.jasonlafrance.wtbbackend.gtfs;
 
 import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.minutesToTime;
-import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.timeToMinutes;
-
-import java.util.ArrayList;
-
-import com.jasonlafrance.wtbbackend.wtb_util.CSVParser;
 
 /**
- * GTFS StopTime class
+ * GTFS StopTime class. This is a lightweight view of a single row in a feed's
+ * StopTimeTable, so all of the data lives in the table's columns.
  * 
  * @author Jason LaFrance
  */
-public final class StopTime extends GTFSParser implements Comparable<StopTime> {
-
-	private static final String _filename = "//stop_times.txt";
-
-	private String _trip_id = null;
-	// private String _arrival_time = "";
-	private int _arrivalTimecode = -1;
-	// private String _departure_time = "";
-	private int _departureTimecode = -1;
-
-	private String _stop_id = null;
-	private int _stop_sequence = -1;
-	private String _stop_headsign = null;
-	private int _pickup_type = -1;
-	private int _drop_off_type = -1;
-	private double _shape_dist_traveled = 0.0;
-	private String _timepoint = null;
-	private String _continuous_stops = null;
+public final class StopTime implements Comparable<StopTime> {
 
-	/**
-	 * Stub constructor
-	 */
-	public StopTime() {
-	}
+	private final StopTimeTable mTable;
+	private final int mRow;
 
 	/**
-	 * Stub constructor
+	 * Create a view of a StopTimeTable row
 	 * 
-	 * @param inLine
-	 *            A String
+	 * @param inTable
+	 *            The table the row belongs to
+	 * @param inRow
+	 *            The row index
 	 */
-	public StopTime(String inLine) {
-	}
-
-	/**
-	 * Create a StopTime object from given values
-	 * 
-	 * @param inTripID
-	 *            Trip ID
-	 * @param inArrival
-	 *            Arrival time code
-	 * @param inDepart
-	 *            Departure time code
-	 * @param inStopID
-	 *            Stop ID
-	 * @param inStopSequence
-	 *            Stop sequence number
-	 * @param inHeadsign
-	 *            Headsign text
-	 * @param inPickupType
-	 *            Pickup type
-	 * @param inDropoffType
-	 *            Drop off type
-	 * @param inDistTraveled
-	 *            Distance traveled in trip
-	 */
-	public StopTime(String inTripID, String inArrival, String inDepart,
-			String inStopID, int inStopSequence, String inHeadsign,
-			int inPickupType, int inDropoffType, double inDistTraveled) {
-		_trip_id = inTripID;
-		// _arrival_time = inArrival;
-		_arrivalTimecode = timeToMinutes(inArrival);
-		// _departure_time = inDepart;
-		_departureTimecode = timeToMinutes(inDepart);
-		_stop_id = inStopID;
-		_stop_sequence = inStopSequence;
-		_stop_headsign = inHeadsign;
-		_pickup_type = inPickupType;
-		_drop_off_type = inDropoffType;
-		_shape_dist_traveled = inDistTraveled;
+	StopTime(StopTimeTable inTable, int inRow) {
+		mTable = inTable;
+		mRow = inRow;
 	}
 
 	@Override
 	public int compareTo(StopTime o) {
-		// compare _trip_id
-		int ret = _trip_id.compareTo(o.get_trip_id());
+		// compare trip
+		int ret = Integer.compare(getTripIndex(), o.getTripIndex());
 		if (ret == 0) {
 			// compare _stop_sequence
-			if (o.get_stop_sequence() < _stop_sequence) {
-				ret = 1;
-			}
-			if (o.get_stop_sequence() > _stop_sequence) {
-				ret = -1;
-			}
+			ret = Integer.compare(get_stop_sequence(), o.get_stop_sequence());
 		}
 		// if we make it here, then the two are congruent
 		return ret;
@@ -126,7 +63,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Arrival time
 	 */
 	public String get_arrival_time() {
-		return minutesToTime(_arrivalTimecode);
+		return minutesToTime(getArrivalTimecode());
 	}
 
 	/**
@@ -135,7 +72,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Continuous stops
 	 */
 	public String get_continuous_stops() {
-		return _continuous_stops;
+		return mTable.getContinuousStops(mRow);
 	}
 
 	/**
@@ -144,7 +81,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Departure time
 	 */
 	public String get_departure_time() {
-		return minutesToTime(_departureTimecode);
+		return minutesToTime(getDepartureTimecode());
 	}
 
 	/**
@@ -153,7 +90,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Drop off type
 	 */
 	public int get_drop_off_type() {
-		return _drop_off_type;
+		return mTable.getDropOffType(mRow);
 	}
 
 	/**
@@ -162,7 +99,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Pickup type
 	 */
 	public int get_pickup_type() {
-		return _pickup_type;
+		return mTable.getPickupType(mRow);
 	}
 
 	/**
@@ -171,7 +108,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Distance traveled
 	 */
 	public double get_shape_dist_traveled() {
-		return _shape_dist_traveled;
+		return mTable.getDistTraveled(mRow);
 	}
 
 	/**
@@ -180,7 +117,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Headsign text
 	 */
 	public String get_stop_headsign() {
-		return _stop_headsign;
+		return mTable.getHeadsign(mRow);
 	}
 
 	/**
@@ -189,7 +126,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Stop ID
 	 */
 	public String get_stop_id() {
-		return _stop_id;
+		return mTable.getStopID(mRow);
 	}
 
 	/**
@@ -198,7 +135,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Stop sequence
 	 */
 	public int get_stop_sequence() {
-		return _stop_sequence;
+		return mTable.getStopSequence(mRow);
 	}
 
 	/**
@@ -207,7 +144,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Time point
 	 */
 	public String get_timepoint() {
-		return _timepoint;
+		return mTable.getTimepoint(mRow);
 	}
 
 	/**
@@ -216,7 +153,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Trip ID
 	 */
 	public String get_trip_id() {
-		return _trip_id;
+		return mTable.getTripID(mRow);
 	}
 
 	/**
@@ -225,7 +162,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Arrival time code
 	 */
 	public int getArrivalTimecode() {
-		return _arrivalTimecode;
+		return mTable.getArrivalTimecode(mRow);
 	}
 
 	/**
@@ -234,7 +171,7 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * @return Departure time code
 	 */
 	public int getDepartureTimecode() {
-		return _departureTimecode;
+		return mTable.getDepartureTimecode(mRow);
 	}
 
 	/**
@@ -242,192 +179,61 @@ public final class StopTime extends GTFSParser implements Comparable<StopTime> {
 	 * 
 	 * @return The GTFS file name associated with this object.
 	 */
-	@Override
 	public String getFilename() {
-		return _filename;
-	}
-
-	/**
-	 * Get this objects unique ID.
-	 * 
-	 * @return This objects unique ID
-	 */
-	@Override
-	public int getID() {
-		return _trip_id.hashCode();
-	}
-
-	/**
-	 * Set the arrival time
-	 * 
-	 * @param in
-	 *            Arrival time
-	 */
-	public void set_arrival_time(String in) {
-		_arrivalTimecode = timeToMinutes(in);
-	}
-
-	/**
-	 * Set continuous stops
-	 * 
-	 * @param _continuous_stops
-	 *            The continuous stops value to set
-	 */
-	public void set_continuous_stops(String _continuous_stops) {
-		this._continuous_stops = _continuous_stops;
-	}
-
-	/**
-	 * Set the departure time
-	 * 
-	 * @param in
-	 *            Departure time
-	 */
-	public void set_departure_time(String in) {
-		_departureTimecode = timeToMinutes(in);
-	}
-
-	/**
-	 * Set the drop off type
-	 * 
-	 * @param in
-	 *            Drop off type
-	 */
-	public void set_drop_off_type(int in) {
-		_drop_off_type = in;
-	}
-
-	/**
-	 * Set the drop off type
-	 * 
-	 * @param in
-	 *            Drop off type
-	 */
-	public void set_drop_off_type(String in) {
-		try {
-			_drop_off_type = Integer.parseInt(in);
-		} catch (NumberFormatException e) {
-			;
-		}
+		return mTable.getFilename();
 	}
 
 	/**
-	 * Set the pickup type
+	 * Get the ID of the GTFS object this row belongs to
 	 * 
-	 * @param in
-	 *            Pickup type
+	 * @return The GTFS ID
 	 */
-	public void set_pickup_type(int in) {
-		_pickup_type = in;
+	public int getGTFS_ID() {
+		return mTable.getGTFS_ID();
 	}
 
 	/**
-	 * Set the pickup type
+	 * Get the row this view points at
 	 * 
-	 * @param in
-	 *            Pickup type
+	 * @return The row index
 	 */
-	public void set_pickup_type(String in) {
-		try {
-			_pickup_type = Integer.parseInt(in);
-		} catch (NumberFormatException e) {
-			;
-		}
+	public int getRow() {
+		return mRow;
 	}
 
 	/**
-	 * Set distance traveled
+	 * Get the feed dictionary index of the stop ID
 	 * 
-	 * @param in
-	 *            Distance
+	 * @return Stop index, or -1 if not set
 	 */
-	public void set_shape_dist_traveled(double in) {
-		_shape_dist_traveled = in;
-	}
-
-	/**
-	 * Set distance traveled
-	 * 
-	 * @param in
-	 *            Distance
-	 */
-	public void set_shape_dist_traveled(String in) {
-		try {
-			_shape_dist_traveled = Double.parseDouble(in);
-		} catch (NumberFormatException e) {
-			;
-		}
-	}
-
-	/**
-	 * Set headsign text
-	 * 
-	 * @param in
-	 *            Headsign text
-	 */
-	public void set_stop_headsign(String in) {
-		_stop_headsign = in;
-	}
-
-	/**
-	 * Set stop ID
-	 * 
-	 * @param in
-	 *            Stop ID
-	 */
-	public void set_stop_id(String in) {
-		_stop_id = in;
-	}
-
-	/**
-	 * Set stop sequence order
-	 * 
-	 * @param in
-	 *            Sequence order
-	 */
-	public void set_stop_sequence(int in) {
-		_stop_sequence = in;
-	}
-
-	/**
-	 * Set stop sequence order
-	 * 
-	 * @param in
-	 *            Sequence order
-	 */
-	public void set_stop_sequence(String in) {
-		try {
-			_stop_sequence = Integer.parseInt(in);
-		} catch (NumberFormatException e) {
-			;
-		}
+	public int getStopIndex() {
+		return mTable.getStopIndex(mRow);
 	}
 
 	/**
-	 * Set time point
+	 * Get the table this view points into
 	 * 
-	 * @param _timepoint
-	 *            The time point to set
+	 * @return The StopTimeTable
 	 */
-	public void set_timepoint(String _timepoint) {
-		this._timepoint = _timepoint;
+	public StopTimeTable getTable() {
+		return mTable;
 	}
 
 	/**
-	 * Set the trip ID
+	 * Get the feed dictionary index of the trip ID
 	 * 
-	 * @param in
-	 *            Trip ID
+	 * @return Trip index, or -1 if not set
 	 */
-	public void set_trip_id(String in) {
-		_trip_id = in;
+	public int getTripIndex() {
+		return mTable.getTripIndex(mRow);
 	}
 
 	@Override
 	public String toString() {
-		return _trip_id + "," + minutesToTime(_arrivalTimecode) + ","
-				+ minutesToTime(_arrivalTimecode) + "," + _stop_id + ","
-				+ _stop_sequence + "," + _stop_headsign + "," + _pickup_type
-				+ "," + _drop_off_type + "," + _shape_dist_traveled + "\n";
+		return get_trip_id() + "," + get_arrival_time() + ","
+				+ get_arrival_time() + "," + get_stop_id() + ","
+				+ get_stop_sequence() + "," + get_stop_headsign() + ","
+				+ get_pickup_type() + "," + get_drop_off_type() + ","
+				+ get_shape_dist_traveled() + "\n";
 	}
 }
@@ -0,0 +1,784 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.timeToMinutes;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import com.jasonlafrance.wtbbackend.wtb_util.CSVParser;
+
+/**
+ * Column oriented storage for a feed's stop_times.txt table. Since this is by
+ * far the largest GTFS table, rows are kept as parallel primitive arrays
+ * rather than as individual objects, and StopTime objects are just
+ * lightweight views of a row. Once loaded and sorted, the columns are sealed
+ * into a ColumnStore so they can live outside of the Java heap.
+ * 
+ * @author Jason LaFrance
+ */
+public final class StopTimeTable {
+
+	private static final String _filename = "//stop_times.txt";
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int RADIX_BITS = 16;
+	private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+
+	private final int mGTFSID;
+	private final IDDictionary mTripIDs;
+	private final IDDictionary mStopIDs;
+	private final IDDictionary mHeadsigns;
+
+	private int mSize = 0;
+	private int mCapacity = INITIAL_CAPACITY;
+
+	// columns while loading, released once sealed
+	private int[] mTrip = new int[INITIAL_CAPACITY];
+	private int[] mStop = new int[INITIAL_CAPACITY];
+	private int[] mArrival = new int[INITIAL_CAPACITY];
+	private int[] mDeparture = new int[INITIAL_CAPACITY];
+	private int[] mSequence = new int[INITIAL_CAPACITY];
+
+	private byte[] mPickupType = new byte[INITIAL_CAPACITY];
+	private byte[] mDropOffType = new byte[INITIAL_CAPACITY];
+	private float[] mDistTraveled = new float[INITIAL_CAPACITY];
+	// optional columns are only allocated if the feed has them
+	private int[] mHeadsign = null;
+	private byte[] mTimepoint = null;
+	private byte[] mContinuous = null;
+
+	// sealed columns
+	private IntBuffer mTripData, mStopData, mArrivalData, mDepartureData;
+	private IntBuffer mSequenceData;
+	private ByteBuffer mPickupData, mDropOffData;
+	private FloatBuffer mDistData;
+	private IntBuffer mHeadsignData = null;
+	private ByteBuffer mTimepointData = null, mContinuousData = null;
+
+	// visit links, filled in when route paths are built
+	private IntBuffer mNextRow = IntBuffer.allocate(0);
+	private boolean mReleased = false;
+
+	// feed lookup tables for resolving rows
+	private Trip[] mTrips = new Trip[0];
+	private Stop[] mStops = new Stop[0];
+
+	// column positions from the table header
+	private int mColumns = 0;
+	private int mTripCol = -1, mArrivalCol = -1, mDepartureCol = -1,
+			mStopCol = -1, mSequenceCol = -1, mHeadsignCol = -1,
+			mPickupCol = -1, mDropOffCol = -1, mDistCol = -1,
+			mTimepointCol = -1, mContinuousCol = -1;
+
+	/**
+	 * Create an empty StopTimeTable for a GTFS object
+	 * 
+	 * @param inID
+	 *            The ID of the GTFS object
+	 */
+	public StopTimeTable(int inID) {
+		mGTFSID = inID;
+		mTripIDs = IDDictionary.getDictionary(inID, IDDictionary.TRIP_ID);
+		mStopIDs = IDDictionary.getDictionary(inID, IDDictionary.STOP_ID);
+		mHeadsigns = IDDictionary.getDictionary(inID, "stop_headsign");
+	}
+
+	/**
+	 * Strip quotes from a raw field, returning null for empty fields
+	 * 
+	 * @param f
+	 *            The parsed row
+	 * @param col
+	 *            The column to get
+	 * @return The cleaned up field, or null if missing or empty
+	 */
+	private static String field(String[] f, int col) {
+		if (col < 0 || f[col] == null) {
+			return null;
+		}
+		String ret = f[col].replace("\"", "");
+		return ret.length() > 0 ? ret : null;
+	}
+
+	/**
+	 * Parse a field as an int
+	 * 
+	 * @param in
+	 *            The field to parse
+	 * @param def
+	 *            Default value if missing or malformed
+	 * @return The parsed value
+	 */
+	private static int parseInt(String in, int def) {
+		if (in != null) {
+			try {
+				return Integer.parseInt(in.trim());
+			} catch (NumberFormatException e) {
+				;
+			}
+		}
+		return def;
+	}
+
+	/**
+	 * Parse and add a table row
+	 * 
+	 * @param inLine
+	 *            The raw table row
+	 */
+	private void addRow(String inLine) {
+		String[] f = CSVParser.parseLine(inLine);
+		if (f.length != mColumns) {
+			return;
+		}
+
+		String tripID = field(f, mTripCol);
+		if (tripID == null) {
+			return;
+		}
+
+		if (mSize == mCapacity) {
+			grow();
+		}
+
+		int row = mSize;
+		mTrip[row] = mTripIDs.encode(tripID);
+		mStop[row] = mStopIDs.encode(field(f, mStopCol));
+
+		String time = field(f, mArrivalCol);
+		mArrival[row] = time == null ? -1 : timeToMinutes(time);
+		time = field(f, mDepartureCol);
+		mDeparture[row] = time == null ? -1 : timeToMinutes(time);
+
+		mSequence[row] = parseInt(field(f, mSequenceCol), -1);
+		mPickupType[row] = (byte) parseInt(field(f, mPickupCol), -1);
+		mDropOffType[row] = (byte) parseInt(field(f, mDropOffCol), -1);
+
+		String dist = field(f, mDistCol);
+		mDistTraveled[row] = 0.0f;
+		if (dist != null) {
+			try {
+				mDistTraveled[row] = Float.parseFloat(dist);
+			} catch (NumberFormatException e) {
+				;
+			}
+		}
+
+		if (mHeadsign != null) {
+			mHeadsign[row] = mHeadsigns.encode(field(f, mHeadsignCol));
+		}
+		if (mTimepoint != null) {
+			mTimepoint[row] = (byte) parseInt(field(f, mTimepointCol), -1);
+		}
+		if (mContinuous != null) {
+			mContinuous[row] = (byte) parseInt(field(f, mContinuousCol), -1);
+		}
+
+		mSize++;
+	}
+
+	/**
+	 * Get a view of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return A StopTime view of the row
+	 */
+	public StopTime get(int row) {
+		return new StopTime(this, row);
+	}
+
+	/**
+	 * Get the arrival time code of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Arrival time code, or -1 if none
+	 */
+	public int getArrivalTimecode(int row) {
+		return mArrivalData.get(row);
+	}
+
+	/**
+	 * Get the continuous stops value of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Continuous stops, or null if none
+	 */
+	public String getContinuousStops(int row) {
+		if (mContinuousData == null || mContinuousData.get(row) < 0) {
+			return null;
+		}
+		return Integer.toString(mContinuousData.get(row));
+	}
+
+	/**
+	 * Get the departure time code of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Departure time code, or -1 if none
+	 */
+	public int getDepartureTimecode(int row) {
+		return mDepartureData.get(row);
+	}
+
+	/**
+	 * Get the distance traveled of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Distance traveled
+	 */
+	public double getDistTraveled(int row) {
+		return mDistData.get(row);
+	}
+
+	/**
+	 * Get the drop off type of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Drop off type, or -1 if none
+	 */
+	public int getDropOffType(int row) {
+		return mDropOffData.get(row);
+	}
+
+	/**
+	 * Get the GTFS table file name
+	 * 
+	 * @return The GTFS table file name
+	 */
+	public String getFilename() {
+		return _filename;
+	}
+
+	/**
+	 * Get the ID of the GTFS object this table belongs to
+	 * 
+	 * @return The GTFS ID
+	 */
+	public int getGTFS_ID() {
+		return mGTFSID;
+	}
+
+	/**
+	 * Get the headsign text of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Headsign text, or null if none
+	 */
+	public String getHeadsign(int row) {
+		return mHeadsignData == null ? null : mHeadsigns.decode(mHeadsignData
+				.get(row));
+	}
+
+	/**
+	 * Get the next visit in a row's route path
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Row index of the next visit, or -1 if none
+	 */
+	public int getNextRow(int row) {
+		return row < mNextRow.limit() ? mNextRow.get(row) : -1;
+	}
+
+	/**
+	 * Get the pickup type of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Pickup type, or -1 if none
+	 */
+	public int getPickupType(int row) {
+		return mPickupData.get(row);
+	}
+
+	/**
+	 * Get the Route a row's trip belongs to
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return The Route, or null if unknown
+	 */
+	public Route getRoute(int row) {
+		Trip trip = getTrip(row);
+		return trip == null ? null : trip.getRoute();
+	}
+
+	/**
+	 * Get the Stop of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return The Stop, or null if unknown
+	 */
+	public Stop getStop(int row) {
+		int index = mStopData.get(row);
+		return index > -1 && index < mStops.length ? mStops[index] : null;
+	}
+
+	/**
+	 * Get the stop ID of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Stop ID
+	 */
+	public String getStopID(int row) {
+		return mStopIDs.decode(mStopData.get(row));
+	}
+
+	/**
+	 * Get the stop dictionary index of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Stop index
+	 */
+	public int getStopIndex(int row) {
+		return mStopData.get(row);
+	}
+
+	/**
+	 * Get the stop sequence of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Stop sequence, or -1 if none
+	 */
+	public int getStopSequence(int row) {
+		return mSequenceData.get(row);
+	}
+
+	/**
+	 * Get the time point of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Time point, or null if none
+	 */
+	public String getTimepoint(int row) {
+		if (mTimepointData == null || mTimepointData.get(row) < 0) {
+			return null;
+		}
+		return Integer.toString(mTimepointData.get(row));
+	}
+
+	/**
+	 * Get the Trip of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return The Trip, or null if unknown
+	 */
+	public Trip getTrip(int row) {
+		int index = mTripData.get(row);
+		return index > -1 && index < mTrips.length ? mTrips[index] : null;
+	}
+
+	/**
+	 * Get the trip ID of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Trip ID
+	 */
+	public String getTripID(int row) {
+		return mTripIDs.decode(mTripData.get(row));
+	}
+
+	/**
+	 * Get the trip dictionary index of a row
+	 * 
+	 * @param row
+	 *            The row index
+	 * @return Trip index
+	 */
+	public int getTripIndex(int row) {
+		return mTripData.get(row);
+	}
+
+	/**
+	 * Grow all of the column arrays
+	 */
+	private void grow() {
+		resize(mCapacity * 2);
+	}
+
+	/**
+	 * Check if the table is empty
+	 * 
+	 * @return True if there are no rows
+	 */
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * Set the feed lookup tables used to resolve rows into objects
+	 * 
+	 * @param inTrips
+	 *            Trips indexed by trip dictionary index
+	 * @param inStops
+	 *            Stops indexed by stop dictionary index
+	 */
+	public void link(Trip[] inTrips, Stop[] inStops) {
+		mTrips = inTrips;
+		mStops = inStops;
+	}
+
+	/**
+	 * Load the stop_times.txt table from a GTFS directory
+	 * 
+	 * @param inDir
+	 *            The path to the GTFS tables
+	 * @throws IOException
+	 *             If the table can't be read
+	 */
+	public void load(String inDir) throws IOException {
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(
+					inDir + _filename), "UTF-8"));
+
+			String line = br.readLine();
+			if (line != null) {
+				setHeader(line.trim());
+
+				line = br.readLine();
+				while (line != null && line.trim().length() > 0) {
+					addRow(line);
+					line = br.readLine();
+				}
+			}
+		} catch (FileNotFoundException e) {
+		} finally {
+			if (br != null) {
+				br.close();
+			}
+		}
+		resize(mSize);
+		sort();
+		seal(ColumnStore.getInstance());
+	}
+
+	/**
+	 * Do one stable counting sort pass on a row permutation
+	 * 
+	 * @param src
+	 *            Permutation to sort
+	 * @param dst
+	 *            Permutation to sort into
+	 * @param keys
+	 *            Key for each row
+	 * @param shift
+	 *            Which bits of the key to sort by
+	 */
+	private void radixPass(int[] src, int[] dst, int[] keys, int shift) {
+		int[] count = new int[RADIX_MASK + 2];
+		for (int i = 0; i < mSize; i++) {
+			count[((keys[src[i]] >>> shift) & RADIX_MASK) + 1]++;
+		}
+		for (int i = 1; i < count.length; i++) {
+			count[i] += count[i - 1];
+		}
+		for (int i = 0; i < mSize; i++) {
+			dst[count[(keys[src[i]] >>> shift) & RADIX_MASK]++] = src[i];
+		}
+	}
+
+	/**
+	 * Resize all of the column arrays
+	 * 
+	 * @param inCapacity
+	 *            The new capacity
+	 */
+	private void resize(int inCapacity) {
+		mTrip = Arrays.copyOf(mTrip, inCapacity);
+		mStop = Arrays.copyOf(mStop, inCapacity);
+		mArrival = Arrays.copyOf(mArrival, inCapacity);
+		mDeparture = Arrays.copyOf(mDeparture, inCapacity);
+		mSequence = Arrays.copyOf(mSequence, inCapacity);
+		mPickupType = Arrays.copyOf(mPickupType, inCapacity);
+		mDropOffType = Arrays.copyOf(mDropOffType, inCapacity);
+		mDistTraveled = Arrays.copyOf(mDistTraveled, inCapacity);
+		if (mHeadsign != null) {
+			mHeadsign = Arrays.copyOf(mHeadsign, inCapacity);
+		}
+		if (mTimepoint != null) {
+			mTimepoint = Arrays.copyOf(mTimepoint, inCapacity);
+		}
+		if (mContinuous != null) {
+			mContinuous = Arrays.copyOf(mContinuous, inCapacity);
+		}
+		mCapacity = inCapacity;
+	}
+
+	/**
+	 * Parse the table header and figure out the column positions
+	 * 
+	 * @param inHeader
+	 *            The full, raw header String
+	 */
+	private void setHeader(String inHeader) {
+		String[] f = CSVParser.parseLine(inHeader);
+		mColumns = f.length;
+		for (int i = 0; i < f.length; i++) {
+			switch (f[i].trim().replaceAll("\"", "")) {
+			case "trip_id":
+				mTripCol = i;
+				break;
+			case "arrival_time":
+				mArrivalCol = i;
+				break;
+			case "departure_time":
+				mDepartureCol = i;
+				break;
+			case "stop_id":
+				mStopCol = i;
+				break;
+			case "stop_sequence":
+				mSequenceCol = i;
+				break;
+			case "stop_headsign":
+				mHeadsignCol = i;
+				mHeadsign = new int[mCapacity];
+				break;
+			case "pickup_type":
+				mPickupCol = i;
+				break;
+			case "drop_off_type":
+				mDropOffCol = i;
+				break;
+			case "shape_dist_traveled":
+				mDistCol = i;
+				break;
+			case "timepoint":
+				mTimepointCol = i;
+				mTimepoint = new byte[mCapacity];
+				break;
+			case "continuous_stops":
+				mContinuousCol = i;
+				mContinuous = new byte[mCapacity];
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Clear all of the visit links between rows. The link column is reused
+	 * across relinks, since the number of rows never changes once sealed.
+	 */
+	public void resetLinks() {
+		if (mNextRow.capacity() == mSize) {
+			for (int i = 0; i < mSize; i++) {
+				mNextRow.put(i, -1);
+			}
+		} else {
+			ColumnStore store = ColumnStore.getInstance();
+			store.release(mNextRow);
+			mNextRow = store.allocateInts(mSize, -1);
+		}
+	}
+
+	/**
+	 * Hand the sealed columns back to the ColumnStore once the feed is
+	 * released. The columns stay readable until the table is collected.
+	 */
+	public synchronized void release() {
+		if (mReleased) {
+			return;
+		}
+		mReleased = true;
+		ColumnStore store = ColumnStore.getInstance();
+		for (Buffer b : new Buffer[] { mTripData, mStopData, mArrivalData,
+				mDepartureData, mSequenceData, mPickupData, mDropOffData,
+				mDistData, mHeadsignData, mTimepointData, mContinuousData,
+				mNextRow }) {
+			store.release(b);
+		}
+	}
+
+	/**
+	 * Move the loaded columns into a ColumnStore and release the load arrays
+	 * 
+	 * @param inStore
+	 *            The store to place the columns in
+	 */
+	private void seal(ColumnStore inStore) {
+		mTripData = inStore.store(mTrip);
+		mStopData = inStore.store(mStop);
+		mArrivalData = inStore.store(mArrival);
+		mDepartureData = inStore.store(mDeparture);
+		mSequenceData = inStore.store(mSequence);
+		mPickupData = inStore.store(mPickupType);
+		mDropOffData = inStore.store(mDropOffType);
+		mDistData = inStore.store(mDistTraveled);
+		if (mHeadsign != null) {
+			mHeadsignData = inStore.store(mHeadsign);
+		}
+		if (mTimepoint != null) {
+			mTimepointData = inStore.store(mTimepoint);
+		}
+		if (mContinuous != null) {
+			mContinuousData = inStore.store(mContinuous);
+		}
+
+		mTrip = mStop = mArrival = mDeparture = mHeadsign = mSequence = null;
+		mPickupType = mDropOffType = mTimepoint = mContinuous = null;
+		mDistTraveled = null;
+		mCapacity = 0;
+		resetLinks();
+	}
+
+	/**
+	 * Set the next visit in a row's route path
+	 * 
+	 * @param row
+	 *            The row index
+	 * @param next
+	 *            Row index of the next visit
+	 */
+	public void setNextRow(int row, int next) {
+		mNextRow.put(row, next);
+	}
+
+	/**
+	 * Get the number of rows
+	 * 
+	 * @return Number of rows
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Sort the rows by trip and stop sequence. This uses an LSD radix sort on
+	 * the primitive keys, so it's linear in the number of rows.
+	 */
+	private void sort() {
+		int[] order = new int[mSize];
+		int[] temp = new int[mSize];
+		int[] keys = new int[mSize];
+		int maxTrip = 0;
+		int minSequence = Integer.MAX_VALUE, maxSequence = Integer.MIN_VALUE;
+
+		for (int i = 0; i < mSize; i++) {
+			order[i] = i;
+			if (mTrip[i] > maxTrip) {
+				maxTrip = mTrip[i];
+			}
+			if (mSequence[i] < minSequence) {
+				minSequence = mSequence[i];
+			}
+			if (mSequence[i] > maxSequence) {
+				maxSequence = mSequence[i];
+			}
+		}
+		// key on the offset from the lowest sequence so -1 sorts first, and
+		// most feeds only need one pass over it
+		for (int i = 0; i < mSize; i++) {
+			keys[i] = mSequence[i] - minSequence;
+		}
+
+		radixPass(order, temp, keys, 0);
+		if (((maxSequence - minSequence) >>> RADIX_BITS) != 0) {
+			radixPass(temp, order, keys, RADIX_BITS);
+			int[] swap = order;
+			order = temp;
+			temp = swap;
+		}
+		radixPass(temp, order, mTrip, 0);
+		if (maxTrip > RADIX_MASK) {
+			radixPass(order, temp, mTrip, RADIX_BITS);
+			int[] swap = order;
+			order = temp;
+			temp = swap;
+		}
+
+		// now shuffle every column into the sorted order
+		mTrip = permute(mTrip, order, new int[mSize]);
+		mStop = permute(mStop, order, temp);
+		mArrival = permute(mArrival, order, new int[mSize]);
+		mDeparture = permute(mDeparture, order, new int[mSize]);
+		if (mHeadsign != null) {
+			mHeadsign = permute(mHeadsign, order, new int[mSize]);
+		}
+
+		int[] sequence = new int[mSize];
+		byte[] pickup = new byte[mSize];
+		byte[] dropOff = new byte[mSize];
+		float[] dist = new float[mSize];
+		byte[] timepoint = mTimepoint == null ? null : new byte[mSize];
+		byte[] continuous = mContinuous == null ? null : new byte[mSize];
+		for (int i = 0; i < mSize; i++) {
+			int from = order[i];
+			sequence[i] = mSequence[from];
+			pickup[i] = mPickupType[from];
+			dropOff[i] = mDropOffType[from];
+			dist[i] = mDistTraveled[from];
+			if (timepoint != null) {
+				timepoint[i] = mTimepoint[from];
+			}
+			if (continuous != null) {
+				continuous[i] = mContinuous[from];
+			}
+		}
+		mSequence = sequence;
+		mPickupType = pickup;
+		mDropOffType = dropOff;
+		mDistTraveled = dist;
+		mTimepoint = timepoint;
+		mContinuous = continuous;
+		mCapacity = mSize;
+	}
+
+	/**
+	 * Reorder an int column by a row permutation
+	 * 
+	 * @param column
+	 *            The column to reorder
+	 * @param order
+	 *            The row permutation
+	 * @param out
+	 *            Array to reorder into
+	 * @return The reordered column
+	 */
+	private int[] permute(int[] column, int[] order, int[] out) {
+		for (int i = 0; i < mSize; i++) {
+			out[i] = column[order[i]];
+		}
+		return out;
+	}
+}
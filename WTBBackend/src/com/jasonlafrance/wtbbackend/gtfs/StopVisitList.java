@@ -0,0 +1,87 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.gtfs;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list view of stop visits in a StopTimeTable. The visits are
+ * either a contiguous row range, as in a Trip, or an array of rows, as in a
+ * RoutePath. Nothing is copied, and a StopAdapter is only made for the visits
+ * that are actually looked at.
+ * 
+ * @author Jason LaFrance
+ */
+final class StopVisitList extends AbstractList<StopAdapter> implements
+		RandomAccess {
+
+	private final StopTimeTable mTable;
+	private final int[] mRows;
+	private final int mFirstRow, mSize;
+
+	/**
+	 * Create a view of a row range
+	 * 
+	 * @param inTable
+	 *            The StopTimeTable holding the visits
+	 * @param inFirstRow
+	 *            First row of the range
+	 * @param inEndRow
+	 *            Row after the last one in the range
+	 */
+	StopVisitList(StopTimeTable inTable, int inFirstRow, int inEndRow) {
+		mTable = inTable;
+		mRows = null;
+		mFirstRow = inFirstRow;
+		mSize = inEndRow - inFirstRow;
+	}
+
+	/**
+	 * Create a view of an array of rows
+	 * 
+	 * @param inTable
+	 *            The StopTimeTable holding the visits
+	 * @param inRows
+	 *            The visits' rows, in order. Not copied, so it must not
+	 *            change afterwards.
+	 */
+	StopVisitList(StopTimeTable inTable, int[] inRows) {
+		mTable = inTable;
+		mRows = inRows;
+		mFirstRow = 0;
+		mSize = inRows.length;
+	}
+
+	@Override
+	public StopAdapter get(int i) {
+		if (i < 0 || i >= mSize) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: "
+					+ mSize);
+		}
+		return new StopAdapter(mTable, mRows == null ? mFirstRow + i
+				: mRows[i]);
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+}
@@ -21,6 +21,7 @@ package com.jasonlafrance.wtbbackend.gtfs;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.ListIterator;
 
 import static com.jasonlafrance.wtbbackend.gtfs.GTFSParser._headers;
@@ -85,19 +86,26 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	private static final String _filename = "//trips.txt";
 
 	private String _route_id = null;
+	private int _route_index = -1;
 
 	private String _service_id = null;
+	private int _service_index = -1;
 	private String _trip_id = null;
+	private int _trip_index = -1;
 	private String _trip_headsign = null;
 	private String _trip_short_name = null;
 	private int _direction_id = -1;
 	private String _block_id = null;
 	private String _shape_id = null;
+	private int _shape_index = -1;
 	private String _trip_type = null;
 	private int _wheelchair_accessible = -1;
 	private ArrayList<Vertex> mVertices;
 
-	private ArrayList<StopAdapter> mStops;
+	// stop visits are a contiguous row range in the feed's StopTimeTable
+	private StopTimeTable mStopTimes;
+	private int mFirstRow, mEndRow;
+	private StopVisitList mStopList = null;
 	private Route mRoute;
 	private int mStartTime, mEndTime;
 	private int mStartStopID, mEndStopID;
@@ -145,24 +153,30 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	}
 
 	/**
-	 * Add a stop to this trip
+	 * Add a stop visit to this trip. Visits must be added in row order, since
+	 * the trip only keeps track of its row range.
 	 * 
-	 * @param in
-	 *            A Stop object wrapped in a StopAdapter
+	 * @param inTable
+	 *            The StopTimeTable holding the visit
+	 * @param inRow
+	 *            The visit's row in the table
 	 */
-	public void addStop(StopAdapter in) {
+	public void addStop(StopTimeTable inTable, int inRow) {
 		if (mStartStopID == -1) {
-			mStartStopID = in.getStop().getID();
+			mStartStopID = inTable.getStop(inRow).getID();
+			mStopTimes = inTable;
+			mFirstRow = inRow;
 		}
-		mEndStopID = in.getStop().getID();
-		mStops.add(in);
+		mEndStopID = inTable.getStop(inRow).getID();
+		mEndRow = inRow + 1;
+		mStopList = null;
 	}
 
 	/**
 	 * Add stop coordinates to the Vertex list
 	 */
 	public void addStopsToVertexList() {
-		addStopsToVertexList(mVertices, mStops);
+		addStopsToVertexList(mVertices, getStops());
 	}
 
 	/**
@@ -174,7 +188,7 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 *            A list of Stops wrapped in StopAdapters
 	 */
 	public void addStopsToVertexList(ArrayList<Vertex> vertices,
-			ArrayList<StopAdapter> stops) {
+			List<StopAdapter> stops) {
 		// bail if either vertex or stop lists are empty
 		if (vertices.isEmpty() || stops.isEmpty()) {
 			return;
@@ -449,6 +463,42 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 		return mEndTime;
 	}
 
+	/**
+	 * Get the feed dictionary index of the route ID
+	 * 
+	 * @return Route index, or -1 if not set
+	 */
+	public int getRouteIndex() {
+		return _route_index;
+	}
+
+	/**
+	 * Get the feed dictionary index of the service ID
+	 * 
+	 * @return Service index, or -1 if not set
+	 */
+	public int getServiceIndex() {
+		return _service_index;
+	}
+
+	/**
+	 * Get the feed dictionary index of the shape ID
+	 * 
+	 * @return Shape index, or -1 if not set
+	 */
+	public int getShapeIndex() {
+		return _shape_index;
+	}
+
+	/**
+	 * Get the feed dictionary index of the trip ID
+	 * 
+	 * @return Trip index, or -1 if not set
+	 */
+	public int getTripIndex() {
+		return _trip_index;
+	}
+
 	/**
 	 * Get the GTFS file name associated with this object.
 	 * 
@@ -465,8 +515,8 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 * @return First stop in trip
 	 */
 	public StopAdapter getFirstStop() {
-		if (mStops.size() > 0) {
-			return mStops.get(0);
+		if (getStopCount() > 0) {
+			return getStop(0);
 		} else {
 			return null;
 		}
@@ -488,8 +538,8 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 * @return Last stop in trip
 	 */
 	public StopAdapter getLastStop() {
-		if (mStops.size() > 0) {
-			return mStops.get(mStops.size() - 1);
+		if (getStopCount() > 0) {
+			return getStop(getStopCount() - 1);
 		} else {
 			return null;
 		}
@@ -504,6 +554,37 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 		return mRoute;
 	}
 
+	/**
+	 * Get the scheduled time of every stop visit, preferring departure times.
+	 * Visits between two timepoints are interpolated by stop count; visits
+	 * before the first or after the last timepoint have no time.
+	 * 
+	 * @return Seconds since midnight per visit, or -1 where there is none
+	 */
+	public int[] getScheduledTimes() {
+		int[] ret = new int[getStopCount()];
+		int last = -1;
+		for (int i = 0; i < ret.length; i++) {
+			int row = getStopRow(i);
+			int time = mStopTimes.getDepartureTimecode(row);
+			if (time < 0) {
+				time = mStopTimes.getArrivalTimecode(row);
+			}
+			ret[i] = time < 0 ? -1 : time * 60;
+			if (ret[i] < 0) {
+				continue;
+			}
+			if (last > -1) {
+				for (int j = last + 1; j < i; j++) {
+					ret[j] = ret[last] + (ret[i] - ret[last]) * (j - last)
+							/ (i - last);
+				}
+			}
+			last = i;
+		}
+		return ret;
+	}
+
 	/**
 	 * Get starting stop ID
 	 * 
@@ -523,12 +604,58 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	}
 
 	/**
-	 * Get list of Stops in trip
+	 * Get a stop visit in the trip
+	 * 
+	 * @param i
+	 *            Position of the visit in the trip
+	 * @return The Stop wrapped in a StopAdapter
+	 */
+	public StopAdapter getStop(int i) {
+		return new StopAdapter(mStopTimes, mFirstRow + i);
+	}
+
+	/**
+	 * Get the number of stop visits in the trip
+	 * 
+	 * @return Number of stops
+	 */
+	public int getStopCount() {
+		return mEndRow - mFirstRow;
+	}
+
+	/**
+	 * Get the StopTimeTable row of a stop visit
+	 * 
+	 * @param i
+	 *            Position of the visit in the trip
+	 * @return The row index
+	 */
+	public int getStopRow(int i) {
+		return mFirstRow + i;
+	}
+
+	/**
+	 * Get list of Stops in trip. This is a read-only view of the trip's rows,
+	 * so it's only built once.
 	 * 
 	 * @return List of stops
 	 */
-	public ArrayList<StopAdapter> getStops() {
-		return mStops;
+	public List<StopAdapter> getStops() {
+		StopVisitList ret = mStopList;
+		if (ret == null) {
+			ret = new StopVisitList(mStopTimes, mFirstRow, mEndRow);
+			mStopList = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the StopTimeTable holding this trip's stop visits
+	 * 
+	 * @return The StopTimeTable, or null if the trip has no stops
+	 */
+	public StopTimeTable getStopTimeTable() {
+		return mStopTimes;
 	}
 
 	/**
@@ -545,7 +672,10 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 */
 	public void resetStructure() {
 		mVertices = new ArrayList<>();
-		mStops = new ArrayList<>();
+		mStopTimes = null;
+		mFirstRow = 0;
+		mEndRow = 0;
+		mStopList = null;
 		mRoute = null;
 		mStartTime = 0;
 		mEndTime = 0;
@@ -594,7 +724,9 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 *            Route ID
 	 */
 	public void set_route_id(String in) {
-		_route_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.ROUTE_ID);
+		_route_index = dict.encode(in);
+		_route_id = dict.decode(_route_index);
 	}
 
 	/**
@@ -604,7 +736,9 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 *            Service ID
 	 */
 	public void set_service_id(String in) {
-		_service_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.SERVICE_ID);
+		_service_index = dict.encode(in);
+		_service_id = dict.decode(_service_index);
 	}
 
 	/**
@@ -614,7 +748,9 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 *            Shape ID
 	 */
 	public void set_shape_id(String in) {
-		_shape_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.SHAPE_ID);
+		_shape_index = dict.encode(in);
+		_shape_id = dict.decode(_shape_index);
 	}
 
 	/**
@@ -634,7 +770,9 @@ public final class Trip extends GTFSParser implements Comparable<Trip> {
 	 *            Trip ID
 	 */
 	public void set_trip_id(String in) {
-		_trip_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.TRIP_ID);
+		_trip_index = dict.encode(in);
+		_trip_id = dict.decode(_trip_index);
 	}
 
 	/**
@@ -49,6 +49,7 @@ public final class Vertex extends GTFSParser {
 	}
 
 	private String _shape_id = null;
+	private int _shape_index = -1;
 	private double _shape_pt_lat = 0.0, _shape_pt_lon = 0.0;
 	private int _shape_pt_sequence = -1;
 
@@ -137,6 +138,15 @@ public final class Vertex extends GTFSParser {
 		return _shape_id;
 	}
 
+	/**
+	 * Get the feed dictionary index of the shape ID
+	 * 
+	 * @return Shape index, or -1 if not set
+	 */
+	public int getShapeIndex() {
+		return _shape_index;
+	}
+
 	/**
 	 * Get latitude
 	 * 
@@ -321,7 +331,9 @@ public final class Vertex extends GTFSParser {
 	 *            Shape ID
 	 */
 	public void set_shape_id(String in) {
-		_shape_id = in;
+		IDDictionary dict = getDictionary(IDDictionary.SHAPE_ID);
+		_shape_index = dict.encode(in);
+		_shape_id = dict.decode(_shape_index);
 	}
 
 	/**
@@ -0,0 +1,103 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.history;
+
+import com.jasonlafrance.wtbbackend.query.QueryHandler;
+import com.jasonlafrance.wtbbackend.query.Snapshot;
+import com.jasonlafrance.wtbbackend.wtb_util.JSONUtil;
+
+/**
+ * Query handler for where a vehicle has been.
+ * 
+ * <pre>
+ * /history/[vehicle]/[from]/[to]
+ * </pre>
+ * 
+ * From and to are epoch seconds, at most MAX_RANGE_SECONDS apart. The
+ * response has the vehicle's average speed over the window and its positions
+ * as [millis, lat, lon], up to MAX_POSITIONS of them. A window means
+ * decoding every block it covers, so this should be registered with
+ * QueryPortal.addBlockingHandler().
+ * 
+ * @author Jason LaFrance
+ */
+public class HistoryQueries implements QueryHandler {
+
+	public static final int MAX_POSITIONS = 10000;
+	public static final int MAX_RANGE_SECONDS = 24 * 60 * 60;
+
+	private final PositionStore mStore;
+
+	/**
+	 * Create a handler over a store
+	 * 
+	 * @param inStore
+	 *            The position store
+	 */
+	public HistoryQueries(PositionStore inStore) {
+		mStore = inStore;
+	}
+
+	@Override
+	public Snapshot query(String inPath) {
+		String[] parts = inPath.split("/");
+		if (parts.length != 5 || !parts[1].equals("history")) {
+			return null;
+		}
+		int vehicle;
+		long from, to;
+		try {
+			vehicle = Integer.parseInt(parts[2]);
+			from = Long.parseLong(parts[3]) * 1000;
+			to = Long.parseLong(parts[4]) * 1000;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (to < from || to - from > MAX_RANGE_SECONDS * 1000L) {
+			return null;
+		}
+
+		final StringBuilder sb = new StringBuilder(4096);
+		sb.append("{\"vehicle\":").append(vehicle);
+		sb.append(",\"speed_mps\":");
+		double speed = mStore.getAverageSpeed(vehicle, from, to);
+		if (Double.isNaN(speed)) {
+			sb.append("null");
+		} else {
+			JSONUtil.appendNumber(sb, speed);
+		}
+		sb.append(",\"positions\":[");
+		final int[] count = { 0 };
+		mStore.scan(vehicle, from, to, new PositionVisitor() {
+			@Override
+			public boolean visit(int inVehicle, long inMillis, float inLat,
+					float inLon) {
+				if (count[0]++ > 0) {
+					sb.append(',');
+				}
+				sb.append('[').append(inMillis).append(',').append(inLat)
+						.append(',').append(inLon).append(']');
+				return count[0] < MAX_POSITIONS;
+			}
+		});
+		sb.append("]}");
+		return Snapshot.json(sb.toString());
+	}
+}
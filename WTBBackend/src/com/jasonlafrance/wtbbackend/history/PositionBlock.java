@@ -0,0 +1,353 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.history;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One vehicle's run of positions, bit-packed. The first point is kept whole
+ * and every later one is encoded against the point before it: timestamps
+ * as a delta of deltas, since updates arrive at a steady rate, and
+ * coordinates as deltas on a fixed-point grid of 1e-7 degrees, which is
+ * fine enough to give back the exact floats that came in. Each value takes
+ * the smallest of a few bit widths, flagged by a short prefix, so a vehicle
+ * reporting once a second usually costs four to six bytes per point
+ * instead of eighteen.
+ * 
+ * @author Jason LaFrance
+ */
+class PositionBlock {
+
+	static final int MAX_POINTS = 256;
+	static final double SCALE = 1e7;
+
+	// prefix 0, 10, 110, 1110 then 1111 for a full 32 bits
+	private static final int[] TIME_BITS = { 0, 7, 9, 12, 32 };
+	private static final int[] COORD_BITS = { 0, 8, 13, 18, 32 };
+
+	private final int mVehicle;
+	private final long mFirstMillis;
+	private final int mFirstLat, mFirstLon;
+
+	private long mLastMillis, mLastDelta = 0;
+	private int mLastLat, mLastLon;
+	private int mCount = 1;
+
+	private byte[] mBuf = new byte[64];
+	private int mLen = 0;
+	private long mAcc = 0;
+	private int mAccBits = 0;
+
+	/**
+	 * Start a block with its first point
+	 * 
+	 * @param inVehicle
+	 *            Vehicle ID
+	 * @param inMillis
+	 *            Epoch milliseconds
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 */
+	PositionBlock(int inVehicle, long inMillis, float inLat, float inLon) {
+		mVehicle = inVehicle;
+		mFirstMillis = mLastMillis = inMillis;
+		mFirstLat = mLastLat = fixed(inLat);
+		mFirstLon = mLastLon = fixed(inLon);
+	}
+
+	/**
+	 * Add a point
+	 * 
+	 * @param inMillis
+	 *            Epoch milliseconds, no earlier than the last point
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 */
+	void add(long inMillis, float inLat, float inLon) {
+		long delta = inMillis - mLastMillis;
+		writeValue(delta - mLastDelta, TIME_BITS);
+		mLastDelta = delta;
+		mLastMillis = inMillis;
+
+		int lat = fixed(inLat);
+		int lon = fixed(inLon);
+		// int math wraps, so even a jump across the antimeridian fits
+		writeValue(lat - mLastLat, COORD_BITS);
+		writeValue(lon - mLastLon, COORD_BITS);
+		mLastLat = lat;
+		mLastLon = lon;
+		mCount++;
+	}
+
+	/**
+	 * @return Estimated heap bytes, fields and buffer included
+	 */
+	int estimateBytes() {
+		return 64 + 16 + mBuf.length;
+	}
+
+	/**
+	 * @return True if the block can't take any more points
+	 */
+	boolean isFull() {
+		return mCount >= MAX_POINTS;
+	}
+
+	/**
+	 * @return Vehicle ID
+	 */
+	int getVehicle() {
+		return mVehicle;
+	}
+
+	/**
+	 * @return Number of points
+	 */
+	int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return Time of the first point
+	 */
+	long getFirstMillis() {
+		return mFirstMillis;
+	}
+
+	/**
+	 * @return Time of the last point
+	 */
+	long getLastMillis() {
+		return mLastMillis;
+	}
+
+	/**
+	 * @return Fixed point latitude of the first point
+	 */
+	int getFirstLat() {
+		return mFirstLat;
+	}
+
+	/**
+	 * @return Fixed point longitude of the first point
+	 */
+	int getFirstLon() {
+		return mFirstLon;
+	}
+
+	/**
+	 * Get the packed points after the first, padded out to a whole byte
+	 * 
+	 * @return A copy of the encoded bits
+	 */
+	byte[] getBytes() {
+		byte[] ret = Arrays.copyOf(mBuf, mLen + (mAccBits > 0 ? 1 : 0));
+		if (mAccBits > 0) {
+			ret[mLen] = (byte) (mAcc << (8 - mAccBits));
+		}
+		return ret;
+	}
+
+	/**
+	 * Write a signed value with the narrowest width that holds it
+	 * 
+	 * @param in
+	 *            The value
+	 * @param inWidths
+	 *            The widths to choose from
+	 */
+	private void writeValue(long in, int[] inWidths) {
+		if (in == 0) {
+			write(0, 1);
+			return;
+		}
+		long zigzag = (in << 1) ^ (in >> 63);
+		for (int w = 1; w < inWidths.length - 1; w++) {
+			if (zigzag >>> inWidths[w] == 0) {
+				// w ones then a zero
+				write(((1L << w) - 1) << 1, w + 1);
+				write(zigzag, inWidths[w]);
+				return;
+			}
+		}
+		write(0xf, 4);
+		write(zigzag, 32);
+	}
+
+	/**
+	 * Append the low bits of a value
+	 * 
+	 * @param in
+	 *            The value
+	 * @param inBits
+	 *            How many bits to write, at most 32
+	 */
+	private void write(long in, int inBits) {
+		mAcc = (mAcc << inBits) | (in & ((1L << inBits) - 1));
+		mAccBits += inBits;
+		while (mAccBits >= 8) {
+			mAccBits -= 8;
+			if (mLen == mBuf.length) {
+				mBuf = Arrays.copyOf(mBuf, mBuf.length * 2);
+			}
+			mBuf[mLen++] = (byte) (mAcc >>> mAccBits);
+		}
+	}
+
+	/**
+	 * Convert degrees to fixed point
+	 * 
+	 * @param in
+	 *            Degrees
+	 * @return 1e-7 degree units
+	 */
+	static int fixed(float in) {
+		return (int) Math.round(in * SCALE);
+	}
+
+	/**
+	 * Decodes a block's points in order, straight from a buffer
+	 */
+	static class Cursor {
+
+		private final ByteBuffer mData;
+		private final int mEnd;
+		private int mPos;
+		private int mLeft;
+		private long mAcc = 0;
+		private int mAccBits = 0;
+
+		private long mMillis, mDelta = 0;
+		private int mLat, mLon;
+		private boolean isFirst = true;
+
+		/**
+		 * Start decoding a block
+		 * 
+		 * @param inData
+		 *            Buffer holding the packed bits, read with absolute gets
+		 * @param inOffset
+		 *            Where the packed bits start
+		 * @param inLength
+		 *            Number of packed bytes
+		 * @param inCount
+		 *            Number of points in the block
+		 * @param inFirstMillis
+		 *            Time of the first point
+		 * @param inFirstLat
+		 *            Fixed point latitude of the first point
+		 * @param inFirstLon
+		 *            Fixed point longitude of the first point
+		 */
+		Cursor(ByteBuffer inData, int inOffset, int inLength, int inCount,
+				long inFirstMillis, int inFirstLat, int inFirstLon) {
+			mData = inData;
+			mPos = inOffset;
+			mEnd = inOffset + inLength;
+			mLeft = inCount;
+			mMillis = inFirstMillis;
+			mLat = inFirstLat;
+			mLon = inFirstLon;
+		}
+
+		/**
+		 * Move to the next point
+		 * 
+		 * @return False once every point has been read
+		 */
+		boolean next() {
+			if (mLeft == 0) {
+				return false;
+			}
+			mLeft--;
+			if (isFirst) {
+				isFirst = false;
+				return true;
+			}
+			mDelta += readValue(TIME_BITS);
+			mMillis += mDelta;
+			mLat += (int) readValue(COORD_BITS);
+			mLon += (int) readValue(COORD_BITS);
+			return true;
+		}
+
+		/**
+		 * @return Time of the current point
+		 */
+		long getMillis() {
+			return mMillis;
+		}
+
+		/**
+		 * @return Latitude of the current point
+		 */
+		float getLat() {
+			return (float) (mLat / SCALE);
+		}
+
+		/**
+		 * @return Longitude of the current point
+		 */
+		float getLon() {
+			return (float) (mLon / SCALE);
+		}
+
+		/**
+		 * Read a value written by writeValue
+		 * 
+		 * @param inWidths
+		 *            The widths it was chosen from
+		 * @return The signed value
+		 */
+		private long readValue(int[] inWidths) {
+			int w = 0;
+			while (w < inWidths.length - 1 && read(1) == 1) {
+				w++;
+			}
+			if (w == 0) {
+				return 0;
+			}
+			long zigzag = read(inWidths[w]);
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		/**
+		 * Read bits
+		 * 
+		 * @param inBits
+		 *            How many, at most 32
+		 * @return The bits as an unsigned value
+		 */
+		private long read(int inBits) {
+			while (mAccBits < inBits) {
+				int b = mPos < mEnd ? mData.get(mPos++) & 0xff : 0;
+				mAcc = (mAcc << 8) | b;
+				mAccBits += 8;
+			}
+			mAccBits -= inBits;
+			return (mAcc >>> mAccBits) & ((1L << inBits) - 1);
+		}
+	}
+}
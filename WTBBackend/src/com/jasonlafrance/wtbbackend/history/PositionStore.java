@@ -0,0 +1,811 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.history;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.vehicle.VehicleListener;
+import com.jasonlafrance.wtbbackend.wtb_util.GPSCalc;
+
+/**
+ * Embedded store of every position every vehicle has reported. Each vehicle
+ * fills a PositionBlock in memory, and full blocks are appended to
+ * memory-mapped segment files. Segments are grouped into one directory per
+ * UTC day, so old days can be dropped whole and a time window only touches
+ * the days it covers. An in-memory index of each day's blocks, by vehicle
+ * and by time, is rebuilt from the segment headers when the store is
+ * opened.
+ * 
+ * Blocks still being filled are included in scans, so recent positions
+ * show up straight away.
+ * 
+ * Recording never touches the disk. A full block is queued, and flushIdle()
+ * or flush() appends it to its segment along with any idle blocks. Those
+ * calls are meant for a background thread, so rolling to a new segment,
+ * mapping it and dropping expired days never holds up a vehicle update.
+ * 
+ * @author Jason LaFrance
+ */
+public class PositionStore implements VehicleListener {
+
+	public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+	public static final String EXTENSION = ".wtbh";
+
+	private static final long DAY_MILLIS = 86400000L;
+	private static final int MAGIC = 0x57544248; // WTBH
+	private static final int VERSION = 1;
+	private static final int SEGMENT_HEADER_BYTES = 16;
+	// vehicle, count, first and last time, first lat and lon, length
+	private static final int BLOCK_HEADER_BYTES = 36;
+
+	private final File mDir;
+	private final int mSegmentBytes;
+	private final int mRetentionDays;
+	private final TreeMap<Integer, Partition> mPartitions = new TreeMap<>();
+	private final ConcurrentHashMap<Integer, PositionBlock> mOpen = new ConcurrentHashMap<>();
+	// full blocks waiting for the flusher, oldest first
+	private final ConcurrentLinkedQueue<PositionBlock> mFull = new ConcurrentLinkedQueue<>();
+
+	private final AtomicLong mPoints = new AtomicLong();
+	private long mBlocks = 0;
+	private long mBytes = 0;
+
+	/**
+	 * Day partition: its segments and an index of the blocks in them
+	 */
+	private static class Partition {
+		final int mDay;
+		final File mDir;
+		final ArrayList<BlockRef> mBlocks = new ArrayList<>();
+		final HashMap<Integer, ArrayList<BlockRef>> mByVehicle = new HashMap<>();
+		// segment being appended to, if this run has written to the day
+		MappedByteBuffer mSegment = null;
+
+		/**
+		 * @param inDay
+		 *            Days since the epoch
+		 * @param inDir
+		 *            The day's directory
+		 */
+		Partition(int inDay, File inDir) {
+			mDay = inDay;
+			mDir = inDir;
+		}
+
+		/**
+		 * Index a block
+		 * 
+		 * @param in
+		 *            The block
+		 */
+		void add(BlockRef in) {
+			mBlocks.add(in);
+			ArrayList<BlockRef> list = mByVehicle.get(in.mVehicle);
+			if (list == null) {
+				list = new ArrayList<>();
+				mByVehicle.put(in.mVehicle, list);
+			}
+			list.add(in);
+		}
+	}
+
+	/**
+	 * Where a sealed block lives and what it covers
+	 */
+	private static class BlockRef {
+		final ByteBuffer mData;
+		final int mOffset;
+		final int mVehicle;
+		final int mCount;
+		final long mFirst, mLast;
+		final int mLat, mLon;
+		final int mLength;
+
+		/**
+		 * Read a block's header
+		 * 
+		 * @param inData
+		 *            The segment
+		 * @param inOffset
+		 *            Where the block starts
+		 */
+		BlockRef(ByteBuffer inData, int inOffset) {
+			mData = inData;
+			mOffset = inOffset;
+			mVehicle = inData.getInt(inOffset);
+			mCount = inData.getInt(inOffset + 4);
+			mFirst = inData.getLong(inOffset + 8);
+			mLast = inData.getLong(inOffset + 16);
+			mLat = inData.getInt(inOffset + 24);
+			mLon = inData.getInt(inOffset + 28);
+			mLength = inData.getInt(inOffset + 32);
+		}
+
+		/**
+		 * @return A cursor over the block's points
+		 */
+		PositionBlock.Cursor cursor() {
+			return new PositionBlock.Cursor(mData, mOffset
+					+ BLOCK_HEADER_BYTES, mLength, mCount, mFirst, mLat, mLon);
+		}
+	}
+
+	/**
+	 * Open a store with the default segment size, keeping every day
+	 * 
+	 * @param inDir
+	 *            Store directory, created if needed
+	 * @throws IOException
+	 *             If the directory or existing segments can't be read
+	 */
+	public PositionStore(String inDir) throws IOException {
+		this(inDir, DEFAULT_SEGMENT_BYTES, 0);
+	}
+
+	/**
+	 * Open a store
+	 * 
+	 * @param inDir
+	 *            Store directory, created if needed
+	 * @param inSegmentBytes
+	 *            Size of each segment file
+	 * @param inRetentionDays
+	 *            Days to keep, counting today, or 0 to keep everything
+	 * @throws IOException
+	 *             If the directory or existing segments can't be read
+	 */
+	public PositionStore(String inDir, int inSegmentBytes, int inRetentionDays)
+			throws IOException {
+		mDir = new File(inDir);
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("Can't create " + inDir);
+		}
+		mSegmentBytes = Math.max(1 << 16, inSegmentBytes);
+		mRetentionDays = Math.max(0, inRetentionDays);
+
+		File[] days = mDir.listFiles();
+		if (days != null) {
+			for (File day : days) {
+				int d = parseDay(day.getName());
+				if (d >= 0 && day.isDirectory()) {
+					mPartitions.put(d, load(d, day));
+				}
+			}
+		}
+	}
+
+	@Override
+	public void vehicleUpdated(Vehicle v) {
+		record(v.getID(), System.currentTimeMillis(), (float) v.getLat(),
+				(float) v.getLon());
+	}
+
+	/**
+	 * Record a position. Positions for a vehicle should arrive in time order.
+	 * 
+	 * @param inVehicle
+	 *            Vehicle ID
+	 * @param inMillis
+	 *            Epoch milliseconds
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 */
+	public void record(int inVehicle, long inMillis, float inLat, float inLon) {
+		while (true) {
+			PositionBlock block = mOpen.get(inVehicle);
+			if (block == null) {
+				block = new PositionBlock(inVehicle, inMillis, inLat, inLon);
+				if (mOpen.putIfAbsent(inVehicle, block) == null) {
+					mPoints.incrementAndGet();
+					return;
+				}
+				continue;
+			}
+			synchronized (block) {
+				// flushIdle may have taken it in the meantime
+				if (mOpen.get(inVehicle) != block) {
+					continue;
+				}
+				if (block.isFull()
+						|| inMillis / DAY_MILLIS != block.getFirstMillis()
+								/ DAY_MILLIS || inMillis < block.getLastMillis()) {
+					// queued before its successor is visible, so a vehicle's
+					// blocks always land in order
+					mFull.add(block);
+					mOpen.put(inVehicle, new PositionBlock(inVehicle, inMillis,
+							inLat, inLon));
+				} else {
+					block.add(inMillis, inLat, inLon);
+				}
+			}
+			mPoints.incrementAndGet();
+			return;
+		}
+	}
+
+	/**
+	 * Write out every queued and open block, such as before shutting down
+	 */
+	public void flush() {
+		flushIdle(0);
+	}
+
+	/**
+	 * Write out the full blocks, and the blocks of vehicles that haven't
+	 * reported for a while so vehicles that have gone away don't hold memory
+	 * until the next day
+	 * 
+	 * @param inIdleMillis
+	 *            How long since a vehicle's last position, 0 for every block
+	 */
+	public void flushIdle(long inIdleMillis) {
+		sealFull();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, PositionBlock> e : mOpen.entrySet()) {
+			PositionBlock block = e.getValue();
+			synchronized (block) {
+				if (inIdleMillis > 0
+						&& now - block.getLastMillis() < inIdleMillis) {
+					continue;
+				}
+				if (mOpen.remove(e.getKey(), block)) {
+					// the vehicle's full blocks were queued before this one
+					// became visible, so write them first
+					sealFull();
+					seal(block);
+				}
+			}
+		}
+		synchronized (this) {
+			for (Partition p : mPartitions.values()) {
+				if (p.mSegment != null) {
+					p.mSegment.force();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write out the queued full blocks
+	 */
+	private synchronized void sealFull() {
+		PositionBlock block;
+		while ((block = mFull.poll()) != null) {
+			seal(block);
+		}
+	}
+
+	/**
+	 * Visit one vehicle's positions in a time window, in time order
+	 * 
+	 * @param inVehicle
+	 *            Vehicle ID
+	 * @param inFrom
+	 *            Start of the window in epoch milliseconds, inclusive
+	 * @param inTo
+	 *            End of the window in epoch milliseconds, inclusive
+	 * @param inVisitor
+	 *            Gets each position
+	 * @return Number of positions visited
+	 */
+	public long scan(int inVehicle, long inFrom, long inTo,
+			PositionVisitor inVisitor) {
+		ArrayList<BlockRef> blocks = new ArrayList<>();
+		ArrayList<PositionBlock> full = new ArrayList<>();
+		synchronized (this) {
+			for (Partition p : days(inFrom, inTo)) {
+				ArrayList<BlockRef> list = p.mByVehicle.get(inVehicle);
+				if (list != null) {
+					blocks.addAll(list);
+				}
+			}
+			for (PositionBlock b : mFull) {
+				if (b.getVehicle() == inVehicle) {
+					full.add(b);
+				}
+			}
+		}
+		long[] visited = { 0 };
+		for (BlockRef b : blocks) {
+			if (b.mLast >= inFrom && b.mFirst <= inTo
+					&& !visit(b.mVehicle, b.cursor(), inFrom, inTo, inVisitor,
+							visited)) {
+				return visited[0];
+			}
+		}
+		for (PositionBlock b : full) {
+			if (!visitOpen(b, inFrom, inTo, inVisitor, visited)) {
+				return visited[0];
+			}
+		}
+		PositionBlock open = mOpen.get(inVehicle);
+		if (open != null) {
+			visitOpen(open, inFrom, inTo, inVisitor, visited);
+		}
+		return visited[0];
+	}
+
+	/**
+	 * Visit every vehicle's positions in a time window. Positions come a
+	 * block at a time, so each vehicle's are in order but vehicles are
+	 * interleaved.
+	 * 
+	 * @param inFrom
+	 *            Start of the window in epoch milliseconds, inclusive
+	 * @param inTo
+	 *            End of the window in epoch milliseconds, inclusive
+	 * @param inVisitor
+	 *            Gets each position
+	 * @return Number of positions visited
+	 */
+	public long scan(long inFrom, long inTo, PositionVisitor inVisitor) {
+		ArrayList<BlockRef> blocks = new ArrayList<>();
+		ArrayList<PositionBlock> full;
+		synchronized (this) {
+			for (Partition p : days(inFrom, inTo)) {
+				blocks.addAll(p.mBlocks);
+			}
+			full = new ArrayList<>(mFull);
+		}
+		long[] visited = { 0 };
+		for (BlockRef b : blocks) {
+			if (b.mLast >= inFrom && b.mFirst <= inTo
+					&& !visit(b.mVehicle, b.cursor(), inFrom, inTo, inVisitor,
+							visited)) {
+				return visited[0];
+			}
+		}
+		for (PositionBlock b : full) {
+			if (!visitOpen(b, inFrom, inTo, inVisitor, visited)) {
+				return visited[0];
+			}
+		}
+		for (PositionBlock open : mOpen.values()) {
+			if (!visitOpen(open, inFrom, inTo, inVisitor, visited)) {
+				break;
+			}
+		}
+		return visited[0];
+	}
+
+	/**
+	 * Work out a vehicle's average speed over a time window from the
+	 * distance between its recorded positions
+	 * 
+	 * @param inVehicle
+	 *            Vehicle ID
+	 * @param inFrom
+	 *            Start of the window in epoch milliseconds
+	 * @param inTo
+	 *            End of the window in epoch milliseconds
+	 * @return Meters per second, or NaN with fewer than two positions
+	 */
+	public double getAverageSpeed(int inVehicle, long inFrom, long inTo) {
+		final double[] state = { Double.NaN, Double.NaN, 0.0 };
+		final long[] times = { -1, -1 };
+		scan(inVehicle, inFrom, inTo, new PositionVisitor() {
+			@Override
+			public boolean visit(int inID, long inMillis, float inLat,
+					float inLon) {
+				if (times[0] < 0) {
+					times[0] = inMillis;
+				} else {
+					state[2] += GPSCalc.getDistanceInMeters(state[0],
+							state[1], inLat, inLon);
+				}
+				state[0] = inLat;
+				state[1] = inLon;
+				times[1] = inMillis;
+				return true;
+			}
+		});
+		if (times[1] <= times[0]) {
+			return Double.NaN;
+		}
+		return state[2] * 1000.0 / (times[1] - times[0]);
+	}
+
+	/**
+	 * @return Positions recorded since the store was opened
+	 */
+	public long getPointCount() {
+		return mPoints.get();
+	}
+
+	/**
+	 * @return Blocks written since the store was opened
+	 */
+	public synchronized long getBlockCount() {
+		return mBlocks;
+	}
+
+	/**
+	 * @return Bytes written since the store was opened, headers included
+	 */
+	public synchronized long getByteCount() {
+		return mBytes;
+	}
+
+	/**
+	 * @return Number of days held
+	 */
+	public synchronized int getDayCount() {
+		return mPartitions.size();
+	}
+
+	/**
+	 * Estimate the heap held by the blocks still being filled or waiting to
+	 * be sealed, and the block index. Segments are mapped, so they show up
+	 * in the mapped buffer pool instead.
+	 * 
+	 * @return Estimated bytes
+	 */
+	public long estimateBytes() {
+		long ret = 0;
+		for (PositionBlock block : mOpen.values()) {
+			synchronized (block) {
+				ret += block.estimateBytes();
+			}
+		}
+		for (PositionBlock block : mFull) {
+			synchronized (block) {
+				ret += block.estimateBytes();
+			}
+		}
+		synchronized (this) {
+			for (Partition p : mPartitions.values()) {
+				// a BlockRef, and a reference in each of the two lists
+				ret += p.mBlocks.size() * (56L + 8);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Decode a block, visiting the points that fall in a window
+	 * 
+	 * @param inVehicle
+	 *            The block's vehicle
+	 * @param inCursor
+	 *            Cursor over the block
+	 * @param inFrom
+	 *            Start of the window
+	 * @param inTo
+	 *            End of the window
+	 * @param inVisitor
+	 *            Gets each position
+	 * @param inVisited
+	 *            Running count of positions visited
+	 * @return False if the visitor ended the scan
+	 */
+	private static boolean visit(int inVehicle, PositionBlock.Cursor inCursor,
+			long inFrom, long inTo, PositionVisitor inVisitor, long[] inVisited) {
+		while (inCursor.next()) {
+			long t = inCursor.getMillis();
+			if (t < inFrom) {
+				continue;
+			}
+			if (t > inTo) {
+				break;
+			}
+			inVisited[0]++;
+			if (!inVisitor.visit(inVehicle, t, inCursor.getLat(),
+					inCursor.getLon())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Visit the points in a block that hasn't been written out yet, from a
+	 * copy so the vehicle isn't held up by the visitor
+	 * 
+	 * @param inBlock
+	 *            The open block
+	 * @param inFrom
+	 *            Start of the window
+	 * @param inTo
+	 *            End of the window
+	 * @param inVisitor
+	 *            Gets each position
+	 * @param inVisited
+	 *            Running count of positions visited
+	 * @return False if the visitor ended the scan
+	 */
+	private static boolean visitOpen(PositionBlock inBlock, long inFrom,
+			long inTo, PositionVisitor inVisitor, long[] inVisited) {
+		PositionBlock.Cursor cursor;
+		synchronized (inBlock) {
+			if (inBlock.getLastMillis() < inFrom
+					|| inBlock.getFirstMillis() > inTo) {
+				return true;
+			}
+			byte[] bytes = inBlock.getBytes();
+			cursor = new PositionBlock.Cursor(ByteBuffer.wrap(bytes), 0,
+					bytes.length, inBlock.getCount(),
+					inBlock.getFirstMillis(), inBlock.getFirstLat(),
+					inBlock.getFirstLon());
+		}
+		return visit(inBlock.getVehicle(), cursor, inFrom, inTo, inVisitor,
+				inVisited);
+	}
+
+	/**
+	 * Get the partitions a window touches
+	 * 
+	 * @param inFrom
+	 *            Start of the window
+	 * @param inTo
+	 *            End of the window
+	 * @return Partitions in day order
+	 */
+	private ArrayList<Partition> days(long inFrom, long inTo) {
+		int first = (int) Math.min(Integer.MAX_VALUE, Math.max(0, inFrom)
+				/ DAY_MILLIS);
+		int last = (int) Math.min(Integer.MAX_VALUE, Math.max(0, inTo)
+				/ DAY_MILLIS);
+		if (last < first) {
+			return new ArrayList<>();
+		}
+		return new ArrayList<>(mPartitions.subMap(first, true, last, true)
+				.values());
+	}
+
+	/**
+	 * Append a block to its day's current segment. Only called from the
+	 * flushing thread.
+	 * 
+	 * @param inBlock
+	 *            The block
+	 */
+	private synchronized void seal(PositionBlock inBlock) {
+		byte[] bytes = inBlock.getBytes();
+		int size = BLOCK_HEADER_BYTES + bytes.length;
+		int day = (int) (inBlock.getFirstMillis() / DAY_MILLIS);
+		Partition p;
+		try {
+			p = partition(day);
+			if (p.mSegment == null || p.mSegment.remaining() < size) {
+				roll(p);
+			}
+		} catch (IOException e) {
+			System.out.println("PositionStore: " + e.toString());
+			return;
+		}
+		MappedByteBuffer segment = p.mSegment;
+		int offset = segment.position();
+		segment.putInt(inBlock.getVehicle());
+		segment.putInt(inBlock.getCount());
+		segment.putLong(inBlock.getFirstMillis());
+		segment.putLong(inBlock.getLastMillis());
+		segment.putInt(inBlock.getFirstLat());
+		segment.putInt(inBlock.getFirstLon());
+		segment.putInt(bytes.length);
+		segment.put(bytes);
+		p.add(new BlockRef(segment, offset));
+		mBlocks++;
+		mBytes += size;
+	}
+
+	/**
+	 * Get a day's partition, creating it and dropping expired days if it's
+	 * new
+	 * 
+	 * @param inDay
+	 *            Days since the epoch
+	 * @return The partition
+	 * @throws IOException
+	 *             If the day's directory can't be created
+	 */
+	private Partition partition(int inDay) throws IOException {
+		Partition p = mPartitions.get(inDay);
+		if (p == null) {
+			File dir = new File(mDir, formatDay(inDay));
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can't create " + dir);
+			}
+			p = new Partition(inDay, dir);
+			mPartitions.put(inDay, p);
+			expire(inDay);
+		}
+		return p;
+	}
+
+	/**
+	 * Start a new segment in a day's partition
+	 * 
+	 * @param inPartition
+	 *            The partition
+	 * @throws IOException
+	 *             If the segment can't be created
+	 */
+	private void roll(Partition inPartition) throws IOException {
+		// never reuse a segment, even one left by an earlier run
+		File[] existing = segments(inPartition.mDir);
+		int number = existing.length == 0 ? 0
+				: segmentNumber(existing[existing.length - 1]) + 1;
+		File file = new File(inPartition.mDir, String.format("%04d", number)
+				+ EXTENSION);
+		MappedByteBuffer segment;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(mSegmentBytes);
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					mSegmentBytes);
+		}
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+		segment.putInt(0);
+		segment.putInt(0);
+		inPartition.mSegment = segment;
+	}
+
+	/**
+	 * Drop days that have passed the retention period
+	 * 
+	 * @param inToday
+	 *            The newest day
+	 */
+	private void expire(int inToday) {
+		if (mRetentionDays == 0) {
+			return;
+		}
+		while (!mPartitions.isEmpty()
+				&& mPartitions.firstKey() <= inToday - mRetentionDays) {
+			Partition p = mPartitions.remove(mPartitions.firstKey());
+			File[] files = p.mDir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+			p.mDir.delete();
+		}
+	}
+
+	/**
+	 * Index an existing day's segments
+	 * 
+	 * @param inDay
+	 *            Days since the epoch
+	 * @param inDir
+	 *            The day's directory
+	 * @return The indexed partition
+	 * @throws IOException
+	 *             If a segment can't be read
+	 */
+	private static Partition load(int inDay, File inDir) throws IOException {
+		Partition p = new Partition(inDay, inDir);
+		for (File f : segments(inDir)) {
+			MappedByteBuffer data;
+			try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+				data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+						raf.length());
+			}
+			if (data.limit() < SEGMENT_HEADER_BYTES || data.getInt(0) != MAGIC
+					|| data.getInt(4) != VERSION) {
+				throw new IOException(f + " isn't a position segment");
+			}
+			int offset = SEGMENT_HEADER_BYTES;
+			// an unused header, with a count of zero, ends the segment
+			while (offset + BLOCK_HEADER_BYTES <= data.limit()
+					&& data.getInt(offset + 4) > 0) {
+				BlockRef b = new BlockRef(data, offset);
+				if (offset + BLOCK_HEADER_BYTES + b.mLength > data.limit()) {
+					break;
+				}
+				p.add(b);
+				offset += BLOCK_HEADER_BYTES + b.mLength;
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * List a day's segments in order
+	 * 
+	 * @param inDir
+	 *            The day's directory
+	 * @return Segment files, oldest first
+	 */
+	private static File[] segments(File inDir) {
+		File[] files = inDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(EXTENSION);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Get a segment's sequence number from its name
+	 * 
+	 * @param in
+	 *            Segment file
+	 * @return Sequence number, or -1 if the name isn't one of ours
+	 */
+	private static int segmentNumber(File in) {
+		String name = in.getName();
+		try {
+			return Integer.parseInt(name.substring(0, name.length()
+					- EXTENSION.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Name a day's directory
+	 * 
+	 * @param inDay
+	 *            Days since the epoch
+	 * @return The date as yyyyMMdd
+	 */
+	private static String formatDay(int inDay) {
+		SimpleDateFormat f = new SimpleDateFormat("yyyyMMdd");
+		f.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return f.format(new Date(inDay * DAY_MILLIS));
+	}
+
+	/**
+	 * Get the day a directory holds
+	 * 
+	 * @param inName
+	 *            Directory name
+	 * @return Days since the epoch, or -1 if it isn't a day directory
+	 */
+	private static int parseDay(String inName) {
+		if (!inName.matches("\\d{8}")) {
+			return -1;
+		}
+		SimpleDateFormat f = new SimpleDateFormat("yyyyMMdd");
+		f.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try {
+			return (int) (f.parse(inName).getTime() / DAY_MILLIS);
+		} catch (java.text.ParseException e) {
+			return -1;
+		}
+	}
+}
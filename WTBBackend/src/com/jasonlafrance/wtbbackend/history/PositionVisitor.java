@@ -0,0 +1,43 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.history;
+
+/**
+ * Receives positions from a PositionStore scan
+ * 
+ * @author Jason LaFrance
+ */
+public interface PositionVisitor {
+
+	/**
+	 * Called for each position in the scan
+	 * 
+	 * @param inVehicle
+	 *            Vehicle ID
+	 * @param inMillis
+	 *            When the position was recorded, in epoch milliseconds
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 * @return False to end the scan early
+	 */
+	public boolean visit(int inVehicle, long inMillis, float inLat, float inLon);
+}
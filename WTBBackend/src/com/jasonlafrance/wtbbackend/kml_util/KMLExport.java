@@ -19,19 +19,31 @@ This file is part of WTBBackend.
 
 package com.jasonlafrance.wtbbackend.kml_util;
 
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.minutesToTime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 
+import com.jasonlafrance.wtbbackend.gtfs.Route;
+import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
 import com.jasonlafrance.wtbbackend.gtfs.Stop;
 import com.jasonlafrance.wtbbackend.gtfs.StopAdapter;
+import com.jasonlafrance.wtbbackend.gtfs.StopTimeTable;
 import com.jasonlafrance.wtbbackend.gtfs.Trip;
 import com.jasonlafrance.wtbbackend.gtfs.Vertex;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
 
 /**
- * Some quick and dirty KML export functions.
+ * KML and KMZ export functions. Everything is streamed through a KMLWriter,
+ * so time and memory are linear in the output at worst, and constant when
+ * writing to a file.
  * 
  * @author Jason LaFrance
  */
@@ -45,61 +57,27 @@ public class KMLExport {
 	 * @return A String containing the KML data
 	 */
 	public static String generateTripKML(LinkedList<Trip> trips) {
-		String output;
-
-		output = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
-				+ "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n"
-				+ "  <Document>\n" + "    <name>Paths</name>\n"
-				+ "    <Style id=\"testStyle\">\n" + "      <LineStyle>\n"
-				+ "        <color>80"
-				+ trips.getFirst().getRoute().get_route_color() + "</color>\n"
-				+ "        <width>4</width>\n" + "      </LineStyle>\n"
-				+ "    </Style>\n";
-
-		int lastStopID = -1;
-		ArrayList<Vertex> points = new ArrayList<>();
-		for (Trip t : trips) {
-			for (StopAdapter s : t.getStops()) {
-				if (s.getStop().getID() == lastStopID) {
-					continue;
-				}
-				lastStopID = s.getStop().getID();
-				String time = "";
-				if (!"".equals(s.getStopTime().get_arrival_time())) {
-					time = "(" + s.getStopTime().get_arrival_time() + ")";
-				}
-				output += "<Placemark>\n" + "    <name>"
-						+ s.getStop().get_stop_name().replaceAll("&", "&amp;")
-						+ " " + time + "</name>\n" + "    <description>"
-						+ s.getStop().get_stop_desc().replaceAll("&", "&amp;")
-						+ "</description>\n" + "    <Point>\n"
-						+ "      <coordinates>" + s.getStop().get_stop_lon()
-						+ "," + s.getStop().get_stop_lat()
-						+ ",0</coordinates>\n" + "    </Point>\n"
-						+ "  </Placemark>\n";
-			}
-			points.addAll(t.getVertices());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (KMLWriter w = new KMLWriter(bytes, false)) {
+			writeTrips(w, trips);
+		} catch (IOException e) {
+			// can't happen writing to memory
 		}
+		return new String(bytes.toByteArray(), Charset.forName("UTF-8"));
+	}
 
-		output += "    <Placemark>\n"
-				+ "      <styleUrl>#testStyle</styleUrl>\n"
-				+ "      <name>SoPo Bus Test</name>\n"
-				+ "       <LineString id=\"route path\">\n"
-				+ "        <extrude>1</extrude>\n" + "        <coordinates>\n";
-		Vertex lastPoint = new Vertex();
-		for (int i = 0; i < points.size(); i++) {
-			if (points.get(i).getDistance(lastPoint) == 0.0) {
-				continue;
-			}
-			lastPoint = points.get(i);
-
-			output += points.get(i).toKMLLine();
-		}
-		output += " </coordinates>\n" + "      </LineString>\n"
-				+ "    </Placemark>\n";
-		// footer
-		output += "  </Document>\n" + "</kml>";
-		return output;
+	/**
+	 * Get a stop's name with its scheduled time, if it has one
+	 * 
+	 * @param s
+	 *            The Stop
+	 * @param inTimecode
+	 *            Arrival time code in minutes, or -1
+	 * @return The placemark name
+	 */
+	private static String stopName(Stop s, int inTimecode) {
+		return inTimecode < 0 ? s.get_stop_name() : s.get_stop_name() + " ("
+				+ minutesToTime(inTimecode) + ")";
 	}
 
 	/**
@@ -111,56 +89,34 @@ public class KMLExport {
 	 *            A list of vertices
 	 */
 	public static void writeKML(String inFile, ArrayList<Vertex> points) {
-		try (PrintWriter printWriter = new PrintWriter(inFile, "UTF-8")) {
-			ArrayList<StopAdapter> stops = new ArrayList<>();
-
-			printWriter.printf("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
-					+ "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n"
-					+ "  <Document>\n" + "    <name>Paths</name>\n"
-					+ "    <Style id=\"testStyle\">\n" + "      <LineStyle>\n"
-					+ "        <color>7f00ffff</color>\n"
-					+ "        <width>4</width>\n" + "      </LineStyle>\n"
-					+ "    </Style>\n" + "    <Placemark>\n"
-					+ "      <name>SoPo Bus Test</name>\n"
-					+ "       <LineString id=\"ID\">\n"
-					+ "        <coordinates>\n");
-			for (int i = 0; i < points.size(); i++) {
-				printWriter.printf(points.get(i).toKMLLine());
-				// check if stop and add to stops list
-				if (points.get(i).isStop()) {
-					stops.add(points.get(i).getStop());
-				}
+		try (KMLWriter w = new KMLWriter(new FileOutputStream(inFile), false)) {
+			w.startDocument("Paths");
+			w.style("path", "7f00ffff", 4);
+			w.startPlacemark("Path", null, "path");
+			w.startLineString();
+			for (Vertex v : points) {
+				w.coordinate(v.get_shape_pt_lat(), v.get_shape_pt_lon());
 			}
-			printWriter.printf(" </coordinates>\n" + "      </LineString>\n"
-					+ "    </Placemark>\n");
-			// write the stops
+			w.endLineString();
+			w.endPlacemark();
+
 			int lastStopID = -1;
-			for (int i = 0; i < stops.size(); i++) {
-				StopAdapter s = stops.get(i);
-				if (s.getStop().getID() == lastStopID) {
+			for (Vertex v : points) {
+				if (!v.isStop() || v.getStop().getStop().getID() == lastStopID) {
 					continue;
 				}
-				lastStopID = s.getStop().getID();
-				String time = "";
-				if (!"".equals(s.getStopTime().get_arrival_time())) {
-					time = "(" + s.getStopTime().get_arrival_time() + ")";
-				}
-				printWriter.printf("<Placemark>\n" + "    <name>"
-						+ s.getStop().get_stop_name().replaceAll("&", "&amp;")
-						+ " " + time + "</name>\n" + "    <description>"
-						+ s.getStop().get_stop_desc().replaceAll("&", "&amp;")
-						+ "</description>\n" + "    <Point>\n"
-						+ "      <coordinates>" + s.getStop().get_stop_lon()
-						+ "," + s.getStop().get_stop_lat()
-						+ ",0</coordinates>\n" + "    </Point>\n"
-						+ "  </Placemark>\n");
-
+				Stop s = v.getStop().getStop();
+				lastStopID = s.getID();
+				w.startPlacemark(
+						stopName(s, v.getStop().getArrivalTimecode()),
+						s.get_stop_desc(), null);
+				w.point(s.get_stop_lat(), s.get_stop_lon());
+				w.endPlacemark();
 			}
-
-			printWriter.printf("  </Document>\n" + "</kml>");
-		} catch (FileNotFoundException | UnsupportedEncodingException fileNotFoundException) {
+			w.endDocument();
+		} catch (IOException e) {
+			System.out.println(inFile + ": " + e.toString());
 		}
-
 	}
 
 	/**
@@ -172,70 +128,168 @@ public class KMLExport {
 	 *            A list of Trips
 	 */
 	public static void writeKML(String inFile, LinkedList<Trip> trips) {
+		try (KMLWriter w = new KMLWriter(new FileOutputStream(inFile), false)) {
+			writeTrips(w, trips);
+		} catch (IOException e) {
+			System.out.println(inFile + ": " + e.toString());
+		}
+	}
 
-		try (PrintWriter printWriter = new PrintWriter(inFile, "UTF-8")) {
-			// header
-			printWriter.printf("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
-					+ "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n"
-					+ "  <Document>\n" + "    <name>Paths</name>\n"
-					+ "    <Style id=\"testStyle\">\n" + "      <LineStyle>\n"
-					+ "        <color>80"
-					+ trips.getFirst().getRoute().get_route_color()
-					+ "</color>\n" + "        <width>4</width>\n"
-					+ "      </LineStyle>\n" + "    </Style>\n");
+	/**
+	 * Export RoutePaths, one folder per path with its route line and stops
+	 * 
+	 * @param inOut
+	 *            Where to write; closed when done
+	 * @param inName
+	 *            Document name
+	 * @param inPaths
+	 *            The RoutePaths, ie. GTFS.getPaths()
+	 * @param inKMZ
+	 *            True to write zipped KMZ instead of plain KML
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public static void writePaths(OutputStream inOut, String inName,
+			List<RoutePath> inPaths, boolean inKMZ) throws IOException {
+		try (KMLWriter w = new KMLWriter(inOut, inKMZ)) {
+			w.startDocument(inName);
 
-			int lastStopID = -1;
-			ArrayList<Vertex> points = new ArrayList<>();
-			for (Trip t : trips) {
-				for (StopAdapter s : t.getStops()) {
-					if (s.getStop().getID() == lastStopID) {
-						continue;
+			HashSet<Integer> styled = new HashSet<>();
+			for (RoutePath rp : inPaths) {
+				if (styled.add(rp.getRouteID())) {
+					w.style("route" + rp.getRouteID(),
+							KMLWriter.color(rp.getColor(), "c0"), 4);
+				}
+			}
+
+			for (RoutePath rp : inPaths) {
+				String style = "route" + rp.getRouteID();
+				w.startFolder(rp.getRouteName() + " " + rp.getStartTime()
+						+ " - " + rp.getEndTime());
+
+				w.startPlacemark(rp.getRouteName(), rp.getRouteLongName(),
+						style);
+				w.startLineString();
+				Vertex last = null;
+				for (Trip t : rp.getPath()) {
+					for (Vertex v : t.getVertices()) {
+						if (last == null || v.getDistance(last) != 0.0) {
+							w.coordinate(v.get_shape_pt_lat(),
+									v.get_shape_pt_lon());
+						}
+						last = v;
 					}
-					lastStopID = s.getStop().getID();
-					String time = "";
-					if (!"".equals(s.getStopTime().get_arrival_time())) {
-						time = "(" + s.getStopTime().get_arrival_time() + ")";
+				}
+				w.endLineString();
+				w.endPlacemark();
+
+				StopTimeTable table = rp.getStopTimeTable();
+				if (table != null) {
+					for (int row : rp.getVisits()) {
+						Stop s = table.getStop(row);
+						if (s == null) {
+							continue;
+						}
+						w.startPlacemark(
+								stopName(s, table.getArrivalTimecode(row)),
+								s.get_stop_desc(), style);
+						w.point(s.get_stop_lat(), s.get_stop_lon());
+						w.endPlacemark();
 					}
-					printWriter.printf("<Placemark>\n"
-							+ "    <name>"
-							+ s.getStop().get_stop_name()
-									.replaceAll("&", "&amp;")
-							+ " "
-							+ time
-							+ "</name>\n"
-							+ "    <description>"
-							+ s.getStop().get_stop_desc()
-									.replaceAll("&", "&amp;")
-							+ "</description>\n" + "    <Point>\n"
-							+ "      <coordinates>"
-							+ s.getStop().get_stop_lon() + ","
-							+ s.getStop().get_stop_lat() + ",0</coordinates>\n"
-							+ "    </Point>\n" + "  </Placemark>\n");
 				}
-				points.addAll(t.getVertices());
+				w.endFolder();
 			}
+			w.endDocument();
+		}
+	}
 
-			printWriter.printf("    <Placemark>\n"
-					+ "      <styleUrl>#testStyle</styleUrl>\n"
-					+ "      <name>Bus Test</name>\n"
-					+ "       <LineString id=\"route path\">\n"
-					+ "        <extrude>1</extrude>\n"
-					+ "        <coordinates>\n");
-			Vertex lastPoint = new Vertex();
-			for (int i = 0; i < points.size(); i++) {
-				if (points.get(i).getDistance(lastPoint) == 0.0) {
+	/**
+	 * Write a list of Trips as a KML document: stop placemarks, then one line
+	 * along all of the trips' vertices
+	 * 
+	 * @param w
+	 *            The KMLWriter
+	 * @param trips
+	 *            The Trips
+	 * @throws IOException
+	 *             On write failure
+	 */
+	private static void writeTrips(KMLWriter w, List<Trip> trips)
+			throws IOException {
+		w.startDocument("Paths");
+		w.style("path", KMLWriter.color(trips.isEmpty() ? null : trips.get(0)
+				.getRoute().get_route_color(), "80"), 4);
+
+		int lastStopID = -1;
+		for (Trip t : trips) {
+			for (int i = 0; i < t.getStopCount(); i++) {
+				StopAdapter sa = t.getStop(i);
+				Stop s = sa.getStop();
+				if (s.getID() == lastStopID) {
 					continue;
 				}
-				lastPoint = points.get(i);
+				lastStopID = s.getID();
+				w.startPlacemark(stopName(s, sa.getArrivalTimecode()),
+						s.get_stop_desc(), null);
+				w.point(s.get_stop_lat(), s.get_stop_lon());
+				w.endPlacemark();
+			}
+		}
 
-				printWriter.printf(points.get(i).toKMLLine());
+		w.startPlacemark("Path", null, "path");
+		w.startLineString();
+		Vertex last = null;
+		for (Trip t : trips) {
+			for (Vertex v : t.getVertices()) {
+				if (last == null || v.getDistance(last) != 0.0) {
+					w.coordinate(v.get_shape_pt_lat(), v.get_shape_pt_lon());
+				}
+				last = v;
 			}
-			printWriter.printf(" </coordinates>\n" + "      </LineString>\n"
-					+ "    </Placemark>\n");
-			// footer
-			printWriter.printf("  </Document>\n" + "</kml>");
-		} catch (FileNotFoundException | UnsupportedEncodingException fileNotFoundException) {
 		}
+		w.endLineString();
+		w.endPlacemark();
+		w.endDocument();
+	}
+
+	/**
+	 * Export a snapshot of the live Vehicles
+	 * 
+	 * @param inOut
+	 *            Where to write; closed when done
+	 * @param inKMZ
+	 *            True to write zipped KMZ instead of plain KML
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public static void writeVehicles(OutputStream inOut, boolean inKMZ)
+			throws IOException {
+		try (KMLWriter w = new KMLWriter(inOut, inKMZ)) {
+			w.startDocument("Vehicles");
+			HashSet<String> styled = new HashSet<>();
+			LinkedList<Vehicle> vehicles = Vehicle.getVehicles();
+			for (Vehicle v : vehicles) {
+				if (styled.add(v.getColor())) {
+					w.style("vehicle" + v.getColor(),
+							KMLWriter.color(v.getColor(), "ff"), 2);
+				}
+			}
 
+			for (Vehicle v : vehicles) {
+				StringBuilder desc = new StringBuilder();
+				desc.append(Math.round(v.getSpeedInMPH())).append(" mph");
+				for (Route r : v.getProbableRoutes()) {
+					desc.append(", ").append(r.getName());
+				}
+				w.startPlacemark(
+						v.getDesc() == null || v.getDesc().isEmpty() ? "Vehicle "
+								+ v.getID()
+								: v.getDesc(), desc.toString(),
+						"vehicle" + v.getColor());
+				w.point(v.getLat(), v.getLon());
+				w.endPlacemark();
+			}
+			w.endDocument();
+		}
 	}
 }
@@ -0,0 +1,195 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.kml_util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.jasonlafrance.wtbbackend.gtfs.FeedHandle;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
+import com.jasonlafrance.wtbbackend.query.QueryHandler;
+import com.jasonlafrance.wtbbackend.query.Snapshot;
+
+/**
+ * QueryHandler for on-demand KML and KMZ exports. Answers:
+ * 
+ * <pre>
+ * /export/{gtfs_id}/paths.kml    a feed's route paths
+ * /export/{gtfs_id}/paths.kmz
+ * /export/vehicles.kml           the live vehicles
+ * /export/vehicles.kmz
+ * </pre>
+ * 
+ * Path exports are kept until the feed rolls over to a new service day.
+ * Vehicle exports are shared between requests until the next tick.
+ * 
+ * Exports are built on the QueryPortal's worker pool, so register this with
+ * addBlockingHandler(). query() takes no lock; two requests racing for the
+ * same stale export may both build it, and the later one is kept.
+ * 
+ * @author Jason LaFrance
+ */
+public class KMLQueries implements QueryHandler {
+
+	/**
+	 * A path export and the path list it was made from
+	 */
+	private static class PathExport {
+		private final ArrayList<RoutePath> mPaths;
+		private final Snapshot mSnapshot;
+
+		private PathExport(ArrayList<RoutePath> inPaths, Snapshot inSnapshot) {
+			mPaths = inPaths;
+			mSnapshot = inSnapshot;
+		}
+	}
+
+	/**
+	 * A vehicles export and the tick it was made in
+	 */
+	private static class VehicleExport {
+		private final long mTick;
+		private final Snapshot mSnapshot;
+
+		private VehicleExport(long inTick, Snapshot inSnapshot) {
+			mTick = inTick;
+			mSnapshot = inSnapshot;
+		}
+	}
+
+	private volatile long mTick = 0;
+	private final ConcurrentHashMap<String, PathExport> mPathExports = new ConcurrentHashMap<>();
+	// KML at 0, KMZ at 1
+	private final AtomicReferenceArray<VehicleExport> mVehicles = new AtomicReferenceArray<>(
+			2);
+
+	/**
+	 * Build the paths export for a feed
+	 * 
+	 * @param inGTFS
+	 *            The feed
+	 * @param inPaths
+	 *            The feed's paths, as the export will be keyed on them
+	 * @param inKMZ
+	 *            True for KMZ
+	 * @return The export
+	 */
+	private static Snapshot exportPaths(GTFS inGTFS,
+			ArrayList<RoutePath> inPaths, boolean inKMZ) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		try {
+			KMLExport.writePaths(bytes, new File(inGTFS.getDir()).getName(),
+					inPaths, inKMZ);
+		} catch (IOException e) {
+			return null;
+		}
+		return new Snapshot(bytes.toByteArray(), inKMZ ? KMLWriter.KMZ
+				: KMLWriter.KML);
+	}
+
+	/**
+	 * Build the vehicles export
+	 * 
+	 * @param inKMZ
+	 *            True for KMZ
+	 * @return The export
+	 */
+	private static Snapshot exportVehicles(boolean inKMZ) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 12);
+		try {
+			KMLExport.writeVehicles(bytes, inKMZ);
+		} catch (IOException e) {
+			return null;
+		}
+		return new Snapshot(bytes.toByteArray(), inKMZ ? KMLWriter.KMZ
+				: KMLWriter.KML);
+	}
+
+	@Override
+	public Snapshot query(String inPath) {
+		String[] parts = inPath.split("/");
+		if (parts.length < 3 || !parts[1].equals("export")) {
+			return null;
+		}
+		String file = parts[parts.length - 1];
+		boolean kmz = file.endsWith(".kmz");
+		if (!kmz && !file.endsWith(".kml")) {
+			return null;
+		}
+
+		if (parts.length == 3 && file.startsWith("vehicles.")) {
+			int i = kmz ? 1 : 0;
+			long tick = mTick;
+			VehicleExport e = mVehicles.get(i);
+			if (e == null || e.mTick != tick) {
+				Snapshot s = exportVehicles(kmz);
+				if (s == null) {
+					return null;
+				}
+				e = new VehicleExport(tick, s);
+				mVehicles.set(i, e);
+			}
+			return e.mSnapshot;
+		}
+
+		if (parts.length == 4 && file.startsWith("paths.")) {
+			GTFS gtfs;
+			try {
+				gtfs = GTFS.getGTFS(Integer.parseInt(parts[2]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			// a reload may release the feed while it's being exported
+			FeedHandle handle = gtfs == null ? null : gtfs.getHandle();
+			if (handle == null || !handle.acquire()) {
+				return null;
+			}
+			try {
+				String key = parts[2] + "/" + file;
+				ArrayList<RoutePath> paths = gtfs.getPaths();
+				PathExport e = mPathExports.get(key);
+				if (e == null || e.mPaths != paths) {
+					Snapshot s = exportPaths(gtfs, paths, kmz);
+					if (s == null) {
+						return null;
+					}
+					e = new PathExport(paths, s);
+					mPathExports.put(key, e);
+				}
+				return e.mSnapshot;
+			} finally {
+				handle.release();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Mark vehicle exports stale. Call once per update cycle.
+	 */
+	public void tick() {
+		mTick++;
+	}
+}
@@ -0,0 +1,312 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.kml_util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streaming KML writer. Elements go straight through a buffered UTF-8 writer,
+ * so memory use doesn't grow with the document, and all text is XML escaped.
+ * As KMZ, the document is written compressed into a doc.kml zip entry.
+ * 
+ * @author Jason LaFrance
+ */
+public class KMLWriter implements Closeable {
+
+	public static final String KML = "application/vnd.google-earth.kml+xml";
+	public static final String KMZ = "application/vnd.google-earth.kmz";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Convert a GTFS RRGGBB color to a KML aabbggrr color
+	 * 
+	 * @param inRGB
+	 *            GTFS color, ie. route_color
+	 * @param inAlpha
+	 *            Alpha as two hex digits
+	 * @return The KML color, white if inRGB isn't a color
+	 */
+	public static String color(String inRGB, String inAlpha) {
+		if (inRGB == null || !inRGB.matches("[0-9a-fA-F]{6}")) {
+			return inAlpha + "ffffff";
+		}
+		return inAlpha + inRGB.substring(4, 6) + inRGB.substring(2, 4)
+				+ inRGB.substring(0, 2);
+	}
+
+	private final Writer mOut;
+	private final ZipOutputStream mZip;
+
+	/**
+	 * Create a KMLWriter
+	 * 
+	 * @param inOut
+	 *            Where to write; closed along with the writer
+	 * @param inKMZ
+	 *            True to write zipped KMZ instead of plain KML
+	 * @throws IOException
+	 *             If the zip entry can't be started
+	 */
+	public KMLWriter(OutputStream inOut, boolean inKMZ) throws IOException {
+		if (inKMZ) {
+			mZip = new ZipOutputStream(inOut);
+			mZip.putNextEntry(new ZipEntry("doc.kml"));
+			mOut = new BufferedWriter(new OutputStreamWriter(mZip, UTF8), 8192);
+		} else {
+			mZip = null;
+			mOut = new BufferedWriter(new OutputStreamWriter(inOut, UTF8), 8192);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mOut.flush();
+		if (mZip != null) {
+			mZip.closeEntry();
+		}
+		mOut.close();
+	}
+
+	/**
+	 * Write one coordinate of a LineString
+	 * 
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void coordinate(double inLat, double inLon) throws IOException {
+		mOut.write(Double.toString(inLon));
+		mOut.write(',');
+		mOut.write(Double.toString(inLat));
+		mOut.write(",0\n");
+	}
+
+	/**
+	 * Close the Document and kml elements
+	 * 
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void endDocument() throws IOException {
+		mOut.write("</Document>\n</kml>\n");
+	}
+
+	/**
+	 * Close a Folder
+	 * 
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void endFolder() throws IOException {
+		mOut.write("</Folder>\n");
+	}
+
+	/**
+	 * Close a LineString
+	 * 
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void endLineString() throws IOException {
+		mOut.write("</coordinates>\n</LineString>\n");
+	}
+
+	/**
+	 * Close a Placemark
+	 * 
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void endPlacemark() throws IOException {
+		mOut.write("</Placemark>\n");
+	}
+
+	/**
+	 * Write a Point
+	 * 
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void point(double inLat, double inLon) throws IOException {
+		mOut.write("<Point><coordinates>");
+		mOut.write(Double.toString(inLon));
+		mOut.write(',');
+		mOut.write(Double.toString(inLat));
+		mOut.write(",0</coordinates></Point>\n");
+	}
+
+	/**
+	 * Open the kml and Document elements
+	 * 
+	 * @param inName
+	 *            Document name
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void startDocument(String inName) throws IOException {
+		mOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n<Document>\n");
+		element("name", inName);
+	}
+
+	/**
+	 * Open a Folder
+	 * 
+	 * @param inName
+	 *            Folder name
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void startFolder(String inName) throws IOException {
+		mOut.write("<Folder>\n");
+		element("name", inName);
+	}
+
+	/**
+	 * Open a LineString, ready for coordinates
+	 * 
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void startLineString() throws IOException {
+		mOut.write("<LineString>\n<tessellate>1</tessellate>\n<coordinates>\n");
+	}
+
+	/**
+	 * Open a Placemark
+	 * 
+	 * @param inName
+	 *            Placemark name
+	 * @param inDescription
+	 *            Description, or null for none
+	 * @param inStyle
+	 *            Style id without the #, or null for none
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void startPlacemark(String inName, String inDescription,
+			String inStyle) throws IOException {
+		mOut.write("<Placemark>\n");
+		element("name", inName);
+		if (inDescription != null) {
+			element("description", inDescription);
+		}
+		if (inStyle != null) {
+			element("styleUrl", "#" + inStyle);
+		}
+	}
+
+	/**
+	 * Write a shared Style for lines and icons
+	 * 
+	 * @param inID
+	 *            Style id
+	 * @param inColor
+	 *            KML aabbggrr color
+	 * @param inWidth
+	 *            Line width
+	 * @throws IOException
+	 *             On write failure
+	 */
+	public void style(String inID, String inColor, int inWidth)
+			throws IOException {
+		mOut.write("<Style id=\"");
+		text(inID);
+		mOut.write("\">\n<LineStyle>");
+		element("color", inColor);
+		mOut.write("<width>" + inWidth + "</width></LineStyle>\n<IconStyle>");
+		element("color", inColor);
+		mOut.write("</IconStyle>\n</Style>\n");
+	}
+
+	/**
+	 * Write a simple text element
+	 * 
+	 * @param inTag
+	 *            Element name
+	 * @param inText
+	 *            Element text, escaped on the way out
+	 * @throws IOException
+	 *             On write failure
+	 */
+	private void element(String inTag, String inText) throws IOException {
+		mOut.write('<');
+		mOut.write(inTag);
+		mOut.write('>');
+		text(inText);
+		mOut.write("</");
+		mOut.write(inTag);
+		mOut.write(">\n");
+	}
+
+	/**
+	 * Write XML escaped text
+	 * 
+	 * @param in
+	 *            The text, null writes nothing
+	 * @throws IOException
+	 *             On write failure
+	 */
+	private void text(String in) throws IOException {
+		if (in == null) {
+			return;
+		}
+		for (int i = 0; i < in.length(); i++) {
+			char c = in.charAt(i);
+			switch (c) {
+			case '&':
+				mOut.write("&amp;");
+				break;
+			case '<':
+				mOut.write("&lt;");
+				break;
+			case '>':
+				mOut.write("&gt;");
+				break;
+			case '"':
+				mOut.write("&quot;");
+				break;
+			case '\'':
+				mOut.write("&apos;");
+				break;
+			default:
+				// drop control characters XML 1.0 can't carry
+				if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+					mOut.write(c);
+				}
+			}
+		}
+	}
+}
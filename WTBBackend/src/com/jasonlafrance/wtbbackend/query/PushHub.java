@@ -0,0 +1,119 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.query;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.jasonlafrance.wtbbackend.gtfs.Route;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.vehicle.VehicleListener;
+
+/**
+ * Fans Vehicle updates out to push stream subscribers as server-sent events.
+ * Each update is serialized at most once, and only if some subscriber wants
+ * it, then offered to the matching subscribers' rings. The QueryPortal is
+ * woken up to do the actual writing on its own thread.
+ * 
+ * @author Jason LaFrance
+ */
+public class PushHub implements VehicleListener {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final CopyOnWriteArrayList<PushSubscriber> mSubscribers = new CopyOnWriteArrayList<>();
+	private volatile Runnable mWaker = null;
+
+	/**
+	 * Create a PushHub and start listening for Vehicle updates
+	 */
+	public PushHub() {
+		Vehicle.addListener(this);
+	}
+
+	/**
+	 * Get the number of subscribers
+	 * 
+	 * @return Number of subscribers
+	 */
+	public int getSubscriberCount() {
+		return mSubscribers.size();
+	}
+
+	/**
+	 * Set what to call when subscribers have new events
+	 * 
+	 * @param in
+	 *            The callback
+	 */
+	void setWaker(Runnable in) {
+		mWaker = in;
+	}
+
+	/**
+	 * Add a subscriber
+	 * 
+	 * @param inQuery
+	 *            The subscription's query string, or null
+	 * @return The new subscriber
+	 */
+	public PushSubscriber subscribe(String inQuery) {
+		PushSubscriber ret = new PushSubscriber(inQuery, DEFAULT_CAPACITY);
+		mSubscribers.add(ret);
+		return ret;
+	}
+
+	/**
+	 * Remove a subscriber
+	 * 
+	 * @param in
+	 *            The subscriber
+	 */
+	public void unsubscribe(PushSubscriber in) {
+		mSubscribers.remove(in);
+	}
+
+	@Override
+	public void vehicleUpdated(Vehicle v) {
+		if (mSubscribers.isEmpty()) {
+			return;
+		}
+
+		ArrayList<Route> routes = v.getProbableRoutes();
+		byte[] event = null;
+		for (PushSubscriber s : mSubscribers) {
+			if (s.matches(v, routes)) {
+				if (event == null) {
+					event = ("event: vehicle\ndata: "
+							+ VehicleQueries.toJSON(v, routes) + "\n\n")
+							.getBytes(UTF8);
+				}
+				s.offer(v.getID(), event);
+			}
+		}
+
+		Runnable waker = mWaker;
+		if (event != null && waker != null) {
+			waker.run();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.query;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.jasonlafrance.wtbbackend.gtfs.Route;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+
+/**
+ * One push stream subscriber. Pending events are kept in a bounded ring of
+ * vehicle IDs with the newest event per vehicle, so a vehicle that reports
+ * again before the client catches up just replaces its pending event. When
+ * the ring is full the oldest vehicle's event is dropped, so a slow client
+ * never holds up ingest.
+ * 
+ * @author Jason LaFrance
+ */
+public class PushSubscriber {
+
+	private final int[] mRing;
+	private int mHead = 0;
+	private int mCount = 0;
+	private final HashMap<Integer, byte[]> mPending = new HashMap<>();
+	private long mDropped = 0;
+
+	// filters, null means match anything
+	private final HashSet<String> mRoutes;
+	private final HashSet<Integer> mVehicles;
+	private final double[] mBounds;
+
+	/**
+	 * Create a subscriber from a query string such as
+	 * "route=1,2&amp;bbox=minLat,minLon,maxLat,maxLon&amp;vehicle=5,6"
+	 * 
+	 * @param inQuery
+	 *            The raw query string, or null
+	 * @param inCapacity
+	 *            Maximum number of vehicles with pending events
+	 */
+	public PushSubscriber(String inQuery, int inCapacity) {
+		mRing = new int[inCapacity];
+
+		HashSet<String> routes = null;
+		HashSet<Integer> vehicles = null;
+		double[] bounds = null;
+
+		if (inQuery != null) {
+			for (String param : inQuery.split("&")) {
+				int eq = param.indexOf('=');
+				if (eq < 0) {
+					continue;
+				}
+				String key = param.substring(0, eq);
+				String[] values = QueryPortal.decode(param.substring(eq + 1))
+						.split(",");
+				switch (key) {
+				case "route":
+					routes = new HashSet<>();
+					for (String v : values) {
+						routes.add(v.trim());
+					}
+					break;
+				case "vehicle":
+					vehicles = new HashSet<>();
+					for (String v : values) {
+						try {
+							vehicles.add(Integer.parseInt(v.trim()));
+						} catch (NumberFormatException e) {
+							;
+						}
+					}
+					break;
+				case "bbox":
+					if (values.length == 4) {
+						try {
+							bounds = new double[4];
+							for (int i = 0; i < 4; i++) {
+								bounds[i] = Double.parseDouble(values[i]);
+							}
+						} catch (NumberFormatException e) {
+							bounds = null;
+						}
+					}
+					break;
+				}
+			}
+		}
+
+		mRoutes = routes;
+		mVehicles = vehicles;
+		mBounds = bounds;
+	}
+
+	/**
+	 * Take all of the pending events
+	 * 
+	 * @return The events in arrival order, or null if none are pending
+	 */
+	public synchronized byte[] drain() {
+		if (mCount == 0) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(mCount * 256);
+		for (int i = 0; i < mCount; i++) {
+			byte[] event = mPending.remove(mRing[(mHead + i) % mRing.length]);
+			out.write(event, 0, event.length);
+		}
+		mHead = 0;
+		mCount = 0;
+		return out.toByteArray();
+	}
+
+	/**
+	 * Get the number of events dropped because the ring was full
+	 * 
+	 * @return Number of dropped events
+	 */
+	public synchronized long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * Check a Vehicle against this subscriber's filters
+	 * 
+	 * @param v
+	 *            The Vehicle
+	 * @param inRoutes
+	 *            The Vehicle's probable routes
+	 * @return True if the subscriber wants the Vehicle's updates
+	 */
+	public boolean matches(Vehicle v, ArrayList<Route> inRoutes) {
+		if (mVehicles != null && !mVehicles.contains(v.getID())) {
+			return false;
+		}
+		if (mBounds != null
+				&& (v.getLat() < mBounds[0] || v.getLon() < mBounds[1]
+						|| v.getLat() > mBounds[2] || v.getLon() > mBounds[3])) {
+			return false;
+		}
+		if (mRoutes != null) {
+			for (Route r : inRoutes) {
+				if (mRoutes.contains(r.get_route_id())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Queue an event, replacing any pending event for the same vehicle
+	 * 
+	 * @param inID
+	 *            The vehicle ID
+	 * @param inEvent
+	 *            The encoded event
+	 */
+	public synchronized void offer(int inID, byte[] inEvent) {
+		if (mPending.put(inID, inEvent) != null) {
+			// coalesced, it keeps its place in line
+			return;
+		}
+		if (mCount == mRing.length) {
+			mPending.remove(mRing[mHead]);
+			mHead = (mHead + 1) % mRing.length;
+			mCount--;
+			mDropped++;
+		}
+		mRing[(mHead + mCount) % mRing.length] = inID;
+		mCount++;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.query;
+
+/**
+ * Interface for anything that answers QueryPortal requests
+ * 
+ * @author Jason LaFrance
+ */
+public interface QueryHandler {
+
+	/**
+	 * Answer a request. This is called on the portal's selector thread, so it
+	 * should hand back an already built Snapshot wherever possible. Handlers
+	 * registered with QueryPortal.addBlockingHandler() are called on its
+	 * worker threads instead, possibly several at once.
+	 * 
+	 * @param inPath
+	 *            The request path, without any query string
+	 * @return The response Snapshot, or null if the path isn't handled
+	 */
+	public Snapshot query(String inPath);
+}
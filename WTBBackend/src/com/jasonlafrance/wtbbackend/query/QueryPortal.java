@@ -0,0 +1,826 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.query;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-side HTTP query portal. A single thread multiplexes every client
+ * connection with a Selector and answers GET requests with pre-built
+ * Snapshots from registered QueryHandlers, so a request costs a lookup and a
+ * write rather than a serialization. Supports keep-alive, gzip and
+ * If-None-Match. Paths registered with addStream() are held open as
+ * server-sent event streams fed by a PushHub.
+ * 
+ * Handlers that have to compute their answers, like journey planning, are
+ * registered with addBlockingHandler(). Their requests run on a small worker
+ * pool, and the response is written once it's ready, so one slow request
+ * never holds up the selector thread. When the pool's queue is full, new
+ * requests get a 503 instead of waiting.
+ * 
+ * @author Jason LaFrance
+ */
+public class QueryPortal extends Thread {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int MAX_REQUEST_SIZE = 8192;
+	private static final long HEARTBEAT_INTERVAL = 15000;
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(ASCII);
+	private static final int WORKERS = 2;
+	private static final int MAX_QUEUED = 64;
+	// lookup() result for paths that a blocking handler has to answer
+	private static final Snapshot DEFER = new Snapshot(new byte[0], "");
+
+	/**
+	 * Per-connection state
+	 */
+	private static class Connection {
+		private ByteBuffer mIn = ByteBuffer.allocate(1024);
+		private ByteBuffer[] mOut = null;
+		private boolean mClose = false;
+		private PushHub mHub = null;
+		private PushSubscriber mStream = null;
+	}
+
+	/**
+	 * A registered handler
+	 */
+	private static class Binding {
+		private final String mPrefix;
+		private final QueryHandler mHandler;
+		private final boolean mBlocking;
+
+		/**
+		 * @param inPrefix
+		 *            Path prefix
+		 * @param inHandler
+		 *            The handler
+		 * @param inBlocking
+		 *            True if the handler runs on the worker pool
+		 */
+		private Binding(String inPrefix, QueryHandler inHandler,
+				boolean inBlocking) {
+			mPrefix = inPrefix;
+			mHandler = inHandler;
+			mBlocking = inBlocking;
+		}
+	}
+
+	/**
+	 * A request answered on the worker pool, waiting to be written
+	 */
+	private static class Completion {
+		private final SelectionKey mKey;
+		private final Request mRequest;
+		private final Snapshot mSnapshot;
+
+		/**
+		 * @param inKey
+		 *            The connection's key
+		 * @param inRequest
+		 *            The request
+		 * @param inSnapshot
+		 *            The answer, or null if nothing handled the path
+		 */
+		private Completion(SelectionKey inKey, Request inRequest,
+				Snapshot inSnapshot) {
+			mKey = inKey;
+			mRequest = inRequest;
+			mSnapshot = inSnapshot;
+		}
+	}
+
+	/**
+	 * A parsed request
+	 */
+	private static class Request {
+		private String mMethod;
+		private String mPath;
+		private String mQuery = null;
+		private boolean mKeepAlive;
+		private boolean mGzip = false;
+		private String mIfNoneMatch = null;
+	}
+
+	private final int mPort;
+	// copied on write, so lookups never lock
+	private volatile Binding[] mHandlers = new Binding[0];
+	private final ThreadPoolExecutor mWorkers;
+	private final ConcurrentLinkedQueue<Completion> mCompleted = new ConcurrentLinkedQueue<>();
+	private final LinkedHashMap<String, PushHub> mStreams = new LinkedHashMap<>();
+	private final AtomicBoolean mStreamsPending = new AtomicBoolean(false);
+	private volatile Selector mSelector;
+	private long mLastHeartbeat = 0;
+
+	/**
+	 * URL decode a path segment or query value
+	 * 
+	 * @param in
+	 *            The raw text
+	 * @return The decoded text
+	 */
+	public static String decode(String in) {
+		try {
+			return URLDecoder.decode(in, "UTF-8");
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return in;
+		}
+	}
+
+	/**
+	 * Create a QueryPortal. Call start() once all of the handlers are added.
+	 * 
+	 * @param inPort
+	 *            Port number to attach to.
+	 */
+	public QueryPortal(int inPort) {
+		super("QueryPortal");
+		mPort = inPort;
+		setDaemon(true);
+		mWorkers = new ThreadPoolExecutor(WORKERS, WORKERS, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						MAX_QUEUED), new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread ret = new Thread(r, "QueryWorker-"
+								+ mCount.incrementAndGet());
+						ret.setDaemon(true);
+						return ret;
+					}
+				});
+	}
+
+	/**
+	 * Register a handler for all paths starting with a prefix. Handlers are
+	 * tried in the order they were added.
+	 * 
+	 * @param inPrefix
+	 *            Path prefix, such as "/vehicles"
+	 * @param inHandler
+	 *            The handler
+	 */
+	public void addHandler(String inPrefix, QueryHandler inHandler) {
+		bind(new Binding(inPrefix, inHandler, false));
+	}
+
+	/**
+	 * Register a handler whose query() does real work for all paths starting
+	 * with a prefix. It's called on the worker pool rather than the selector
+	 * thread.
+	 * 
+	 * @param inPrefix
+	 *            Path prefix, such as "/plan/"
+	 * @param inHandler
+	 *            The handler
+	 */
+	public void addBlockingHandler(String inPrefix, QueryHandler inHandler) {
+		bind(new Binding(inPrefix, inHandler, true));
+	}
+
+	/**
+	 * Add or replace a handler binding
+	 * 
+	 * @param in
+	 *            The binding
+	 */
+	private synchronized void bind(Binding in) {
+		Binding[] handlers = mHandlers;
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i].mPrefix.equals(in.mPrefix)) {
+				handlers = handlers.clone();
+				handlers[i] = in;
+				mHandlers = handlers;
+				return;
+			}
+		}
+		handlers = Arrays.copyOf(handlers, handlers.length + 1);
+		handlers[handlers.length - 1] = in;
+		mHandlers = handlers;
+	}
+
+	/**
+	 * Register a server-sent event stream for all paths starting with a
+	 * prefix. The query string is handed to the hub as the subscription
+	 * filter.
+	 * 
+	 * @param inPrefix
+	 *            Path prefix, such as "/stream"
+	 * @param inHub
+	 *            The hub feeding the stream
+	 */
+	public synchronized void addStream(String inPrefix, PushHub inHub) {
+		mStreams.put(inPrefix, inHub);
+		inHub.setWaker(new Runnable() {
+			@Override
+			public void run() {
+				wake();
+			}
+		});
+	}
+
+	/**
+	 * Close a connection and drop its subscription, if any
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 */
+	private void close(SelectionKey inKey) {
+		inKey.cancel();
+		Object o = inKey.attachment();
+		if (o instanceof Connection) {
+			Connection c = (Connection) o;
+			if (c.mStream != null) {
+				c.mHub.unsubscribe(c.mStream);
+			}
+		}
+		try {
+			inKey.channel().close();
+		} catch (IOException e) {
+			;
+		}
+	}
+
+	/**
+	 * Write any pending events to every idle stream
+	 * 
+	 * @param inHeartbeat
+	 *            True to send a heartbeat comment to streams with nothing
+	 *            pending
+	 */
+	private void flushStreams(boolean inHeartbeat) {
+		for (SelectionKey key : mSelector.keys()) {
+			Object o = key.attachment();
+			if (!key.isValid() || !(o instanceof Connection)) {
+				continue;
+			}
+			Connection c = (Connection) o;
+			if (c.mStream == null || c.mOut != null) {
+				continue;
+			}
+			try {
+				byte[] events = c.mStream.drain();
+				if (events == null && inHeartbeat) {
+					events = HEARTBEAT;
+				}
+				if (events != null) {
+					queue(key, c, ByteBuffer.wrap(events), null, true);
+				}
+			} catch (IOException e) {
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * Find the stream hub for a path
+	 * 
+	 * @param inPath
+	 *            The request path
+	 * @return The PushHub, or null if the path isn't a stream
+	 */
+	private synchronized PushHub findStream(String inPath) {
+		for (Map.Entry<String, PushHub> e : mStreams.entrySet()) {
+			if (inPath.startsWith(e.getKey())) {
+				return e.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Accept a new connection
+	 * 
+	 * @param inKey
+	 *            The server socket's key
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void accept(SelectionKey inKey) throws IOException {
+		SocketChannel channel = ((ServerSocketChannel) inKey.channel())
+				.accept();
+		if (channel != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(mSelector, SelectionKey.OP_READ, new Connection());
+		}
+	}
+
+	/**
+	 * Build an HTTP response header
+	 * 
+	 * @param inCode
+	 *            Status code
+	 * @param inReason
+	 *            Status reason
+	 * @param inSnapshot
+	 *            The snapshot being sent, or null
+	 * @param inLength
+	 *            Body length
+	 * @param inGzip
+	 *            True if the body is gzip encoded
+	 * @param inKeepAlive
+	 *            True if the connection stays open
+	 * @return The header bytes
+	 */
+	private static ByteBuffer buildHeader(int inCode, String inReason,
+			Snapshot inSnapshot, int inLength, boolean inGzip,
+			boolean inKeepAlive) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("HTTP/1.1 ").append(inCode).append(' ').append(inReason)
+				.append("\r\n");
+		sb.append("Server: WTBBackend Query\r\n");
+		if (inSnapshot != null) {
+			sb.append("Content-Type: ").append(inSnapshot.getContentType())
+					.append("\r\n");
+			sb.append("ETag: ").append(inSnapshot.getETag()).append("\r\n");
+			sb.append("Cache-Control: no-cache\r\n");
+			sb.append("Vary: Accept-Encoding\r\n");
+		}
+		if (inGzip) {
+			sb.append("Content-Encoding: gzip\r\n");
+		}
+		sb.append("Content-Length: ").append(inLength).append("\r\n");
+		sb.append("Connection: ").append(inKeepAlive ? "keep-alive" : "close")
+				.append("\r\n\r\n");
+		return ByteBuffer.wrap(sb.toString().getBytes(ASCII));
+	}
+
+	/**
+	 * Find the end of the request header in a buffer
+	 * 
+	 * @param in
+	 *            The buffer, in read mode
+	 * @return Index just past the blank line, or -1 if not found yet
+	 */
+	private static int findHeaderEnd(ByteBuffer in) {
+		for (int i = in.position(); i + 3 < in.limit(); i++) {
+			if (in.get(i) == '\r' && in.get(i + 1) == '\n'
+					&& in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+				return i + 4;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the handler response for a path
+	 * 
+	 * @param inPath
+	 *            The request path
+	 * @param inBlocking
+	 *            True to call blocking handlers, false to stop at the first
+	 *            one that matches
+	 * @return The Snapshot, null if nothing handles the path, or DEFER if a
+	 *         blocking handler has to answer it
+	 */
+	private Snapshot lookup(String inPath, boolean inBlocking) {
+		for (Binding b : mHandlers) {
+			if (inPath.startsWith(b.mPrefix)) {
+				if (b.mBlocking && !inBlocking) {
+					return DEFER;
+				}
+				Snapshot ret = b.mHandler.query(inPath);
+				if (ret != null) {
+					return ret;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Hand a request to the worker pool. The connection isn't read from
+	 * again until the response has been queued, so pipelined requests are
+	 * still answered in order.
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 * @param c
+	 *            The connection state
+	 * @param inRequest
+	 *            The request
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void defer(final SelectionKey inKey, Connection c,
+			final Request inRequest) throws IOException {
+		try {
+			mWorkers.execute(new Runnable() {
+				@Override
+				public void run() {
+					Snapshot s = null;
+					try {
+						s = lookup(inRequest.mPath, true);
+					} catch (RuntimeException e) {
+						Logger.getLogger(QueryPortal.class.getName()).log(
+								Level.WARNING, inRequest.mPath, e);
+					}
+					mCompleted.add(new Completion(inKey, inRequest, s));
+					Selector selector = mSelector;
+					if (selector != null) {
+						selector.wakeup();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			send(inKey, c, 503, "Service Unavailable", null,
+					inRequest.mKeepAlive);
+			return;
+		}
+		inKey.interestOps(0);
+	}
+
+	/**
+	 * Write the responses the worker pool has finished
+	 */
+	private void flushCompleted() {
+		Completion done;
+		while ((done = mCompleted.poll()) != null) {
+			if (!done.mKey.isValid()) {
+				continue;
+			}
+			try {
+				answer(done.mKey, (Connection) done.mKey.attachment(), done.mRequest, done.mSnapshot);
+			} catch (IOException e) {
+				close(done.mKey);
+			}
+		}
+	}
+
+	/**
+	 * Parse a raw request header
+	 * 
+	 * @param inHeader
+	 *            The header text
+	 * @return The parsed Request, or null if malformed
+	 */
+	private static Request parse(String inHeader) {
+		String[] lines = inHeader.split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3) {
+			return null;
+		}
+
+		Request ret = new Request();
+		ret.mMethod = requestLine[0];
+		ret.mPath = requestLine[1];
+		int query = ret.mPath.indexOf('?');
+		if (query > -1) {
+			ret.mQuery = ret.mPath.substring(query + 1);
+			ret.mPath = ret.mPath.substring(0, query);
+		}
+		ret.mKeepAlive = requestLine[2].equals("HTTP/1.1");
+
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim().toLowerCase();
+			String value = lines[i].substring(colon + 1).trim();
+			switch (name) {
+			case "connection":
+				if (value.equalsIgnoreCase("close")) {
+					ret.mKeepAlive = false;
+				} else if (value.equalsIgnoreCase("keep-alive")) {
+					ret.mKeepAlive = true;
+				}
+				break;
+			case "accept-encoding":
+				ret.mGzip = value.toLowerCase().contains("gzip");
+				break;
+			case "if-none-match":
+				ret.mIfNoneMatch = value;
+				break;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Read from a connection and answer any complete request
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void read(SelectionKey inKey) throws IOException {
+		Connection c = (Connection) inKey.attachment();
+		SocketChannel channel = (SocketChannel) inKey.channel();
+
+		if (channel.read(c.mIn) < 0) {
+			close(inKey);
+			return;
+		}
+		if (c.mStream != null) {
+			// nothing more is expected from a stream client
+			c.mIn.clear();
+			return;
+		}
+		respond(inKey, c);
+	}
+
+	/**
+	 * Answer the next buffered request on a connection, if one is complete
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 * @param c
+	 *            The connection state
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void respond(SelectionKey inKey, Connection c) throws IOException {
+		c.mIn.flip();
+		int end = findHeaderEnd(c.mIn);
+		if (end < 0) {
+			c.mIn.compact();
+			if (!c.mIn.hasRemaining()) {
+				if (c.mIn.capacity() >= MAX_REQUEST_SIZE) {
+					send(inKey, c, 431, "Request Header Fields Too Large",
+							null, false);
+					return;
+				}
+				ByteBuffer bigger = ByteBuffer
+						.allocate(c.mIn.capacity() * 2);
+				c.mIn.flip();
+				bigger.put(c.mIn);
+				c.mIn = bigger;
+			}
+			return;
+		}
+
+		byte[] raw = new byte[end - c.mIn.position()];
+		c.mIn.get(raw);
+		c.mIn.compact();
+
+		Request r = parse(new String(raw, ASCII));
+		if (r == null) {
+			send(inKey, c, 400, "Bad Request", null, false);
+			return;
+		}
+
+		boolean head = r.mMethod.equals("HEAD");
+		if (!head && !r.mMethod.equals("GET")) {
+			send(inKey, c, 405, "Method Not Allowed", null, false);
+			return;
+		}
+
+		PushHub hub = findStream(r.mPath);
+		if (hub != null && !head) {
+			c.mHub = hub;
+			c.mStream = hub.subscribe(r.mQuery);
+			ByteBuffer header = ByteBuffer.wrap(("HTTP/1.1 200 OK\r\n"
+					+ "Server: WTBBackend Query\r\n"
+					+ "Content-Type: text/event-stream\r\n"
+					+ "Cache-Control: no-cache\r\n"
+					+ "Connection: keep-alive\r\n\r\n" + "retry: 2000\n\n")
+					.getBytes(ASCII));
+			queue(inKey, c, header, null, true);
+			return;
+		}
+
+		Snapshot s = lookup(r.mPath, false);
+		if (s == DEFER) {
+			defer(inKey, c, r);
+		} else {
+			answer(inKey, c, r, s);
+		}
+	}
+
+	/**
+	 * Send the response to a request
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 * @param c
+	 *            The connection state
+	 * @param r
+	 *            The request
+	 * @param s
+	 *            The handler's answer, or null if nothing handled the path
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void answer(SelectionKey inKey, Connection c, Request r,
+			Snapshot s) throws IOException {
+		if (s == null) {
+			send(inKey, c, 404, "Not Found", null, r.mKeepAlive);
+		} else if (r.mIfNoneMatch != null
+				&& (r.mIfNoneMatch.equals("*") || r.mIfNoneMatch.contains(s
+						.getETag()))) {
+			send(inKey, c, 304, "Not Modified", s, r.mKeepAlive);
+		} else {
+			boolean gzip = r.mGzip && s.isCompressible();
+			byte[] body = gzip ? s.getGzipBody() : s.getBody();
+			ByteBuffer header = buildHeader(200, "OK", s, body.length, gzip,
+					r.mKeepAlive);
+			queue(inKey, c, header,
+					r.mMethod.equals("HEAD") ? null : ByteBuffer.wrap(body),
+					r.mKeepAlive);
+		}
+	}
+
+	/**
+	 * The selector loop
+	 */
+	@Override
+	public void run() {
+		try {
+			mSelector = Selector.open();
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.configureBlocking(false);
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(mPort));
+			server.register(mSelector, SelectionKey.OP_ACCEPT);
+			System.out.println("QueryPortal listening on port " + mPort);
+		} catch (IOException e) {
+			System.out.println("QueryPortal: can't bind to port " + mPort
+					+ ": " + e.getMessage());
+			return;
+		}
+
+		while (true) {
+			try {
+				mSelector.select(1000);
+			} catch (IOException e) {
+				Logger.getLogger(QueryPortal.class.getName()).log(
+						Level.SEVERE, null, e);
+				return;
+			}
+
+			Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(key);
+					} else if (key.isWritable()) {
+						write(key);
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				} catch (IOException e) {
+					close(key);
+				}
+			}
+
+			flushCompleted();
+
+			long now = System.currentTimeMillis();
+			boolean heartbeat = now - mLastHeartbeat >= HEARTBEAT_INTERVAL;
+			if (mStreamsPending.getAndSet(false) || heartbeat) {
+				flushStreams(heartbeat);
+			}
+			if (heartbeat) {
+				mLastHeartbeat = now;
+			}
+		}
+	}
+
+	/**
+	 * Queue a response on a connection and start writing it
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 * @param c
+	 *            The connection state
+	 * @param inHeader
+	 *            The response header
+	 * @param inBody
+	 *            The response body, or null
+	 * @param inKeepAlive
+	 *            True if the connection stays open afterwards
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void queue(SelectionKey inKey, Connection c, ByteBuffer inHeader,
+			ByteBuffer inBody, boolean inKeepAlive) throws IOException {
+		c.mOut = inBody == null ? new ByteBuffer[] { inHeader }
+				: new ByteBuffer[] { inHeader, inBody };
+		c.mClose = !inKeepAlive;
+		write(inKey);
+	}
+
+	/**
+	 * Send a response without a body
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 * @param c
+	 *            The connection state
+	 * @param inCode
+	 *            Status code
+	 * @param inReason
+	 *            Status reason
+	 * @param inSnapshot
+	 *            The snapshot the response refers to, or null
+	 * @param inKeepAlive
+	 *            True if the connection stays open afterwards
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void send(SelectionKey inKey, Connection c, int inCode,
+			String inReason, Snapshot inSnapshot, boolean inKeepAlive)
+			throws IOException {
+		queue(inKey, c, buildHeader(inCode, inReason, inSnapshot, 0, false,
+				inKeepAlive), null, inKeepAlive);
+	}
+
+	/**
+	 * Wake the selector thread to flush streams with new events
+	 */
+	private void wake() {
+		Selector selector = mSelector;
+		if (selector != null && mStreamsPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Write pending output to a connection
+	 * 
+	 * @param inKey
+	 *            The connection's key
+	 * @throws IOException
+	 *             On socket errors
+	 */
+	private void write(SelectionKey inKey) throws IOException {
+		Connection c = (Connection) inKey.attachment();
+		SocketChannel channel = (SocketChannel) inKey.channel();
+
+		channel.write(c.mOut);
+		if (c.mOut[c.mOut.length - 1].hasRemaining()) {
+			inKey.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		c.mOut = null;
+		if (c.mClose) {
+			close(inKey);
+			return;
+		}
+
+		inKey.interestOps(SelectionKey.OP_READ);
+		if (c.mStream != null) {
+			// keep going if more events came in while writing
+			byte[] events = c.mStream.drain();
+			if (events != null) {
+				queue(inKey, c, ByteBuffer.wrap(events), null, true);
+			}
+			return;
+		}
+		// handle a pipelined request if one is already buffered
+		if (c.mIn.position() > 0) {
+			respond(inKey, c);
+		}
+	}
+}
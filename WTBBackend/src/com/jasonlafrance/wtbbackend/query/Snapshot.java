@@ -0,0 +1,140 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
+
+/**
+ * Snapshot class for pre-serialized query responses. A snapshot is built once
+ * and then served as-is to every client that asks for it, along with its
+ * entity tag and a lazily compressed copy of the body.
+ * 
+ * @author Jason LaFrance
+ */
+public final class Snapshot {
+
+	public static final String JSON = "application/json; charset=utf-8";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// tiny bodies aren't worth compressing
+	private static final int MIN_GZIP_SIZE = 256;
+
+	/**
+	 * Create a JSON snapshot
+	 * 
+	 * @param inJSON
+	 *            The JSON text
+	 * @return A new Snapshot
+	 */
+	public static Snapshot json(String inJSON) {
+		return new Snapshot(inJSON.getBytes(UTF8), JSON);
+	}
+
+	private final byte[] mBody;
+	private final String mContentType;
+	private final String mETag;
+	private byte[] mGzipBody = null;
+
+	/**
+	 * Create a Snapshot from a raw body
+	 * 
+	 * @param inBody
+	 *            The response body
+	 * @param inContentType
+	 *            The body's MIME type
+	 */
+	public Snapshot(byte[] inBody, String inContentType) {
+		mBody = inBody;
+		mContentType = inContentType;
+
+		String tag;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA");
+			tag = HexUtil.getHex(Arrays.copyOf(digest.digest(inBody), 8));
+		} catch (NoSuchAlgorithmException e) {
+			tag = Integer.toHexString(Arrays.hashCode(inBody));
+		}
+		mETag = '"' + tag + '"';
+	}
+
+	/**
+	 * Check if the body should be compressed when the client accepts it
+	 * 
+	 * @return True if compressible
+	 */
+	public boolean isCompressible() {
+		// zip based bodies, like KMZ, are compressed already
+		return mBody.length >= MIN_GZIP_SIZE
+				&& !(mContentType.endsWith("zip") || mContentType.endsWith("kmz"));
+	}
+
+	/**
+	 * Get the raw body
+	 * 
+	 * @return The body bytes
+	 */
+	public byte[] getBody() {
+		return mBody;
+	}
+
+	/**
+	 * Get the content type
+	 * 
+	 * @return The body's MIME type
+	 */
+	public String getContentType() {
+		return mContentType;
+	}
+
+	/**
+	 * Get the entity tag, including quotes
+	 * 
+	 * @return The entity tag
+	 */
+	public String getETag() {
+		return mETag;
+	}
+
+	/**
+	 * Get the gzip compressed body, compressing it on first use
+	 * 
+	 * @return The compressed body bytes
+	 */
+	public synchronized byte[] getGzipBody() {
+		if (mGzipBody == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					mBody.length / 4 + 64);
+			try (GZIPOutputStream gz = new GZIPOutputStream(bytes)) {
+				gz.write(mBody);
+			} catch (IOException e) {
+				// can't happen with an in-memory stream
+			}
+			mGzipBody = bytes.toByteArray();
+		}
+		return mGzipBody;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jasonlafrance.wtbbackend.gtfs.Route;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+import com.jasonlafrance.wtbbackend.wtb_util.JSONUtil;
+
+/**
+ * QueryHandler for live vehicle state. Answers:
+ * 
+ * <pre>
+ * /vehicles                      all vehicles
+ * /vehicles/{id}                 one vehicle
+ * /routes/{route_id}/vehicles    vehicles probably on a route
+ * </pre>
+ * 
+ * All of the responses are rebuilt together at most once per tick, on the
+ * first request after the tick, and shared by every client until the next.
+ * 
+ * @author Jason LaFrance
+ */
+public class VehicleQueries implements QueryHandler {
+
+	private static final Snapshot EMPTY_LIST = Snapshot.json("[]");
+
+	private volatile long mTick = 0;
+	private long mBuiltTick = -1;
+
+	private Snapshot mAll = EMPTY_LIST;
+	private final HashMap<Integer, Snapshot> mByID = new HashMap<>();
+	private final HashMap<String, Snapshot> mByRoute = new HashMap<>();
+
+	/**
+	 * Serialize one vehicle
+	 * 
+	 * @param v
+	 *            The Vehicle
+	 * @param inRoutes
+	 *            The Vehicle's probable routes
+	 * @return The JSON object
+	 */
+	static String toJSON(Vehicle v, ArrayList<Route> inRoutes) {
+		StringBuilder sb = new StringBuilder(192);
+		sb.append("{\"id\":").append(v.getID());
+		sb.append(",\"desc\":");
+		JSONUtil.appendString(sb, v.getDesc());
+		sb.append(",\"lat\":");
+		JSONUtil.appendNumber(sb, v.getLat());
+		sb.append(",\"lon\":");
+		JSONUtil.appendNumber(sb, v.getLon());
+		sb.append(",\"heading\":");
+		JSONUtil.appendNumber(sb, v.getHeading());
+		sb.append(",\"speed_mph\":");
+		JSONUtil.appendNumber(sb, v.getSpeedInMPH());
+		sb.append(",\"timecode\":").append(v.getLatestTimecode());
+		sb.append(",\"color\":");
+		JSONUtil.appendString(sb, v.getColor());
+		sb.append(",\"routes\":[");
+		for (int i = 0; i < inRoutes.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			JSONUtil.appendString(sb, inRoutes.get(i).get_route_id());
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Join JSON objects into a JSON array snapshot
+	 * 
+	 * @param inObjects
+	 *            The serialized objects
+	 * @return The Snapshot
+	 */
+	private static Snapshot toList(ArrayList<String> inObjects) {
+		int size = 2;
+		for (String o : inObjects) {
+			size += o.length() + 1;
+		}
+		StringBuilder sb = new StringBuilder(size);
+		sb.append('[');
+		for (int i = 0; i < inObjects.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(inObjects.get(i));
+		}
+		sb.append(']');
+		return Snapshot.json(sb.toString());
+	}
+
+	@Override
+	public synchronized Snapshot query(String inPath) {
+		if (mBuiltTick != mTick) {
+			rebuild();
+		}
+
+		String[] parts = inPath.split("/");
+		// parts[0] is the empty string before the leading slash
+		if (parts.length == 2 && parts[1].equals("vehicles")) {
+			return mAll;
+		}
+		if (parts.length == 3 && parts[1].equals("vehicles")) {
+			try {
+				return mByID.get(Integer.parseInt(parts[2]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		if (parts.length == 4 && parts[1].equals("routes")
+				&& parts[3].equals("vehicles")) {
+			Snapshot ret = mByRoute.get(QueryPortal.decode(parts[2]));
+			return ret == null ? EMPTY_LIST : ret;
+		}
+		return null;
+	}
+
+	/**
+	 * Rebuild every snapshot from the current Vehicle state
+	 */
+	private void rebuild() {
+		mBuiltTick = mTick;
+
+		ArrayList<String> all = new ArrayList<>();
+		HashMap<String, ArrayList<String>> byRoute = new HashMap<>();
+		mByID.clear();
+
+		for (Vehicle v : Vehicle.getVehicles()) {
+			if (!v.isReady()) {
+				continue;
+			}
+			ArrayList<Route> routes = v.getProbableRoutes();
+			String json = toJSON(v, routes);
+
+			all.add(json);
+			mByID.put(v.getID(), Snapshot.json(json));
+			for (Route r : routes) {
+				ArrayList<String> list = byRoute.get(r.get_route_id());
+				if (list == null) {
+					list = new ArrayList<>();
+					byRoute.put(r.get_route_id(), list);
+				}
+				list.add(json);
+			}
+		}
+
+		mAll = toList(all);
+		mByRoute.clear();
+		for (Map.Entry<String, ArrayList<String>> e : byRoute.entrySet()) {
+			mByRoute.put(e.getKey(), toList(e.getValue()));
+		}
+	}
+
+	/**
+	 * Mark the current snapshots as stale. Call this once per tick.
+	 */
+	public void tick() {
+		mTick++;
+	}
+}
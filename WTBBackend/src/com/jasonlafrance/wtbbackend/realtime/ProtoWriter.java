@@ -0,0 +1,302 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.realtime;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Minimal protocol buffer wire format writer. Everything is written into one
+ * growable buffer that can be reset and reused, and nested messages are
+ * length-prefixed in place when they're closed, so no intermediate objects
+ * are built.
+ * 
+ * @author Jason LaFrance
+ */
+public final class ProtoWriter {
+
+	public static final int WIRE_VARINT = 0;
+	public static final int WIRE_FIXED64 = 1;
+	public static final int WIRE_LENGTH = 2;
+	public static final int WIRE_FIXED32 = 5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] mBuf;
+	private int mSize = 0;
+	private int[] mStack = new int[8];
+	private int mDepth = 0;
+
+	/**
+	 * Create a ProtoWriter with a default initial capacity
+	 */
+	public ProtoWriter() {
+		this(1024);
+	}
+
+	/**
+	 * Create a ProtoWriter
+	 * 
+	 * @param inCapacity
+	 *            Initial buffer capacity
+	 */
+	public ProtoWriter(int inCapacity) {
+		mBuf = new byte[Math.max(16, inCapacity)];
+	}
+
+	/**
+	 * Get the number of bytes needed to encode a varint
+	 * 
+	 * @param in
+	 *            The value
+	 * @return The encoded size
+	 */
+	private static int varintSize(long in) {
+		int ret = 1;
+		while ((in & ~0x7FL) != 0) {
+			in >>>= 7;
+			ret++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Open a nested message field. Must be matched with end().
+	 * 
+	 * @param inField
+	 *            Field number
+	 */
+	public void begin(int inField) {
+		writeTag(inField, WIRE_LENGTH);
+		if (mDepth == mStack.length) {
+			mStack = Arrays.copyOf(mStack, mDepth * 2);
+		}
+		mStack[mDepth++] = mSize;
+	}
+
+	/**
+	 * Close the innermost nested message, inserting its length prefix
+	 */
+	public void end() {
+		int start = mStack[--mDepth];
+		int length = mSize - start;
+		int prefix = varintSize(length);
+
+		ensure(prefix);
+		System.arraycopy(mBuf, start, mBuf, start + prefix, length);
+		int end = mSize;
+		mSize = start;
+		writeVarint(length);
+		mSize = end + prefix;
+	}
+
+	/**
+	 * Make room for more bytes
+	 * 
+	 * @param inBytes
+	 *            Number of bytes about to be written
+	 */
+	private void ensure(int inBytes) {
+		if (mSize + inBytes > mBuf.length) {
+			mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mSize
+					+ inBytes));
+		}
+	}
+
+	/**
+	 * Clear the buffer for reuse
+	 */
+	public void reset() {
+		mSize = 0;
+		mDepth = 0;
+	}
+
+	/**
+	 * Get the number of bytes written
+	 * 
+	 * @return Size in bytes
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Get the size of the buffer, which only grows
+	 * 
+	 * @return Capacity in bytes
+	 */
+	public int capacity() {
+		return mBuf.length;
+	}
+
+	/**
+	 * Copy out the written bytes
+	 * 
+	 * @return The encoded bytes
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(mBuf, mSize);
+	}
+
+	/**
+	 * Write a bool field
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param in
+	 *            The value
+	 */
+	public void writeBool(int inField, boolean in) {
+		writeTag(inField, WIRE_VARINT);
+		writeVarint(in ? 1 : 0);
+	}
+
+	/**
+	 * Write a double field
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param in
+	 *            The value
+	 */
+	public void writeDouble(int inField, double in) {
+		writeTag(inField, WIRE_FIXED64);
+		long bits = Double.doubleToLongBits(in);
+		ensure(8);
+		for (int i = 0; i < 8; i++) {
+			mBuf[mSize++] = (byte) (bits >>> (i * 8));
+		}
+	}
+
+	/**
+	 * Write a float field
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param in
+	 *            The value
+	 */
+	public void writeFloat(int inField, float in) {
+		writeTag(inField, WIRE_FIXED32);
+		int bits = Float.floatToIntBits(in);
+		ensure(4);
+		mBuf[mSize++] = (byte) bits;
+		mBuf[mSize++] = (byte) (bits >>> 8);
+		mBuf[mSize++] = (byte) (bits >>> 16);
+		mBuf[mSize++] = (byte) (bits >>> 24);
+	}
+
+	/**
+	 * Write an int32 or enum field. Negative values take ten bytes, as the
+	 * wire format requires.
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param in
+	 *            The value
+	 */
+	public void writeInt32(int inField, int in) {
+		writeTag(inField, WIRE_VARINT);
+		writeVarint(in);
+	}
+
+	/**
+	 * Write already encoded bytes as-is
+	 * 
+	 * @param in
+	 *            The encoded bytes
+	 */
+	public void writeRaw(byte[] in) {
+		ensure(in.length);
+		System.arraycopy(in, 0, mBuf, mSize, in.length);
+		mSize += in.length;
+	}
+
+	/**
+	 * Write a sint32 or sint64 field, zigzag encoded
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param in
+	 *            The value
+	 */
+	public void writeSInt64(int inField, long in) {
+		writeTag(inField, WIRE_VARINT);
+		writeVarint((in << 1) ^ (in >> 63));
+	}
+
+	/**
+	 * Write a string field
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param in
+	 *            The value, skipped if null
+	 */
+	public void writeString(int inField, String in) {
+		if (in == null) {
+			return;
+		}
+		byte[] bytes = in.getBytes(UTF8);
+		writeTag(inField, WIRE_LENGTH);
+		writeVarint(bytes.length);
+		writeRaw(bytes);
+	}
+
+	/**
+	 * Write a field tag
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param inWireType
+	 *            Wire type
+	 */
+	public void writeTag(int inField, int inWireType) {
+		writeVarint((inField << 3) | inWireType);
+	}
+
+	/**
+	 * Write a uint32 or uint64 field
+	 * 
+	 * @param inField
+	 *            Field number
+	 * @param in
+	 *            The value
+	 */
+	public void writeUInt64(int inField, long in) {
+		writeTag(inField, WIRE_VARINT);
+		writeVarint(in);
+	}
+
+	/**
+	 * Write a raw varint
+	 * 
+	 * @param in
+	 *            The value
+	 */
+	public void writeVarint(long in) {
+		ensure(10);
+		while ((in & ~0x7FL) != 0) {
+			mBuf[mSize++] = (byte) ((in & 0x7F) | 0x80);
+			in >>>= 7;
+		}
+		mBuf[mSize++] = (byte) in;
+	}
+}
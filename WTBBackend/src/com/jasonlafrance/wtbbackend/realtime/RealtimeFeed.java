@@ -0,0 +1,545 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.realtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.jasonlafrance.wtbbackend.gtfs.Route;
+import com.jasonlafrance.wtbbackend.gtfs.StopAdapter;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+import com.jasonlafrance.wtbbackend.query.QueryHandler;
+import com.jasonlafrance.wtbbackend.query.Snapshot;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+
+/**
+ * GTFS-Realtime feed producer. Builds VehiclePositions and TripUpdates feed
+ * messages from the Vehicle registry and each vehicle's matched stop visit,
+ * and serves them through the QueryPortal:
+ * 
+ * <pre>
+ * /gtfs-rt/vehicle_positions                           FULL_DATASET
+ * /gtfs-rt/vehicle_positions/incremental/{timestamp}   DIFFERENTIAL
+ * /gtfs-rt/trip_updates                                FULL_DATASET
+ * /gtfs-rt/trip_updates/incremental/{timestamp}        DIFFERENTIAL
+ * </pre>
+ * 
+ * Each vehicle's entities are encoded once when the vehicle reports, and
+ * cached, so a build costs an encode per changed vehicle plus a copy of the
+ * cached bytes.
+ * 
+ * The header timestamp of a build doubles as its version. A differential
+ * feed holds every entity that changed or was deleted in the build with the
+ * given timestamp or since, so a client passes the timestamp of the last
+ * feed it got and never misses an update however rarely it polls. Entities
+ * from that same build may be sent again, which is harmless. Deletions are
+ * only remembered for TOMBSTONE_SECONDS, so an older timestamp gets the full
+ * dataset instead. Without a timestamp, a differential feed has just the
+ * changes of the latest build.
+ * 
+ * @author Jason LaFrance
+ */
+public class RealtimeFeed implements QueryHandler {
+
+	public static final String PROTOBUF = "application/x-protobuf";
+	private static final String VERSION = "2.0";
+	private static final long TOMBSTONE_SECONDS = 10 * 60;
+	private static final String POSITIONS_DIFF = "/gtfs-rt/vehicle_positions/incremental";
+	private static final String TRIP_UPDATES_DIFF = "/gtfs-rt/trip_updates/incremental";
+
+	// incrementality enum
+	private static final int FULL_DATASET = 0;
+	private static final int DIFFERENTIAL = 1;
+
+	// FeedMessage
+	private static final int FEED_HEADER = 1, FEED_ENTITY = 2;
+	// FeedHeader
+	private static final int HEADER_VERSION = 1, HEADER_INCREMENTALITY = 2,
+			HEADER_TIMESTAMP = 3;
+	// FeedEntity
+	private static final int ENTITY_ID = 1, ENTITY_IS_DELETED = 2,
+			ENTITY_TRIP_UPDATE = 3, ENTITY_VEHICLE = 4;
+	// TripUpdate
+	private static final int TU_TRIP = 1, TU_STOP_TIME_UPDATE = 2,
+			TU_VEHICLE = 3, TU_TIMESTAMP = 4, TU_DELAY = 5;
+	// TripUpdate.StopTimeUpdate
+	private static final int STU_STOP_SEQUENCE = 1, STU_ARRIVAL = 2,
+			STU_STOP_ID = 4;
+	// TripUpdate.StopTimeEvent
+	private static final int STE_DELAY = 1, STE_TIME = 2;
+	// TripDescriptor
+	private static final int TD_TRIP_ID = 1, TD_ROUTE_ID = 5;
+	// VehicleDescriptor
+	private static final int VD_ID = 1, VD_LABEL = 2;
+	// VehiclePosition
+	private static final int VP_TRIP = 1, VP_POSITION = 2,
+			VP_CURRENT_STOP_SEQUENCE = 3, VP_TIMESTAMP = 5, VP_STOP_ID = 7,
+			VP_VEHICLE = 8;
+	// Position
+	private static final int POS_LATITUDE = 1, POS_LONGITUDE = 2,
+			POS_BEARING = 3, POS_SPEED = 5;
+
+	/**
+	 * Cached encoding of one vehicle
+	 */
+	private static class Entry {
+		// object, its map entry and the array headers
+		private static final int BYTES = 32 + 32 + 2 * 16;
+
+		private int mTimecode = -1;
+		// timestamp of the build that last re-encoded this vehicle
+		private long mChanged = -1;
+		private byte[] mPosition = null;
+		private byte[] mTripUpdate = null;
+	}
+
+	/**
+	 * Get the length of a snapshot body
+	 * 
+	 * @param in
+	 *            The snapshot, or null
+	 * @return Body length
+	 */
+	private static long length(Snapshot in) {
+		return in == null ? 0 : in.getBody().length;
+	}
+
+	/**
+	 * Get the length of a byte array
+	 * 
+	 * @param in
+	 *            The array, or null
+	 * @return Array length
+	 */
+	private static long length(byte[] in) {
+		return in == null ? 0 : in.length;
+	}
+
+	/**
+	 * Get the POSIX time of a time of day today
+	 * 
+	 * @param inSeconds
+	 *            Seconds since midnight
+	 * @return POSIX time in seconds
+	 */
+	private static long toPosix(int inSeconds) {
+		java.util.Calendar c = java.util.Calendar.getInstance();
+		c.set(java.util.Calendar.HOUR_OF_DAY, 0);
+		c.set(java.util.Calendar.MINUTE, 0);
+		c.set(java.util.Calendar.SECOND, 0);
+		c.set(java.util.Calendar.MILLISECOND, 0);
+		return c.getTimeInMillis() / 1000 + inSeconds;
+	}
+
+	private volatile long mTick = 0;
+	private long mBuiltTick = -1;
+	private long mBuiltSeconds = 0;
+
+	private final HashMap<Integer, Entry> mEntries = new HashMap<>();
+	// vehicle ID to the timestamp of the build it was deleted in
+	private final HashMap<Integer, Long> mPositionsDeleted = new HashMap<>();
+	private final HashMap<Integer, Long> mTripsDeleted = new HashMap<>();
+	private final ProtoWriter mEntityWriter = new ProtoWriter(256);
+	private final ProtoWriter mFeedWriter = new ProtoWriter(64 * 1024);
+
+	private Snapshot mPositions, mPositionsDiff;
+	private Snapshot mTripUpdates, mTripUpdatesDiff;
+
+	/**
+	 * Create a RealtimeFeed with empty feeds
+	 */
+	public RealtimeFeed() {
+		mPositions = buildFeed(FULL_DATASET, null, null, 0);
+		mPositionsDiff = mTripUpdates = mTripUpdatesDiff = mPositions;
+	}
+
+	/**
+	 * Encode a FeedMessage from cached entities
+	 * 
+	 * @param inIncrementality
+	 *            FULL_DATASET or DIFFERENTIAL
+	 * @param inEntities
+	 *            Encoded FeedEntity fields, or null for none
+	 * @param inDeleted
+	 *            Vehicle IDs to send deletions for, or null for none
+	 * @param inTimestamp
+	 *            Header timestamp, the POSIX time of the build
+	 * @return The FeedMessage Snapshot
+	 */
+	private Snapshot buildFeed(int inIncrementality,
+			ArrayList<byte[]> inEntities, HashSet<Integer> inDeleted,
+			long inTimestamp) {
+		ProtoWriter w = mFeedWriter;
+		w.reset();
+
+		w.begin(FEED_HEADER);
+		w.writeString(HEADER_VERSION, VERSION);
+		w.writeInt32(HEADER_INCREMENTALITY, inIncrementality);
+		w.writeUInt64(HEADER_TIMESTAMP, inTimestamp);
+		w.end();
+
+		if (inEntities != null) {
+			for (byte[] e : inEntities) {
+				w.writeRaw(e);
+			}
+		}
+		if (inDeleted != null) {
+			for (int id : inDeleted) {
+				w.begin(FEED_ENTITY);
+				w.writeString(ENTITY_ID, Integer.toString(id));
+				w.writeBool(ENTITY_IS_DELETED, true);
+				w.end();
+			}
+		}
+		return new Snapshot(w.toByteArray(), PROTOBUF);
+	}
+
+	/**
+	 * Encode a VehiclePosition entity
+	 * 
+	 * @param v
+	 *            The Vehicle
+	 * @param inStop
+	 *            The matched stop visit, or null
+	 * @param inTrip
+	 *            The matched Trip, or null
+	 * @return The encoded FeedEntity field
+	 */
+	private byte[] encodePosition(Vehicle v, StopAdapter inStop, Trip inTrip) {
+		ProtoWriter w = mEntityWriter;
+		w.reset();
+
+		w.begin(FEED_ENTITY);
+		w.writeString(ENTITY_ID, Integer.toString(v.getID()));
+		w.begin(ENTITY_VEHICLE);
+
+		if (inTrip != null) {
+			writeTrip(w, VP_TRIP, inTrip);
+		}
+
+		w.begin(VP_POSITION);
+		w.writeFloat(POS_LATITUDE, (float) v.getLat());
+		w.writeFloat(POS_LONGITUDE, (float) v.getLon());
+		if (!Double.isNaN(v.getHeading())) {
+			w.writeFloat(POS_BEARING, (float) v.getHeading());
+		}
+		double mps = Vehicle.mphToMetersPerSec(v.getSpeedInMPH());
+		if (!Double.isNaN(mps) && !Double.isInfinite(mps)) {
+			w.writeFloat(POS_SPEED, (float) mps);
+		}
+		w.end();
+
+		// a visit without a stop_sequence leaves the field out
+		int sequence = inStop == null ? -1 : inStop.getStopTime()
+				.get_stop_sequence();
+		if (sequence >= 0) {
+			w.writeUInt64(VP_CURRENT_STOP_SEQUENCE, sequence);
+		}
+		w.writeUInt64(VP_TIMESTAMP, toPosix(v.getLatestTimecode()));
+		if (inStop != null && inStop.getStop() != null) {
+			w.writeString(VP_STOP_ID, inStop.getStop().get_stop_id());
+		}
+		writeVehicle(w, VP_VEHICLE, v);
+
+		w.end();
+		w.end();
+		return w.toByteArray();
+	}
+
+	/**
+	 * Encode a TripUpdate entity
+	 * 
+	 * @param v
+	 *            The Vehicle
+	 * @param inStop
+	 *            The matched stop visit
+	 * @param inTrip
+	 *            The matched Trip
+	 * @return The encoded FeedEntity field
+	 */
+	private byte[] encodeTripUpdate(Vehicle v, StopAdapter inStop, Trip inTrip) {
+		ProtoWriter w = mEntityWriter;
+		w.reset();
+
+		w.begin(FEED_ENTITY);
+		w.writeString(ENTITY_ID, Integer.toString(v.getID()));
+		w.begin(ENTITY_TRIP_UPDATE);
+
+		writeTrip(w, TU_TRIP, inTrip);
+
+		int scheduled = inStop.getArrivalTimecode();
+		boolean hasDelay = scheduled >= 0;
+		int delay = hasDelay ? v.getLatestTimecode() - scheduled * 60 : 0;
+
+		w.begin(TU_STOP_TIME_UPDATE);
+		int sequence = inStop.getStopTime().get_stop_sequence();
+		if (sequence >= 0) {
+			w.writeUInt64(STU_STOP_SEQUENCE, sequence);
+		}
+		w.begin(STU_ARRIVAL);
+		if (hasDelay) {
+			w.writeInt32(STE_DELAY, delay);
+		}
+		w.writeUInt64(STE_TIME, toPosix(v.getLatestTimecode()));
+		w.end();
+		if (inStop.getStop() != null) {
+			w.writeString(STU_STOP_ID, inStop.getStop().get_stop_id());
+		}
+		w.end();
+
+		writeVehicle(w, TU_VEHICLE, v);
+		w.writeUInt64(TU_TIMESTAMP, toPosix(v.getLatestTimecode()));
+		if (hasDelay) {
+			w.writeInt32(TU_DELAY, delay);
+		}
+
+		w.end();
+		w.end();
+		return w.toByteArray();
+	}
+
+	@Override
+	public synchronized Snapshot query(String inPath) {
+		if (mBuiltTick != mTick) {
+			rebuild();
+		}
+
+		switch (inPath) {
+		case "/gtfs-rt/vehicle_positions":
+			return mPositions;
+		case POSITIONS_DIFF:
+			return mPositionsDiff;
+		case "/gtfs-rt/trip_updates":
+			return mTripUpdates;
+		case TRIP_UPDATES_DIFF:
+			return mTripUpdatesDiff;
+		}
+
+		boolean trips = inPath.startsWith(TRIP_UPDATES_DIFF + "/");
+		if (!trips && !inPath.startsWith(POSITIONS_DIFF + "/")) {
+			return null;
+		}
+		long since;
+		try {
+			since = Long.parseLong(inPath.substring(inPath.lastIndexOf('/') + 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return diffSince(trips, since);
+	}
+
+	/**
+	 * Build a differential feed of everything that changed in the build with
+	 * a given timestamp or since
+	 * 
+	 * @param inTrips
+	 *            True for trip updates, false for vehicle positions
+	 * @param inSince
+	 *            Header timestamp of the last feed the client got
+	 * @return The differential feed, or the full dataset if deletions since
+	 *         then may have been forgotten
+	 */
+	private Snapshot diffSince(boolean inTrips, long inSince) {
+		if (inSince < mBuiltSeconds - TOMBSTONE_SECONDS) {
+			return inTrips ? mTripUpdates : mPositions;
+		}
+		ArrayList<byte[]> entities = new ArrayList<>();
+		for (Entry e : mEntries.values()) {
+			byte[] entity = inTrips ? e.mTripUpdate : e.mPosition;
+			if (e.mChanged >= inSince && entity != null) {
+				entities.add(entity);
+			}
+		}
+		HashSet<Integer> deleted = new HashSet<>();
+		for (Map.Entry<Integer, Long> d : (inTrips ? mTripsDeleted
+				: mPositionsDeleted).entrySet()) {
+			if (d.getValue() >= inSince) {
+				deleted.add(d.getKey());
+			}
+		}
+		return buildFeed(DIFFERENTIAL, entities, deleted, mBuiltSeconds);
+	}
+
+	/**
+	 * Re-encode any vehicles that have reported since the last build and
+	 * rebuild the feeds
+	 */
+	private void rebuild() {
+		mBuiltTick = mTick;
+		long now = Math.max(mBuiltSeconds, System.currentTimeMillis() / 1000);
+		mBuiltSeconds = now;
+
+		ArrayList<byte[]> positions = new ArrayList<>();
+		ArrayList<byte[]> positionsDiff = new ArrayList<>();
+		ArrayList<byte[]> tripUpdates = new ArrayList<>();
+		ArrayList<byte[]> tripUpdatesDiff = new ArrayList<>();
+		HashSet<Integer> tripsDeleted = new HashSet<>();
+		HashSet<Integer> seen = new HashSet<>();
+
+		for (Vehicle v : Vehicle.getVehicles()) {
+			if (!v.isReady()) {
+				continue;
+			}
+			seen.add(v.getID());
+
+			Entry e = mEntries.get(v.getID());
+			if (e == null) {
+				e = new Entry();
+				mEntries.put(v.getID(), e);
+				mPositionsDeleted.remove(v.getID());
+			}
+
+			if (e.mTimecode != v.getLatestTimecode()) {
+				e.mTimecode = v.getLatestTimecode();
+				e.mChanged = now;
+
+				StopAdapter stop = v.getMatchedStop();
+				Trip trip = stop == null ? null : stop.getTable().getTrip(
+						stop.getRow());
+
+				boolean hadTripUpdate = e.mTripUpdate != null;
+				e.mPosition = encodePosition(v, stop, trip);
+				e.mTripUpdate = trip == null ? null : encodeTripUpdate(v,
+						stop, trip);
+
+				positionsDiff.add(e.mPosition);
+				if (e.mTripUpdate != null) {
+					tripUpdatesDiff.add(e.mTripUpdate);
+					mTripsDeleted.remove(v.getID());
+				} else if (hadTripUpdate) {
+					tripsDeleted.add(v.getID());
+					mTripsDeleted.put(v.getID(), now);
+				}
+			}
+
+			positions.add(e.mPosition);
+			if (e.mTripUpdate != null) {
+				tripUpdates.add(e.mTripUpdate);
+			}
+		}
+
+		// anything not seen has timed out of the registry
+		HashSet<Integer> deleted = new HashSet<>();
+		Iterator<Integer> i = mEntries.keySet().iterator();
+		while (i.hasNext()) {
+			int id = i.next();
+			if (!seen.contains(id)) {
+				deleted.add(id);
+				mPositionsDeleted.put(id, now);
+				if (mEntries.get(id).mTripUpdate != null) {
+					tripsDeleted.add(id);
+					mTripsDeleted.put(id, now);
+				}
+				i.remove();
+			}
+		}
+		expire(mPositionsDeleted, now - TOMBSTONE_SECONDS);
+		expire(mTripsDeleted, now - TOMBSTONE_SECONDS);
+
+		mPositions = buildFeed(FULL_DATASET, positions, null, now);
+		mPositionsDiff = buildFeed(DIFFERENTIAL, positionsDiff, deleted, now);
+		mTripUpdates = buildFeed(FULL_DATASET, tripUpdates, null, now);
+		mTripUpdatesDiff = buildFeed(DIFFERENTIAL, tripUpdatesDiff,
+				tripsDeleted, now);
+	}
+
+	/**
+	 * Forget deletions older than a cutoff
+	 * 
+	 * @param inDeleted
+	 *            Vehicle ID to deletion timestamp
+	 * @param inCutoff
+	 *            Oldest timestamp to keep
+	 */
+	private static void expire(HashMap<Integer, Long> inDeleted, long inCutoff) {
+		Iterator<Long> i = inDeleted.values().iterator();
+		while (i.hasNext()) {
+			if (i.next() < inCutoff) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Estimate the heap held by the cached entities, the built feeds,
+	 * remembered deletions and the writers' buffers
+	 * 
+	 * @return Estimated bytes
+	 */
+	public synchronized long estimateBytes() {
+		long ret = mEntityWriter.capacity() + mFeedWriter.capacity();
+		for (Entry e : mEntries.values()) {
+			ret += Entry.BYTES + length(e.mPosition) + length(e.mTripUpdate);
+		}
+		// a map entry and a boxed key and value
+		ret += (mPositionsDeleted.size() + mTripsDeleted.size()) * 64L;
+		return ret + length(mPositions) + length(mPositionsDiff)
+				+ length(mTripUpdates) + length(mTripUpdatesDiff);
+	}
+
+	/**
+	 * Mark the current feeds as stale. Call this once per tick.
+	 */
+	public void tick() {
+		mTick++;
+	}
+
+	/**
+	 * Write a TripDescriptor
+	 * 
+	 * @param w
+	 *            The writer
+	 * @param inField
+	 *            Field number
+	 * @param inTrip
+	 *            The Trip
+	 */
+	private static void writeTrip(ProtoWriter w, int inField, Trip inTrip) {
+		w.begin(inField);
+		w.writeString(TD_TRIP_ID, inTrip.get_trip_id());
+		Route r = inTrip.getRoute();
+		if (r != null) {
+			w.writeString(TD_ROUTE_ID, r.get_route_id());
+		}
+		w.end();
+	}
+
+	/**
+	 * Write a VehicleDescriptor
+	 * 
+	 * @param w
+	 *            The writer
+	 * @param inField
+	 *            Field number
+	 * @param v
+	 *            The Vehicle
+	 */
+	private static void writeVehicle(ProtoWriter w, int inField, Vehicle v) {
+		w.begin(inField);
+		w.writeString(VD_ID, Integer.toString(v.getID()));
+		if (v.getDesc() != null && v.getDesc().length() > 0) {
+			w.writeString(VD_LABEL, v.getDesc());
+		}
+		w.end();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import com.jasonlafrance.wtbbackend.fares.Ride;
+import com.jasonlafrance.wtbbackend.gtfs.Stop;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+
+/**
+ * A planned journey: the legs from origin to destination in travel order
+ * 
+ * @author Jason LaFrance
+ */
+public final class Journey {
+
+	private final ArrayList<Leg> mLegs;
+
+	/**
+	 * Create a Journey
+	 * 
+	 * @param inLegs
+	 *            The legs in travel order
+	 */
+	Journey(ArrayList<Leg> inLegs) {
+		mLegs = inLegs;
+	}
+
+	/**
+	 * Check if this journey is at least as good as another in departure,
+	 * arrival and transfers, and better in at least one
+	 * 
+	 * @param o
+	 *            The other Journey
+	 * @return True if this one dominates
+	 */
+	boolean dominates(Journey o) {
+		boolean noWorse = getDeparture() >= o.getDeparture()
+				&& getArrival() <= o.getArrival()
+				&& getTransfers() <= o.getTransfers();
+		boolean better = getDeparture() > o.getDeparture()
+				|| getArrival() < o.getArrival()
+				|| getTransfers() < o.getTransfers();
+		return noWorse && better;
+	}
+
+	/**
+	 * Get the arrival time at the destination
+	 * 
+	 * @return Seconds since midnight
+	 */
+	public int getArrival() {
+		return mLegs.isEmpty() ? -1 : mLegs.get(mLegs.size() - 1)
+				.getArrival();
+	}
+
+	/**
+	 * Get the departure time from the origin
+	 * 
+	 * @return Seconds since midnight
+	 */
+	public int getDeparture() {
+		return mLegs.isEmpty() ? -1 : mLegs.get(0).getDeparture();
+	}
+
+	/**
+	 * Get the legs
+	 * 
+	 * @return Unmodifiable list of legs in travel order
+	 */
+	public List<Leg> getLegs() {
+		return Collections.unmodifiableList(mLegs);
+	}
+
+	/**
+	 * Get the number of transfers between trips
+	 * 
+	 * @return Transfer count
+	 */
+	public int getTransfers() {
+		int rides = 0;
+		for (Leg l : mLegs) {
+			if (!l.isWalk()) {
+				rides++;
+			}
+		}
+		return Math.max(rides - 1, 0);
+	}
+
+	/**
+	 * Get the rides of this journey for pricing
+	 * 
+	 * @return One Ride per transit leg, in travel order
+	 */
+	public List<Ride> getRides() {
+		ArrayList<Ride> ret = new ArrayList<>();
+		for (Leg l : mLegs) {
+			if (l.isWalk()) {
+				continue;
+			}
+			Trip trip = l.getTrip();
+
+			// zones of every stop from boarding to alighting
+			HashSet<String> zones = new HashSet<>();
+			boolean riding = false;
+			for (int i = 0; i < trip.getStopCount(); i++) {
+				Stop s = trip.getStop(i).getStop();
+				riding |= s == l.getFrom();
+				if (riding) {
+					zones.add(s.get_zone_id());
+					if (s == l.getTo()) {
+						break;
+					}
+				}
+			}
+
+			ret.add(new Ride(trip.getGTFS_ID(), trip.get_route_id(),
+					l.getDeparture(), l.getFrom().get_zone_id(), l.getTo()
+							.get_zone_id(), zones));
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Leg l : mLegs) {
+			sb.append(l).append('\n');
+		}
+		return sb.toString();
+	}
+}
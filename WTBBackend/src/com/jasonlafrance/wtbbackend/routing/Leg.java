@@ -0,0 +1,122 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.routing;
+
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.secondsToTime;
+
+import com.jasonlafrance.wtbbackend.gtfs.Stop;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+
+/**
+ * One leg of a Journey, either riding a Trip or walking between stops
+ * 
+ * @author Jason LaFrance
+ */
+public final class Leg {
+
+	private final Stop mFrom, mTo;
+	private final int mDeparture, mArrival;
+	private final Trip mTrip;
+
+	/**
+	 * Create a Leg
+	 * 
+	 * @param inFrom
+	 *            Stop the leg starts at
+	 * @param inTo
+	 *            Stop the leg ends at
+	 * @param inDeparture
+	 *            Departure in seconds since midnight
+	 * @param inArrival
+	 *            Arrival in seconds since midnight
+	 * @param inTrip
+	 *            The Trip ridden, or null for a walk
+	 */
+	Leg(Stop inFrom, Stop inTo, int inDeparture, int inArrival, Trip inTrip) {
+		mFrom = inFrom;
+		mTo = inTo;
+		mDeparture = inDeparture;
+		mArrival = inArrival;
+		mTrip = inTrip;
+	}
+
+	/**
+	 * Get the arrival time
+	 * 
+	 * @return Seconds since midnight
+	 */
+	public int getArrival() {
+		return mArrival;
+	}
+
+	/**
+	 * Get the departure time
+	 * 
+	 * @return Seconds since midnight
+	 */
+	public int getDeparture() {
+		return mDeparture;
+	}
+
+	/**
+	 * Get the Stop the leg starts at
+	 * 
+	 * @return The Stop
+	 */
+	public Stop getFrom() {
+		return mFrom;
+	}
+
+	/**
+	 * Get the Stop the leg ends at
+	 * 
+	 * @return The Stop
+	 */
+	public Stop getTo() {
+		return mTo;
+	}
+
+	/**
+	 * Get the Trip ridden
+	 * 
+	 * @return The Trip, or null for a walk
+	 */
+	public Trip getTrip() {
+		return mTrip;
+	}
+
+	/**
+	 * Check if this leg is a walk
+	 * 
+	 * @return True if walking
+	 */
+	public boolean isWalk() {
+		return mTrip == null;
+	}
+
+	@Override
+	public String toString() {
+		return secondsToTime(mDeparture) + " "
+				+ (mFrom == null ? "?" : mFrom.get_stop_id()) + " -> "
+				+ secondsToTime(mArrival) + " "
+				+ (mTo == null ? "?" : mTo.get_stop_id())
+				+ (mTrip == null ? " walk" : " trip " + mTrip.get_trip_id());
+	}
+}
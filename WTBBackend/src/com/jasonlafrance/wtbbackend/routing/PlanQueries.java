@@ -0,0 +1,246 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.routing;
+
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.secondsToTime;
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.timeToSeconds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jasonlafrance.wtbbackend.fares.FareEngine;
+import com.jasonlafrance.wtbbackend.fares.FareQuote;
+import com.jasonlafrance.wtbbackend.gtfs.FeedHandle;
+import com.jasonlafrance.wtbbackend.gtfs.FeedListener;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.gtfs.Route;
+import com.jasonlafrance.wtbbackend.query.QueryHandler;
+import com.jasonlafrance.wtbbackend.query.QueryPortal;
+import com.jasonlafrance.wtbbackend.query.Snapshot;
+import com.jasonlafrance.wtbbackend.wtb_util.JSONUtil;
+
+/**
+ * QueryHandler for journey planning. Answers:
+ * 
+ * <pre>
+ * /plan/{from_stop_id}/{to_stop_id}/{HH:mm:ss}            earliest arrival
+ * /plan/{from_stop_id}/{to_stop_id}/{HH:mm:ss}/{minutes}  profile over a window
+ * </pre>
+ * 
+ * The router is built on the first query and rebuilt when a feed is added or
+ * rolls over to a new service day. Each journey is priced by a FareEngine
+ * over the same feeds. Planning is real work, so this should be registered
+ * with QueryPortal.addBlockingHandler() to keep it off the selector thread.
+ * 
+ * @author Jason LaFrance
+ */
+public class PlanQueries implements QueryHandler, FeedListener {
+
+	private static final int MAX_WINDOW = 4 * 60;
+
+	private final ArrayList<GTFS> mFeeds = new ArrayList<>();
+	private RaptorRouter mRouter = null;
+	private final FareEngine mFares = new FareEngine(new ArrayList<GTFS>());
+
+	/**
+	 * Add a feed to plan over
+	 * 
+	 * @param inGTFS
+	 *            The feed
+	 */
+	public synchronized void addFeed(GTFS inGTFS) {
+		mFeeds.add(inGTFS);
+		mFares.addFeed(inGTFS);
+		mRouter = null;
+	}
+
+	@Override
+	public synchronized void feedReplaced(GTFS inOld, GTFS inNew) {
+		int i = mFeeds.indexOf(inOld);
+		if (i > -1) {
+			mFeeds.set(i, inNew);
+		} else {
+			mFeeds.add(inNew);
+		}
+		mFares.removeFeed(inOld);
+		mFares.addFeed(inNew);
+		mRouter = null;
+	}
+
+	/**
+	 * Serialize a Journey
+	 * 
+	 * @param sb
+	 *            Where to write
+	 * @param j
+	 *            The Journey
+	 * @param inFare
+	 *            The Journey's price, or null if it couldn't be priced
+	 */
+	private static void appendJourney(StringBuilder sb, Journey j,
+			FareQuote inFare) {
+		sb.append("{\"departure\":");
+		JSONUtil.appendString(sb, secondsToTime(j.getDeparture()));
+		sb.append(",\"arrival\":");
+		JSONUtil.appendString(sb, secondsToTime(j.getArrival()));
+		sb.append(",\"transfers\":").append(j.getTransfers());
+		sb.append(",\"fare\":");
+		if (inFare == null) {
+			sb.append("null");
+		} else {
+			sb.append("{\"total\":");
+			JSONUtil.appendNumber(sb, inFare.getTotal());
+			sb.append(",\"currency\":");
+			JSONUtil.appendString(sb, inFare.getCurrency());
+			sb.append(",\"tickets\":[");
+			for (int i = 0; i < inFare.getTickets().size(); i++) {
+				FareQuote.Ticket t = inFare.getTickets().get(i);
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append("{\"fare_id\":");
+				JSONUtil.appendString(sb, t.getFare().get_fare_id());
+				sb.append(",\"price\":");
+				JSONUtil.appendNumber(sb, t.getFare().get_price());
+				sb.append(",\"first_ride\":").append(t.getFirstRide());
+				sb.append(",\"last_ride\":").append(t.getLastRide());
+				sb.append('}');
+			}
+			sb.append("]}");
+		}
+		sb.append(",\"legs\":[");
+		boolean first = true;
+		for (Leg l : j.getLegs()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append("{\"mode\":").append(l.isWalk() ? "\"walk\"" : "\"ride\"");
+			sb.append(",\"from\":");
+			JSONUtil.appendString(sb, l.getFrom().get_stop_id());
+			sb.append(",\"from_name\":");
+			JSONUtil.appendString(sb, l.getFrom().get_stop_name());
+			sb.append(",\"to\":");
+			JSONUtil.appendString(sb, l.getTo().get_stop_id());
+			sb.append(",\"to_name\":");
+			JSONUtil.appendString(sb, l.getTo().get_stop_name());
+			sb.append(",\"departure\":");
+			JSONUtil.appendString(sb, secondsToTime(l.getDeparture()));
+			sb.append(",\"arrival\":");
+			JSONUtil.appendString(sb, secondsToTime(l.getArrival()));
+			if (!l.isWalk()) {
+				Route route = l.getTrip().getRoute();
+				sb.append(",\"route_id\":");
+				JSONUtil.appendString(sb,
+						route == null ? null : route.get_route_id());
+				sb.append(",\"route\":");
+				JSONUtil.appendString(sb, route == null ? null : route.getName());
+				sb.append(",\"trip_id\":");
+				JSONUtil.appendString(sb, l.getTrip().get_trip_id());
+				sb.append(",\"headsign\":");
+				JSONUtil.appendString(sb, l.getTrip().get_trip_headsign());
+			}
+			sb.append('}');
+		}
+		sb.append("]}");
+	}
+
+	/**
+	 * Get the router, building it if the feeds have changed
+	 * 
+	 * @return The current RaptorRouter
+	 */
+	private synchronized RaptorRouter getRouter() {
+		if (mRouter == null || !mRouter.isCurrent()) {
+			mRouter = new RaptorRouter(mFeeds);
+		}
+		return mRouter;
+	}
+
+	@Override
+	public Snapshot query(String inPath) {
+		String[] parts = inPath.split("/");
+		if (parts.length < 5 || parts.length > 6 || !parts[1].equals("plan")) {
+			return null;
+		}
+
+		// hold the router's feeds so a reload can't release them mid-plan
+		RaptorRouter router = getRouter();
+		while (!FeedHandle.acquireAll(router.getFeeds())) {
+			// swapped out, so feedReplaced() has already dropped this router
+			router = getRouter();
+		}
+		try {
+			return plan(router, parts);
+		} finally {
+			FeedHandle.releaseAll(router.getFeeds());
+		}
+	}
+
+	/**
+	 * Plan the journeys for a request
+	 * 
+	 * @param router
+	 *            The router, with its feeds held
+	 * @param parts
+	 *            The request path split on '/'
+	 * @return The response Snapshot, or null if the request is invalid
+	 */
+	private Snapshot plan(RaptorRouter router, String[] parts) {
+		int from = router.findStop(QueryPortal.decode(parts[2]));
+		int to = router.findStop(QueryPortal.decode(parts[3]));
+		String time = QueryPortal.decode(parts[4]);
+		if (from < 0 || to < 0 || !time.matches("\\d{1,2}:\\d{2}:\\d{2}")) {
+			return null;
+		}
+		int departure = timeToSeconds(time);
+
+		List<Journey> journeys = new ArrayList<>();
+		if (parts.length == 6) {
+			int window;
+			try {
+				window = Integer.parseInt(parts[5]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (window < 0 || window > MAX_WINDOW) {
+				return null;
+			}
+			journeys = router.profile(from, to, departure, window * 60);
+		} else {
+			Journey j = router.plan(from, to, departure);
+			if (j != null) {
+				journeys.add(j);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(256 + journeys.size() * 512);
+		sb.append("{\"journeys\":[");
+		for (int i = 0; i < journeys.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			appendJourney(sb, journeys.get(i),
+					mFares.price(journeys.get(i).getRides()));
+		}
+		sb.append("]}");
+		return Snapshot.json(sb.toString());
+	}
+}
@@ -0,0 +1,153 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.jasonlafrance.wtbbackend.config.Config;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+
+/**
+ * Times RaptorRouter queries over random origin/destination pairs.
+ * 
+ * <pre>
+ * java ...routing.RaptorBenchmark [queries] [seed] [feed dir...]
+ * </pre>
+ * 
+ * Feeds default to gtfs_dirs in config.xml.
+ * 
+ * @author Jason LaFrance
+ */
+public class RaptorBenchmark {
+
+	private static final int WARMUP = 200;
+	private static final int PROFILE_WINDOW = 60 * 60;
+
+	/**
+	 * Print latency percentiles
+	 * 
+	 * @param inName
+	 *            Query type
+	 * @param inNanos
+	 *            Latency of each query in nanoseconds
+	 * @param inFound
+	 *            Number of queries that found a journey
+	 */
+	private static void report(String inName, long[] inNanos, int inFound) {
+		long[] sorted = inNanos.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long n : sorted) {
+			total += n;
+		}
+		System.out.printf(
+				"%s: %d queries, %d found, mean %.3f ms, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n",
+				inName, sorted.length, inFound, total / 1e6 / sorted.length,
+				sorted[sorted.length / 2] / 1e6,
+				sorted[(int) (sorted.length * 0.9)] / 1e6,
+				sorted[(int) (sorted.length * 0.99)] / 1e6,
+				sorted[sorted.length - 1] / 1e6);
+	}
+
+	/**
+	 * Run the benchmark
+	 * 
+	 * @param args
+	 *            Query count, random seed, then feed directories
+	 */
+	public static void main(String[] args) {
+		int queries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+		Config config = Config.getInstance();
+		config.load("config.xml");
+		String[] dirs = args.length > 2 ? Arrays.copyOfRange(args, 2,
+				args.length) : config.getOption(Config.GTFS_DIRS).split(",");
+
+		ArrayList<GTFS> feeds = new ArrayList<>();
+		for (String dir : dirs) {
+			try {
+				feeds.add(new GTFS(dir.trim(), config
+						.getIntOption(Config.GTFS_TIME_GAP)));
+			} catch (Exception e) {
+				System.out.println(dir + ": " + e.toString());
+				System.exit(-1);
+			}
+		}
+
+		long start = System.nanoTime();
+		RaptorRouter router = new RaptorRouter(feeds);
+		System.out.printf(
+				"Router built in %.1f ms: %d stops, %d patterns, %d trips, %d transfers%n",
+				(System.nanoTime() - start) / 1e6, router.getStopCount(),
+				router.getPatternCount(), router.getTripCount(),
+				router.getTransferCount());
+
+		ArrayList<Integer> served = new ArrayList<>();
+		for (int s = 0; s < router.getStopCount(); s++) {
+			if (router.isServed(s)) {
+				served.add(s);
+			}
+		}
+		if (served.size() < 2) {
+			System.out.println("No trips running today");
+			System.exit(0);
+		}
+
+		Random random = new Random(seed);
+		int[] from = new int[WARMUP + queries];
+		int[] to = new int[from.length];
+		int[] time = new int[from.length];
+		for (int i = 0; i < from.length; i++) {
+			from[i] = served.get(random.nextInt(served.size()));
+			to[i] = served.get(random.nextInt(served.size()));
+			// between 06:00 and 20:00
+			time[i] = 6 * 3600 + random.nextInt(14 * 3600);
+		}
+
+		long[] nanos = new long[queries];
+		int found = 0;
+		for (int i = 0; i < from.length; i++) {
+			start = System.nanoTime();
+			Journey j = router.plan(from[i], to[i], time[i]);
+			if (i >= WARMUP) {
+				nanos[i - WARMUP] = System.nanoTime() - start;
+				found += j == null ? 0 : 1;
+			}
+		}
+		report("earliest arrival", nanos, found);
+
+		found = 0;
+		for (int i = 0; i < from.length; i++) {
+			start = System.nanoTime();
+			int n = router.profile(from[i], to[i], time[i], PROFILE_WINDOW)
+					.size();
+			if (i >= WARMUP) {
+				nanos[i - WARMUP] = System.nanoTime() - start;
+				found += n > 0 ? 1 : 0;
+			}
+		}
+		report("profile " + PROFILE_WINDOW / 60 + " min", nanos, found);
+
+		System.exit(0);
+	}
+}
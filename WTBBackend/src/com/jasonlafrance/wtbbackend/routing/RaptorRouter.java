@@ -0,0 +1,989 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.gtfs.IDDictionary;
+import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
+import com.jasonlafrance.wtbbackend.gtfs.Stop;
+import com.jasonlafrance.wtbbackend.gtfs.StopTimeTable;
+import com.jasonlafrance.wtbbackend.gtfs.Transfer;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+import com.jasonlafrance.wtbbackend.wtb_util.GPSCalc;
+
+/**
+ * Round-based public transit router (RAPTOR) over one or more loaded feeds.
+ * 
+ * The router flattens today's trips into route patterns: trips sharing a stop
+ * sequence, sorted so that no trip overtakes another. Stops, pattern stops,
+ * stop times and transfers all live in flat int arrays with a start index per
+ * pattern or stop. Foot transfers are found from stop coordinates and
+ * combined with transfers.txt. Stops from every feed share one index space,
+ * so journeys can walk between feeds.
+ * 
+ * Round k of a search finds the earliest arrival at every stop using at most
+ * k trips. The profile search runs one search per departure from the origin
+ * inside a window, latest first, keeping labels between runs (rRAPTOR).
+ * 
+ * A router is immutable once built; build a new one after the feeds roll
+ * over to a new service day.
+ * 
+ * @author Jason LaFrance
+ */
+public final class RaptorRouter {
+
+	public static final int MAX_TRANSFERS = 4;
+	public static final double MAX_WALK_METERS = 400.0;
+	public static final double WALK_SPEED = 1.3; // meters per second
+
+	private static final int INFINITY = Integer.MAX_VALUE;
+	private static final int ROUNDS = MAX_TRANSFERS + 1;
+	// parent markers
+	private static final int WALK = -1;
+	private static final int COPIED = -2;
+
+	/**
+	 * A trip's timed stop visits while the patterns are being built
+	 */
+	private static class Candidate {
+		private Trip mTrip;
+		private int[] mStops;
+		private int[] mArrivals;
+		private int[] mDepartures;
+
+		/**
+		 * Check if this trip runs entirely after another
+		 * 
+		 * @param o
+		 *            The earlier Candidate
+		 * @return True if this trip never overtakes o
+		 */
+		private boolean follows(Candidate o) {
+			for (int i = 0; i < mStops.length; i++) {
+				if (mArrivals[i] < o.mArrivals[i]
+						|| mDepartures[i] < o.mDepartures[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Per query labels
+	 */
+	private static class Search {
+		// mArrival[k][s] is the earliest arrival at s using at most k trips
+		private final int[][] mArrival;
+		// transit: board position, alight position, trip
+		// walk: from stop, walk seconds, WALK
+		private final int[][] mFromA, mFromB, mFromTrip;
+		// mRide[k][s] is the earliest arrival at s by trip k itself; walks
+		// only start from these, since transfers aren't transitively closed
+		private final int[][] mRide;
+		private final int[][] mRideA, mRideB, mRideTrip;
+		private final boolean[] mMarked;
+		private final int[] mMarkedList;
+		private int mMarkedCount = 0;
+		private final boolean[] mRidden;
+		private final int[] mRiddenList;
+		private int mRiddenCount = 0;
+		private final int[] mQueuePos;
+		private final int[] mQueued;
+
+		/**
+		 * Allocate labels for a network
+		 * 
+		 * @param inStops
+		 *            Stop count
+		 * @param inPatterns
+		 *            Pattern count
+		 */
+		private Search(int inStops, int inPatterns) {
+			mArrival = new int[ROUNDS + 1][inStops];
+			mFromA = new int[ROUNDS + 1][inStops];
+			mFromB = new int[ROUNDS + 1][inStops];
+			mFromTrip = new int[ROUNDS + 1][inStops];
+			mRide = new int[ROUNDS + 1][inStops];
+			mRideA = new int[ROUNDS + 1][inStops];
+			mRideB = new int[ROUNDS + 1][inStops];
+			mRideTrip = new int[ROUNDS + 1][inStops];
+			for (int k = 0; k <= ROUNDS; k++) {
+				Arrays.fill(mArrival[k], INFINITY);
+				Arrays.fill(mRide[k], INFINITY);
+			}
+			mMarked = new boolean[inStops];
+			mMarkedList = new int[inStops];
+			mRidden = new boolean[inStops];
+			mRiddenList = new int[inStops];
+			mQueuePos = new int[inPatterns];
+			Arrays.fill(mQueuePos, -1);
+			mQueued = new int[inPatterns];
+		}
+
+		/**
+		 * Mark a stop as improved this round
+		 * 
+		 * @param s
+		 *            The stop
+		 */
+		private void mark(int s) {
+			if (!mMarked[s]) {
+				mMarked[s] = true;
+				mMarkedList[mMarkedCount++] = s;
+			}
+		}
+
+		/**
+		 * Record a ride label at a stop for this round
+		 * 
+		 * @param k
+		 *            The round
+		 * @param s
+		 *            The stop
+		 * @param inTime
+		 *            Arrival in seconds since midnight
+		 * @param inA
+		 *            Board position, or -1 at the origin
+		 * @param inB
+		 *            Alight position
+		 * @param inTrip
+		 *            Global trip index, or WALK at the origin
+		 */
+		private void ride(int k, int s, int inTime, int inA, int inB,
+				int inTrip) {
+			mRide[k][s] = inTime;
+			mRideA[k][s] = inA;
+			mRideB[k][s] = inB;
+			mRideTrip[k][s] = inTrip;
+			if (!mRidden[s]) {
+				mRidden[s] = true;
+				mRiddenList[mRiddenCount++] = s;
+			}
+		}
+	}
+
+	private final ArrayList<GTFS> mFeeds;
+	// path lists the router was built from, replaced on GTFS.resetDate()
+	private final ArrayList<ArrayList<RoutePath>> mBuiltPaths = new ArrayList<>();
+	private final int[] mStopOffset;
+	private final Stop[] mStops;
+
+	// pattern p visits mPatternStops[mPatternStopStart[p]...]
+	private int[] mPatternStopStart;
+	private int[] mPatternStops;
+	// pattern p runs trips mPatternTripStart[p] to mPatternTripStart[p + 1]
+	private int[] mPatternTripStart;
+	private int[] mPatternTimeStart;
+	private Trip[] mTrips;
+	private int[] mTripPattern;
+	private int[] mArrivals;
+	private int[] mDepartures;
+
+	// stop s is visited at mStopRoutePattern/Pos[mStopRouteStart[s]...]
+	private int[] mStopRouteStart;
+	private int[] mStopRoutePattern;
+	private int[] mStopRoutePos;
+
+	// stop s can walk to mTransferTo[mTransferStart[s]...]
+	private int[] mTransferStart;
+	private int[] mTransferTo;
+	private int[] mTransferTime;
+
+	/**
+	 * Build a router over the given feeds for their current service day
+	 * 
+	 * @param inFeeds
+	 *            The loaded feeds
+	 */
+	public RaptorRouter(List<GTFS> inFeeds) {
+		mFeeds = new ArrayList<>(inFeeds);
+		mStopOffset = new int[mFeeds.size() + 1];
+		for (int f = 0; f < mFeeds.size(); f++) {
+			mStopOffset[f + 1] = mStopOffset[f]
+					+ IDDictionary.getDictionary(mFeeds.get(f).getID(),
+							IDDictionary.STOP_ID).size();
+			mBuiltPaths.add(mFeeds.get(f).getPaths());
+		}
+		mStops = new Stop[mStopOffset[mFeeds.size()]];
+		for (int f = 0; f < mFeeds.size(); f++) {
+			for (int s = mStopOffset[f]; s < mStopOffset[f + 1]; s++) {
+				mStops[s] = mFeeds.get(f).getStop(s - mStopOffset[f]);
+			}
+		}
+
+		buildPatterns();
+		buildStopRoutes();
+		buildTransfers();
+	}
+
+	/**
+	 * Group today's trips into patterns and lay out their stop times
+	 */
+	private void buildPatterns() {
+		HashMap<String, ArrayList<Candidate>> byStops = new HashMap<>();
+		for (int f = 0; f < mFeeds.size(); f++) {
+			GTFS feed = mFeeds.get(f);
+			int trips = IDDictionary.getDictionary(feed.getID(),
+					IDDictionary.TRIP_ID).size();
+			for (int t = 0; t < trips; t++) {
+				Candidate c = toCandidate(feed.getTrip(t), mStopOffset[f]);
+				if (c == null) {
+					continue;
+				}
+				String key = Arrays.toString(c.mStops);
+				ArrayList<Candidate> list = byStops.get(key);
+				if (list == null) {
+					list = new ArrayList<>();
+					byStops.put(key, list);
+				}
+				list.add(c);
+			}
+		}
+
+		// split each stop sequence into patterns without overtaking
+		ArrayList<ArrayList<Candidate>> patterns = new ArrayList<>();
+		for (ArrayList<Candidate> list : byStops.values()) {
+			Collections.sort(list, new Comparator<Candidate>() {
+				@Override
+				public int compare(Candidate a, Candidate b) {
+					return Integer.compare(a.mDepartures[0], b.mDepartures[0]);
+				}
+			});
+			ArrayList<ArrayList<Candidate>> split = new ArrayList<>();
+			for (Candidate c : list) {
+				ArrayList<Candidate> home = null;
+				for (ArrayList<Candidate> p : split) {
+					if (c.follows(p.get(p.size() - 1))) {
+						home = p;
+						break;
+					}
+				}
+				if (home == null) {
+					home = new ArrayList<>();
+					split.add(home);
+				}
+				home.add(c);
+			}
+			patterns.addAll(split);
+		}
+
+		int stopCount = 0, tripCount = 0, timeCount = 0;
+		for (ArrayList<Candidate> p : patterns) {
+			int len = p.get(0).mStops.length;
+			stopCount += len;
+			tripCount += p.size();
+			timeCount += len * p.size();
+		}
+
+		mPatternStopStart = new int[patterns.size() + 1];
+		mPatternStops = new int[stopCount];
+		mPatternTripStart = new int[patterns.size() + 1];
+		mPatternTimeStart = new int[patterns.size()];
+		mTrips = new Trip[tripCount];
+		mTripPattern = new int[tripCount];
+		mArrivals = new int[timeCount];
+		mDepartures = new int[timeCount];
+
+		int time = 0;
+		for (int p = 0; p < patterns.size(); p++) {
+			ArrayList<Candidate> list = patterns.get(p);
+			int[] stops = list.get(0).mStops;
+			System.arraycopy(stops, 0, mPatternStops, mPatternStopStart[p],
+					stops.length);
+			mPatternStopStart[p + 1] = mPatternStopStart[p] + stops.length;
+
+			mPatternTimeStart[p] = time;
+			int trip = mPatternTripStart[p];
+			for (Candidate c : list) {
+				mTrips[trip] = c.mTrip;
+				mTripPattern[trip] = p;
+				System.arraycopy(c.mArrivals, 0, mArrivals, time, stops.length);
+				System.arraycopy(c.mDepartures, 0, mDepartures, time,
+						stops.length);
+				time += stops.length;
+				trip++;
+			}
+			mPatternTripStart[p + 1] = trip;
+		}
+	}
+
+	/**
+	 * Index which patterns visit each stop
+	 */
+	private void buildStopRoutes() {
+		mStopRouteStart = new int[mStops.length + 1];
+		for (int v = 0; v < mPatternStops.length; v++) {
+			mStopRouteStart[mPatternStops[v] + 1]++;
+		}
+		for (int s = 0; s < mStops.length; s++) {
+			mStopRouteStart[s + 1] += mStopRouteStart[s];
+		}
+		mStopRoutePattern = new int[mPatternStops.length];
+		mStopRoutePos = new int[mPatternStops.length];
+		int[] fill = Arrays.copyOf(mStopRouteStart, mStops.length);
+		for (int p = 0; p + 1 < mPatternStopStart.length; p++) {
+			for (int v = mPatternStopStart[p]; v < mPatternStopStart[p + 1]; v++) {
+				int s = mPatternStops[v];
+				mStopRoutePattern[fill[s]] = p;
+				mStopRoutePos[fill[s]] = v - mPatternStopStart[p];
+				fill[s]++;
+			}
+		}
+	}
+
+	/**
+	 * Find foot transfers between nearby stops and apply transfers.txt
+	 */
+	private void buildTransfers() {
+		// bucket stops into a grid of MAX_WALK_METERS cells
+		final double cellLat = MAX_WALK_METERS / 111320.0;
+		HashMap<Long, ArrayList<Integer>> grid = new HashMap<>();
+		long[] cells = new long[mStops.length];
+		for (int s = 0; s < mStops.length; s++) {
+			if (!hasLocation(s)) {
+				continue;
+			}
+			cells[s] = cellOf(mStops[s].get_stop_lat(),
+					mStops[s].get_stop_lon(), cellLat);
+			ArrayList<Integer> bucket = grid.get(cells[s]);
+			if (bucket == null) {
+				bucket = new ArrayList<>();
+				grid.put(cells[s], bucket);
+			}
+			bucket.add(s);
+		}
+
+		// keyed (from << 32 | to), valued in seconds
+		HashMap<Long, Integer> edges = new HashMap<>();
+		for (int s = 0; s < mStops.length; s++) {
+			if (!hasLocation(s)) {
+				continue;
+			}
+			int cy = (int) (cells[s] >> 32);
+			int cx = (int) cells[s];
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					ArrayList<Integer> bucket = grid.get(((long) (cy + dy) << 32)
+							| ((cx + dx) & 0xFFFFFFFFL));
+					if (bucket == null) {
+						continue;
+					}
+					for (int o : bucket) {
+						double d = distance(s, o);
+						if (o != s && d <= MAX_WALK_METERS) {
+							edges.put(((long) s << 32) | o, walkTime(d));
+						}
+					}
+				}
+			}
+		}
+
+		for (int f = 0; f < mFeeds.size(); f++) {
+			GTFS feed = mFeeds.get(f);
+			IDDictionary dict = IDDictionary.getDictionary(feed.getID(),
+					IDDictionary.STOP_ID);
+			for (Transfer t : feed.getTransfers()) {
+				int from = dict.indexOf(t.get_from_stop_id());
+				int to = dict.indexOf(t.get_to_stop_id());
+				if (from < 0 || to < 0 || from == to) {
+					continue;
+				}
+				from += mStopOffset[f];
+				to += mStopOffset[f];
+				long key = ((long) from << 32) | to;
+				if (t.get_transfer_type() == 3) {
+					// not possible
+					edges.remove(key);
+					continue;
+				}
+				int walk = hasLocation(from) && hasLocation(to) ? walkTime(distance(
+						from, to)) : 1;
+				if (t.get_transfer_type() == 2) {
+					walk = Math.max(walk, (int) t.get_min_transfer_time());
+				}
+				edges.put(key, walk);
+			}
+		}
+
+		mTransferStart = new int[mStops.length + 1];
+		for (long key : edges.keySet()) {
+			mTransferStart[(int) (key >> 32) + 1]++;
+		}
+		for (int s = 0; s < mStops.length; s++) {
+			mTransferStart[s + 1] += mTransferStart[s];
+		}
+		mTransferTo = new int[edges.size()];
+		mTransferTime = new int[edges.size()];
+		int[] fill = Arrays.copyOf(mTransferStart, mStops.length);
+		for (Map.Entry<Long, Integer> e : edges.entrySet()) {
+			int from = (int) (e.getKey() >> 32);
+			mTransferTo[fill[from]] = (int) (e.getKey() & 0xFFFFFFFFL);
+			mTransferTime[fill[from]] = e.getValue();
+			fill[from]++;
+		}
+	}
+
+	/**
+	 * Get the grid cell of a location
+	 * 
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 * @param inCellLat
+	 *            Cell height in degrees of latitude
+	 * @return The cell, row in the high word and column in the low
+	 */
+	private static long cellOf(double inLat, double inLon, double inCellLat) {
+		double cellLon = inCellLat / Math.max(Math.cos(Math.toRadians(inLat)), 0.01);
+		int cy = (int) Math.floor(inLat / inCellLat);
+		int cx = (int) Math.floor(inLon / cellLon);
+		return ((long) cy << 32) | (cx & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Get the distance between two stops
+	 * 
+	 * @param a
+	 *            First stop
+	 * @param b
+	 *            Second stop
+	 * @return Distance in meters
+	 */
+	private double distance(int a, int b) {
+		return GPSCalc.getDistanceInMetersNew(mStops[a].get_stop_lat(),
+				mStops[a].get_stop_lon(), mStops[b].get_stop_lat(),
+				mStops[b].get_stop_lon());
+	}
+
+	/**
+	 * Find the earliest trip of a pattern departing a position at or after a
+	 * time. Patterns never overtake, so departures at every position are
+	 * sorted by trip.
+	 * 
+	 * @param p
+	 *            The pattern
+	 * @param inPos
+	 *            Position in the pattern
+	 * @param inTime
+	 *            Earliest departure in seconds since midnight
+	 * @return The global trip index, or -1 if none
+	 */
+	private int earliestTrip(int p, int inPos, int inTime) {
+		int len = mPatternStopStart[p + 1] - mPatternStopStart[p];
+		int lo = 0, hi = mPatternTripStart[p + 1] - mPatternTripStart[p];
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mDepartures[mPatternTimeStart[p] + mid * len + inPos] < inTime) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo < mPatternTripStart[p + 1] - mPatternTripStart[p] ? mPatternTripStart[p]
+				+ lo
+				: -1;
+	}
+
+	/**
+	 * Find a stop by its stop_id, checking each feed in turn
+	 * 
+	 * @param inStopID
+	 *            The stop_id
+	 * @return The router's stop index, or -1 if not found
+	 */
+	public int findStop(String inStopID) {
+		for (int f = 0; f < mFeeds.size(); f++) {
+			int s = IDDictionary.getDictionary(mFeeds.get(f).getID(),
+					IDDictionary.STOP_ID).indexOf(inStopID);
+			if (s > -1 && s < mStopOffset[f + 1] - mStopOffset[f]) {
+				return mStopOffset[f] + s;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the number of stops across all feeds
+	 * 
+	 * @return Stop count
+	 */
+	public int getStopCount() {
+		return mStops.length;
+	}
+
+	/**
+	 * Get the number of route patterns
+	 * 
+	 * @return Pattern count
+	 */
+	public int getPatternCount() {
+		return mPatternStopStart.length - 1;
+	}
+
+	/**
+	 * Get the number of foot and scheduled transfers
+	 * 
+	 * @return Transfer count
+	 */
+	public int getTransferCount() {
+		return mTransferTo.length;
+	}
+
+	/**
+	 * Get the number of trips running today
+	 * 
+	 * @return Trip count
+	 */
+	public int getTripCount() {
+		return mTrips.length;
+	}
+
+	/**
+	 * Get a stop's time index for a trip
+	 * 
+	 * @param inTrip
+	 *            Global trip index
+	 * @param inPos
+	 *            Position in the trip's pattern
+	 * @return Index into mArrivals and mDepartures
+	 */
+	private int timeIndex(int inTrip, int inPos) {
+		int p = mTripPattern[inTrip];
+		int len = mPatternStopStart[p + 1] - mPatternStopStart[p];
+		return mPatternTimeStart[p] + (inTrip - mPatternTripStart[p]) * len
+				+ inPos;
+	}
+
+	/**
+	 * Check if a stop has usable coordinates
+	 * 
+	 * @param s
+	 *            The stop
+	 * @return True if the stop can be walked to
+	 */
+	private boolean hasLocation(int s) {
+		return mStops[s] != null
+				&& (mStops[s].get_stop_lat() != 0.0 || mStops[s].get_stop_lon() != 0.0);
+	}
+
+	/**
+	 * Get the feeds this router was built over
+	 * 
+	 * @return The feeds, in router order
+	 */
+	public List<GTFS> getFeeds() {
+		return Collections.unmodifiableList(mFeeds);
+	}
+
+	/**
+	 * Check if the feeds are still on the service day this router was built
+	 * for
+	 * 
+	 * @return True if the router is current
+	 */
+	public boolean isCurrent() {
+		for (int f = 0; f < mFeeds.size(); f++) {
+			if (mFeeds.get(f).getPaths() != mBuiltPaths.get(f)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if any of today's trips visit a stop
+	 * 
+	 * @param s
+	 *            The stop index
+	 * @return True if the stop is served
+	 */
+	boolean isServed(int s) {
+		return mStopRouteStart[s + 1] > mStopRouteStart[s];
+	}
+
+	/**
+	 * Earliest-arrival query
+	 * 
+	 * @param inFrom
+	 *            Origin stop index
+	 * @param inTo
+	 *            Destination stop index
+	 * @param inTime
+	 *            Departure in seconds since midnight
+	 * @return The earliest arriving Journey, fewest transfers on ties, or null
+	 *         if the destination can't be reached
+	 */
+	public Journey plan(int inFrom, int inTo, int inTime) {
+		Search st = new Search(mStops.length, getPatternCount());
+		run(st, inFrom, inTo, inTime);
+
+		int best = -1;
+		for (int k = 0; k <= ROUNDS; k++) {
+			if (st.mArrival[k][inTo] != INFINITY
+					&& (best < 0 || st.mArrival[k][inTo] < st.mArrival[best][inTo])) {
+				best = k;
+			}
+		}
+		return best < 0 ? null : reconstruct(st, inTo, best);
+	}
+
+	/**
+	 * Profile query: every Pareto optimal Journey leaving inside a window,
+	 * trading later departure against earlier arrival and fewer transfers
+	 * 
+	 * @param inFrom
+	 *            Origin stop index
+	 * @param inTo
+	 *            Destination stop index
+	 * @param inTime
+	 *            Start of the departure window in seconds since midnight
+	 * @param inWindow
+	 *            Window length in seconds
+	 * @return Pareto optimal Journeys sorted by departure
+	 */
+	public List<Journey> profile(int inFrom, int inTo, int inTime,
+			int inWindow) {
+		// every time a trip can be caught from the origin, directly or on foot
+		TreeSet<Integer> departures = new TreeSet<>(
+				Collections.reverseOrder());
+		departures.add(inTime);
+		addDepartures(departures, inFrom, 0, inTime, inTime + inWindow);
+		for (int e = mTransferStart[inFrom]; e < mTransferStart[inFrom + 1]; e++) {
+			addDepartures(departures, mTransferTo[e], mTransferTime[e], inTime,
+					inTime + inWindow);
+		}
+
+		Search st = new Search(mStops.length, getPatternCount());
+		int[] previous = new int[ROUNDS + 1];
+		Arrays.fill(previous, INFINITY);
+		ArrayList<Journey> found = new ArrayList<>();
+		for (int dep : departures) {
+			run(st, inFrom, inTo, dep);
+			for (int k = 0; k <= ROUNDS; k++) {
+				int arrival = st.mArrival[k][inTo];
+				if (arrival < previous[k]) {
+					previous[k] = arrival;
+					// a label copied from round k - 1 is already recorded
+					if (k == 0 || arrival < st.mArrival[k - 1][inTo]) {
+						found.add(reconstruct(st, inTo, k));
+					}
+				}
+			}
+		}
+
+		ArrayList<Journey> ret = new ArrayList<>();
+		for (Journey j : found) {
+			boolean dominated = false;
+			for (Journey o : found) {
+				if (o.dominates(j)) {
+					dominated = true;
+					break;
+				}
+			}
+			if (!dominated) {
+				ret.add(j);
+			}
+		}
+		Collections.sort(ret, new Comparator<Journey>() {
+			@Override
+			public int compare(Journey a, Journey b) {
+				return Integer.compare(a.getDeparture(), b.getDeparture());
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Add the departures of every trip leaving a stop inside a window
+	 * 
+	 * @param inSet
+	 *            The set to add to
+	 * @param s
+	 *            The stop
+	 * @param inWalk
+	 *            Walk from the origin to the stop in seconds
+	 * @param inStart
+	 *            Window start in seconds since midnight
+	 * @param inEnd
+	 *            Window end in seconds since midnight
+	 */
+	private void addDepartures(TreeSet<Integer> inSet, int s, int inWalk,
+			int inStart, int inEnd) {
+		for (int r = mStopRouteStart[s]; r < mStopRouteStart[s + 1]; r++) {
+			int p = mStopRoutePattern[r];
+			int t = earliestTrip(p, mStopRoutePos[r], inStart + inWalk);
+			while (t > -1 && t < mPatternTripStart[p + 1]) {
+				int dep = mDepartures[timeIndex(t, mStopRoutePos[r])] - inWalk;
+				if (dep > inEnd) {
+					break;
+				}
+				inSet.add(dep);
+				t++;
+			}
+		}
+	}
+
+	/**
+	 * Rebuild a Journey from the labels
+	 * 
+	 * @param st
+	 *            The finished Search
+	 * @param inTo
+	 *            Destination stop index
+	 * @param inRound
+	 *            Round to reach the destination in
+	 * @return The Journey
+	 */
+	private Journey reconstruct(Search st, int inTo, int inRound) {
+		ArrayList<Leg> legs = new ArrayList<>();
+		int s = inTo;
+		int k = inRound;
+		// after a walk, follow the ride label of the stop walked from
+		boolean ride = false;
+		// every leg moves to an earlier label, so this is only a safeguard
+		int guard = mStops.length + ROUNDS + 1;
+		while (guard-- > 0) {
+			int trip = ride ? st.mRideTrip[k][s] : st.mFromTrip[k][s];
+			int a = ride ? st.mRideA[k][s] : st.mFromA[k][s];
+			int b = ride ? st.mRideB[k][s] : st.mFromB[k][s];
+			if (trip == COPIED) {
+				k--;
+			} else if (trip == WALK) {
+				if (a < 0) {
+					break; // the origin
+				}
+				int arrival = st.mArrival[k][s];
+				legs.add(new Leg(mStops[a], mStops[s], arrival - b, arrival,
+						null));
+				s = a;
+				ride = true;
+			} else {
+				int p = mTripPattern[trip];
+				int board = mPatternStops[mPatternStopStart[p] + a];
+				legs.add(new Leg(mStops[board], mStops[s],
+						mDepartures[timeIndex(trip, a)],
+						mArrivals[timeIndex(trip, b)], mTrips[trip]));
+				s = board;
+				k--;
+				ride = false;
+			}
+		}
+		Collections.reverse(legs);
+		return new Journey(legs);
+	}
+
+	/**
+	 * Relax foot transfers from the stops ridden to this round
+	 * 
+	 * @param st
+	 *            The Search
+	 * @param k
+	 *            The round
+	 * @param inTo
+	 *            Destination stop index, for pruning
+	 */
+	private void relaxTransfers(Search st, int k, int inTo) {
+		int[] arrival = st.mArrival[k];
+		for (int m = 0; m < st.mRiddenCount; m++) {
+			int s = st.mRiddenList[m];
+			st.mRidden[s] = false;
+			for (int e = mTransferStart[s]; e < mTransferStart[s + 1]; e++) {
+				int to = mTransferTo[e];
+				int t = st.mRide[k][s] + mTransferTime[e];
+				if (t < arrival[to] && t < arrival[inTo]) {
+					arrival[to] = t;
+					st.mFromA[k][to] = s;
+					st.mFromB[k][to] = mTransferTime[e];
+					st.mFromTrip[k][to] = WALK;
+					st.mark(to);
+				}
+			}
+		}
+		st.mRiddenCount = 0;
+	}
+
+	/**
+	 * Run the RAPTOR rounds for one departure time. Labels already in the
+	 * Search from later departures are kept, which is what makes the profile
+	 * search work.
+	 * 
+	 * @param st
+	 *            The Search
+	 * @param inFrom
+	 *            Origin stop index
+	 * @param inTo
+	 *            Destination stop index
+	 * @param inTime
+	 *            Departure in seconds since midnight
+	 */
+	private void run(Search st, int inFrom, int inTo, int inTime) {
+		st.mMarkedCount = 0;
+		Arrays.fill(st.mMarked, false);
+		if (inTime < st.mArrival[0][inFrom]) {
+			st.mArrival[0][inFrom] = inTime;
+			st.mFromA[0][inFrom] = -1;
+			st.mFromTrip[0][inFrom] = WALK;
+		}
+		st.mark(inFrom);
+		st.ride(0, inFrom, inTime, -1, 0, WALK);
+		relaxTransfers(st, 0, inTo);
+
+		for (int k = 1; k <= ROUNDS && st.mMarkedCount > 0; k++) {
+			int[] prev = st.mArrival[k - 1];
+			int[] arrival = st.mArrival[k];
+
+			// at most k trips is never worse than at most k - 1
+			for (int s = 0; s < arrival.length; s++) {
+				if (prev[s] < arrival[s]) {
+					arrival[s] = prev[s];
+					st.mFromTrip[k][s] = COPIED;
+				}
+			}
+
+			// queue each pattern from its earliest marked stop
+			int queued = 0;
+			for (int m = 0; m < st.mMarkedCount; m++) {
+				int s = st.mMarkedList[m];
+				st.mMarked[s] = false;
+				for (int r = mStopRouteStart[s]; r < mStopRouteStart[s + 1]; r++) {
+					int p = mStopRoutePattern[r];
+					if (st.mQueuePos[p] < 0) {
+						st.mQueued[queued++] = p;
+						st.mQueuePos[p] = mStopRoutePos[r];
+					} else if (mStopRoutePos[r] < st.mQueuePos[p]) {
+						st.mQueuePos[p] = mStopRoutePos[r];
+					}
+				}
+			}
+			st.mMarkedCount = 0;
+
+			for (int q = 0; q < queued; q++) {
+				int p = st.mQueued[q];
+				int start = mPatternStopStart[p];
+				int len = mPatternStopStart[p + 1] - start;
+				int trip = -1, board = -1, base = 0;
+				for (int i = st.mQueuePos[p]; i < len; i++) {
+					int s = mPatternStops[start + i];
+					if (trip > -1) {
+						int a = mArrivals[base + i];
+						if (a < st.mRide[k][s] && a < arrival[inTo]) {
+							st.ride(k, s, a, board, i, trip);
+							if (a < arrival[s]) {
+								arrival[s] = a;
+								st.mFromA[k][s] = board;
+								st.mFromB[k][s] = i;
+								st.mFromTrip[k][s] = trip;
+								st.mark(s);
+							}
+						}
+					}
+					if (prev[s] != INFINITY
+							&& (trip < 0 || prev[s] <= mDepartures[base + i])) {
+						int t = earliestTrip(p, i, prev[s]);
+						if (t > -1 && t != trip) {
+							trip = t;
+							board = i;
+							base = timeIndex(t, 0);
+						}
+					}
+				}
+				st.mQueuePos[p] = -1;
+			}
+
+			relaxTransfers(st, k, inTo);
+		}
+	}
+
+	/**
+	 * Turn a trip into a Candidate over its timed visits
+	 * 
+	 * @param inTrip
+	 *            The Trip
+	 * @param inOffset
+	 *            Router index of the trip's feed's first stop
+	 * @return The Candidate, or null if the trip isn't running or is untimed
+	 */
+	private static Candidate toCandidate(Trip inTrip, int inOffset) {
+		if (inTrip == null || inTrip.getStopCount() < 2) {
+			return null;
+		}
+		int[] times = inTrip.getScheduledTimes();
+		int first = 0, last = times.length - 1;
+		while (first < times.length && times[first] < 0) {
+			first++;
+		}
+		while (last > first && times[last] < 0) {
+			last--;
+		}
+		if (last <= first) {
+			return null;
+		}
+
+		StopTimeTable table = inTrip.getStopTimeTable();
+		Candidate ret = new Candidate();
+		ret.mTrip = inTrip;
+		int len = last - first + 1;
+		ret.mStops = new int[len];
+		ret.mArrivals = new int[len];
+		ret.mDepartures = new int[len];
+		for (int i = 0; i < len; i++) {
+			int row = inTrip.getStopRow(first + i);
+			ret.mStops[i] = inOffset + table.getStopIndex(row);
+			ret.mDepartures[i] = times[first + i];
+			int arrival = table.getArrivalTimecode(row);
+			ret.mArrivals[i] = arrival < 0 ? times[first + i] : Math.min(
+					arrival * 60, times[first + i]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get a Stop by router index
+	 * 
+	 * @param s
+	 *            The stop index
+	 * @return The Stop, or null if out of range
+	 */
+	public Stop getStop(int s) {
+		return s > -1 && s < mStops.length ? mStops[s] : null;
+	}
+
+	/**
+	 * Get the walking time for a distance
+	 * 
+	 * @param inMeters
+	 *            The distance
+	 * @return Seconds, at least 1
+	 */
+	private static int walkTime(double inMeters) {
+		return Math.max((int) Math.ceil(inMeters / WALK_SPEED), 1);
+	}
+}
@@ -0,0 +1,208 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.telemetry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size latency histogram in the style of HdrHistogram. Values are
+ * counted in buckets that double in width, each split into 2048 linear
+ * sub-buckets, so any recorded value is reported to within 0.1% no matter
+ * how large it is. Recording is lock-free and never allocates, so it can be
+ * used from any number of threads on a hot path.
+ * 
+ * Values are whatever unit the caller records, normally nanoseconds. Values
+ * past 2^40 (about 18 minutes in nanoseconds) are counted as 2^40.
+ * 
+ * @author Jason LaFrance
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 11;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+	private static final int MAX_VALUE_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(
+			(MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF);
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong mMax = new AtomicLong(0);
+
+	/**
+	 * Find the counts index for a value
+	 * 
+	 * @param in
+	 *            A value between 0 and MAX_VALUE
+	 * @return Its index
+	 */
+	private static int indexOf(long in) {
+		int bucket = 64 - Long.numberOfLeadingZeros(in | (SUB_BUCKET_COUNT - 1))
+				- SUB_BUCKET_BITS;
+		int sub = (int) (in >>> bucket);
+		return bucket * SUB_BUCKET_HALF + sub;
+	}
+
+	/**
+	 * Find the largest value that is counted at an index
+	 * 
+	 * @param in
+	 *            A counts index
+	 * @return The highest value that shares the index
+	 */
+	private static long highestValueAt(int in) {
+		if (in < SUB_BUCKET_COUNT) {
+			return in;
+		}
+		int bucket = in / SUB_BUCKET_HALF - 1;
+		long sub = in - bucket * SUB_BUCKET_HALF;
+		return ((sub + 1) << bucket) - 1;
+	}
+
+	/**
+	 * Count one value
+	 * 
+	 * @param in
+	 *            The value, clamped to between 0 and 2^40
+	 */
+	public void record(long in) {
+		long value = in < 0 ? 0 : (in > MAX_VALUE ? MAX_VALUE : in);
+		mCounts.incrementAndGet(indexOf(value));
+		mTotal.incrementAndGet();
+		mSum.addAndGet(value);
+
+		long min;
+		while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+			;
+		}
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+			;
+		}
+	}
+
+	/**
+	 * Add all of another histogram's counts to this one
+	 * 
+	 * @param in
+	 *            The histogram to add
+	 */
+	public void add(LatencyHistogram in) {
+		for (int i = 0; i < mCounts.length(); i++) {
+			long c = in.mCounts.get(i);
+			if (c != 0) {
+				mCounts.addAndGet(i, c);
+			}
+		}
+		mTotal.addAndGet(in.mTotal.get());
+		mSum.addAndGet(in.mSum.get());
+
+		long min;
+		long inMin = in.mMin.get();
+		while (inMin < (min = mMin.get()) && !mMin.compareAndSet(min, inMin)) {
+			;
+		}
+		long max;
+		long inMax = in.mMax.get();
+		while (inMax > (max = mMax.get()) && !mMax.compareAndSet(max, inMax)) {
+			;
+		}
+	}
+
+	/**
+	 * Clear every count. Values recorded while this runs may or may not
+	 * survive it.
+	 */
+	public void reset() {
+		for (int i = 0; i < mCounts.length(); i++) {
+			mCounts.set(i, 0);
+		}
+		mTotal.set(0);
+		mSum.set(0);
+		mMin.set(Long.MAX_VALUE);
+		mMax.set(0);
+	}
+
+	/**
+	 * Get the number of values recorded
+	 * 
+	 * @return The count
+	 */
+	public long getCount() {
+		return mTotal.get();
+	}
+
+	/**
+	 * Get the largest value recorded
+	 * 
+	 * @return The maximum, or 0 if nothing has been recorded
+	 */
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * Get the mean of the values recorded
+	 * 
+	 * @return The mean, or 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		long total = mTotal.get();
+		return total == 0 ? 0.0 : (double) mSum.get() / total;
+	}
+
+	/**
+	 * Get the smallest value recorded
+	 * 
+	 * @return The minimum, or 0 if nothing has been recorded
+	 */
+	public long getMin() {
+		long min = mMin.get();
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	/**
+	 * Get the value that a given percentage of recorded values are at or
+	 * below
+	 * 
+	 * @param inPercentile
+	 *            The percentile, from 0 to 100
+	 * @return The value, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double inPercentile) {
+		long total = mTotal.get();
+		if (total == 0) {
+			return 0;
+		}
+		double p = Math.min(100.0, Math.max(0.0, inPercentile));
+		long target = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < mCounts.length(); i++) {
+			seen += mCounts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueAt(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+}
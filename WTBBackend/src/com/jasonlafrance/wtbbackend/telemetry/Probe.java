@@ -0,0 +1,36 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.telemetry;
+
+/**
+ * Probe interface for reporting the memory a subsystem holds to Telemetry
+ * 
+ * @author Jason LaFrance
+ */
+public interface Probe {
+
+	/**
+	 * Take a sample of the subsystem's current memory. An estimate is fine,
+	 * as long as it tracks what the subsystem holds on to.
+	 * 
+	 * @return The current size in bytes
+	 */
+	public long sample();
+}
@@ -0,0 +1,313 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.telemetry;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Telemetry singleton for keeping an eye on memory behavior while running.
+ * Call sample() periodically to update the allocation rate and GC count and
+ * time deltas, and register a Probe for any subsystem whose memory should be
+ * visible. Probes report estimated bytes. Everything is published over JMX
+ * once register() is called.
+ * 
+ * Allocation and pauses come from GC notifications rather than polling. The
+ * heap only grows between collections, so everything allocated is the growth
+ * from the end of one collection to the start of the next, plus the growth
+ * since the last one. That counts threads that have since exited, which
+ * summing per thread counters can't.
+ * 
+ * @author Jason LaFrance
+ */
+public class Telemetry implements TelemetryMXBean {
+
+	public static final String OBJECT_NAME = "com.jasonlafrance.wtbbackend:type=Telemetry";
+
+	private static Telemetry sInstance = null;
+
+	/**
+	 * Get the Telemetry singleton
+	 * 
+	 * @return The Telemetry instance
+	 */
+	public static synchronized Telemetry getInstance() {
+		if (sInstance == null) {
+			sInstance = new Telemetry();
+		}
+		return sInstance;
+	}
+
+	private final LinkedHashMap<String, Probe> mProbes = new LinkedHashMap<>();
+	private final LinkedHashMap<String, Long> mSubsystems = new LinkedHashMap<>();
+
+	private final HashSet<String> mHeapPools = new HashSet<>();
+	private boolean mListening = false;
+
+	private long mSampleTime = 0;
+	private long mAllocated = -1;
+	private long mAllocationRate = -1;
+	private long mGcCount = 0, mGcCountDelta = 0;
+	private long mGcTime = 0, mGcTimeDelta = 0;
+	private long mMaxGcDuration = -1;
+
+	// allocated bytes up to the start of the last collection
+	private long mGcAllocated = 0;
+	// heap used at the end of the last collection
+	private long mHeapAfterGc;
+
+	/**
+	 * Private constructor
+	 */
+	private Telemetry() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				mHeapPools.add(pool.getName());
+			}
+		}
+		mHeapAfterGc = getHeapUsed();
+		listen();
+	}
+
+	/**
+	 * Subscribe to the notification every collector sends when it finishes
+	 */
+	private void listen() {
+		NotificationListener listener = new NotificationListener() {
+			@Override
+			public void handleNotification(Notification inNotification,
+					Object inHandback) {
+				if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+						.equals(inNotification.getType())) {
+					collected(GarbageCollectionNotificationInfo
+							.from((CompositeData) inNotification.getUserData()));
+				}
+			}
+		};
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			if (gc instanceof NotificationEmitter) {
+				((NotificationEmitter) gc).addNotificationListener(listener,
+						null, null);
+				mListening = true;
+			}
+		}
+	}
+
+	/**
+	 * Account for a finished collection
+	 * 
+	 * @param in
+	 *            The collection's notification
+	 */
+	private synchronized void collected(GarbageCollectionNotificationInfo in) {
+		GcInfo info = in.getGcInfo();
+		long before = heapUsed(info.getMemoryUsageBeforeGc());
+		long after = heapUsed(info.getMemoryUsageAfterGc());
+		// a concurrent cycle can free memory between our notifications
+		mGcAllocated += Math.max(0, before - mHeapAfterGc);
+		mHeapAfterGc = after;
+
+		// the duration of a concurrent collector is mostly not a pause
+		if (!in.getGcName().contains("Concurrent")
+				&& info.getDuration() > mMaxGcDuration) {
+			mMaxGcDuration = info.getDuration();
+		}
+	}
+
+	/**
+	 * Add up the heap pools of a collection's memory usage
+	 * 
+	 * @param in
+	 *            Usage keyed by pool name
+	 * @return Used heap bytes
+	 */
+	private long heapUsed(Map<String, MemoryUsage> in) {
+		long ret = 0;
+		for (Map.Entry<String, MemoryUsage> e : in.entrySet()) {
+			if (mHeapPools.contains(e.getKey())) {
+				ret += e.getValue().getUsed();
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized long getAllocatedBytes() {
+		return mAllocated;
+	}
+
+	@Override
+	public synchronized long getAllocationRate() {
+		return mAllocationRate;
+	}
+
+	@Override
+	public Map<String, Long> getBufferPools() {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+		for (BufferPoolMXBean pool : ManagementFactory
+				.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			ret.put(pool.getName(), pool.getMemoryUsed());
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized long getGcCount() {
+		return mGcCount;
+	}
+
+	@Override
+	public synchronized long getGcCountDelta() {
+		return mGcCountDelta;
+	}
+
+	@Override
+	public synchronized long getGcTime() {
+		return mGcTime;
+	}
+
+	@Override
+	public synchronized long getGcTimeDelta() {
+		return mGcTimeDelta;
+	}
+
+	@Override
+	public long getHeapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+				.getUsed();
+	}
+
+	@Override
+	public synchronized long getMaxGcDuration() {
+		return mMaxGcDuration;
+	}
+
+	@Override
+	public Map<String, Long> getMemoryPools() {
+		LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			ret.put(pool.getName(), pool.getUsage().getUsed());
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized long getSampleTime() {
+		return mSampleTime;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getSubsystems() {
+		return new LinkedHashMap<>(mSubsystems);
+	}
+
+	/**
+	 * Register this object with the platform MBean server
+	 */
+	public void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException ex) {
+			Logger.getLogger(Telemetry.class.getName()).log(Level.WARNING,
+					null, ex);
+		}
+	}
+
+	/**
+	 * Add a subsystem size probe
+	 * 
+	 * @param inName
+	 *            Subsystem name
+	 * @param inProbe
+	 *            The probe to sample
+	 */
+	public synchronized void registerProbe(String inName, Probe inProbe) {
+		mProbes.put(inName, inProbe);
+	}
+
+	/**
+	 * Take a new sample of all of the counters and probes
+	 */
+	public synchronized void sample() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - mSampleTime;
+
+		if (mListening) {
+			long allocated = mGcAllocated
+					+ Math.max(0, getHeapUsed() - mHeapAfterGc);
+			// a collection we haven't been told about yet can hide growth we
+			// already counted, until its notification arrives
+			allocated = Math.max(allocated, mAllocated);
+			if (mAllocated >= 0 && elapsed > 0) {
+				mAllocationRate = (allocated - mAllocated) * 1000 / elapsed;
+			}
+			mAllocated = allocated;
+		}
+
+		long count = 0, time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		mGcCountDelta = count - mGcCount;
+		mGcTimeDelta = time - mGcTime;
+		mGcCount = count;
+		mGcTime = time;
+
+		for (Map.Entry<String, Probe> e : mProbes.entrySet()) {
+			mSubsystems.put(e.getKey(), e.getValue().sample());
+		}
+
+		mSampleTime = now;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "alloc/s: " + mAllocationRate + "  gc: " + mGcCountDelta + " ("
+				+ mGcTimeDelta + "ms)  heap: " + getHeapUsed() + "  "
+				+ mSubsystems;
+	}
+}
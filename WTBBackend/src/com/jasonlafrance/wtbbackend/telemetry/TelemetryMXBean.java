@@ -0,0 +1,118 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.telemetry;
+
+import java.util.Map;
+
+/**
+ * JMX management interface for the Telemetry singleton
+ * 
+ * @author Jason LaFrance
+ */
+public interface TelemetryMXBean {
+
+	/**
+	 * Get the total bytes allocated on the heap since startup, by every
+	 * thread including those that have exited
+	 * 
+	 * @return Allocated bytes, or -1 if not supported by the JVM
+	 */
+	public long getAllocatedBytes();
+
+	/**
+	 * Get the allocation rate over the last sample period
+	 * 
+	 * @return Allocation rate in bytes per second, or -1 if not supported
+	 */
+	public long getAllocationRate();
+
+	/**
+	 * Get the total number of collections across all collectors
+	 * 
+	 * @return Collection count
+	 */
+	public long getGcCount();
+
+	/**
+	 * Get the number of collections during the last sample period
+	 * 
+	 * @return Collection count
+	 */
+	public long getGcCountDelta();
+
+	/**
+	 * Get the total time spent collecting across all collectors
+	 * 
+	 * @return Collection time in milliseconds
+	 */
+	public long getGcTime();
+
+	/**
+	 * Get the time spent collecting during the last sample period
+	 * 
+	 * @return Collection time in milliseconds
+	 */
+	public long getGcTimeDelta();
+
+	/**
+	 * Get the duration of the longest single collection seen, from every
+	 * collection's notification. Collectors that mostly run alongside the
+	 * application, such as ConcurrentMarkSweep, are left out, as their
+	 * duration isn't a pause.
+	 * 
+	 * @return Longest collection in milliseconds, or -1 if none seen yet
+	 */
+	public long getMaxGcDuration();
+
+	/**
+	 * Get the used heap
+	 * 
+	 * @return Used heap in bytes
+	 */
+	public long getHeapUsed();
+
+	/**
+	 * Get the used memory of each memory pool
+	 * 
+	 * @return Used bytes keyed by pool name
+	 */
+	public Map<String, Long> getMemoryPools();
+
+	/**
+	 * Get the memory used by NIO direct and mapped buffers
+	 * 
+	 * @return Used bytes keyed by buffer pool name
+	 */
+	public Map<String, Long> getBufferPools();
+
+	/**
+	 * Get the latest sample of every registered subsystem probe
+	 * 
+	 * @return Estimated bytes keyed by subsystem name
+	 */
+	public Map<String, Long> getSubsystems();
+
+	/**
+	 * Get the time of the last sample
+	 * 
+	 * @return Time in milliseconds since the epoch
+	 */
+	public long getSampleTime();
+}
@@ -0,0 +1,287 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.tiles;
+
+import com.jasonlafrance.wtbbackend.realtime.ProtoWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One layer of a Mapbox vector tile (spec version 2). Features are encoded as
+ * they are added; keys and values are interned and written when the layer is.
+ * 
+ * @author Jason LaFrance
+ */
+final class MVTLayer {
+
+	static final int POINT = 1, LINESTRING = 2;
+
+	// Tile
+	private static final int TILE_LAYER = 3;
+	// Layer
+	private static final int LAYER_NAME = 1, LAYER_FEATURE = 2,
+			LAYER_KEY = 3, LAYER_VALUE = 4, LAYER_EXTENT = 5,
+			LAYER_VERSION = 15;
+	// Feature
+	private static final int FEATURE_ID = 1, FEATURE_TAGS = 2,
+			FEATURE_TYPE = 3, FEATURE_GEOMETRY = 4;
+	// Value
+	private static final int VALUE_STRING = 1, VALUE_DOUBLE = 3,
+			VALUE_UINT = 5, VALUE_SINT = 6, VALUE_BOOL = 7;
+	// geometry commands
+	private static final int MOVE_TO = 1, LINE_TO = 2;
+
+	private final String mName;
+	private final int mExtent;
+	private final ProtoWriter mFeatures = new ProtoWriter(4096);
+	private final LinkedHashMap<String, Integer> mKeys = new LinkedHashMap<>();
+	private final LinkedHashMap<Object, Integer> mValues = new LinkedHashMap<>();
+
+	private int mCount = 0;
+	private long mId;
+	private int mType;
+	private int[] mTags = new int[16];
+	private int mTagSize = 0;
+	private int[] mGeometry = new int[64];
+	private int mGeometrySize = 0;
+	private int mCursorX, mCursorY;
+
+	/**
+	 * Create an empty layer
+	 * 
+	 * @param inName
+	 *            Layer name
+	 * @param inExtent
+	 *            Tile extent in layer units
+	 */
+	MVTLayer(String inName, int inExtent) {
+		mName = inName;
+		mExtent = inExtent;
+	}
+
+	/**
+	 * Get the number of features written
+	 * 
+	 * @return Feature count
+	 */
+	int getFeatureCount() {
+		return mCount;
+	}
+
+	/**
+	 * Start a feature. Must be matched with endFeature().
+	 * 
+	 * @param inId
+	 *            Feature id
+	 * @param inType
+	 *            POINT or LINESTRING
+	 */
+	void startFeature(long inId, int inType) {
+		mId = inId;
+		mType = inType;
+		mTagSize = 0;
+		mGeometrySize = 0;
+		mCursorX = mCursorY = 0;
+	}
+
+	/**
+	 * Tag the current feature
+	 * 
+	 * @param inKey
+	 *            Property name
+	 * @param inValue
+	 *            String, Double, Long or Boolean property value; nulls are
+	 *            skipped
+	 */
+	void tag(String inKey, Object inValue) {
+		if (inValue == null) {
+			return;
+		}
+		Integer key = mKeys.get(inKey);
+		if (key == null) {
+			key = mKeys.size();
+			mKeys.put(inKey, key);
+		}
+		Integer value = mValues.get(inValue);
+		if (value == null) {
+			value = mValues.size();
+			mValues.put(inValue, value);
+		}
+		if (mTagSize + 2 > mTags.length) {
+			mTags = Arrays.copyOf(mTags, mTags.length * 2);
+		}
+		mTags[mTagSize++] = key;
+		mTags[mTagSize++] = value;
+	}
+
+	/**
+	 * Add a point to the current feature
+	 * 
+	 * @param inX
+	 *            Tile x
+	 * @param inY
+	 *            Tile y
+	 */
+	void point(int inX, int inY) {
+		command(MOVE_TO, 1);
+		delta(inX, inY);
+	}
+
+	/**
+	 * Add a line to the current feature
+	 * 
+	 * @param in
+	 *            Tile coordinates {x0, y0, x1, y1, ...}
+	 * @param inCount
+	 *            Number of points
+	 */
+	void line(int[] in, int inCount) {
+		// drop repeated points, they make zero-length segments
+		int[] points = new int[inCount * 2];
+		int n = 0;
+		for (int i = 0; i < inCount; i++) {
+			int x = in[i * 2], y = in[i * 2 + 1];
+			if (n == 0 || x != points[n * 2 - 2] || y != points[n * 2 - 1]) {
+				points[n * 2] = x;
+				points[n * 2 + 1] = y;
+				n++;
+			}
+		}
+		if (n < 2) {
+			return;
+		}
+		command(MOVE_TO, 1);
+		delta(points[0], points[1]);
+		command(LINE_TO, n - 1);
+		for (int i = 1; i < n; i++) {
+			delta(points[i * 2], points[i * 2 + 1]);
+		}
+	}
+
+	/**
+	 * Finish the current feature, dropping it if it has no geometry
+	 */
+	void endFeature() {
+		if (mGeometrySize == 0) {
+			return;
+		}
+		mFeatures.begin(LAYER_FEATURE);
+		mFeatures.writeUInt64(FEATURE_ID, mId);
+		if (mTagSize > 0) {
+			mFeatures.begin(FEATURE_TAGS);
+			for (int i = 0; i < mTagSize; i++) {
+				mFeatures.writeVarint(mTags[i]);
+			}
+			mFeatures.end();
+		}
+		mFeatures.writeUInt64(FEATURE_TYPE, mType);
+		mFeatures.begin(FEATURE_GEOMETRY);
+		for (int i = 0; i < mGeometrySize; i++) {
+			mFeatures.writeVarint(mGeometry[i] & 0xFFFFFFFFL);
+		}
+		mFeatures.end();
+		mFeatures.end();
+		mCount++;
+	}
+
+	/**
+	 * Write this layer as a Tile.layers field. Empty layers write nothing.
+	 * 
+	 * @param out
+	 *            Tile writer
+	 */
+	void writeTo(ProtoWriter out) {
+		if (mCount == 0) {
+			return;
+		}
+		out.begin(TILE_LAYER);
+		out.writeUInt64(LAYER_VERSION, 2);
+		out.writeString(LAYER_NAME, mName);
+		out.writeRaw(mFeatures.toByteArray());
+		for (String key : mKeys.keySet()) {
+			out.writeString(LAYER_KEY, key);
+		}
+		for (Map.Entry<Object, Integer> e : mValues.entrySet()) {
+			Object v = e.getKey();
+			out.begin(LAYER_VALUE);
+			if (v instanceof String) {
+				out.writeString(VALUE_STRING, (String) v);
+			} else if (v instanceof Double) {
+				out.writeDouble(VALUE_DOUBLE, (Double) v);
+			} else if (v instanceof Boolean) {
+				out.writeBool(VALUE_BOOL, (Boolean) v);
+			} else {
+				long l = ((Number) v).longValue();
+				if (l >= 0) {
+					out.writeUInt64(VALUE_UINT, l);
+				} else {
+					out.writeSInt64(VALUE_SINT, l);
+				}
+			}
+			out.end();
+		}
+		out.writeUInt64(LAYER_EXTENT, mExtent);
+		out.end();
+	}
+
+	/**
+	 * Append a geometry command integer
+	 * 
+	 * @param inId
+	 *            Command id
+	 * @param inCount
+	 *            Number of parameter pairs that follow
+	 */
+	private void command(int inId, int inCount) {
+		grow(1);
+		mGeometry[mGeometrySize++] = (inId & 0x7) | (inCount << 3);
+	}
+
+	/**
+	 * Append a zigzag-encoded cursor move
+	 * 
+	 * @param inX
+	 *            Tile x
+	 * @param inY
+	 *            Tile y
+	 */
+	private void delta(int inX, int inY) {
+		grow(2);
+		int dx = inX - mCursorX, dy = inY - mCursorY;
+		mGeometry[mGeometrySize++] = (dx << 1) ^ (dx >> 31);
+		mGeometry[mGeometrySize++] = (dy << 1) ^ (dy >> 31);
+		mCursorX = inX;
+		mCursorY = inY;
+	}
+
+	/**
+	 * Make room for more geometry integers
+	 * 
+	 * @param inCount
+	 *            Number about to be written
+	 */
+	private void grow(int inCount) {
+		if (mGeometrySize + inCount > mGeometry.length) {
+			mGeometry = Arrays.copyOf(mGeometry, Math.max(
+					mGeometry.length * 2, mGeometrySize + inCount));
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.tiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Web Mercator projection, line simplification and clipping for vector tiles.
+ * World coordinates run from 0 to 1 in both axes, with y growing southwards.
+ * 
+ * @author Jason LaFrance
+ */
+final class TileGeometry {
+
+	private static final double MAX_LAT = 85.0511287798;
+
+	/**
+	 * Project a longitude
+	 * 
+	 * @param inLon
+	 *            Longitude in degrees
+	 * @return World x
+	 */
+	static double worldX(double inLon) {
+		return (inLon + 180.0) / 360.0;
+	}
+
+	/**
+	 * Project a latitude
+	 * 
+	 * @param inLat
+	 *            Latitude in degrees
+	 * @return World y
+	 */
+	static double worldY(double inLat) {
+		double lat = Math.toRadians(Math.max(-MAX_LAT, Math.min(MAX_LAT, inLat)));
+		return (1.0 - Math.log(Math.tan(lat) + 1.0 / Math.cos(lat)) / Math.PI) / 2.0;
+	}
+
+	/**
+	 * Douglas-Peucker simplification
+	 * 
+	 * @param xs
+	 *            Point x coordinates
+	 * @param ys
+	 *            Point y coordinates
+	 * @param inTolerance
+	 *            Largest distance a dropped point may be from the line
+	 * @return Indexes of the points kept, in order
+	 */
+	static int[] simplify(double[] xs, double[] ys, double inTolerance) {
+		int n = xs.length;
+		if (n < 3) {
+			int[] ret = new int[n];
+			for (int i = 0; i < n; i++) {
+				ret[i] = i;
+			}
+			return ret;
+		}
+
+		boolean[] keep = new boolean[n];
+		keep[0] = keep[n - 1] = true;
+		double tolerance2 = inTolerance * inTolerance;
+		// explicit stack of (first, last) ranges instead of recursion
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			double worst = -1.0;
+			int index = -1;
+			for (int i = first + 1; i < last; i++) {
+				double d = segmentDistance2(xs[i], ys[i], xs[first],
+						ys[first], xs[last], ys[last]);
+				if (d > worst) {
+					worst = d;
+					index = i;
+				}
+			}
+			if (index > -1 && worst > tolerance2) {
+				keep[index] = true;
+				if (top + 4 > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				stack[top++] = first;
+				stack[top++] = index;
+				stack[top++] = index;
+				stack[top++] = last;
+			}
+		}
+
+		int count = 0;
+		for (boolean k : keep) {
+			count += k ? 1 : 0;
+		}
+		int[] ret = new int[count];
+		for (int i = 0, j = 0; i < n; i++) {
+			if (keep[i]) {
+				ret[j++] = i;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the squared distance from a point to a segment
+	 * 
+	 * @param px
+	 *            Point x
+	 * @param py
+	 *            Point y
+	 * @param ax
+	 *            Segment start x
+	 * @param ay
+	 *            Segment start y
+	 * @param bx
+	 *            Segment end x
+	 * @param by
+	 *            Segment end y
+	 * @return The squared distance
+	 */
+	private static double segmentDistance2(double px, double py, double ax,
+			double ay, double bx, double by) {
+		double dx = bx - ax, dy = by - ay;
+		double len2 = dx * dx + dy * dy;
+		double t = len2 == 0.0 ? 0.0 : ((px - ax) * dx + (py - ay) * dy)
+				/ len2;
+		t = Math.max(0.0, Math.min(1.0, t));
+		double ex = ax + t * dx - px, ey = ay + t * dy - py;
+		return ex * ex + ey * ey;
+	}
+
+	/**
+	 * Clip a polyline to a square, Liang-Barsky style, one segment at a time.
+	 * Consecutive visible segments are joined, so a line that leaves and
+	 * re-enters the square comes back as several parts.
+	 * 
+	 * @param xs
+	 *            Point x coordinates
+	 * @param ys
+	 *            Point y coordinates
+	 * @param inMin
+	 *            Square minimum in both axes
+	 * @param inMax
+	 *            Square maximum in both axes
+	 * @return The visible parts, each as {x0, y0, x1, y1, ...}
+	 */
+	static ArrayList<double[]> clip(double[] xs, double[] ys, double inMin,
+			double inMax) {
+		ArrayList<double[]> ret = new ArrayList<>();
+		double[] part = new double[16];
+		int size = 0;
+		for (int i = 0; i + 1 < xs.length; i++) {
+			double x0 = xs[i], y0 = ys[i], x1 = xs[i + 1], y1 = ys[i + 1];
+			double dx = x1 - x0, dy = y1 - y0;
+			double t0 = 0.0, t1 = 1.0;
+			double[] p = { -dx, dx, -dy, dy };
+			double[] q = { x0 - inMin, inMax - x0, y0 - inMin, inMax - y0 };
+			boolean visible = true;
+			for (int e = 0; e < 4 && visible; e++) {
+				if (p[e] == 0.0) {
+					visible = q[e] >= 0.0;
+				} else {
+					double t = q[e] / p[e];
+					if (p[e] < 0.0) {
+						t0 = Math.max(t0, t);
+					} else {
+						t1 = Math.min(t1, t);
+					}
+					visible = t0 <= t1;
+				}
+			}
+			if (!visible) {
+				if (size >= 4) {
+					ret.add(Arrays.copyOf(part, size));
+				}
+				size = 0;
+				continue;
+			}
+
+			if (size + 4 > part.length) {
+				part = Arrays.copyOf(part, part.length * 2);
+			}
+			if (size == 0) {
+				part[size++] = x0 + t0 * dx;
+				part[size++] = y0 + t0 * dy;
+			}
+			part[size++] = x0 + t1 * dx;
+			part[size++] = y0 + t1 * dy;
+			if (t1 < 1.0) {
+				// left the square
+				ret.add(Arrays.copyOf(part, size));
+				size = 0;
+			}
+		}
+		if (size >= 4) {
+			ret.add(Arrays.copyOf(part, size));
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,508 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.tiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jasonlafrance.wtbbackend.gtfs.FeedHandle;
+import com.jasonlafrance.wtbbackend.gtfs.FeedListener;
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+import com.jasonlafrance.wtbbackend.gtfs.IDDictionary;
+import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
+import com.jasonlafrance.wtbbackend.gtfs.Stop;
+import com.jasonlafrance.wtbbackend.gtfs.Trip;
+import com.jasonlafrance.wtbbackend.gtfs.Vertex;
+import com.jasonlafrance.wtbbackend.query.QueryHandler;
+import com.jasonlafrance.wtbbackend.query.Snapshot;
+import com.jasonlafrance.wtbbackend.realtime.ProtoWriter;
+import com.jasonlafrance.wtbbackend.vehicle.Vehicle;
+
+/**
+ * QueryHandler serving Mapbox vector tiles of the loaded feeds. Answers:
+ * 
+ * <pre>
+ * /tiles/{z}/{x}/{y}.mvt    (or .pbf)
+ * </pre>
+ * 
+ * Each tile has a "routes" layer of today's route shapes, simplified for the
+ * zoom level, a "stops" layer from zoom 13 in, and a "vehicles" layer of the
+ * live vehicles. The route and stop layers are cached per tile until a feed
+ * rolls over to a new service day; the vehicle layer is encoded per request
+ * and appended, since concatenated Tile messages merge their layers.
+ * 
+ * Shapes and stops are projected on a background thread whenever a feed is
+ * added or replaced, and once a minute if a feed has rolled over, so query()
+ * never has to wait for a rebuild. Queries keep using the previous layers
+ * until the new ones are ready. Encoding a tile is still real work, so this
+ * should be registered with QueryPortal.addBlockingHandler().
+ * 
+ * @author Jason LaFrance
+ */
+public class VectorTiles implements QueryHandler, FeedListener {
+
+	public static final String MVT = "application/vnd.mapbox-vector-tile";
+
+	private static final int EXTENT = 4096;
+	private static final int BUFFER = 64;
+	private static final int MAX_ZOOM = 22;
+	// past this zoom shapes are drawn at full resolution
+	private static final int MAX_SIMPLIFY_ZOOM = 16;
+	private static final int STOP_MIN_ZOOM = 13;
+	private static final int CACHE_SIZE = 1024;
+	private static final long CHECK_MILLIS = 60 * 1000;
+
+	/**
+	 * A route shape in world coordinates
+	 */
+	private static class Shape {
+		private long mID;
+		private String mRouteID, mName, mColor;
+		private double[] mX, mY;
+		private double mMinX, mMinY, mMaxX, mMaxY;
+		// points to draw per zoom, filled in before the shape is published
+		private final int[][] mKeep = new int[MAX_SIMPLIFY_ZOOM + 1][];
+	}
+
+	/**
+	 * A stop in world coordinates
+	 */
+	private static class StopPoint {
+		private long mID;
+		private String mStopID, mName;
+		private double mX, mY;
+	}
+
+	/**
+	 * One build of the route and stop layers, with the tiles encoded from it.
+	 * Never changed once published, apart from the cache.
+	 */
+	private static class Layers {
+		private final ArrayList<GTFS> mFeeds;
+		private final ArrayList<ArrayList<RoutePath>> mPaths;
+		private final ArrayList<Shape> mShapes;
+		private final ArrayList<StopPoint> mStops;
+		private final LinkedHashMap<String, byte[]> mCache = new LinkedHashMap<String, byte[]>(
+				256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+
+		/**
+		 * @param inFeeds
+		 *            The feeds built from
+		 * @param inPaths
+		 *            Each feed's paths at the time
+		 * @param inShapes
+		 *            Projected shapes
+		 * @param inStops
+		 *            Projected stops
+		 */
+		private Layers(ArrayList<GTFS> inFeeds,
+				ArrayList<ArrayList<RoutePath>> inPaths,
+				ArrayList<Shape> inShapes, ArrayList<StopPoint> inStops) {
+			mFeeds = inFeeds;
+			mPaths = inPaths;
+			mShapes = inShapes;
+			mStops = inStops;
+		}
+	}
+
+	private final ArrayList<GTFS> mFeeds = new ArrayList<>();
+	private volatile Layers mLayers = new Layers(new ArrayList<GTFS>(),
+			new ArrayList<ArrayList<RoutePath>>(), new ArrayList<Shape>(),
+			new ArrayList<StopPoint>());
+	private final ScheduledExecutorService mBuilder;
+	private final Runnable mRebuild = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				rebuild();
+			} catch (RuntimeException e) {
+				// an escaping exception would cancel the periodic check
+				Logger.getLogger(VectorTiles.class.getName()).log(
+						Level.SEVERE, null, e);
+			}
+		}
+	};
+
+	/**
+	 * Create the tile handler and start its builder thread
+	 */
+	public VectorTiles() {
+		mBuilder = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread ret = new Thread(r, "VectorTiles");
+						ret.setDaemon(true);
+						return ret;
+					}
+				});
+		mBuilder.scheduleWithFixedDelay(mRebuild, CHECK_MILLIS, CHECK_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Add a feed to the tiles. Its layers are built in the background.
+	 * 
+	 * @param in
+	 *            The feed
+	 */
+	public synchronized void addFeed(GTFS in) {
+		mFeeds.add(in);
+		mBuilder.execute(mRebuild);
+	}
+
+	@Override
+	public synchronized void feedReplaced(GTFS inOld, GTFS inNew) {
+		int i = mFeeds.indexOf(inOld);
+		if (i > -1) {
+			mFeeds.set(i, inNew);
+		} else {
+			mFeeds.add(inNew);
+		}
+		mBuilder.execute(mRebuild);
+	}
+
+	/**
+	 * Check whether some layers still match the feeds
+	 * 
+	 * @param in
+	 *            The layers
+	 * @param inFeeds
+	 *            The current feeds
+	 * @return True if no feed has been added, replaced or rolled over since
+	 *         the layers were built
+	 */
+	private static boolean isCurrent(Layers in, ArrayList<GTFS> inFeeds) {
+		if (!in.mFeeds.equals(inFeeds)) {
+			return false;
+		}
+		for (int f = 0; f < inFeeds.size(); f++) {
+			if (in.mPaths.get(f) != inFeeds.get(f).getPaths()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Build new layers if the feeds have changed. Only run on the builder
+	 * thread.
+	 */
+	private void rebuild() {
+		ArrayList<GTFS> feeds;
+		synchronized (this) {
+			feeds = new ArrayList<>(mFeeds);
+		}
+		if (isCurrent(mLayers, feeds) || !FeedHandle.acquireAll(feeds)) {
+			// a feed released since the copy has a rebuild queued already
+			return;
+		}
+		try {
+			mLayers = build(feeds);
+		} finally {
+			FeedHandle.releaseAll(feeds);
+		}
+	}
+
+	/**
+	 * Project today's shapes and all stops
+	 * 
+	 * @param inFeeds
+	 *            The feeds
+	 * @return The new layers, with an empty tile cache
+	 */
+	private static Layers build(ArrayList<GTFS> inFeeds) {
+		ArrayList<ArrayList<RoutePath>> built = new ArrayList<>();
+		ArrayList<Shape> shapes = new ArrayList<>();
+		ArrayList<StopPoint> stops = new ArrayList<>();
+		for (GTFS gtfs : inFeeds) {
+			ArrayList<RoutePath> paths = gtfs.getPaths();
+			built.add(paths);
+			HashSet<Integer> seen = new HashSet<>();
+			for (RoutePath rp : paths) {
+				for (Trip t : rp.getPath()) {
+					if (t.getShapeIndex() < 0 || !seen.add(t.getShapeIndex())) {
+						continue;
+					}
+					Shape s = project(t.getVertices());
+					if (s == null) {
+						continue;
+					}
+					s.mID = shapes.size();
+					s.mRouteID = t.get_route_id();
+					s.mName = rp.getRouteName();
+					s.mColor = rp.getColor();
+					for (int z = 0; z <= MAX_SIMPLIFY_ZOOM; z++) {
+						// one tile unit at this zoom
+						double tolerance = 1.0 / ((double) (1L << z) * EXTENT);
+						s.mKeep[z] = TileGeometry.simplify(s.mX, s.mY,
+								tolerance);
+					}
+					shapes.add(s);
+				}
+			}
+
+			int count = IDDictionary.getDictionary(gtfs.getID(),
+					IDDictionary.STOP_ID).size();
+			for (int i = 0; i < count; i++) {
+				Stop s = gtfs.getStop(i);
+				if (s == null) {
+					continue;
+				}
+				StopPoint p = new StopPoint();
+				p.mID = stops.size();
+				p.mStopID = s.get_stop_id();
+				p.mName = s.get_stop_name();
+				p.mX = TileGeometry.worldX(s.get_stop_lon());
+				p.mY = TileGeometry.worldY(s.get_stop_lat());
+				stops.add(p);
+			}
+		}
+		return new Layers(inFeeds, built, shapes, stops);
+	}
+
+	/**
+	 * Project a vertex list into a Shape
+	 * 
+	 * @param in
+	 *            The vertices
+	 * @return The Shape, or null if it has fewer than two distinct points
+	 */
+	private static Shape project(ArrayList<Vertex> in) {
+		double[] xs = new double[in.size()];
+		double[] ys = new double[in.size()];
+		int n = 0;
+		for (Vertex v : in) {
+			double x = TileGeometry.worldX(v.get_shape_pt_lon());
+			double y = TileGeometry.worldY(v.get_shape_pt_lat());
+			if (n > 0 && x == xs[n - 1] && y == ys[n - 1]) {
+				continue;
+			}
+			xs[n] = x;
+			ys[n] = y;
+			n++;
+		}
+		if (n < 2) {
+			return null;
+		}
+
+		Shape s = new Shape();
+		s.mX = Arrays.copyOf(xs, n);
+		s.mY = Arrays.copyOf(ys, n);
+		s.mMinX = s.mMinY = Double.MAX_VALUE;
+		s.mMaxX = s.mMaxY = -Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			s.mMinX = Math.min(s.mMinX, s.mX[i]);
+			s.mMaxX = Math.max(s.mMaxX, s.mX[i]);
+			s.mMinY = Math.min(s.mMinY, s.mY[i]);
+			s.mMaxY = Math.max(s.mMaxY, s.mY[i]);
+		}
+		return s;
+	}
+
+	/**
+	 * Get the points of a Shape to draw at a zoom level
+	 * 
+	 * @param in
+	 *            The Shape
+	 * @param inZoom
+	 *            Zoom level
+	 * @return Indexes of the points to draw, or null for all of them
+	 */
+	private static int[] simplified(Shape in, int inZoom) {
+		return inZoom > MAX_SIMPLIFY_ZOOM ? null : in.mKeep[inZoom];
+	}
+
+	/**
+	 * Encode the cached layers of a tile
+	 * 
+	 * @param inLayers
+	 *            The layers to draw
+	 * @param z
+	 *            Zoom
+	 * @param x
+	 *            Tile column
+	 * @param y
+	 *            Tile row
+	 * @return The encoded layers
+	 */
+	private static byte[] buildStatic(Layers inLayers, int z, int x, int y) {
+		double scale = (double) (1L << z);
+		double pad = (double) BUFFER / EXTENT / scale;
+		double minX = x / scale - pad, maxX = (x + 1) / scale + pad;
+		double minY = y / scale - pad, maxY = (y + 1) / scale + pad;
+
+		MVTLayer routes = new MVTLayer("routes", EXTENT);
+		int[] line = new int[64];
+		for (Shape s : inLayers.mShapes) {
+			if (s.mMaxX < minX || s.mMinX > maxX || s.mMaxY < minY
+					|| s.mMinY > maxY) {
+				continue;
+			}
+			int[] keep = simplified(s, z);
+			int n = keep == null ? s.mX.length : keep.length;
+			double[] xs = new double[n];
+			double[] ys = new double[n];
+			for (int i = 0; i < n; i++) {
+				int k = keep == null ? i : keep[i];
+				xs[i] = (s.mX[k] * scale - x) * EXTENT;
+				ys[i] = (s.mY[k] * scale - y) * EXTENT;
+			}
+
+			ArrayList<double[]> parts = TileGeometry.clip(xs, ys, -BUFFER,
+					EXTENT + BUFFER);
+			if (parts.isEmpty()) {
+				continue;
+			}
+			routes.startFeature(s.mID, MVTLayer.LINESTRING);
+			routes.tag("route_id", s.mRouteID);
+			routes.tag("name", s.mName);
+			routes.tag("color", s.mColor);
+			for (double[] part : parts) {
+				if (line.length < part.length) {
+					line = new int[part.length];
+				}
+				for (int i = 0; i < part.length; i++) {
+					line[i] = (int) Math.round(part[i]);
+				}
+				routes.line(line, part.length / 2);
+			}
+			routes.endFeature();
+		}
+
+		MVTLayer stops = new MVTLayer("stops", EXTENT);
+		if (z >= STOP_MIN_ZOOM) {
+			for (StopPoint p : inLayers.mStops) {
+				if (p.mX < minX || p.mX > maxX || p.mY < minY || p.mY > maxY) {
+					continue;
+				}
+				stops.startFeature(p.mID, MVTLayer.POINT);
+				stops.tag("stop_id", p.mStopID);
+				stops.tag("name", p.mName);
+				stops.point((int) Math.round((p.mX * scale - x) * EXTENT),
+						(int) Math.round((p.mY * scale - y) * EXTENT));
+				stops.endFeature();
+			}
+		}
+
+		ProtoWriter out = new ProtoWriter(8192);
+		routes.writeTo(out);
+		stops.writeTo(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode the live vehicles layer of a tile
+	 * 
+	 * @param z
+	 *            Zoom
+	 * @param x
+	 *            Tile column
+	 * @param y
+	 *            Tile row
+	 * @return The encoded layer, empty if no vehicle is in the tile
+	 */
+	private static byte[] buildVehicles(int z, int x, int y) {
+		double scale = (double) (1L << z);
+		MVTLayer vehicles = new MVTLayer("vehicles", EXTENT);
+		for (Vehicle v : Vehicle.getVehicles()) {
+			double tx = (TileGeometry.worldX(v.getLon()) * scale - x) * EXTENT;
+			double ty = (TileGeometry.worldY(v.getLat()) * scale - y) * EXTENT;
+			if (tx < 0 || tx >= EXTENT || ty < 0 || ty >= EXTENT) {
+				continue;
+			}
+			vehicles.startFeature(v.getID() & 0xFFFFFFFFL, MVTLayer.POINT);
+			vehicles.tag("id", (long) v.getID());
+			vehicles.tag("desc", v.getDesc());
+			vehicles.tag("color", v.getColor());
+			vehicles.tag("bearing", Math.round(v.getHeading() * 10.0) / 10.0);
+			vehicles.tag("speed_mph", Math.round(v.getSpeedInMPH() * 10.0) / 10.0);
+			vehicles.point((int) tx, (int) ty);
+			vehicles.endFeature();
+		}
+		ProtoWriter out = new ProtoWriter(256);
+		vehicles.writeTo(out);
+		return out.toByteArray();
+	}
+
+	@Override
+	public Snapshot query(String inPath) {
+		String[] parts = inPath.split("/");
+		if (parts.length != 5 || !parts[1].equals("tiles")) {
+			return null;
+		}
+		String file = parts[4];
+		int dot = file.lastIndexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+		String ext = file.substring(dot + 1);
+		if (!ext.equals("mvt") && !ext.equals("pbf")) {
+			return null;
+		}
+		int z, x, y;
+		try {
+			z = Integer.parseInt(parts[2]);
+			x = Integer.parseInt(parts[3]);
+			y = Integer.parseInt(file.substring(0, dot));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z)
+				|| y >= (1 << z)) {
+			return null;
+		}
+
+		Layers layers = mLayers;
+		String key = z + "/" + x + "/" + y;
+		byte[] base;
+		synchronized (layers.mCache) {
+			base = layers.mCache.get(key);
+		}
+		if (base == null) {
+			base = buildStatic(layers, z, x, y);
+			synchronized (layers.mCache) {
+				layers.mCache.put(key, base);
+			}
+		}
+
+		byte[] live = buildVehicles(z, x, y);
+		byte[] body = new byte[base.length + live.length];
+		System.arraycopy(base, 0, body, 0, base.length);
+		System.arraycopy(live, 0, body, base.length, live.length);
+		return new Snapshot(body, MVT);
+	}
+}
@@ -22,15 +22,13 @@ package com.jasonlafrance.wtbbackend.vehicle;
 import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.timeToMinutes;
 import static com.jasonlafrance.wtbbackend.wtb_util.VertexUtil.getLineSegmentIntersect;
 
-import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,15 +36,16 @@ import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
 
 import com.jasonlafrance.wtbbackend.gps_portal.GPSPacket;
+import com.jasonlafrance.wtbbackend.gps_portal.GPSPortal;
+import com.jasonlafrance.wtbbackend.gps_portal.HTTPTransport;
+import com.jasonlafrance.wtbbackend.gps_portal.PacketTransport;
+import com.jasonlafrance.wtbbackend.gps_portal.TimedTransport;
 import com.jasonlafrance.wtbbackend.gtfs.RoutePath;
 import com.jasonlafrance.wtbbackend.gtfs.StopAdapter;
 import com.jasonlafrance.wtbbackend.gtfs.Trip;
 import com.jasonlafrance.wtbbackend.gtfs.Vertex;
-import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
 
 /**
  * Drone class for vehicle tracking testing. Drones mimic vehicles based on
@@ -54,9 +53,13 @@ import com.jasonlafrance.wtbbackend.wtb_util.HexUtil;
  * backend server via the GPS input portal, so as far as the server knows, these
  * are real vehicles.
  * 
+ * A Drone has no thread of its own. A DroneEngine calls step() each time the
+ * Drone is due, and the Drone answers with when it next wants to be stepped,
+ * so holding at a timepoint is just a later due time.
+ * 
  * @author Jason LaFrance
  */
-public final class Drone extends Thread {
+public final class Drone {
 
 	/**
 	 * Wrapper class for pairing vertices with specific sequence ordering
@@ -102,10 +105,12 @@ public final class Drone extends Thread {
 	}
 
 	private final ArrayList<Vertex> mPath = new ArrayList<>();
-	private boolean isActive;
+	// next vertex in mPath to head for
+	private int mNext = 0;
+	private volatile boolean isActive = false;
 	private final int mID;
 
-	private final String serverURL;
+	private final PacketTransport mTransport;
 	private final double mSpeed;
 	private double mDX, mDY;
 	private double mLon, mLat;
@@ -140,29 +145,80 @@ public final class Drone extends Thread {
 	public Drone(int inID, RoutePath inRoute, double startSpeed,
 			double inPushWait, String inServer, String inPassword,
 			boolean randomStart) {
+		this(inID, inRoute, startSpeed, inPushWait,
+				new HTTPTransport(inServer), inPassword, randomStart);
+	}
+
+	/**
+	 * Create a Drone object that beacons over a given transport
+	 * 
+	 * @param inID
+	 *            The Drone's ID for tracking
+	 * @param inRoute
+	 *            The Drone's route
+	 * @param startSpeed
+	 *            The Drone's steady speed
+	 * @param inPushWait
+	 *            The time between GPS beacons
+	 * @param inTransport
+	 *            The transport to send GPS packets on, which may be shared
+	 * @param inPassword
+	 *            The backend server password
+	 * @param randomStart
+	 *            If the Drone should start randomly instead of as scheduled
+	 *            (DEBUGGING)
+	 */
+	public Drone(int inID, RoutePath inRoute, double startSpeed,
+			double inPushWait, PacketTransport inTransport, String inPassword,
+			boolean randomStart) {
+		this(inID, inRoute, startSpeed, inPushWait, inTransport, inPassword,
+				randomStart, timeToMinutes(new SimpleDateFormat("HH:mm:ss")
+						.format(new Date())));
+	}
+
+	/**
+	 * Create a Drone object that beacons over a given transport and starts
+	 * from a given time, such as a DroneEngine's simulated time
+	 * 
+	 * @param inID
+	 *            The Drone's ID for tracking
+	 * @param inRoute
+	 *            The Drone's route
+	 * @param startSpeed
+	 *            The Drone's steady speed
+	 * @param inPushWait
+	 *            The time between GPS beacons
+	 * @param inTransport
+	 *            The transport to send GPS packets on, which may be shared.
+	 *            A TimedTransport gets each packet's simulated time.
+	 * @param inPassword
+	 *            The backend server password
+	 * @param randomStart
+	 *            If the Drone should start randomly instead of as scheduled
+	 *            (DEBUGGING)
+	 * @param inNow
+	 *            The current time in minutes since midnight, used to pick the
+	 *            first stop
+	 */
+	public Drone(int inID, RoutePath inRoute, double startSpeed,
+			double inPushWait, PacketTransport inTransport, String inPassword,
+			boolean randomStart, int inNow) {
 		mID = inID;
 		mPushWait = inPushWait;
-		serverURL = inServer;
+		mTransport = inTransport;
 		mSpeed = Vehicle.mphToMetersPerSec(startSpeed);
 
 		// System.out.println("new drone: " + inID);
 		buildVertexPath(inRoute, randomStart);
 
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA");
-			digest.update(inPassword.getBytes());
-			SecretKeySpec key = new SecretKeySpec(digest.digest(), 0, 16, "AES");
-			cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-			cipher.init(Cipher.ENCRYPT_MODE, key);
-
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException
-				| InvalidKeyException e) {
+		cipher = GPSPortal.createCipher(inPassword, Cipher.ENCRYPT_MODE);
+		if (cipher == null) {
 			System.out
 					.println("Drone: Can't initialize cipher key for some reason!");
 			return;
 		}
 
-		setup();
+		setup(inNow);
 
 		// uncomment this for non-DroneQueue use
 		// this.start();
@@ -177,7 +233,7 @@ public final class Drone extends Thread {
 	 *            A list of Stops wrapped in StopAdapters
 	 */
 	public void addStopsToVertexList(ArrayList<Vertex> vertices,
-			ArrayList<StopAdapter> stops) {
+			List<StopAdapter> stops) {
 		// bail if either vertex or stop lists are empty
 		if (vertices.isEmpty() || stops.isEmpty()) {
 			return;
@@ -339,6 +395,15 @@ public final class Drone extends Thread {
 		addStopsToVertexList(mPath, inRoute.getStops());
 	}
 
+	/**
+	 * Get this Drone's ID
+	 * 
+	 * @return The ID
+	 */
+	public int getID() {
+		return mID;
+	}
+
 	/**
 	 * Get this Drone's start time code
 	 * 
@@ -348,39 +413,47 @@ public final class Drone extends Thread {
 		return mStartTimecode;
 	}
 
-	@Override
-	public void run() {
-		isActive = true;
+	/**
+	 * Get the time between GPS beacons
+	 * 
+	 * @return The beacon interval in milliseconds
+	 */
+	public int getWaitMillis() {
+		return waitMillis;
+	}
 
-		while (isActive) {
-			try {
-				sleep(waitMillis);
-			} catch (InterruptedException ex) {
-				Logger.getLogger(Drone.class.getName()).log(Level.SEVERE, null,
-						ex);
-			}
-			tick();
-		}
+	/**
+	 * Check if this Drone still has somewhere to go
+	 * 
+	 * @return True until the Drone reaches the end of its path or is stopped
+	 */
+	public boolean isActive() {
+		return isActive;
 	}
 
 	/**
 	 * Send a GPS packet to the backend server.
+	 * 
+	 * @param inSimMillis
+	 *            Simulated time, in milliseconds since midnight
 	 */
-	private void sendPacket() {
+	private void sendPacket(long inSimMillis) {
 		GPSPacket gp = new GPSPacket((short) mID, (float) mLat, (float) mLon);
-		String outHex = "";
+		byte[] outPacket = null;
 		try {
-			byte[] outPacket = cipher.doFinal(gp.getBytes());
-			outHex = HexUtil.getHex(outPacket);
+			outPacket = cipher.doFinal(gp.getBytes());
 		} catch (IllegalBlockSizeException | BadPaddingException ex) {
 			// Logger.getLogger(Drone.class.getName()).log(Level.SEVERE, null,
 			// ex);
 		}
-		String response;
-		if (outHex.length() > 0) {
+		if (outPacket != null) {
 			try {
-				response = com.jasonlafrance.wtbbackend.gps_portal.HTTPOutput
-						.HTTPGet(serverURL + "/" + outHex);
+				if (mTransport instanceof TimedTransport) {
+					((TimedTransport) mTransport).send(outPacket,
+							(int) (inSimMillis / 1000 % (24 * 60 * 60)));
+				} else {
+					mTransport.send(outPacket);
+				}
 			} catch (Exception ex) {
 				Logger.getLogger(Drone.class.getName()).log(Level.SEVERE, null,
 						ex);
@@ -390,17 +463,17 @@ public final class Drone extends Thread {
 
 	/**
 	 * Initialize the Drone's state
+	 * 
+	 * @param now
+	 *            The current time in minutes since midnight
 	 */
-	private void setup() {
+	private void setup(int now) {
 		Vertex v = null, target = null;
 
-		int now = timeToMinutes(new SimpleDateFormat("HH:mm:ss")
-				.format(new Date()));
 		boolean lookingForStart = true;
 
-		while (!mPath.isEmpty() && lookingForStart) {
-			v = mPath.get(0);
-			mPath.remove(0);
+		while (mNext < mPath.size() && lookingForStart) {
+			v = mPath.get(mNext++);
 			if (v.isStop()
 					&& v.getStop().getStopTime().getArrivalTimecode() >= now) {
 				mStartTimecode = v.getStop().getStopTime().getArrivalTimecode();
@@ -410,14 +483,12 @@ public final class Drone extends Thread {
 			}
 		}
 
-		if (!mPath.isEmpty()) {
-			target = mPath.get(0);
-			mPath.remove(0);
+		if (mNext < mPath.size()) {
+			target = mPath.get(mNext++);
 		}
 
-		while (v.equals(target) && !mPath.isEmpty()) {
-			target = mPath.get(0);
-			mPath.remove(0);
+		while (v != null && v.equals(target) && mNext < mPath.size()) {
+			target = mPath.get(mNext++);
 		}
 
 		if (v instanceof Vertex && target != null && target instanceof Vertex) {
@@ -428,16 +499,7 @@ public final class Drone extends Thread {
 			updateMotion(mLat, mLon, target);
 
 			waitMillis = (int) (mPushWait * 1000.0);
-		}
-	}
-
-	/**
-	 * Start the Drone in action
-	 */
-	public void startDrone() {
-		if (!isActive) {
-			this.setPriority(Thread.MIN_PRIORITY);
-			this.start();
+			isActive = true;
 		}
 	}
 
@@ -449,41 +511,44 @@ public final class Drone extends Thread {
 	}
 
 	/**
-	 * This method handles what the Drone is doing as the moment
+	 * Move the Drone one beacon interval along its path and beacon
+	 * 
+	 * @param inSimMillis
+	 *            Simulated time, in milliseconds since midnight
+	 * @return When the Drone next wants to be stepped, or -1 once it's done
 	 */
-	private void tick() {
+	long step(long inSimMillis) {
+		if (!isActive) {
+			return -1;
+		}
+
 		mLat = mLat + mDY;
 		mLon = mLon + mDX;
 
-		sendPacket();
+		sendPacket(inSimMillis);
 
 		segTraveledDistance += distPerTick;
 
+		long next = inSimMillis + waitMillis;
 		if (segTraveledDistance >= segDistance) {
 			// start next segment or end
-			if (!mPath.isEmpty()) {
-				Vertex v = mPath.get(0);
-				mPath.remove(0);
-				if (v instanceof Vertex) {
-					updateMotion(mLat, mLon, v);
-				} else {
-					isActive = false;
-				}
+			if (mNext < mPath.size()) {
+				Vertex v = mPath.get(mNext++);
+				updateMotion(mLat, mLon, v);
 				if (v.isStop() && v.getStop().getStopTime() != null) {
-					while (v.getStop().getStopTime().getDepartureTimecode() > timeToMinutes(new SimpleDateFormat(
-							"HH:mm:ss").format(new Date()))) {
-						try {
-							Thread.sleep(60000); // wait 1 minute!
-						} catch (InterruptedException ex) {
-							Logger.getLogger(Drone.class.getName()).log(
-									Level.SEVERE, null, ex);
-						}
+					// hold at the stop until its departure minute
+					long departure = v.getStop().getStopTime()
+							.getDepartureTimecode() * 60000L;
+					if (departure > inSimMillis) {
+						next = departure + waitMillis;
 					}
 				}
 			} else {
 				isActive = false;
+				return -1;
 			}
 		}
+		return next;
 	}
 
 	/**
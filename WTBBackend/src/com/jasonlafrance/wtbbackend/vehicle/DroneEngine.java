@@ -0,0 +1,412 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.vehicle;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discrete-event engine that drives every Drone from one priority queue of
+ * due times. A single dispatcher thread pops whatever is due and steps it,
+ * handing large batches to a small worker pool, then queues each Drone again
+ * at the time it asks for. No Drone ever sleeps, so a whole feed's worth of
+ * vehicles costs a few threads instead of one each.
+ * 
+ * Simulated time is kept in milliseconds since midnight. With a time scale of
+ * 1 it follows the wall clock, a scale of 10 runs ten times faster, and a
+ * scale of 0 or less skips straight from one due time to the next. Skipping
+ * never goes past the horizon, which a DroneQueue sets to its next start
+ * time so that no Drone starts late.
+ * 
+ * @author Jason LaFrance
+ */
+public final class DroneEngine {
+
+	// batches smaller than this are stepped on the dispatcher itself
+	private static final int MIN_PARALLEL_BATCH = 64;
+
+	/**
+	 * A Drone waiting for its next step
+	 */
+	private static final class Event implements Comparable<Event> {
+		private final long mDue;
+		private final long mSeq;
+		private final Drone mDrone;
+		private long mNext;
+
+		private Event(long inDue, long inSeq, Drone inDrone) {
+			mDue = inDue;
+			mSeq = inSeq;
+			mDrone = inDrone;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			if (mDue != o.mDue) {
+				return mDue < o.mDue ? -1 : 1;
+			}
+			return mSeq < o.mSeq ? -1 : (mSeq == o.mSeq ? 0 : 1);
+		}
+	}
+
+	private final PriorityQueue<Event> mQueue = new PriorityQueue<>();
+	private final ExecutorService mWorkers;
+	private final int mThreads;
+	private final double mScale;
+	private final long mSimStart;
+	private final long mRealStart;
+
+	// dispatcher state, guarded by this
+	private long mSeq = 0;
+	private long mVirtualNow;
+	private long mHorizon = Long.MAX_VALUE;
+	private Thread mDispatcher = null;
+	private boolean mRunning = true;
+
+	private final AtomicInteger mActive = new AtomicInteger();
+	private final AtomicInteger mFinished = new AtomicInteger();
+	private final AtomicLong mSteps = new AtomicLong();
+	private volatile long mLag = 0, mMaxLag = 0;
+
+	/**
+	 * Create a DroneEngine starting at the current time of day
+	 * 
+	 * @param inThreads
+	 *            Worker threads for stepping large batches, or 0 or less for
+	 *            one per processor
+	 * @param inScale
+	 *            Simulated milliseconds per real millisecond, or 0 or less to
+	 *            run as fast as possible
+	 */
+	public DroneEngine(int inThreads, double inScale) {
+		this(inThreads, inScale, millisSinceMidnight());
+	}
+
+	/**
+	 * Create a DroneEngine
+	 * 
+	 * @param inThreads
+	 *            Worker threads for stepping large batches, or 0 or less for
+	 *            one per processor
+	 * @param inScale
+	 *            Simulated milliseconds per real millisecond, or 0 or less to
+	 *            run as fast as possible
+	 * @param inStartMillis
+	 *            Simulated start time in milliseconds since midnight
+	 */
+	public DroneEngine(int inThreads, double inScale, long inStartMillis) {
+		mThreads = inThreads > 0 ? inThreads : Runtime.getRuntime()
+				.availableProcessors();
+		mScale = inScale;
+		mSimStart = inStartMillis;
+		mVirtualNow = inStartMillis;
+		mRealStart = System.nanoTime();
+
+		final AtomicInteger count = new AtomicInteger();
+		mWorkers = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DroneWorker-"
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Get the current time of day in milliseconds since midnight
+	 * 
+	 * @return Milliseconds since midnight
+	 */
+	private static long millisSinceMidnight() {
+		Calendar c = Calendar.getInstance();
+		return ((c.get(Calendar.HOUR_OF_DAY) * 60L + c.get(Calendar.MINUTE)) * 60L + c
+				.get(Calendar.SECOND)) * 1000L + c.get(Calendar.MILLISECOND);
+	}
+
+	/**
+	 * Start driving a Drone. Its first step is one beacon interval from now.
+	 * 
+	 * @param inDrone
+	 *            The Drone
+	 */
+	public synchronized void add(Drone inDrone) {
+		if (!mRunning) {
+			return;
+		}
+		if (!inDrone.isActive()) {
+			// nowhere to go
+			mFinished.incrementAndGet();
+			return;
+		}
+		mActive.incrementAndGet();
+		mQueue.add(new Event(getSimMillis() + inDrone.getWaitMillis(),
+				mSeq++, inDrone));
+		if (mDispatcher == null) {
+			mDispatcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			}, "DroneEngine");
+			mDispatcher.setDaemon(true);
+			mDispatcher.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Set how far simulated time may skip ahead when running as fast as
+	 * possible. With nothing due before it, the clock jumps straight to it.
+	 * 
+	 * @param inMillis
+	 *            Horizon in milliseconds since midnight, or Long.MAX_VALUE for
+	 *            none
+	 */
+	public synchronized void setHorizon(long inMillis) {
+		mHorizon = inMillis;
+		if (mScale <= 0.0 && mHorizon != Long.MAX_VALUE) {
+			Event head = mQueue.peek();
+			if (head == null || head.mDue > mHorizon) {
+				mVirtualNow = Math.max(mVirtualNow, mHorizon);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Stop the engine. Drones that are still running are dropped.
+	 */
+	public void stop() {
+		synchronized (this) {
+			mRunning = false;
+			mQueue.clear();
+			mActive.set(0);
+			notifyAll();
+		}
+		mWorkers.shutdownNow();
+	}
+
+	/**
+	 * Get the simulated time
+	 * 
+	 * @return Simulated milliseconds since midnight
+	 */
+	public synchronized long getSimMillis() {
+		if (mScale <= 0.0) {
+			return mVirtualNow;
+		}
+		return mSimStart
+				+ (long) ((System.nanoTime() - mRealStart) / 1000000.0 * mScale);
+	}
+
+	/**
+	 * Get the simulated time as a time code, in minutes since midnight
+	 * 
+	 * @return The simulated time code
+	 */
+	public int getTimecode() {
+		return (int) (getSimMillis() / 60000L);
+	}
+
+	/**
+	 * Get the number of Drones still being driven
+	 * 
+	 * @return The active Drone count
+	 */
+	public int getActiveCount() {
+		return mActive.get();
+	}
+
+	/**
+	 * Get the number of Drones that have reached the end of their paths
+	 * 
+	 * @return The finished Drone count
+	 */
+	public int getFinishedCount() {
+		return mFinished.get();
+	}
+
+	/**
+	 * Get the number of Drone steps taken so far
+	 * 
+	 * @return The step count
+	 */
+	public long getStepCount() {
+		return mSteps.get();
+	}
+
+	/**
+	 * Get how far behind simulated time the last batch was started
+	 * 
+	 * @return Lag in simulated milliseconds
+	 */
+	public long getLag() {
+		return mLag;
+	}
+
+	/**
+	 * Get the worst lag seen so far
+	 * 
+	 * @return Lag in simulated milliseconds
+	 */
+	public long getMaxLag() {
+		return mMaxLag;
+	}
+
+	/**
+	 * Dispatcher loop: wait for the head of the queue to come due, step
+	 * everything that is due and queue it again.
+	 */
+	private void dispatch() {
+		ArrayList<Event> batch = new ArrayList<>();
+		while (true) {
+			batch.clear();
+			synchronized (this) {
+				if (!mRunning) {
+					return;
+				}
+				Event head = mQueue.peek();
+				if (head == null) {
+					waitQuietly(0);
+					continue;
+				}
+				if (mScale <= 0.0) {
+					if (head.mDue > mHorizon) {
+						mVirtualNow = Math.max(mVirtualNow, mHorizon);
+						waitQuietly(0);
+						continue;
+					}
+					mVirtualNow = Math.max(mVirtualNow, head.mDue);
+				} else {
+					long ahead = head.mDue - getSimMillis();
+					if (ahead > 0) {
+						waitQuietly(Math.max(1, (long) Math.ceil(ahead / mScale)));
+						continue;
+					}
+				}
+				long now = getSimMillis();
+				mLag = now - head.mDue;
+				mMaxLag = Math.max(mMaxLag, mLag);
+				while (!mQueue.isEmpty() && mQueue.peek().mDue <= now) {
+					batch.add(mQueue.poll());
+				}
+			}
+
+			stepAll(batch);
+
+			synchronized (this) {
+				if (!mRunning) {
+					return;
+				}
+				for (Event e : batch) {
+					if (e.mNext < 0) {
+						mActive.decrementAndGet();
+						mFinished.incrementAndGet();
+					} else {
+						mQueue.add(new Event(e.mNext, mSeq++, e.mDrone));
+					}
+				}
+			}
+			mSteps.addAndGet(batch.size());
+		}
+	}
+
+	/**
+	 * Step a batch of Drones, across the workers if it's big enough
+	 * 
+	 * @param inBatch
+	 *            The due events
+	 */
+	private void stepAll(final List<Event> inBatch) {
+		if (inBatch.size() < MIN_PARALLEL_BATCH || mThreads == 1) {
+			step(inBatch);
+			return;
+		}
+
+		int chunk = (inBatch.size() + mThreads - 1) / mThreads;
+		ArrayList<Callable<Void>> work = new ArrayList<>();
+		for (int i = 0; i < inBatch.size(); i += chunk) {
+			final List<Event> part = inBatch.subList(i,
+					Math.min(inBatch.size(), i + chunk));
+			work.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					step(part);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> f : mWorkers.invokeAll(work)) {
+				f.get();
+			}
+		} catch (InterruptedException | ExecutionException ex) {
+			Logger.getLogger(DroneEngine.class.getName()).log(Level.SEVERE,
+					null, ex);
+		}
+	}
+
+	/**
+	 * Step each Drone in a list at its due time
+	 * 
+	 * @param inEvents
+	 *            The events to run
+	 */
+	private static void step(List<Event> inEvents) {
+		for (Event e : inEvents) {
+			try {
+				e.mNext = e.mDrone.step(e.mDue);
+			} catch (RuntimeException ex) {
+				Logger.getLogger(DroneEngine.class.getName()).log(
+						Level.SEVERE, null, ex);
+				e.mNext = -1;
+			}
+		}
+	}
+
+	/**
+	 * Wait on this engine's monitor, stopping the dispatcher if interrupted
+	 * 
+	 * @param inMillis
+	 *            Longest wait, or 0 to wait until notified
+	 */
+	private void waitQuietly(long inMillis) {
+		try {
+			wait(inMillis);
+		} catch (InterruptedException ex) {
+			mRunning = false;
+		}
+	}
+}
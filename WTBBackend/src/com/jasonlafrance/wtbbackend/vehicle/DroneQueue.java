@@ -19,30 +19,40 @@ This file is part of WTBBackend.
 
 package com.jasonlafrance.wtbbackend.vehicle;
 
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 /**
- * This class manages a queue of Drones. Drones are started as their start times
- * are passed
+ * This class manages a queue of Drones. Waiting Drones are kept in start time
+ * order and handed to a DroneEngine as their start times are passed, so each
+ * release is O(log n) and a check only looks at the Drones that are due.
  * 
  * @author Jason LaFrance
  */
 public class DroneQueue {
 
-	private final LinkedList<Drone> runningDrones;
-	private final LinkedList<Drone> waitingDrones;
+	private final PriorityQueue<Drone> waitingDrones = new PriorityQueue<>(11,
+			new Comparator<Drone>() {
+				@Override
+				public int compare(Drone a, Drone b) {
+					if (a.getStartTimcode() != b.getStartTimcode()) {
+						return a.getStartTimcode() < b.getStartTimcode() ? -1
+								: 1;
+					}
+					return Integer.compare(a.getID(), b.getID());
+				}
+			});
+	private final DroneEngine mEngine;
+	private int mReleased = 0;
 
-	// should be a priority queue, but I don't care enough for testing
 	/**
 	 * Create a DroneQueue object
 	 * 
-	 * @param inDrones
-	 *            List of Drones to add to the queue
+	 * @param inEngine
+	 *            Engine to run the Drones on once they start
 	 */
-	public DroneQueue(LinkedList<Drone> inDrones) {
-		runningDrones = inDrones;
-		waitingDrones = new LinkedList<>();
+	public DroneQueue(DroneEngine inEngine) {
+		mEngine = inEngine;
 	}
 
 	/**
@@ -56,30 +66,73 @@ public class DroneQueue {
 	}
 
 	/**
-	 * Check if it's time to start any Drones based in a given time code
+	 * Start every Drone whose start time has passed a given time code
 	 * 
 	 * @param inTimecode
 	 *            The time code to check against
 	 */
 	public synchronized void check(int inTimecode) {
-		ListIterator li = waitingDrones.listIterator();
-
-		while (li.hasNext()) {
-			Drone d = (Drone) li.next();
-			if (d.getStartTimcode() <= inTimecode) {
-				runningDrones.add(d);
-				li.remove();
-				d.startDrone();
-			}
+		while (!waitingDrones.isEmpty()
+				&& waitingDrones.peek().getStartTimcode() <= inTimecode) {
+			mEngine.add(waitingDrones.poll());
+			mReleased++;
 		}
+		// don't let a fast engine skip past the next start
+		mEngine.setHorizon(waitingDrones.isEmpty() ? Long.MAX_VALUE
+				: waitingDrones.peek().getStartTimcode() * 60000L);
+	}
+
+	/**
+	 * Get the number of Drones still waiting for their start times
+	 * 
+	 * @return The waiting Drone count
+	 */
+	public synchronized int getWaitingCount() {
+		return waitingDrones.size();
+	}
+
+	/**
+	 * Get the number of Drones started so far
+	 * 
+	 * @return The started Drone count
+	 */
+	public synchronized int getStartedCount() {
+		return mReleased;
+	}
+
+	/**
+	 * Get the number of started Drones still running
+	 * 
+	 * @return The running Drone count
+	 */
+	public int getRunningCount() {
+		return mEngine.getActiveCount();
+	}
+
+	/**
+	 * Get the number of Drones that have finished their paths
+	 * 
+	 * @return The finished Drone count
+	 */
+	public int getFinishedCount() {
+		return mEngine.getFinishedCount();
 	}
 
 	/**
 	 * Check if the queue is empty
 	 * 
-	 * @return True if the queue is empty
+	 * @return True if no Drones are waiting to start
 	 */
-	public boolean isEmpty() {
+	public synchronized boolean isEmpty() {
 		return waitingDrones.isEmpty();
 	}
+
+	/**
+	 * Check if every Drone has been started and has finished
+	 * 
+	 * @return True once no Drones are waiting or running
+	 */
+	public synchronized boolean isFinished() {
+		return waitingDrones.isEmpty() && mEngine.getActiveCount() == 0;
+	}
 }
@@ -20,21 +20,23 @@ This file is part of WTBBackend.
 package com.jasonlafrance.wtbbackend.vehicle;
 
 import static com.jasonlafrance.wtbbackend.wtb_util.GPSCalc.getBearing;
-import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.timeToSeconds;
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.secondsOfDay;
 
-import java.text.SimpleDateFormat;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.jasonlafrance.wtbbackend.config.Config;
 import com.jasonlafrance.wtbbackend.gtfs.GTFS;
 import com.jasonlafrance.wtbbackend.gtfs.Route;
-import com.jasonlafrance.wtbbackend.gtfs.StackedStopList;
 import com.jasonlafrance.wtbbackend.gtfs.StopAdapter;
 import com.jasonlafrance.wtbbackend.gtfs.Vertex;
 
@@ -49,22 +51,45 @@ public class Vehicle implements Comparable<Vehicle> {
 			.getIntOption(Config.COORD_BUFFER_SIZE);
 	private static final double MILES_PER_METER = 0.000621371;
 	private static final double MPH_TO_MPS = 0.44704;
+	private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+	// the object and its entry in the Vehicle map
+	private static final int VEHICLE_BYTES = 96 + 48;
+	// a HashSet entry: its map node and table slot
+	private static final int ROUTE_ENTRY_BYTES = 40;
 
-	private static HashMap<Integer, Vehicle> mVehicles = new HashMap<>();
-	private static final SimpleDateFormat dateFormatter = new SimpleDateFormat(
-			"HH:mm:ss");
+	// updated from every ingest thread or pipeline shard at once
+	private static final ConcurrentHashMap<Integer, Vehicle> mVehicles = new ConcurrentHashMap<>();
+	private static final CopyOnWriteArrayList<VehicleListener> sListeners = new CopyOnWriteArrayList<>();
 
 	/**
-	 * Clear out any Vehicles that have timed out
+	 * Add a listener for Vehicle position updates
+	 * 
+	 * @param in
+	 *            The listener
+	 */
+	public static void addListener(VehicleListener in) {
+		sListeners.addIfAbsent(in);
+	}
+
+	/**
+	 * Clear out any Vehicles that have timed out. Time codes are seconds of
+	 * the day, so one from late yesterday counts from before midnight rather
+	 * than from the future, or a Vehicle last seen then, such as one restored
+	 * from a checkpoint, would never time out. Time codes up to half a day
+	 * ahead, from a simulation running fast, count as current.
 	 * 
 	 * @param timeout
 	 *            Time out value to check against
 	 */
 	public static synchronized void cleanUp(int timeout) {
-		int now = timeToSeconds(dateFormatter.format(new Date()));
+		int now = secondsOfDay(System.currentTimeMillis());
 		LinkedList<Integer> removeList = new LinkedList<>();
 		for (Vehicle v : mVehicles.values()) {
-			if (now - v.getLatestTimecode() > timeout) {
+			int age = now - v.getLatestTimecode();
+			if (age <= -SECONDS_PER_DAY / 2) {
+				age += SECONDS_PER_DAY;
+			}
+			if (age > timeout) {
 				removeList.add(v.getID());
 			}
 		}
@@ -73,6 +98,39 @@ public class Vehicle implements Comparable<Vehicle> {
 		}
 	}
 
+	/**
+	 * Get the size of every Vehicle's position and stop history
+	 * 
+	 * @return Number of entries kept
+	 */
+	static int getCoordBufferSize() {
+		return COORD_BUFFER_SIZE;
+	}
+
+	/**
+	 * Estimate the heap held by every Vehicle
+	 * 
+	 * @return Estimated bytes
+	 */
+	public static long estimateBytes() {
+		long ret = 0;
+		for (Vehicle v : mVehicles.values()) {
+			ret += v.estimateSize();
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the number of current Vehicles
+	 * 
+	 * @return Number of Vehicles
+	 */
+	public static int getVehicleCount() {
+		synchronized (mVehicles) {
+			return mVehicles.size();
+		}
+	}
+
 	/**
 	 * Get a list of current Vehicles
 	 * 
@@ -86,6 +144,22 @@ public class Vehicle implements Comparable<Vehicle> {
 		return copy;
 	}
 
+	/**
+	 * Move every Vehicle's probable routes and stop history from one version
+	 * of a feed onto its replacement. Routes and visits that no longer exist
+	 * are dropped.
+	 * 
+	 * @param inOld
+	 *            The feed being replaced
+	 * @param inNew
+	 *            Its replacement
+	 */
+	public static void rebind(GTFS inOld, GTFS inNew) {
+		for (Vehicle v : getVehicles()) {
+			v.rebindTo(inOld, inNew);
+		}
+	}
+
 	/**
 	 * Convert miles per hour to meters per second
 	 * 
@@ -97,6 +171,16 @@ public class Vehicle implements Comparable<Vehicle> {
 		return in * MPH_TO_MPS;
 	}
 
+	/**
+	 * Remove a listener for Vehicle position updates
+	 * 
+	 * @param in
+	 *            The listener
+	 */
+	public static void removeListener(VehicleListener in) {
+		sListeners.remove(in);
+	}
+
 	/**
 	 * Remove a Vehicle from the multition
 	 * 
@@ -122,17 +206,39 @@ public class Vehicle implements Comparable<Vehicle> {
 	 *            The Vehicle's longitude
 	 */
 	public static void updateVehicle(short id, float lat, float lon) {
+		updateVehicle(id, lat, lon, secondsOfDay(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Update a Vehicle as of a given time and creates a new one if it doesn't
+	 * already exist. The time code drives the Vehicle's history, speed and
+	 * heading, so replays and simulations can use their own clock. Stop
+	 * matching still uses GTFS.getStopIndex(), whose window follows the wall
+	 * clock, so the time code should be close to the current time of day for
+	 * the matches to make sense.
+	 * 
+	 * @param id
+	 *            The ID of the Vehicles
+	 * @param lat
+	 *            The Vehicle's latitude
+	 * @param lon
+	 *            The Vehicle's longitude
+	 * @param inTimeCode
+	 *            Time of the position in seconds since midnight
+	 */
+	public static void updateVehicle(short id, float lat, float lon,
+			int inTimeCode) {
 		// lazy initialize vehicles
 		Vehicle v = mVehicles.get((int) id);
 
 		if (v == null) {
-			synchronized (mVehicles) {
-				v = new Vehicle(id, 0, "");
-				mVehicles.put((int) id, v);
+			v = new Vehicle(id, 0, "");
+			Vehicle raced = mVehicles.putIfAbsent((int) id, v);
+			if (raced != null) {
+				v = raced;
 			}
 		}
-		v.updatePosition(lat, lon,
-				timeToSeconds(dateFormatter.format(new Date())));
+		v.updatePosition(lat, lon, inTimeCode);
 	}
 
 	private final HashSet<Route> mProbableRoutes = new HashSet<>();
@@ -191,31 +297,26 @@ public class Vehicle implements Comparable<Vehicle> {
 		this.reset();
 	}
 
+	/**
+	 * Estimate the heap held by this Vehicle. Its stop history only refers to
+	 * lists the StopIndex owns, so just the references count.
+	 * 
+	 * @return Estimated bytes
+	 */
+	private synchronized long estimateSize() {
+		return VEHICLE_BYTES + 3 * 16 + COORD_BUFFER_SIZE * (8L + 8 + 4) + 40
+				+ 4L * mStopHistory.size() + 2 * 64
+				+ ROUTE_ENTRY_BYTES
+				* (mProbableRoutes.size() + mRejectedRoutes.size());
+	}
+
 	/**
 	 * Find current Stops closest to this Vehicle
 	 * 
 	 * @return A list of Stops wrapped in StopAdapters
 	 */
 	private LinkedList<StopAdapter> calcClosestStops() {
-		Vertex closest = null;
-		StackedStopList ssl = GTFS.getMasterStackedStopList();
-
-		double shortestDist = Double.MAX_VALUE;
-		ArrayList<Vertex> list = ssl.getStopVertices();
-		for (int i = 0; i < list.size(); i++) {
-			if (closest == null) {
-				closest = list.get(i);
-				shortestDist = rawDist(list.get(i));
-			} else {
-				double dist = rawDist(list.get(i));
-				if (dist < shortestDist) {
-					closest = list.get(i);
-					shortestDist = dist;
-				}
-			}
-		}
-
-		return ssl.getStopsForVertex(closest);
+		return GTFS.getStopIndex().closest(getLat(), getLon());
 	}
 
 	/**
@@ -333,7 +434,7 @@ public class Vehicle implements Comparable<Vehicle> {
 		for (int i = 0; i < list.size() - 1; i++) {
 			StopAdapter checkStop = list.get(i).getNextStop();
 			for (int j = i + 1; j < list.size(); j++) {
-				if (list.get(j) == checkStop) {
+				if (list.get(j).equals(checkStop)) {
 					probableCheck.add(checkStop.getRoute());
 					list.remove(j);
 					break;
@@ -375,6 +476,15 @@ public class Vehicle implements Comparable<Vehicle> {
 		return mColor;
 	}
 
+	/**
+	 * Get this Vehicle's description
+	 * 
+	 * @return The description
+	 */
+	public String getDesc() {
+		return mDesc;
+	}
+
 	/**
 	 * Get this Vehicle's heading
 	 * 
@@ -420,6 +530,49 @@ public class Vehicle implements Comparable<Vehicle> {
 		return mLon[mCoordIndex];
 	}
 
+	/**
+	 * Get the stop visit this Vehicle is most likely at, preferring visits on
+	 * its probable routes. When several trips of a probable route visit the
+	 * stop, the one scheduled closest to the Vehicle's latest time wins.
+	 * 
+	 * @return A Stop wrapped in a StopAdapter, or null if unknown
+	 */
+	public synchronized StopAdapter getMatchedStop() {
+		if (mStopHistoryIndex < 0) {
+			return null;
+		}
+		LinkedList<StopAdapter> closest = mStopHistory.get(mStopHistoryIndex);
+		if (closest == null || closest.isEmpty()) {
+			return null;
+		}
+		StopAdapter ret = null;
+		long best = Long.MAX_VALUE;
+		int now = getLatestTimecode();
+		for (StopAdapter s : closest) {
+			if (!mProbableRoutes.contains(s.getRoute())) {
+				continue;
+			}
+			// arrival time codes are in minutes; untimed visits rank last
+			int arrival = s.getArrivalTimecode();
+			long off = arrival < 0 ? Long.MAX_VALUE - 1 : Math.abs(arrival
+					* 60L - now);
+			if (off < best) {
+				best = off;
+				ret = s;
+			}
+		}
+		return ret != null ? ret : closest.getFirst();
+	}
+
+	/**
+	 * Get a copy of the Routes this Vehicle is probably on
+	 * 
+	 * @return A list of Routes
+	 */
+	public synchronized ArrayList<Route> getProbableRoutes() {
+		return new ArrayList<>(mProbableRoutes);
+	}
+
 	/**
 	 * Get the speed in miles per hour
 	 * 
@@ -474,6 +627,239 @@ public class Vehicle implements Comparable<Vehicle> {
 		return dist;
 	}
 
+	/**
+	 * Rebind a set of Routes from one feed version to another
+	 * 
+	 * @param inRoutes
+	 *            The Routes to rebind in place
+	 * @param inOld
+	 *            The feed being replaced
+	 * @param inNew
+	 *            Its replacement
+	 */
+	private static void rebindRoutes(HashSet<Route> inRoutes, GTFS inOld,
+			GTFS inNew) {
+		ArrayList<Route> moved = new ArrayList<>();
+		Iterator<Route> i = inRoutes.iterator();
+		while (i.hasNext()) {
+			Route r = i.next();
+			if (r.getGTFS_ID() == inOld.getID()) {
+				i.remove();
+				Route n = inNew.findRoute(r);
+				if (n != null) {
+					moved.add(n);
+				}
+			}
+		}
+		inRoutes.addAll(moved);
+	}
+
+	/**
+	 * Write this Vehicle's state to a checkpoint. Routes are written as feed
+	 * directory and route_id, stop visits as feed directory, trip_id and
+	 * stop_sequence, so they can be found again in a freshly loaded feed.
+	 * 
+	 * @param out
+	 *            The checkpoint stream
+	 * @param inStrings
+	 *            String table for feed directories and IDs
+	 * @throws IOException
+	 *             If the stream can't be written
+	 */
+	synchronized void checkpoint(DataOutputStream out,
+			VehicleCheckpoint.Strings inStrings) throws IOException {
+		out.writeInt(mID);
+		out.writeInt(mAgencyID);
+		out.writeUTF(mDesc);
+		out.writeUTF(mColor);
+		out.writeBoolean(isActive);
+		out.writeDouble(mHeading);
+		out.writeDouble(mSpeed);
+		out.writeDouble(mSpeedMPH);
+
+		// positions come in as floats, so nothing is lost here
+		out.writeInt(mCoordIndex);
+		for (int i = 0; i < COORD_BUFFER_SIZE; i++) {
+			out.writeFloat((float) mLat[i]);
+			out.writeFloat((float) mLon[i]);
+			out.writeInt(mTimeCode[i]);
+		}
+
+		synchronized (mStopHistory) {
+			out.writeInt(mStopHistoryIndex);
+			for (int h = 0; h < COORD_BUFFER_SIZE; h++) {
+				LinkedList<StopAdapter> stops = mStopHistory.get(h);
+				ArrayList<StopAdapter> kept = new ArrayList<>();
+				if (stops != null) {
+					for (StopAdapter sa : stops) {
+						if (GTFS.getGTFS(sa.getTable().getGTFS_ID()) != null) {
+							kept.add(sa);
+						}
+					}
+				}
+				out.writeInt(kept.size());
+				for (StopAdapter sa : kept) {
+					out.writeInt(inStrings.indexOf(GTFS.getGTFS(
+							sa.getTable().getGTFS_ID()).getDir()));
+					out.writeInt(inStrings.indexOf(sa.getTable().getTripID(
+							sa.getRow())));
+					out.writeInt(sa.getTable().getStopSequence(sa.getRow()));
+				}
+			}
+		}
+
+		checkpointRoutes(out, mProbableRoutes, inStrings);
+		checkpointRoutes(out, mRejectedRoutes, inStrings);
+	}
+
+	/**
+	 * Write a set of Routes to a checkpoint
+	 * 
+	 * @param out
+	 *            The checkpoint stream
+	 * @param inRoutes
+	 *            The Routes
+	 * @param inStrings
+	 *            String table for feed directories and IDs
+	 * @throws IOException
+	 *             If the stream can't be written
+	 */
+	private static void checkpointRoutes(DataOutputStream out,
+			HashSet<Route> inRoutes, VehicleCheckpoint.Strings inStrings)
+			throws IOException {
+		ArrayList<Route> kept = new ArrayList<>();
+		for (Route r : inRoutes) {
+			if (GTFS.getGTFS(r.getGTFS_ID()) != null) {
+				kept.add(r);
+			}
+		}
+		out.writeInt(kept.size());
+		for (Route r : kept) {
+			out.writeInt(inStrings.indexOf(GTFS.getGTFS(r.getGTFS_ID())
+					.getDir()));
+			out.writeInt(inStrings.indexOf(r.get_route_id()));
+		}
+	}
+
+	/**
+	 * Read a Vehicle back from a checkpoint and add it to the multition,
+	 * binding its routes and stop visits to the given feeds. Anything whose
+	 * feed isn't loaded or no longer has it is dropped.
+	 * 
+	 * @param in
+	 *            The checkpoint stream
+	 * @param inStrings
+	 *            The checkpoint's string table
+	 * @param inFeeds
+	 *            Loaded feeds by directory
+	 * @return The restored Vehicle
+	 * @throws IOException
+	 *             If the stream can't be read
+	 */
+	static Vehicle restore(DataInputStream in, String[] inStrings,
+			HashMap<String, GTFS> inFeeds) throws IOException {
+		Vehicle v = new Vehicle(in.readInt(), in.readInt(), in.readUTF());
+		v.mColor = in.readUTF();
+		v.isActive = in.readBoolean();
+		v.mHeading = in.readDouble();
+		v.mSpeed = in.readDouble();
+		v.mSpeedMPH = in.readDouble();
+
+		v.mCoordIndex = in.readInt();
+		for (int i = 0; i < COORD_BUFFER_SIZE; i++) {
+			v.mLat[i] = in.readFloat();
+			v.mLon[i] = in.readFloat();
+			v.mTimeCode[i] = in.readInt();
+		}
+
+		v.mStopHistoryIndex = in.readInt();
+		for (int h = 0; h < COORD_BUFFER_SIZE; h++) {
+			int count = in.readInt();
+			LinkedList<StopAdapter> stops = new LinkedList<>();
+			for (int s = 0; s < count; s++) {
+				GTFS feed = inFeeds.get(inStrings[in.readInt()]);
+				String tripID = inStrings[in.readInt()];
+				int sequence = in.readInt();
+				StopAdapter sa = feed == null ? null : feed.findVisit(tripID,
+						sequence);
+				if (sa != null) {
+					stops.add(sa);
+				}
+			}
+			v.mStopHistory.set(h, stops.isEmpty() ? null : stops);
+		}
+
+		restoreRoutes(in, v.mProbableRoutes, inStrings, inFeeds);
+		restoreRoutes(in, v.mRejectedRoutes, inStrings, inFeeds);
+
+		synchronized (mVehicles) {
+			mVehicles.put(v.mID, v);
+		}
+		return v;
+	}
+
+	/**
+	 * Read a set of Routes from a checkpoint
+	 * 
+	 * @param in
+	 *            The checkpoint stream
+	 * @param inRoutes
+	 *            Set to add the Routes to
+	 * @param inStrings
+	 *            The checkpoint's string table
+	 * @param inFeeds
+	 *            Loaded feeds by directory
+	 * @throws IOException
+	 *             If the stream can't be read
+	 */
+	private static void restoreRoutes(DataInputStream in,
+			HashSet<Route> inRoutes, String[] inStrings,
+			HashMap<String, GTFS> inFeeds) throws IOException {
+		int count = in.readInt();
+		for (int r = 0; r < count; r++) {
+			GTFS feed = inFeeds.get(inStrings[in.readInt()]);
+			String routeID = inStrings[in.readInt()];
+			Route route = feed == null ? null : feed.findRoute(routeID);
+			if (route != null) {
+				inRoutes.add(route);
+			}
+		}
+	}
+
+	/**
+	 * Move this Vehicle's references into a feed's replacement
+	 * 
+	 * @param inOld
+	 *            The feed being replaced
+	 * @param inNew
+	 *            Its replacement
+	 */
+	private synchronized void rebindTo(GTFS inOld, GTFS inNew) {
+		rebindRoutes(mProbableRoutes, inOld, inNew);
+		rebindRoutes(mRejectedRoutes, inOld, inNew);
+
+		synchronized (mStopHistory) {
+			for (int h = 0; h < mStopHistory.size(); h++) {
+				LinkedList<StopAdapter> stops = mStopHistory.get(h);
+				if (stops == null) {
+					continue;
+				}
+				LinkedList<StopAdapter> moved = new LinkedList<>();
+				for (StopAdapter sa : stops) {
+					if (sa.getTable().getGTFS_ID() != inOld.getID()) {
+						moved.add(sa);
+					} else {
+						StopAdapter n = inNew.findVisit(sa);
+						if (n != null) {
+							moved.add(n);
+						}
+					}
+				}
+				mStopHistory.set(h, moved.isEmpty() ? null : moved);
+			}
+		}
+	}
+
 	/**
 	 * Reset this Vehicle's state
 	 */
@@ -599,6 +985,10 @@ public class Vehicle implements Comparable<Vehicle> {
 		calcSpeed();
 		updateStopHistory();
 
+		for (VehicleListener l : sListeners) {
+			l.vehicleUpdated(this);
+		}
+
 		// System.out.println("[" + inTimeCode + "] Bus " + mID + ":\tHeading: "
 		// + mHeading + "\tSpeed: " + mSpeedMPH + " MpH");
 	}
@@ -607,7 +997,6 @@ public class Vehicle implements Comparable<Vehicle> {
 	 * Update the Stop history
 	 */
 	private void updateStopHistory() {
-		ArrayList<StopAdapter> stops = GTFS.getCurrentStopWindow();
 		LinkedList<StopAdapter> closest = calcClosestStops();
 		if (closest != null) {
 			if (mStopHistoryIndex == -1) {
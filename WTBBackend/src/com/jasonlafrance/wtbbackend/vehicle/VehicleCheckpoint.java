@@ -0,0 +1,205 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.vehicle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.jasonlafrance.wtbbackend.gtfs.GTFS;
+
+/**
+ * Saves every tracked Vehicle to a compact file and loads them back, so a
+ * restart picks up where the last run left off instead of spending minutes
+ * of packets relearning each vehicle's routes.
+ * 
+ * Routes and stop visits are saved by feed directory and GTFS IDs rather
+ * than by object, and are bound to whatever version of each feed is loaded
+ * when the checkpoint is restored. Each distinct string is written once in
+ * a table up front, and the whole file is gzipped. Saves go to a temporary
+ * file that is synced and then renamed over the old checkpoint, so a crash
+ * mid-save leaves the previous one intact.
+ * 
+ * @author Jason LaFrance
+ */
+public class VehicleCheckpoint {
+
+	private static final int MAGIC = 0x57544243; // WTBC
+	private static final int VERSION = 1;
+
+	/**
+	 * Save every current Vehicle
+	 * 
+	 * @param inFile
+	 *            The checkpoint file
+	 * @return Number of Vehicles saved
+	 * @throws IOException
+	 *             If the checkpoint can't be written
+	 */
+	public static int save(String inFile) throws IOException {
+		// vehicles go to a buffer first so the string table is complete
+		// before anything is written
+		Strings strings = new Strings();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int count = 0;
+		try (DataOutputStream out = new DataOutputStream(body)) {
+			for (Vehicle v : Vehicle.getVehicles()) {
+				v.checkpoint(out, strings);
+				count++;
+			}
+		}
+
+		File file = new File(inFile);
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp)) {
+			GZIPOutputStream gz = new GZIPOutputStream(fos, 1 << 16);
+			DataOutputStream out = new DataOutputStream(gz);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(Vehicle.getCoordBufferSize());
+			out.writeInt(strings.size());
+			for (String s : strings.mList) {
+				out.writeUTF(s);
+			}
+			out.writeInt(count);
+			body.writeTo(out);
+			out.flush();
+			gz.finish();
+			fos.getFD().sync();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+
+	/**
+	 * Load Vehicles from a checkpoint, binding them to the given feeds.
+	 * Vehicles already being tracked are replaced.
+	 * 
+	 * @param inFile
+	 *            The checkpoint file
+	 * @param inFeeds
+	 *            Currently loaded feeds
+	 * @return Number of Vehicles restored
+	 * @throws IOException
+	 *             If the checkpoint can't be read or is from an incompatible
+	 *             version or configuration
+	 */
+	public static int restore(String inFile, Collection<GTFS> inFeeds)
+			throws IOException {
+		HashMap<String, GTFS> feeds = new HashMap<>();
+		for (GTFS g : inFeeds) {
+			feeds.put(g.getDir(), g);
+		}
+
+		try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+				new FileInputStream(inFile), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(inFile + " isn't a vehicle checkpoint");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException(inFile + " is checkpoint version "
+						+ version);
+			}
+			in.readLong();
+			int bufferSize = in.readInt();
+			if (bufferSize != Vehicle.getCoordBufferSize()) {
+				throw new IOException(inFile
+						+ " was saved with coord_buffer_size " + bufferSize);
+			}
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readUTF();
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Vehicle.restore(in, strings, feeds);
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Get when a checkpoint was saved
+	 * 
+	 * @param inFile
+	 *            The checkpoint file
+	 * @return Epoch milliseconds
+	 * @throws IOException
+	 *             If the checkpoint can't be read
+	 */
+	public static long getSavedMillis(String inFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+				new FileInputStream(inFile)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(inFile + " isn't a vehicle checkpoint");
+			}
+			in.readInt();
+			return in.readLong();
+		}
+	}
+
+	/**
+	 * Table of the distinct strings in a checkpoint
+	 */
+	static class Strings {
+
+		private final HashMap<String, Integer> mIndex = new HashMap<>();
+		private final ArrayList<String> mList = new ArrayList<>();
+
+		/**
+		 * Get a string's index, adding it if it's new
+		 * 
+		 * @param in
+		 *            The string
+		 * @return Its index in the table
+		 */
+		int indexOf(String in) {
+			Integer index = mIndex.get(in);
+			if (index == null) {
+				index = mList.size();
+				mIndex.put(in, index);
+				mList.add(in);
+			}
+			return index;
+		}
+
+		/**
+		 * @return Number of strings in the table
+		 */
+		int size() {
+			return mList.size();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.vehicle;
+
+/**
+ * Interface for anything that wants to hear about Vehicle position updates
+ * 
+ * @author Jason LaFrance
+ */
+public interface VehicleListener {
+
+	/**
+	 * Called after a Vehicle's position, heading, speed and stop history have
+	 * been updated. This runs on the ingest or shard thread while the Vehicle
+	 * is locked, so implementations must not block.
+	 * 
+	 * @param v
+	 *            The updated Vehicle
+	 */
+	public void vehicleUpdated(Vehicle v);
+}
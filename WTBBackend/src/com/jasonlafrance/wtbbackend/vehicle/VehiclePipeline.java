@@ -0,0 +1,301 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.vehicle;
+
+import static com.jasonlafrance.wtbbackend.wtb_util.TimeUtil.secondsOfDay;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits packet ingest from vehicle processing. Ingest threads submit
+ * decoded positions and return straight away; each position is routed by
+ * vehicle ID to one of N shards, and each shard has a single thread that
+ * applies its positions in order. A vehicle only ever updates on its own
+ * shard's thread, so its lock is never contended and its state stays in
+ * that core's cache, and shards share nothing but the read-only stop
+ * index.
+ * 
+ * Each shard's queue is a bounded, lock-free ring for many producers and
+ * one consumer. Producers that find it full back off until the shard
+ * catches up, so a burst slows ingest down rather than piling up without
+ * bound.
+ * 
+ * @author Jason LaFrance
+ */
+public class VehiclePipeline {
+
+	public static final int DEFAULT_QUEUE_SIZE = 16384;
+	private static final long BACKOFF_NANOS = 50000;
+	private static final int SPINS = 100;
+
+	private final Shard[] mShards;
+	private volatile boolean isRunning = true;
+
+	/**
+	 * One shard: its ring and the thread that drains it
+	 */
+	private class Shard implements Runnable {
+
+		private final int mMask;
+		// slot sequence numbers, after Vyukov's bounded MPMC queue: a slot
+		// is free for ticket t when its sequence is t and full when it's t+1
+		private final AtomicLongArray mSequence;
+		private final short[] mID;
+		private final float[] mLat, mLon;
+		private final int[] mTimeCode;
+		private final AtomicLong mTail = new AtomicLong();
+		private final AtomicBoolean mParked = new AtomicBoolean(false);
+		private final Thread mThread;
+		// only touched by the shard thread
+		private long mHead = 0;
+		private volatile long mProcessed = 0;
+		private final AtomicLong mStalls = new AtomicLong();
+
+		/**
+		 * @param inIndex
+		 *            Shard number
+		 * @param inCapacity
+		 *            Ring size, a power of two
+		 */
+		Shard(int inIndex, int inCapacity) {
+			mMask = inCapacity - 1;
+			mSequence = new AtomicLongArray(inCapacity);
+			for (int i = 0; i < inCapacity; i++) {
+				mSequence.set(i, i);
+			}
+			mID = new short[inCapacity];
+			mLat = new float[inCapacity];
+			mLon = new float[inCapacity];
+			mTimeCode = new int[inCapacity];
+			mThread = new Thread(this, "VehicleShard-" + inIndex);
+			mThread.setDaemon(true);
+		}
+
+		/**
+		 * Try to queue a position
+		 * 
+		 * @return False if the ring is full
+		 */
+		boolean offer(short inID, float inLat, float inLon, int inTimeCode) {
+			while (true) {
+				long ticket = mTail.get();
+				int slot = (int) ticket & mMask;
+				long dif = mSequence.get(slot) - ticket;
+				if (dif == 0) {
+					if (mTail.compareAndSet(ticket, ticket + 1)) {
+						mID[slot] = inID;
+						mLat[slot] = inLat;
+						mLon[slot] = inLon;
+						mTimeCode[slot] = inTimeCode;
+						// publishes the fields above to the shard thread. This
+						// has to be a full volatile store: a lazySet could be
+						// reordered after the mParked read below, and the shard
+						// could then park on a slot that's already full.
+						mSequence.set(slot, ticket + 1);
+						if (mParked.get()) {
+							LockSupport.unpark(mThread);
+						}
+						return true;
+					}
+				} else if (dif < 0) {
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * Queue a position, waiting for room if the ring is full
+		 */
+		void put(short inID, float inLat, float inLon, int inTimeCode) {
+			if (offer(inID, inLat, inLon, inTimeCode)) {
+				return;
+			}
+			mStalls.incrementAndGet();
+			while (isRunning && !offer(inID, inLat, inLon, inTimeCode)) {
+				if (mParked.get()) {
+					LockSupport.unpark(mThread);
+				}
+				LockSupport.parkNanos(BACKOFF_NANOS);
+			}
+		}
+
+		@Override
+		public void run() {
+			int idle = 0;
+			while (isRunning) {
+				int slot = (int) mHead & mMask;
+				if (mSequence.get(slot) != mHead + 1) {
+					// spin a little before parking, since another position is
+					// usually right behind
+					if (++idle < SPINS) {
+						continue;
+					}
+					idle = 0;
+					// producers only unpark us once they see the flag, so
+					// check the ring again after raising it. Both sides store
+					// then load volatiles, so at least one sees the other.
+					mParked.set(true);
+					if (mSequence.get(slot) != mHead + 1 && isRunning) {
+						LockSupport.park(this);
+					}
+					mParked.set(false);
+					continue;
+				}
+				idle = 0;
+				short id = mID[slot];
+				float lat = mLat[slot];
+				float lon = mLon[slot];
+				int timeCode = mTimeCode[slot];
+				mSequence.lazySet(slot, mHead + mMask + 1);
+				mHead++;
+				try {
+					Vehicle.updateVehicle(id, lat, lon, timeCode);
+				} catch (RuntimeException e) {
+					System.out.println(mThread.getName() + ": " + e.toString());
+				}
+				mProcessed = mHead;
+			}
+		}
+
+		/**
+		 * @return Positions waiting in the ring
+		 */
+		long getBacklog() {
+			return mTail.get() - mProcessed;
+		}
+	}
+
+	/**
+	 * Create a pipeline with the default queue size and start its shards
+	 * 
+	 * @param inShards
+	 *            Number of shards, usually one per spare core
+	 */
+	public VehiclePipeline(int inShards) {
+		this(inShards, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Create a pipeline and start its shards
+	 * 
+	 * @param inShards
+	 *            Number of shards, usually one per spare core
+	 * @param inQueueSize
+	 *            Positions each shard can queue, rounded up to a power of two
+	 */
+	public VehiclePipeline(int inShards, int inQueueSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, inQueueSize) - 1) << 1;
+		mShards = new Shard[Math.max(1, inShards)];
+		for (int i = 0; i < mShards.length; i++) {
+			mShards[i] = new Shard(i, capacity);
+		}
+		for (Shard s : mShards) {
+			s.mThread.start();
+		}
+	}
+
+	/**
+	 * Queue a position received now
+	 * 
+	 * @param inID
+	 *            Vehicle ID
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 */
+	public void submit(short inID, float inLat, float inLon) {
+		submit(inID, inLat, inLon, secondsOfDay(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Queue a position. Positions for a vehicle are applied in the order they
+	 * are submitted from any one thread.
+	 * 
+	 * @param inID
+	 *            Vehicle ID
+	 * @param inLat
+	 *            Latitude
+	 * @param inLon
+	 *            Longitude
+	 * @param inTimeCode
+	 *            Time of the position in seconds since midnight
+	 */
+	public void submit(short inID, float inLat, float inLon, int inTimeCode) {
+		if (!isRunning) {
+			return;
+		}
+		mShards[(inID & 0xffff) % mShards.length].put(inID, inLat, inLon,
+				inTimeCode);
+	}
+
+	/**
+	 * Stop the shards. Anything still queued is dropped.
+	 */
+	public void stop() {
+		isRunning = false;
+		for (Shard s : mShards) {
+			LockSupport.unpark(s.mThread);
+		}
+	}
+
+	/**
+	 * @return Number of shards
+	 */
+	public int getShardCount() {
+		return mShards.length;
+	}
+
+	/**
+	 * @return Positions applied so far across all shards
+	 */
+	public long getProcessedCount() {
+		long ret = 0;
+		for (Shard s : mShards) {
+			ret += s.mProcessed;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return Positions queued but not yet applied across all shards
+	 */
+	public long getBacklog() {
+		long ret = 0;
+		for (Shard s : mShards) {
+			ret += s.getBacklog();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return Times a producer found a shard's ring full and had to wait
+	 */
+	public long getStallCount() {
+		long ret = 0;
+		for (Shard s : mShards) {
+			ret += s.mStalls.get();
+		}
+		return ret;
+	}
+}
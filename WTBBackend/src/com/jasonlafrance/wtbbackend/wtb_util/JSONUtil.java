@@ -0,0 +1,99 @@
+/*
+Copyright 2013, 2014 Jason LaFrance
+
+This file is part of WTBBackend.
+
+    WTBBackend is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    WTBBackend is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with WTBBackend.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jasonlafrance.wtbbackend.wtb_util;
+
+/**
+ * Function class for writing JSON values
+ * 
+ * @author Jason LaFrance
+ */
+public class JSONUtil {
+
+	/**
+	 * Append a number, writing null for NaN and infinite values
+	 * 
+	 * @param sb
+	 *            The StringBuilder to append to
+	 * @param in
+	 *            The number
+	 * @return The StringBuilder
+	 */
+	public static StringBuilder appendNumber(StringBuilder sb, double in) {
+		if (Double.isNaN(in) || Double.isInfinite(in)) {
+			return sb.append("null");
+		}
+		return sb.append(in);
+	}
+
+	/**
+	 * Append a quoted and escaped String, writing null for null values
+	 * 
+	 * @param sb
+	 *            The StringBuilder to append to
+	 * @param in
+	 *            The String
+	 * @return The StringBuilder
+	 */
+	public static StringBuilder appendString(StringBuilder sb, String in) {
+		if (in == null) {
+			return sb.append("null");
+		}
+		sb.append('"');
+		for (int i = 0; i < in.length(); i++) {
+			char c = in.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+				break;
+			}
+		}
+		return sb.append('"');
+	}
+
+	/**
+	 * Quote and escape a String
+	 * 
+	 * @param in
+	 *            The String
+	 * @return A JSON String literal
+	 */
+	public static String quote(String in) {
+		return appendString(new StringBuilder(), in).toString();
+	}
+}
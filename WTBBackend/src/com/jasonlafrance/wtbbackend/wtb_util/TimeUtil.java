@@ -19,6 +19,8 @@ This file is part of WTBBackend.
 
 package com.jasonlafrance.wtbbackend.wtb_util;
 
+import java.util.TimeZone;
+
 /**
  * Time conversion function class
  * 
@@ -49,6 +51,23 @@ public class TimeUtil {
 		return H + ":" + M + ":00";
 	}
 
+	/**
+	 * Convert a time code in seconds to a time String
+	 * 
+	 * @param inTime
+	 *            Time code to convert
+	 * @return The time String
+	 */
+	public static String secondsToTime(int inTime) {
+		if (inTime < 0) {
+			return "";
+		}
+		String S = ("00" + Integer.toString(inTime % 60));
+		S = S.substring(S.length() - 2);
+
+		return minutesToTime(inTime / 60).substring(0, 6) + S;
+	}
+
 	/**
 	 * Convert a time String to a time code in minutes
 	 * 
@@ -116,4 +135,18 @@ public class TimeUtil {
 		}
 		return secs;
 	}
+
+	/**
+	 * Get the local time of day of an instant, as a time code in seconds.
+	 * Unlike formatting with a shared SimpleDateFormat, this is safe to call
+	 * from any number of threads.
+	 * 
+	 * @param inMillis
+	 *            Epoch milliseconds
+	 * @return Seconds since local midnight
+	 */
+	public static int secondsOfDay(long inMillis) {
+		long local = inMillis + TimeZone.getDefault().getOffset(inMillis);
+		return (int) ((local / 1000) % 86400);
+	}
 }